@@ -2,12 +2,16 @@ package org.jenkinsci.plugins.rabbitmqconsumer;
 
 import hudson.Extension;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
@@ -16,6 +20,9 @@ import net.sf.json.JSONObject;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.validator.routines.UrlValidator;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.FailurePolicy;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.PartitionKey;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.VirtualThreads;
 import org.jenkinsci.plugins.rabbitmqconsumer.watchdog.ReconnectTimer;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -42,6 +49,99 @@ public final class GlobalRabbitmqConfiguration extends GlobalConfiguration {
      * The string in global configuration that indicates content is empty.
      */
     public static final String CONTENT_NONE = "-";
+    /**
+     * The default prefetch count. 0 means unlimited.
+     */
+    public static final int DEFAULT_PREFETCH_COUNT = 0;
+    /**
+     * The default number of acks to be coalesced. 1 means no coalescing.
+     */
+    public static final int DEFAULT_ACK_BATCH_SIZE = 1;
+    /**
+     * The default maximum time in milliseconds to hold pending acks.
+     */
+    public static final long DEFAULT_ACK_TIMEOUT = 200;
+    /**
+     * The default number of threads to dispatch messages.
+     */
+    public static final int DEFAULT_DISPATCH_POOL_SIZE = 4;
+    /**
+     * The default number of messages which wait for dispatch thread.
+     */
+    public static final int DEFAULT_DISPATCH_QUEUE_DEPTH = 100;
+    /**
+     * The default number of redeliveries after which requeued message is dead-lettered.
+     * 0 means unlimited.
+     */
+    public static final int DEFAULT_MAX_REDELIVERIES = 0;
+    /**
+     * The default number of invocations which wait for worker of each listener.
+     */
+    public static final int DEFAULT_LISTENER_QUEUE_DEPTH = 10;
+    /**
+     * The default timeout in milliseconds for each listener invocation.
+     */
+    public static final long DEFAULT_LISTENER_TIMEOUT = 30000;
+    /**
+     * The default number of recent calls to calculate failure rate of listener.
+     */
+    public static final int DEFAULT_CIRCUIT_WINDOW_SIZE = 20;
+    /**
+     * The default failure rate in percent to open circuit of listener.
+     */
+    public static final int DEFAULT_CIRCUIT_FAILURE_RATE = 50;
+    /**
+     * The default time in milliseconds to keep circuit of listener open.
+     */
+    public static final long DEFAULT_CIRCUIT_OPEN_DURATION = 30000;
+    /**
+     * The default length of build queue to pause consumers.
+     */
+    public static final int DEFAULT_PAUSE_QUEUE_LENGTH = 1000;
+    /**
+     * The default length of build queue to resume consumers.
+     */
+    public static final int DEFAULT_RESUME_QUEUE_LENGTH = 500;
+    /**
+     * The default heap usage in percent to pause consumers.
+     */
+    public static final int DEFAULT_PAUSE_HEAP_USAGE = 90;
+    /**
+     * The default heap usage in percent to resume consumers.
+     */
+    public static final int DEFAULT_RESUME_HEAP_USAGE = 75;
+    /**
+     * The default number of message ids kept for each queue to detect duplicates.
+     */
+    public static final int DEFAULT_DEDUP_CACHE_SIZE = 10000;
+    /**
+     * The default time in milliseconds to keep message id to detect duplicates.
+     */
+    public static final long DEFAULT_DEDUP_TTL = 600000;
+    /**
+     * The default size in megabytes of spool segment file.
+     */
+    public static final int DEFAULT_SPOOL_SEGMENT_SIZE = 64;
+    /**
+     * The maximum size in megabytes of spool segment file.
+     */
+    public static final int MAX_SPOOL_SEGMENT_SIZE = 1024;
+    /**
+     * The default maximum size in megabytes of spool files per queue.
+     */
+    public static final int DEFAULT_SPOOL_MAX_SIZE = 1024;
+    /**
+     * The maximum number of connections for consume channels.
+     */
+    public static final int MAX_CONNECTION_POOL_SIZE = 32;
+    /**
+     * The default number of messages kept by debug listener.
+     */
+    public static final int DEFAULT_DEBUG_BUFFER_SIZE = 256;
+    /**
+     * The default maximum length in bytes of message body kept by debug listener.
+     */
+    public static final int DEFAULT_DEBUG_BODY_LIMIT = 1024;
 
     @SuppressWarnings("unused")
     private static final Logger LOGGER = LoggerFactory.getLogger(GlobalRabbitmqConfiguration.class);
@@ -53,8 +153,44 @@ public final class GlobalRabbitmqConfiguration extends GlobalConfiguration {
     private String userName;
     private Secret userPassword;
     private long watchdogPeriod = ReconnectTimer.DEFAULT_RECCURENCE_TIME;
+    private int connectionPoolSize = 1;
     private List<RabbitmqConsumeItem> consumeItems;
+    private List<RabbitmqBroker> brokers;
     private boolean enableDebug;
+    private int debugBufferSize = DEFAULT_DEBUG_BUFFER_SIZE;
+    private int debugSampleInterval = 1;
+    private int debugBodyLimit = DEFAULT_DEBUG_BODY_LIMIT;
+    private int prefetchCount = DEFAULT_PREFETCH_COUNT;
+    private int ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+    private long ackTimeout = DEFAULT_ACK_TIMEOUT;
+    private boolean enableDispatchPool;
+    private int dispatchPoolSize = DEFAULT_DISPATCH_POOL_SIZE;
+    private int dispatchQueueDepth = DEFAULT_DISPATCH_QUEUE_DEPTH;
+    private String dispatchPartitionKey = PartitionKey.NONE.name();
+    private String dispatchPartitionHeader;
+    private boolean useVirtualThreads;
+    private int appIdConcurrency;
+    private String failurePolicy = FailurePolicy.ACK.name();
+    private int maxRedeliveries = DEFAULT_MAX_REDELIVERIES;
+    private boolean enableListenerBulkhead;
+    private int listenerQueueDepth = DEFAULT_LISTENER_QUEUE_DEPTH;
+    private long listenerTimeout = DEFAULT_LISTENER_TIMEOUT;
+    private boolean enableCircuitBreaker;
+    private int circuitWindowSize = DEFAULT_CIRCUIT_WINDOW_SIZE;
+    private int circuitFailureRate = DEFAULT_CIRCUIT_FAILURE_RATE;
+    private long circuitOpenDuration = DEFAULT_CIRCUIT_OPEN_DURATION;
+    private boolean enableFlowControl;
+    private int pauseQueueLength = DEFAULT_PAUSE_QUEUE_LENGTH;
+    private int resumeQueueLength = DEFAULT_RESUME_QUEUE_LENGTH;
+    private int pauseHeapUsage = DEFAULT_PAUSE_HEAP_USAGE;
+    private int resumeHeapUsage = DEFAULT_RESUME_HEAP_USAGE;
+    private boolean enableDedup;
+    private String dedupHeader;
+    private int dedupCacheSize = DEFAULT_DEDUP_CACHE_SIZE;
+    private long dedupTtl = DEFAULT_DEDUP_TTL;
+    private boolean enableSpool;
+    private int spoolSegmentSize = DEFAULT_SPOOL_SEGMENT_SIZE;
+    private int spoolMaxSize = DEFAULT_SPOOL_MAX_SIZE;
 
     /**
      * Creates GlobalRabbitmqConfiguration instance with specified parameters.
@@ -104,6 +240,7 @@ public final class GlobalRabbitmqConfiguration extends GlobalConfiguration {
         if (consumeItems != null) {
             consumeItems.clear();
         }
+        brokers = null;
         req.bindJSON(this, json);
 
         ReconnectTimer timer = ReconnectTimer.get();
@@ -136,6 +273,93 @@ public final class GlobalRabbitmqConfiguration extends GlobalConfiguration {
         this.enableDebug = enableDebug;
     }
 
+    /**
+     * Gets the number of messages kept by debug listener.
+     *
+     * @return the number of messages.
+     */
+    public int getDebugBufferSize() {
+        return debugBufferSize > 0 ? debugBufferSize : DEFAULT_DEBUG_BUFFER_SIZE;
+    }
+
+    /**
+     * Sets the number of messages kept by debug listener.
+     *
+     * @param debugBufferSize the number of messages.
+     */
+    public void setDebugBufferSize(int debugBufferSize) {
+        this.debugBufferSize = debugBufferSize > 0 ? debugBufferSize : DEFAULT_DEBUG_BUFFER_SIZE;
+    }
+
+    /**
+     * Gets sampling interval of debug listener. One of this number of messages is recorded.
+     *
+     * @return the interval.
+     */
+    public int getDebugSampleInterval() {
+        return debugSampleInterval > 0 ? debugSampleInterval : 1;
+    }
+
+    /**
+     * Sets sampling interval of debug listener.
+     *
+     * @param debugSampleInterval the interval.
+     */
+    public void setDebugSampleInterval(int debugSampleInterval) {
+        this.debugSampleInterval = debugSampleInterval > 0 ? debugSampleInterval : 1;
+    }
+
+    /**
+     * Gets the maximum length of message body kept by debug listener.
+     *
+     * @return the length in bytes.
+     */
+    public int getDebugBodyLimit() {
+        return debugBodyLimit >= 0 ? debugBodyLimit : DEFAULT_DEBUG_BODY_LIMIT;
+    }
+
+    /**
+     * Sets the maximum length of message body kept by debug listener.
+     *
+     * @param debugBodyLimit the length in bytes.
+     */
+    public void setDebugBodyLimit(int debugBodyLimit) {
+        this.debugBodyLimit = debugBodyLimit >= 0 ? debugBodyLimit : DEFAULT_DEBUG_BODY_LIMIT;
+    }
+
+    /**
+     * Checks given debug buffer size.
+     *
+     * @param value
+     *            the number of messages.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDebugBufferSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks given sampling interval.
+     *
+     * @param value
+     *            the interval.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDebugSampleInterval(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks given body limit.
+     *
+     * @param value
+     *            the length in bytes.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDebugBodyLimit(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
     /**
      * Gets whether this plugin is enabled or not.
      *
@@ -240,86 +464,1079 @@ public final class GlobalRabbitmqConfiguration extends GlobalConfiguration {
     }
 
     /**
-     * Checks given URI is valid.
+     * Gets the number of connections for consume channels.
+     *
+     * @return the number of connections.
+     */
+    public int getConnectionPoolSize() {
+        return Math.max(1, Math.min(connectionPoolSize, MAX_CONNECTION_POOL_SIZE));
+    }
+
+    /**
+     * Sets the number of connections for consume channels.
+     *
+     * @param connectionPoolSize the number of connections.
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+        this.connectionPoolSize = Math.max(1, connectionPoolSize);
+    }
+
+    /**
+     * Checks given connection pool size.
      *
      * @param value
-     *            the URI.
+     *            the number of connections.
      * @return FormValidation object that indicates ok or error.
      */
-    public FormValidation doCheckServiceUri(@QueryParameter String value) {
-        String val = StringUtils.stripToNull(value);
-        if (val == null) {
-            return FormValidation.ok();
+    public FormValidation doCheckConnectionPoolSize(@QueryParameter String value) {
+        FormValidation v = FormValidation.validatePositiveInteger(value);
+        if (v.kind == FormValidation.Kind.OK && Integer.parseInt(value.trim()) > MAX_CONNECTION_POOL_SIZE) {
+            return FormValidation.error(Messages.ConnectionPoolSizeOutOfRange(MAX_CONNECTION_POOL_SIZE));
         }
+        return v;
+    }
 
-        if (URL_VALIDATOR.isValid(val)) {
-            return FormValidation.ok();
-        } else {
-            return FormValidation.error(Messages.InvalidURI());
-        }
+    /**
+     * Gets the default prefetch count for consume channels.
+     *
+     * @return the prefetch count. 0 means unlimited.
+     */
+    public int getPrefetchCount() {
+        return prefetchCount;
     }
 
     /**
-     * Tests connection to given URI.
+     * Sets the default prefetch count for consume channels.
      *
-     * @param serviceUri
-     *            the URI.
-     * @param userName
-     *            the username.
-     * @param userPassword
-     *            the password.
-     * @return FormValidation object that indicates ok or error.
-     * @throws ServletException
-     *             exception for servlet.
+     * @param prefetchCount the prefetch count. 0 means unlimited.
      */
-    public FormValidation doTestConnection(@QueryParameter("serviceUri") String serviceUri,
-            @QueryParameter("userName") String userName,
-            @QueryParameter("userPassword") Secret userPassword) throws ServletException {
-        String uri = StringUtils.strip(StringUtils.stripToNull(serviceUri), "/");
-        if (uri != null && URL_VALIDATOR.isValid(uri)) {
-            try {
-                ConnectionFactory factory = new ConnectionFactory();
-                factory.setUri(uri);
-                if (StringUtils.isNotEmpty(userName)) {
-                    factory.setUsername(userName);
-                }
-                if (StringUtils.isNotEmpty(Secret.toString(userPassword))) {
-                    factory.setPassword(Secret.toString(userPassword));
-                }
-                factory.newConnection();
-                return FormValidation.ok(Messages.Success());
-            } catch (URISyntaxException e) {
-                return FormValidation.error(Messages.InvalidURI());
-            } catch (GeneralSecurityException e) {
-                return FormValidation.error(Messages.Error() + ": " + e);
-            } catch (PossibleAuthenticationFailureException e) {
-                return FormValidation.error(Messages.AuthFailure());
-            } catch (IOException e) {
-                return FormValidation.error(Messages.Error() + ": " + e);
-            } catch (TimeoutException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return FormValidation.error(Messages.InvalidURI());
+    public void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = Math.max(0, prefetchCount);
     }
 
     /**
-     * Gets the list of {@link RabbitmqConsumeItem}.
+     * Gets prefetch count applied to channel for specified queue.
      *
-     * @return the list of {@link RabbitmqConsumeItem}
+     * @param queueName
+     *            the queue name.
+     * @return the prefetch count. 0 means unlimited.
      */
-    public List<RabbitmqConsumeItem> getConsumeItems() {
-        return consumeItems;
+    public int getEffectivePrefetchCount(String queueName) {
+        return RabbitmqConsumeItem.getEffectivePrefetchCount(consumeItems, queueName, prefetchCount);
     }
 
     /**
-     * Sets the list of {@link RabbitmqConsumeItem}.
+     * Gets the number of acks to be coalesced into one multiple ack.
      *
-     * @param consumeItems
-     *            the list of {@link RabbitmqConsumeItem}
+     * @return the batch size. 1 means no coalescing.
      */
-    public void setConsumeItems(List<RabbitmqConsumeItem> consumeItems) {
-        this.consumeItems = consumeItems;
+    public int getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    /**
+     * Sets the number of acks to be coalesced into one multiple ack.
+     *
+     * @param ackBatchSize the batch size. 1 means no coalescing.
+     */
+    public void setAckBatchSize(int ackBatchSize) {
+        this.ackBatchSize = Math.max(1, ackBatchSize);
+    }
+
+    /**
+     * Gets the maximum time to hold pending acks.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getAckTimeout() {
+        return ackTimeout;
+    }
+
+    /**
+     * Sets the maximum time to hold pending acks.
+     *
+     * @param ackTimeout the time in milliseconds.
+     */
+    public void setAckTimeout(long ackTimeout) {
+        this.ackTimeout = ackTimeout > 0 ? ackTimeout : DEFAULT_ACK_TIMEOUT;
+    }
+
+    /**
+     * Gets whether messages are dispatched on thread pool.
+     *
+     * @return true if messages are dispatched on thread pool.
+     */
+    public boolean isEnableDispatchPool() {
+        return enableDispatchPool;
+    }
+
+    /**
+     * Sets flag whether messages are dispatched on thread pool.
+     *
+     * @param enableDispatchPool true if messages are dispatched on thread pool.
+     */
+    public void setEnableDispatchPool(boolean enableDispatchPool) {
+        this.enableDispatchPool = enableDispatchPool;
+    }
+
+    /**
+     * Gets the number of threads to dispatch messages.
+     *
+     * @return the number of threads.
+     */
+    public int getDispatchPoolSize() {
+        return dispatchPoolSize;
+    }
+
+    /**
+     * Sets the number of threads to dispatch messages.
+     *
+     * @param dispatchPoolSize the number of threads.
+     */
+    public void setDispatchPoolSize(int dispatchPoolSize) {
+        this.dispatchPoolSize = dispatchPoolSize > 0 ? dispatchPoolSize : DEFAULT_DISPATCH_POOL_SIZE;
+    }
+
+    /**
+     * Gets the number of messages which wait for dispatch thread.
+     *
+     * @return the number of messages.
+     */
+    public int getDispatchQueueDepth() {
+        return dispatchQueueDepth;
+    }
+
+    /**
+     * Sets the number of messages which wait for dispatch thread.
+     *
+     * @param dispatchQueueDepth the number of messages.
+     */
+    public void setDispatchQueueDepth(int dispatchQueueDepth) {
+        this.dispatchQueueDepth = Math.max(0, dispatchQueueDepth);
+    }
+
+    /**
+     * Gets the key to decide dispatch lane.
+     *
+     * @return the name of key.
+     */
+    public String getDispatchPartitionKey() {
+        return dispatchPartitionKey;
+    }
+
+    /**
+     * Sets the key to decide dispatch lane.
+     *
+     * @param dispatchPartitionKey the name of key.
+     */
+    public void setDispatchPartitionKey(String dispatchPartitionKey) {
+        this.dispatchPartitionKey = PartitionKey.parse(dispatchPartitionKey).name();
+    }
+
+    /**
+     * Gets the header name used as key to decide dispatch lane.
+     *
+     * @return the header name.
+     */
+    public String getDispatchPartitionHeader() {
+        return dispatchPartitionHeader;
+    }
+
+    /**
+     * Sets the header name used as key to decide dispatch lane.
+     *
+     * @param dispatchPartitionHeader the header name.
+     */
+    public void setDispatchPartitionHeader(String dispatchPartitionHeader) {
+        this.dispatchPartitionHeader = StringUtils.stripToNull(dispatchPartitionHeader);
+    }
+
+    /**
+     * Gets whether messages are dispatched on virtual threads.
+     *
+     * @return true if virtual threads are used when runtime supports them.
+     */
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Sets flag whether messages are dispatched on virtual threads.
+     *
+     * @param useVirtualThreads true if virtual threads are used when runtime supports them.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    /**
+     * Gets the number of messages which are dispatched at once for each application id.
+     *
+     * @return the number of messages. 0 means unlimited.
+     */
+    public int getAppIdConcurrency() {
+        return appIdConcurrency;
+    }
+
+    /**
+     * Sets the number of messages which are dispatched at once for each application id.
+     *
+     * @param appIdConcurrency the number of messages. 0 means unlimited.
+     */
+    public void setAppIdConcurrency(int appIdConcurrency) {
+        this.appIdConcurrency = Math.max(0, appIdConcurrency);
+    }
+
+    /**
+     * Checks whether runtime supports virtual threads.
+     *
+     * @param value
+     *            the flag.
+     * @return FormValidation object that indicates ok or warning.
+     */
+    public FormValidation doCheckUseVirtualThreads(@QueryParameter boolean value) {
+        if (value && !VirtualThreads.isSupported()) {
+            return FormValidation.warning(Messages.VirtualThreadsNotSupported());
+        }
+        return FormValidation.ok();
+    }
+
+    /**
+     * Checks given concurrency for application id.
+     *
+     * @param value
+     *            the number of messages.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckAppIdConcurrency(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Fills partition keys.
+     *
+     * @return ListBoxModel instance that is filled by partition keys.
+     */
+    public ListBoxModel doFillDispatchPartitionKeyItems() {
+        ListBoxModel items = new ListBoxModel();
+        items.add(Messages.PartitionKeyNone(), PartitionKey.NONE.name());
+        items.add(Messages.PartitionKeyRoutingKey(), PartitionKey.ROUTING_KEY.name());
+        items.add(Messages.PartitionKeyAppId(), PartitionKey.APP_ID.name());
+        items.add(Messages.PartitionKeyHeader(), PartitionKey.HEADER.name());
+        return items;
+    }
+
+    /**
+     * Checks given partition header.
+     *
+     * @param value
+     *            the header name.
+     * @param dispatchPartitionKey
+     *            the key to decide dispatch lane.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDispatchPartitionHeader(@QueryParameter String value,
+            @QueryParameter String dispatchPartitionKey) {
+        if (PartitionKey.parse(dispatchPartitionKey) == PartitionKey.HEADER
+                && StringUtils.stripToNull(value) == null) {
+            return FormValidation.error(Messages.PartitionHeaderRequired());
+        }
+        return FormValidation.ok();
+    }
+
+    /**
+     * Gets policy for message which listener failed to handle.
+     *
+     * @return the name of policy.
+     */
+    public String getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    /**
+     * Sets policy for message which listener failed to handle.
+     *
+     * @param failurePolicy the name of policy.
+     */
+    public void setFailurePolicy(String failurePolicy) {
+        this.failurePolicy = FailurePolicy.parse(failurePolicy).name();
+    }
+
+    /**
+     * Gets the number of redeliveries after which requeued message is dead-lettered.
+     *
+     * @return the number of redeliveries. 0 means unlimited.
+     */
+    public int getMaxRedeliveries() {
+        return maxRedeliveries;
+    }
+
+    /**
+     * Sets the number of redeliveries after which requeued message is dead-lettered.
+     *
+     * @param maxRedeliveries the number of redeliveries. 0 means unlimited.
+     */
+    public void setMaxRedeliveries(int maxRedeliveries) {
+        this.maxRedeliveries = Math.max(0, maxRedeliveries);
+    }
+
+    /**
+     * Gets whether each listener is called on own worker.
+     *
+     * @return true if listener bulkheads are enabled.
+     */
+    public boolean isEnableListenerBulkhead() {
+        return enableListenerBulkhead;
+    }
+
+    /**
+     * Sets flag whether each listener is called on own worker.
+     *
+     * @param enableListenerBulkhead true if listener bulkheads are enabled.
+     */
+    public void setEnableListenerBulkhead(boolean enableListenerBulkhead) {
+        this.enableListenerBulkhead = enableListenerBulkhead;
+    }
+
+    /**
+     * Gets the number of invocations which wait for worker of each listener.
+     *
+     * @return the number of invocations.
+     */
+    public int getListenerQueueDepth() {
+        return listenerQueueDepth;
+    }
+
+    /**
+     * Sets the number of invocations which wait for worker of each listener.
+     *
+     * @param listenerQueueDepth the number of invocations.
+     */
+    public void setListenerQueueDepth(int listenerQueueDepth) {
+        this.listenerQueueDepth = listenerQueueDepth > 0 ? listenerQueueDepth : DEFAULT_LISTENER_QUEUE_DEPTH;
+    }
+
+    /**
+     * Gets the timeout for each listener invocation.
+     *
+     * @return the timeout in milliseconds. 0 means unlimited.
+     */
+    public long getListenerTimeout() {
+        return listenerTimeout;
+    }
+
+    /**
+     * Sets the timeout for each listener invocation.
+     *
+     * @param listenerTimeout the timeout in milliseconds. 0 means unlimited.
+     */
+    public void setListenerTimeout(long listenerTimeout) {
+        this.listenerTimeout = Math.max(0, listenerTimeout);
+    }
+
+    /**
+     * Checks given listener queue depth.
+     *
+     * @param value
+     *            the number of invocations.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckListenerQueueDepth(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks given listener timeout.
+     *
+     * @param value
+     *            the timeout in milliseconds.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckListenerTimeout(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Gets whether circuit breaker is used for each listener.
+     *
+     * @return true if circuit breakers are enabled.
+     */
+    public boolean isEnableCircuitBreaker() {
+        return enableCircuitBreaker;
+    }
+
+    /**
+     * Sets flag whether circuit breaker is used for each listener.
+     *
+     * @param enableCircuitBreaker true if circuit breakers are enabled.
+     */
+    public void setEnableCircuitBreaker(boolean enableCircuitBreaker) {
+        this.enableCircuitBreaker = enableCircuitBreaker;
+    }
+
+    /**
+     * Gets the number of recent calls to calculate failure rate of listener.
+     *
+     * @return the number of calls.
+     */
+    public int getCircuitWindowSize() {
+        return circuitWindowSize > 0 ? circuitWindowSize : DEFAULT_CIRCUIT_WINDOW_SIZE;
+    }
+
+    /**
+     * Sets the number of recent calls to calculate failure rate of listener.
+     *
+     * @param circuitWindowSize the number of calls.
+     */
+    public void setCircuitWindowSize(int circuitWindowSize) {
+        this.circuitWindowSize = circuitWindowSize > 0 ? circuitWindowSize : DEFAULT_CIRCUIT_WINDOW_SIZE;
+    }
+
+    /**
+     * Gets the failure rate to open circuit of listener.
+     *
+     * @return the failure rate in percent.
+     */
+    public int getCircuitFailureRate() {
+        return circuitFailureRate > 0 ? Math.min(100, circuitFailureRate) : DEFAULT_CIRCUIT_FAILURE_RATE;
+    }
+
+    /**
+     * Sets the failure rate to open circuit of listener.
+     *
+     * @param circuitFailureRate the failure rate in percent.
+     */
+    public void setCircuitFailureRate(int circuitFailureRate) {
+        this.circuitFailureRate = circuitFailureRate > 0 ? Math.min(100, circuitFailureRate)
+                : DEFAULT_CIRCUIT_FAILURE_RATE;
+    }
+
+    /**
+     * Gets the time to keep circuit of listener open.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getCircuitOpenDuration() {
+        return circuitOpenDuration > 0 ? circuitOpenDuration : DEFAULT_CIRCUIT_OPEN_DURATION;
+    }
+
+    /**
+     * Sets the time to keep circuit of listener open.
+     *
+     * @param circuitOpenDuration the time in milliseconds.
+     */
+    public void setCircuitOpenDuration(long circuitOpenDuration) {
+        this.circuitOpenDuration = circuitOpenDuration > 0 ? circuitOpenDuration : DEFAULT_CIRCUIT_OPEN_DURATION;
+    }
+
+    /**
+     * Checks given circuit window size.
+     *
+     * @param value
+     *            the number of calls.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckCircuitWindowSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks given circuit failure rate.
+     *
+     * @param value
+     *            the failure rate in percent.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckCircuitFailureRate(@QueryParameter String value) {
+        FormValidation v = FormValidation.validatePositiveInteger(value);
+        if (v.kind == FormValidation.Kind.OK && Integer.parseInt(value.trim()) > 100) {
+            return FormValidation.error(Messages.CircuitFailureRateOutOfRange());
+        }
+        return v;
+    }
+
+    /**
+     * Checks given circuit open duration.
+     *
+     * @param value
+     *            the time in milliseconds.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckCircuitOpenDuration(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Gets whether consumers are paused by pressure on Jenkins.
+     *
+     * @return true if flow control is enabled.
+     */
+    public boolean isEnableFlowControl() {
+        return enableFlowControl;
+    }
+
+    /**
+     * Sets flag whether consumers are paused by pressure on Jenkins.
+     *
+     * @param enableFlowControl true if flow control is enabled.
+     */
+    public void setEnableFlowControl(boolean enableFlowControl) {
+        this.enableFlowControl = enableFlowControl;
+    }
+
+    /**
+     * Gets the length of build queue to pause consumers.
+     *
+     * @return the length. 0 means build queue is not watched.
+     */
+    public int getPauseQueueLength() {
+        return pauseQueueLength;
+    }
+
+    /**
+     * Sets the length of build queue to pause consumers.
+     *
+     * @param pauseQueueLength the length. 0 means build queue is not watched.
+     */
+    public void setPauseQueueLength(int pauseQueueLength) {
+        this.pauseQueueLength = Math.max(0, pauseQueueLength);
+    }
+
+    /**
+     * Gets the length of build queue to resume consumers.
+     * It never exceeds the length to pause.
+     *
+     * @return the length.
+     */
+    public int getResumeQueueLength() {
+        return Math.min(resumeQueueLength, pauseQueueLength);
+    }
+
+    /**
+     * Sets the length of build queue to resume consumers.
+     *
+     * @param resumeQueueLength the length.
+     */
+    public void setResumeQueueLength(int resumeQueueLength) {
+        this.resumeQueueLength = Math.max(0, resumeQueueLength);
+    }
+
+    /**
+     * Gets the heap usage to pause consumers.
+     *
+     * @return the usage in percent. 0 means heap is not watched.
+     */
+    public int getPauseHeapUsage() {
+        return pauseHeapUsage;
+    }
+
+    /**
+     * Sets the heap usage to pause consumers.
+     *
+     * @param pauseHeapUsage the usage in percent. 0 means heap is not watched.
+     */
+    public void setPauseHeapUsage(int pauseHeapUsage) {
+        this.pauseHeapUsage = Math.min(100, Math.max(0, pauseHeapUsage));
+    }
+
+    /**
+     * Gets the heap usage to resume consumers.
+     * It never exceeds the usage to pause.
+     *
+     * @return the usage in percent.
+     */
+    public int getResumeHeapUsage() {
+        return Math.min(resumeHeapUsage, pauseHeapUsage);
+    }
+
+    /**
+     * Sets the heap usage to resume consumers.
+     *
+     * @param resumeHeapUsage the usage in percent.
+     */
+    public void setResumeHeapUsage(int resumeHeapUsage) {
+        this.resumeHeapUsage = Math.min(100, Math.max(0, resumeHeapUsage));
+    }
+
+    /**
+     * Checks given length of build queue to pause consumers.
+     *
+     * @param value
+     *            the length.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckPauseQueueLength(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Checks given length of build queue to resume consumers.
+     *
+     * @param value
+     *            the length.
+     * @param pauseQueueLength
+     *            the length to pause.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckResumeQueueLength(@QueryParameter String value,
+            @QueryParameter String pauseQueueLength) {
+        return checkResumeThreshold(value, pauseQueueLength);
+    }
+
+    /**
+     * Checks given heap usage to pause consumers.
+     *
+     * @param value
+     *            the usage in percent.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckPauseHeapUsage(@QueryParameter String value) {
+        FormValidation v = FormValidation.validateNonNegativeInteger(value);
+        if (v.kind == FormValidation.Kind.OK && Integer.parseInt(value.trim()) > 100) {
+            return FormValidation.error(Messages.HeapUsageOutOfRange());
+        }
+        return v;
+    }
+
+    /**
+     * Checks given heap usage to resume consumers.
+     *
+     * @param value
+     *            the usage in percent.
+     * @param pauseHeapUsage
+     *            the usage to pause.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckResumeHeapUsage(@QueryParameter String value,
+            @QueryParameter String pauseHeapUsage) {
+        return checkResumeThreshold(value, pauseHeapUsage);
+    }
+
+    /**
+     * Gets whether duplicate messages are acked without delivery.
+     *
+     * @return true if dedup is enabled.
+     */
+    public boolean isEnableDedup() {
+        return enableDedup;
+    }
+
+    /**
+     * Sets flag whether duplicate messages are acked without delivery.
+     *
+     * @param enableDedup true if dedup is enabled.
+     */
+    public void setEnableDedup(boolean enableDedup) {
+        this.enableDedup = enableDedup;
+    }
+
+    /**
+     * Gets header name which has message id for dedup.
+     *
+     * @return the header name. null means message id property.
+     */
+    public String getDedupHeader() {
+        return dedupHeader;
+    }
+
+    /**
+     * Sets header name which has message id for dedup.
+     *
+     * @param dedupHeader the header name. empty means message id property.
+     */
+    public void setDedupHeader(String dedupHeader) {
+        this.dedupHeader = StringUtils.stripToNull(dedupHeader);
+    }
+
+    /**
+     * Gets the number of message ids kept for each queue.
+     *
+     * @return the number of ids.
+     */
+    public int getDedupCacheSize() {
+        return dedupCacheSize > 0 ? dedupCacheSize : DEFAULT_DEDUP_CACHE_SIZE;
+    }
+
+    /**
+     * Sets the number of message ids kept for each queue.
+     *
+     * @param dedupCacheSize the number of ids.
+     */
+    public void setDedupCacheSize(int dedupCacheSize) {
+        this.dedupCacheSize = dedupCacheSize > 0 ? dedupCacheSize : DEFAULT_DEDUP_CACHE_SIZE;
+    }
+
+    /**
+     * Gets the time to keep message id.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getDedupTtl() {
+        return dedupTtl > 0 ? dedupTtl : DEFAULT_DEDUP_TTL;
+    }
+
+    /**
+     * Sets the time to keep message id.
+     *
+     * @param dedupTtl the time in milliseconds.
+     */
+    public void setDedupTtl(long dedupTtl) {
+        this.dedupTtl = dedupTtl > 0 ? dedupTtl : DEFAULT_DEDUP_TTL;
+    }
+
+    /**
+     * Checks given dedup cache size.
+     *
+     * @param value
+     *            the number of ids.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDedupCacheSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks given dedup TTL.
+     *
+     * @param value
+     *            the time in milliseconds.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDedupTtl(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Gets whether deliveries are written to spool on disk before listeners are called.
+     *
+     * @return true if spool is enabled.
+     */
+    public boolean isEnableSpool() {
+        return enableSpool;
+    }
+
+    /**
+     * Sets flag whether deliveries are written to spool on disk before listeners are called.
+     *
+     * @param enableSpool true if spool is enabled.
+     */
+    public void setEnableSpool(boolean enableSpool) {
+        this.enableSpool = enableSpool;
+    }
+
+    /**
+     * Gets the size of spool segment file.
+     *
+     * @return the size in megabytes.
+     */
+    public int getSpoolSegmentSize() {
+        if (spoolSegmentSize <= 0) {
+            return DEFAULT_SPOOL_SEGMENT_SIZE;
+        }
+        return Math.min(spoolSegmentSize, MAX_SPOOL_SEGMENT_SIZE);
+    }
+
+    /**
+     * Sets the size of spool segment file.
+     *
+     * @param spoolSegmentSize the size in megabytes.
+     */
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize > 0 ? spoolSegmentSize : DEFAULT_SPOOL_SEGMENT_SIZE;
+    }
+
+    /**
+     * Checks given spool segment size.
+     *
+     * @param value
+     *            the size in megabytes.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckSpoolSegmentSize(@QueryParameter String value) {
+        FormValidation v = FormValidation.validatePositiveInteger(value);
+        if (v.kind == FormValidation.Kind.OK && Integer.parseInt(value.trim()) > MAX_SPOOL_SEGMENT_SIZE) {
+            return FormValidation.error(Messages.SpoolSegmentSizeOutOfRange(MAX_SPOOL_SEGMENT_SIZE));
+        }
+        return v;
+    }
+
+    /**
+     * Gets the maximum size of spool files per queue.
+     *
+     * @return the size in megabytes.
+     */
+    public int getSpoolMaxSize() {
+        if (spoolMaxSize <= 0) {
+            return DEFAULT_SPOOL_MAX_SIZE;
+        }
+        return spoolMaxSize;
+    }
+
+    /**
+     * Sets the maximum size of spool files per queue.
+     *
+     * @param spoolMaxSize the size in megabytes.
+     */
+    public void setSpoolMaxSize(int spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize > 0 ? spoolMaxSize : DEFAULT_SPOOL_MAX_SIZE;
+    }
+
+    /**
+     * Checks given maximum size of spool files.
+     *
+     * @param value
+     *            the size in megabytes.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckSpoolMaxSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks that resume threshold is not more than pause threshold.
+     *
+     * @param resume
+     *            the resume threshold.
+     * @param pause
+     *            the pause threshold.
+     * @return FormValidation object that indicates ok or error.
+     */
+    private FormValidation checkResumeThreshold(String resume, String pause) {
+        FormValidation v = FormValidation.validateNonNegativeInteger(resume);
+        if (v.kind != FormValidation.Kind.OK || pause == null) {
+            return v;
+        }
+        try {
+            if (Integer.parseInt(resume.trim()) > Integer.parseInt(pause.trim())) {
+                return FormValidation.warning(Messages.ResumeThresholdTooHigh());
+            }
+        } catch (NumberFormatException e) {
+            return v;
+        }
+        return v;
+    }
+
+    /**
+     * Fills failure policies.
+     *
+     * @return ListBoxModel instance that is filled by failure policies.
+     */
+    public ListBoxModel doFillFailurePolicyItems() {
+        ListBoxModel items = new ListBoxModel();
+        items.add(Messages.FailurePolicyAck(), FailurePolicy.ACK.name());
+        items.add(Messages.FailurePolicyRequeue(), FailurePolicy.REQUEUE.name());
+        items.add(Messages.FailurePolicyDeadLetter(), FailurePolicy.DEAD_LETTER.name());
+        return items;
+    }
+
+    /**
+     * Checks given max redeliveries.
+     *
+     * @param value
+     *            the number of redeliveries.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckMaxRedeliveries(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Checks given dispatch pool size.
+     *
+     * @param value
+     *            the number of threads.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDispatchPoolSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks given dispatch queue depth.
+     *
+     * @param value
+     *            the number of messages.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckDispatchQueueDepth(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Checks given ack batch size.
+     *
+     * @param value
+     *            the batch size.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckAckBatchSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Checks given ack timeout.
+     *
+     * @param value
+     *            the time in milliseconds.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckAckTimeout(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Gets the number of consumers for specified queue.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return the number of consumers.
+     */
+    public int getEffectiveConsumerConcurrency(String queueName) {
+        return RabbitmqConsumeItem.getEffectiveConsumerConcurrency(consumeItems, queueName);
+    }
+
+    /**
+     * Checks given prefetch count.
+     *
+     * @param value
+     *            the prefetch count.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckPrefetchCount(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Checks given URI is valid.
+     *
+     * @param value
+     *            the URI.
+     * @return FormValidation object that indicates ok or error.
+     */
+    public FormValidation doCheckServiceUri(@QueryParameter String value) {
+        String val = StringUtils.stripToNull(value);
+        if (val == null) {
+            return FormValidation.ok();
+        }
+
+        if (URL_VALIDATOR.isValid(val)) {
+            return FormValidation.ok();
+        } else {
+            return FormValidation.error(Messages.InvalidURI());
+        }
+    }
+
+    /**
+     * Tests connection to given URI.
+     *
+     * @param serviceUri
+     *            the URI.
+     * @param userName
+     *            the username.
+     * @param userPassword
+     *            the password.
+     * @return FormValidation object that indicates ok or error.
+     * @throws ServletException
+     *             exception for servlet.
+     */
+    public FormValidation doTestConnection(@QueryParameter("serviceUri") String serviceUri,
+            @QueryParameter("userName") String userName,
+            @QueryParameter("userPassword") Secret userPassword) throws ServletException {
+        String uri = StringUtils.strip(StringUtils.stripToNull(serviceUri), "/");
+        if (uri != null && URL_VALIDATOR.isValid(uri)) {
+            try {
+                ConnectionFactory factory = new ConnectionFactory();
+                factory.setUri(uri);
+                if (StringUtils.isNotEmpty(userName)) {
+                    factory.setUsername(userName);
+                }
+                if (StringUtils.isNotEmpty(Secret.toString(userPassword))) {
+                    factory.setPassword(Secret.toString(userPassword));
+                }
+                factory.newConnection();
+                return FormValidation.ok(Messages.Success());
+            } catch (URISyntaxException e) {
+                return FormValidation.error(Messages.InvalidURI());
+            } catch (GeneralSecurityException e) {
+                return FormValidation.error(Messages.Error() + ": " + e);
+            } catch (PossibleAuthenticationFailureException e) {
+                return FormValidation.error(Messages.AuthFailure());
+            } catch (IOException e) {
+                return FormValidation.error(Messages.Error() + ": " + e);
+            } catch (TimeoutException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return FormValidation.error(Messages.InvalidURI());
+    }
+
+    /**
+     * Gets the list of {@link RabbitmqConsumeItem}.
+     *
+     * @return the list of {@link RabbitmqConsumeItem}
+     */
+    public List<RabbitmqConsumeItem> getConsumeItems() {
+        return consumeItems;
+    }
+
+    /**
+     * Sets the list of {@link RabbitmqConsumeItem}.
+     *
+     * @param consumeItems
+     *            the list of {@link RabbitmqConsumeItem}
+     */
+    public void setConsumeItems(List<RabbitmqConsumeItem> consumeItems) {
+        this.consumeItems = consumeItems;
+    }
+
+    /**
+     * Gets the list of additional {@link RabbitmqBroker}.
+     *
+     * @return the list of {@link RabbitmqBroker}. never null.
+     */
+    public List<RabbitmqBroker> getBrokers() {
+        if (brokers == null) {
+            return Collections.emptyList();
+        }
+        return brokers;
+    }
+
+    /**
+     * Sets the list of additional {@link RabbitmqBroker}.
+     *
+     * @param brokers
+     *            the list of {@link RabbitmqBroker}.
+     */
+    public void setBrokers(List<RabbitmqBroker> brokers) {
+        this.brokers = brokers;
+    }
+
+    /**
+     * Gets broker which is configured by top-level settings.
+     *
+     * @return the broker named {@link RabbitmqBroker#DEFAULT_BROKER_NAME}.
+     */
+    public RabbitmqBroker getDefaultBroker() {
+        return new RabbitmqBroker(RabbitmqBroker.DEFAULT_BROKER_NAME, serviceUri, userName, userPassword,
+                consumeItems);
+    }
+
+    /**
+     * Gets consume items of each broker. Default broker is the first.
+     * Broker which has invalid or duplicate name is skipped.
+     *
+     * @return the map from name of broker to list of {@link RabbitmqConsumeItem}.
+     */
+    public Map<String, List<RabbitmqConsumeItem>> getConsumeItemsByBroker() {
+        Map<String, List<RabbitmqConsumeItem>> items = new LinkedHashMap<String, List<RabbitmqConsumeItem>>();
+        items.put(RabbitmqBroker.DEFAULT_BROKER_NAME, consumeItems != null
+                ? consumeItems : Collections.<RabbitmqConsumeItem>emptyList());
+        for (RabbitmqBroker broker : getBrokers()) {
+            if (broker.getName() != null && !items.containsKey(broker.getName())) {
+                items.put(broker.getName(), broker.getConsumeItems());
+            }
+        }
+        return items;
     }
 
     /**
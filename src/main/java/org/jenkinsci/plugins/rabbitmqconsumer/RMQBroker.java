@@ -0,0 +1,563 @@
+package org.jenkinsci.plugins.rabbitmqconsumer;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitMQConsumer.ConnectionState;
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitMQConsumer.QueueState;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.ConsumeRMQChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.FailurePolicy;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.PublishRMQChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.MessageDispatcher;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ServerOperator;
+import org.jenkinsci.plugins.rabbitmqconsumer.listeners.RMQConnectionListener;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.SystemContextThreadFactory;
+import org.jenkinsci.plugins.rabbitmqconsumer.watchdog.ConnectionMonitor;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Manages connection to one broker.
+ *
+ * Connection is updated on own thread so that slow or unreachable broker does not
+ * delay others or caller.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility=2)
+public final class RMQBroker implements RMQConnectionListener {
+
+    private static final long TIMEOUT_CLOSE = 300000;
+    private static final Logger LOGGER = LoggerFactory.getLogger(RMQBroker.class);
+
+    private final String name;
+    private final AtomicReference<Runnable> pendingTask = new AtomicReference<Runnable>();
+    private final Object executorLock = new Object();
+    private ExecutorService executor;
+    private volatile RMQConnection rmqConnection;
+    private volatile MessageDispatcher dispatcher;
+    private volatile List<RabbitmqConsumeItem> consumeItems = Collections.emptyList();
+    private volatile String serviceUri;
+    private volatile boolean statusOpen = false;
+    private volatile CountDownLatch closeLatch;
+
+    /**
+     * Creates instance.
+     *
+     * @param name
+     *            the name of broker.
+     */
+    RMQBroker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets name of broker.
+     *
+     * @return the name.
+     */
+    @Exported
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets whether this is the broker configured by top-level settings.
+     *
+     * @return true if so.
+     */
+    public boolean isDefault() {
+        return RabbitmqBroker.DEFAULT_BROKER_NAME.equals(name);
+    }
+
+    /**
+     * Gets URI for RabbitMQ service.
+     *
+     * @return the URI.
+     */
+    @Exported
+    public String getServiceUri() {
+        return serviceUri;
+    }
+
+    /**
+     * Updates RabbitMQ connection.
+     *
+     * @param broker
+     *            the broker settings.
+     * @param conf
+     *            the global configuration.
+     * @param dispatcher
+     *            the dispatcher. null if dispatch pool is disabled.
+     * @param consumePaused
+     *            true if consumers are paused.
+     */
+    void update(RabbitmqBroker broker, GlobalRabbitmqConfiguration conf, MessageDispatcher dispatcher,
+            boolean consumePaused) {
+        String uri = broker.getServiceUri();
+        String user = broker.getUserName();
+        Secret pass = broker.getUserPassword();
+        long watchdog = conf.getWatchdogPeriod();
+
+        boolean enableConsumer = conf.isEnableConsumer();
+        serviceUri = uri;
+        consumeItems = broker.getConsumeItems();
+
+        try {
+            if (!enableConsumer || uri == null) {
+                if (rmqConnection != null) {
+                    shutdownWithWait();
+                    rmqConnection = null;
+                }
+            }
+            if (rmqConnection != null &&
+                    !uri.equals(rmqConnection.getServiceUri()) &&
+                    !user.equals(rmqConnection.getUserName()) &&
+                    !pass.equals(rmqConnection.getUserPassword())) {
+                shutdownWithWait();
+                rmqConnection = null;
+            }
+
+            if (enableConsumer && uri != null) {
+                if (rmqConnection == null) {
+                    rmqConnection = new RMQConnection(name, uri, user, pass, watchdog);
+                    applySettings(rmqConnection, conf, dispatcher, consumePaused);
+                    rmqConnection.addRMQConnectionListener(this);
+                    try {
+                        rmqConnection.open();
+                    } catch (IOException e) {
+                        if (e.getCause() instanceof ConnectException) {
+                            LOGGER.warn("Cannot open connection to {}: {}", name, e.getCause().getMessage());
+                        } else {
+                            LOGGER.warn("Cannot open connection to " + name + "!", e);
+                        }
+                        rmqConnection.removeRMQConnectionListener(this);
+                        rmqConnection = null;
+                    }
+                } else {
+                    applySettings(rmqConnection, conf, dispatcher, consumePaused);
+                    rmqConnection.updateChannels(consumeItems);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted when waiting to close connection to {}.", name);
+        }
+        if (rmqConnection == null) {
+            this.dispatcher = null;
+        }
+    }
+
+    /**
+     * Sets dispatcher which is going to be used by channels of this broker.
+     *
+     * @param dispatcher
+     *            the dispatcher. null if dispatch pool is disabled.
+     */
+    void setDispatcher(MessageDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Gets dispatcher which may be used by channels of this broker.
+     *
+     * @return the dispatcher. null if no channel uses dispatcher.
+     */
+    MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Applies settings for consume channels to connection.
+     *
+     * @param connection
+     *            the connection.
+     * @param conf
+     *            the global configuration.
+     * @param dispatcher
+     *            the dispatcher. null if dispatch pool is disabled.
+     * @param consumePaused
+     *            true if consumers are paused.
+     */
+    private void applySettings(RMQConnection connection, GlobalRabbitmqConfiguration conf,
+            MessageDispatcher dispatcher, boolean consumePaused) {
+        connection.setConnectionPoolSize(conf.getConnectionPoolSize());
+        connection.setPrefetchCount(conf.getPrefetchCount());
+        connection.setAckBatch(conf.getAckBatchSize(), conf.getAckTimeout());
+        connection.setDispatcher(dispatcher);
+        connection.setFailurePolicy(FailurePolicy.parse(conf.getFailurePolicy()), conf.getMaxRedeliveries());
+        connection.setConsumePaused(consumePaused);
+    }
+
+    /**
+     * Runs task on own thread of this broker.
+     * If previous task is still waiting, it is replaced with new one.
+     *
+     * @param task
+     *            the task.
+     */
+    void submit(Runnable task) {
+        if (pendingTask.getAndSet(task) != null) {
+            return;
+        }
+        ExecutorService e;
+        synchronized (executorLock) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(new SystemContextThreadFactory(
+                        new NamingThreadFactory(new DaemonThreadFactory(), "RabbitMQ broker " + name)));
+            }
+            e = executor;
+        }
+        e.execute(new Runnable() {
+            public void run() {
+                Runnable t = pendingTask.getAndSet(null);
+                if (t != null) {
+                    try {
+                        t.run();
+                    } catch (RuntimeException ex) {
+                        LOGGER.warn("Failed to update broker " + name, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes connection on own thread, then stops the thread.
+     * Instance cannot be used after this.
+     */
+    void dispose() {
+        submit(new Runnable() {
+            public void run() {
+                try {
+                    shutdownWithWait();
+                } catch (InterruptedException e) {
+                    LOGGER.warn("Interrupted when waiting to close connection to {}.", name);
+                }
+            }
+        });
+        synchronized (executorLock) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Closes connection on own thread then waits for it. Update which is still waiting
+     * is discarded, so connection is not opened again by it. Instance can be used after this.
+     *
+     * @throws InterruptedException
+     *             throw if wait process is interrupted or timed out.
+     */
+    void shutdownOnOwnThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        submit(new Runnable() {
+            public void run() {
+                try {
+                    shutdownWithWait();
+                } catch (InterruptedException e) {
+                    LOGGER.warn("Interrupted when waiting to close connection to {}.", name);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        if (!done.await(TIMEOUT_CLOSE, TimeUnit.MILLISECONDS)) {
+            throw new InterruptedException("Wait timeout");
+        }
+    }
+
+    /**
+     * Waits for own thread to stop after {@link #dispose()}.
+     *
+     * @throws InterruptedException
+     *             throw if wait process is interrupted or timed out.
+     */
+    void awaitDisposed() throws InterruptedException {
+        ExecutorService e;
+        synchronized (executorLock) {
+            e = executor;
+        }
+        if (e != null && !e.awaitTermination(TIMEOUT_CLOSE, TimeUnit.MILLISECONDS)) {
+            throw new InterruptedException("Wait timeout");
+        }
+    }
+
+    /**
+     * Pauses or resumes consumers on current connection.
+     *
+     * @param paused
+     *            true if consumers are paused.
+     */
+    void setConsumePaused(boolean paused) {
+        RMQConnection conn = rmqConnection;
+        if (conn != null) {
+            conn.setConsumePaused(paused);
+        }
+    }
+
+    /**
+     * Shutdown connection.
+     */
+    public void shutdown() {
+        RMQConnection conn = rmqConnection;
+        if (conn != null && conn.isOpen()) {
+            try {
+                statusOpen = false;
+                conn.close();
+            } catch(Exception ex) {
+                onCloseCompleted(conn);
+            }
+        }
+    }
+
+    /**
+     * Shutdown connection then wait to close connection.
+     *
+     * @throws InterruptedException
+     *             throw if wait process is interrupted.
+     */
+    public synchronized void shutdownWithWait() throws InterruptedException {
+        if (rmqConnection != null && rmqConnection.isOpen()) {
+            try {
+                synchronized(this) {
+                    closeLatch = new CountDownLatch(1);
+                }
+                shutdown();
+                if (!closeLatch.await(TIMEOUT_CLOSE, TimeUnit.MILLISECONDS)) {
+                    synchronized(this) {
+                        onCloseCompleted(rmqConnection);
+                    }
+                    throw new InterruptedException("Wait timeout");
+                }
+            } finally {
+                synchronized(this) {
+                    closeLatch = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets whether connection is established or not.
+     *
+     * @return true if connection is already established.
+     */
+    @Exported
+    public boolean isOpen() {
+        return statusOpen;
+    }
+
+    /**
+     * Gets status of channel for specified queue.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return true if channel for specified queue is already established.
+     */
+    public boolean getChannelStatus(String queueName) {
+        RMQConnection conn = rmqConnection;
+        if (statusOpen && conn != null && conn.isOpen()) {
+            return conn.getConsumeChannelStatus(queueName);
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of started consumers for specified queue.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return the number of consumers.
+     */
+    public int getChannelCount(String queueName) {
+        RMQConnection conn = rmqConnection;
+        if (statusOpen && conn != null && conn.isOpen()) {
+            return conn.getConsumeChannelCount(queueName);
+        }
+        return 0;
+    }
+
+    /**
+     * Gets consume channels for specified queue.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return the collection of channels.
+     */
+    public Collection<ConsumeRMQChannel> getConsumeChannels(String queueName) {
+        RMQConnection conn = rmqConnection;
+        if (statusOpen && conn != null && conn.isOpen()) {
+            return conn.getConsumeRMQChannels(queueName);
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Gets the number of connections in pool.
+     *
+     * @return the number of connections. 0 if not connected.
+     */
+    public int getConnectionPoolSize() {
+        RMQConnection conn = rmqConnection;
+        if (statusOpen && conn != null && conn.isOpen()) {
+            return conn.getPoolSize();
+        }
+        return 0;
+    }
+
+    /**
+     * Gets whether pooled connection is open.
+     *
+     * @param index
+     *            the index in pool.
+     * @return true if open.
+     */
+    public boolean isPooledConnectionOpen(int index) {
+        RMQConnection conn = rmqConnection;
+        return statusOpen && conn != null && conn.isPooledConnectionOpen(index);
+    }
+
+    /**
+     * Gets consume channels on pooled connection.
+     *
+     * @param index
+     *            the index in pool.
+     * @return the collection of channels.
+     */
+    public Collection<ConsumeRMQChannel> getPooledConsumeChannels(int index) {
+        RMQConnection conn = rmqConnection;
+        if (statusOpen && conn != null && conn.isOpen()) {
+            return conn.getPooledConsumeRMQChannels(index);
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Gets load of pooled connections for consume channels.
+     *
+     * @return the list of connections. empty if not connected.
+     */
+    @Exported
+    public List<ConnectionState> getConnections() {
+        List<ConnectionState> states = new LinkedList<ConnectionState>();
+        int size = getConnectionPoolSize();
+        for (int i = 0; i < size; i++) {
+            states.add(new ConnectionState(i, isPooledConnectionOpen(i), getPooledConsumeChannels(i)));
+        }
+        return states;
+    }
+
+    /**
+     * Gets the list of queues configured for this broker.
+     *
+     * @return the list of queues.
+     */
+    @Exported
+    public List<QueueState> getQueues() {
+        List<QueueState> stats = new LinkedList<QueueState>();
+        List<RabbitmqConsumeItem> items = consumeItems;
+        if (items.isEmpty()) {
+            return stats;
+        }
+        int prefetchCount = GlobalRabbitmqConfiguration.get().getPrefetchCount();
+        for (RabbitmqConsumeItem queue : items) {
+            String queueName = queue.getQueueName();
+            stats.add(new QueueState(queueName, queue.getAppId(),
+                    RabbitmqConsumeItem.getEffectivePrefetchCount(items, queueName, prefetchCount),
+                    RabbitmqConsumeItem.getEffectiveConsumerConcurrency(items, queueName),
+                    getConsumeChannels(queueName)));
+        }
+        return stats;
+    }
+
+    /**
+     * Gets channel.
+     * Note that returned channel is not managed in any own classes.
+     *
+     * @return the channel.
+     */
+    public Channel getChannel() {
+        RMQConnection conn = rmqConnection;
+        if (statusOpen && conn != null) {
+            return conn.createPureChannel();
+        }
+        return null;
+    }
+
+    /**
+     * Gets instance of {@link PublishRMQChannel}.
+     *
+     * @return instance.
+     */
+    public PublishRMQChannel getPublishChannel() {
+        RMQConnection conn = rmqConnection;
+        if (statusOpen && conn != null) {
+            Collection<PublishRMQChannel> channels = conn.getPublishRMQChannels();
+            if (!channels.isEmpty()) {
+                return (PublishRMQChannel)(channels.toArray()[0]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param rmqConnection
+     *            the connection.
+     */
+    public void onOpen(RMQConnection rmqConnection) {
+        if (rmqConnection.equals(this.rmqConnection)) {
+            LOGGER.info("Open RabbitMQ connection to {}: {}", name, rmqConnection.getServiceUri());
+            if (isDefault()) {
+                ConnectionMonitor.get().setActivate(false);
+                ConnectionMonitor.get().setLastMeanTime(System.currentTimeMillis());
+            }
+            ServerOperator.fireOnOpen(rmqConnection);
+            rmqConnection.updateChannels(consumeItems);
+            statusOpen = true;
+            synchronized(this) {
+                closeLatch = new CountDownLatch(1);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param rmqConnection
+     *            the connection.
+     */
+    public void onCloseCompleted(RMQConnection rmqConnection) {
+        if (this.rmqConnection != null && this.rmqConnection.equals(rmqConnection)) {
+            this.rmqConnection = null;
+            LOGGER.info("Closed RabbitMQ connection to {}: {}", name, rmqConnection.getServiceUri());
+            rmqConnection.removeRMQConnectionListener(this);
+            ServerOperator.fireOnCloseCompleted(rmqConnection);
+            statusOpen = false;
+            synchronized(this) {
+                if (closeLatch != null) {
+                    closeLatch.countDown();
+                }
+            }
+        }
+    }
+}
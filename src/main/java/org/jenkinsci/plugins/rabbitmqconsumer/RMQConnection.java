@@ -1,20 +1,32 @@
 package org.jenkinsci.plugins.rabbitmqconsumer;
 
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.rabbitmqconsumer.channels.AbstractRMQChannel;
 import org.jenkinsci.plugins.rabbitmqconsumer.channels.ConsumeRMQChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.FailurePolicy;
 import org.jenkinsci.plugins.rabbitmqconsumer.channels.PublishRMQChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.MessageDispatcher;
 import org.jenkinsci.plugins.rabbitmqconsumer.events.RMQConnectionEvent;
 import org.jenkinsci.plugins.rabbitmqconsumer.listeners.RMQChannelListener;
 import org.jenkinsci.plugins.rabbitmqconsumer.listeners.RMQConnectionListener;
 import org.jenkinsci.plugins.rabbitmqconsumer.notifiers.RMQConnectionNotifier;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.ConsistentHashRing;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.SystemContextThreadFactory;
 import org.jenkinsci.plugins.rabbitmqconsumer.watchdog.ConnectionMonitor;
 import org.jenkinsci.plugins.rabbitmqconsumer.watchdog.ReconnectTimer;
 import org.slf4j.Logger;
@@ -29,20 +41,37 @@ import com.rabbitmq.client.ShutdownSignalException;
 /**
  * Handle class for RabbitMQ connection.
  *
+ * Consume channels can be spread over a pool of connections. Queue is assigned to
+ * pooled connection by consistent hashing of its name, so assignment changes only
+ * when pool is resized. The first connection of pool is also used for publish channel.
+ *
  * @author rinrinne a.k.a. rin_ne
  */
 public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQConnectionNotifier {
 
     private static final int TIMEOUT_CONNECTION_MILLIS = 30000;
+    private static final int CONSUMER_THREADS = Runtime.getRuntime().availableProcessors() * 2;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RMQConnection.class);
 
+    private final String brokerName;
     private final String serviceUri;
     private final String userName;
     private final Secret userPassword;
     private final long watchdogPeriod;
     private final ConnectionFactory factory;
+    private volatile int prefetchCount = GlobalRabbitmqConfiguration.DEFAULT_PREFETCH_COUNT;
+    private volatile int ackBatchSize = GlobalRabbitmqConfiguration.DEFAULT_ACK_BATCH_SIZE;
+    private volatile long ackTimeout = GlobalRabbitmqConfiguration.DEFAULT_ACK_TIMEOUT;
+    private volatile MessageDispatcher dispatcher;
+    private volatile FailurePolicy failurePolicy = FailurePolicy.ACK;
+    private volatile int maxRedeliveries = GlobalRabbitmqConfiguration.DEFAULT_MAX_REDELIVERIES;
+    private volatile boolean consumePaused = false;
+    private volatile int connectionPoolSize = 1;
     private Connection connection = null;
+    private volatile Connection[] pool = new Connection[0];
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(1);
+    private ExecutorService consumerExecutor = null;
     private final Collection<AbstractRMQChannel> rmqChannels = new CopyOnWriteArraySet<AbstractRMQChannel>();
     private final Collection<RMQConnectionListener> rmqConnectionListeners = new CopyOnWriteArraySet<RMQConnectionListener>();
     private volatile RMQState state = RMQState.DISCONNECTED;
@@ -74,6 +103,26 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
      *            the period of watchdog in seconds.
      */
     public RMQConnection(String serviceUri, String userName, Secret userPassword, long watchdogPeriod) {
+        this(RabbitmqBroker.DEFAULT_BROKER_NAME, serviceUri, userName, userPassword, watchdogPeriod);
+    }
+
+    /**
+     * Creates instance with specified parameter.
+     *
+     * @param brokerName
+     *            the name of broker. queues are distinguished by it from those on other brokers.
+     * @param serviceUri
+     *            the URI for RabbitMQ service.
+     * @param userName
+     *            the name of user.
+     * @param userPassword
+     *            the password of user.
+     * @param watchdogPeriod
+     *            the period of watchdog in seconds.
+     */
+    public RMQConnection(String brokerName, String serviceUri, String userName, Secret userPassword,
+            long watchdogPeriod) {
+        this.brokerName = brokerName;
         this.serviceUri = serviceUri;
         this.userName = userName;
         this.userPassword = userPassword;
@@ -135,6 +184,168 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
         return userPassword;
     }
 
+    /**
+     * Gets the default prefetch count for consume channels.
+     *
+     * @return the prefetch count. 0 means unlimited.
+     */
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Sets the default prefetch count for consume channels.
+     * It is applied when channels are updated next time.
+     *
+     * @param prefetchCount
+     *            the prefetch count. 0 means unlimited.
+     */
+    public void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = Math.max(0, prefetchCount);
+    }
+
+    /**
+     * Sets parameters to coalesce acks on consume channels.
+     * They are applied when channels are updated next time.
+     *
+     * @param ackBatchSize
+     *            the number of acks to be coalesced. 1 means no coalescing.
+     * @param ackTimeout
+     *            the maximum time in milliseconds to hold pending acks.
+     */
+    public void setAckBatch(int ackBatchSize, long ackTimeout) {
+        this.ackBatchSize = ackBatchSize;
+        this.ackTimeout = ackTimeout;
+    }
+
+    /**
+     * Sets dispatcher for consume channels.
+     * It is applied when channels are updated next time.
+     *
+     * @param dispatcher
+     *            the dispatcher. null means messages are dispatched on consumer thread.
+     */
+    public void setDispatcher(MessageDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Sets policy for message which listener failed to handle.
+     * It is applied when channels are updated next time.
+     *
+     * @param failurePolicy
+     *            the failure policy.
+     * @param maxRedeliveries
+     *            the number of redeliveries after which requeued message is dead-lettered.
+     *            0 means unlimited.
+     */
+    public void setFailurePolicy(FailurePolicy failurePolicy, int maxRedeliveries) {
+        this.failurePolicy = failurePolicy;
+        this.maxRedeliveries = maxRedeliveries;
+    }
+
+    /**
+     * Pauses or resumes all consume channels.
+     * Unlike other settings, it is applied to existing channels immediately.
+     *
+     * @param consumePaused
+     *            true if consumers are paused.
+     */
+    public void setConsumePaused(boolean consumePaused) {
+        this.consumePaused = consumePaused;
+        for (ConsumeRMQChannel ch : getConsumeRMQChannels()) {
+            ch.setPaused(consumePaused);
+        }
+    }
+
+    /**
+     * Sets the number of connections for consume channels.
+     * It is applied when channels are updated next time. Only queues whose
+     * connection is changed by resize are moved.
+     *
+     * @param connectionPoolSize
+     *            the number of connections. at least 1.
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+        this.connectionPoolSize = Math.max(1, connectionPoolSize);
+    }
+
+    /**
+     * Gets the number of pooled connections.
+     *
+     * @return the number of connections. 0 if not connected.
+     */
+    public int getPoolSize() {
+        return pool.length;
+    }
+
+    /**
+     * Gets whether pooled connection is open.
+     *
+     * @param index
+     *            the index in pool.
+     * @return true if open.
+     */
+    public boolean isPooledConnectionOpen(int index) {
+        Connection[] p = pool;
+        return index >= 0 && index < p.length && p[index] != null && p[index].isOpen();
+    }
+
+    /**
+     * Gets index of pooled connection which is assigned to queue.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return the index in pool.
+     */
+    public int getPoolIndex(String queueName) {
+        return ring.get(queueName);
+    }
+
+    /**
+     * Gets consume channels on pooled connection.
+     *
+     * @param index
+     *            the index in pool.
+     * @return the collection of channels.
+     */
+    public Collection<ConsumeRMQChannel> getPooledConsumeRMQChannels(int index) {
+        ConsistentHashRing r = ring;
+        Collection<ConsumeRMQChannel> channels = new HashSet<ConsumeRMQChannel>();
+        for (ConsumeRMQChannel ch : getConsumeRMQChannels()) {
+            if (r.get(ch.getQueueName()) == index) {
+                channels.add(ch);
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * Gets whether consume channels are paused.
+     *
+     * @return true if paused.
+     */
+    public boolean isConsumePaused() {
+        return consumePaused;
+    }
+
+    /**
+     * Gets consume channels bind specified queue.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return the collection of channels.
+     */
+    public Collection<ConsumeRMQChannel> getConsumeRMQChannels(String queueName) {
+        Collection<ConsumeRMQChannel> channels = new HashSet<ConsumeRMQChannel>();
+        for (ConsumeRMQChannel ch : getConsumeRMQChannels()) {
+            if (ch.getQueueName().equals(queueName)) {
+                channels.add(ch);
+            }
+        }
+        return channels;
+    }
+
     /**
      * Gets the list of RMQChannels.
      *
@@ -179,15 +390,27 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
      *
      * @param queueName
      *            the queue name.
-     * @return true if channel for specified queue is already established.
+     * @return true if any consumer for specified queue is already started.
      */
     public boolean getConsumeChannelStatus(String queueName) {
-        for (ConsumeRMQChannel ch : getConsumeRMQChannels()) {
-            if (ch.getQueueName().equals(queueName)) {
-                return ch.isConsumeStarted();
+        return getConsumeChannelCount(queueName) > 0;
+    }
+
+    /**
+     * Gets the number of started consumers for specified queue.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return the number of consumers.
+     */
+    public int getConsumeChannelCount(String queueName) {
+        int count = 0;
+        for (ConsumeRMQChannel ch : getConsumeRMQChannels(queueName)) {
+            if (ch.isConsumeStarted()) {
+                count++;
             }
         }
-        return false;
+        return count;
     }
 
     /**
@@ -206,8 +429,13 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
                 if (StringUtils.isNotEmpty(Secret.toString(userPassword))) {
                     factory.setPassword(Secret.toString(userPassword));
                 }
+                consumerExecutor = Executors.newFixedThreadPool(CONSUMER_THREADS,
+                        new SystemContextThreadFactory(
+                                new NamingThreadFactory(new DaemonThreadFactory(), "RabbitMQ consumer")));
+                factory.setSharedExecutor(consumerExecutor);
                 connection = factory.newConnection();
                 connection.addShutdownListener(this);
+                openPool();
                 state = RMQState.CONNECTED;
                 notifyOnOpen();
             } catch (Exception ex) {
@@ -220,6 +448,8 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
                         connection = null;
                     }
                 }
+                closePool();
+                shutdownConsumerExecutor();
                 throw new IOException(ex);
             }
             ReconnectTimer timer = ReconnectTimer.get();
@@ -231,6 +461,117 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
         }
     }
 
+    /**
+     * Opens pooled connections. The first one is the main connection.
+     *
+     * @throws IOException
+     *             throws if connection cannot be opened.
+     * @throws TimeoutException
+     *             throws if connection is timed out.
+     */
+    private void openPool() throws IOException, TimeoutException {
+        int size = connectionPoolSize;
+        Connection[] p = new Connection[size];
+        p[0] = connection;
+        pool = p;
+        for (int i = 1; i < size; i++) {
+            p[i] = factory.newConnection();
+            p[i].addShutdownListener(this);
+        }
+        ring = new ConsistentHashRing(size);
+    }
+
+    /**
+     * Resizes pool if its size is changed. Consume channels whose queue is assigned
+     * to other connection are closed, then they are opened again by caller.
+     */
+    private void resizePool() {
+        Connection[] old = pool;
+        int size = connectionPoolSize;
+        if (state != RMQState.CONNECTED || old.length == size || old.length == 0) {
+            return;
+        }
+        Connection[] p = Arrays.copyOf(old, size);
+        for (int i = old.length; i < size; i++) {
+            try {
+                p[i] = factory.newConnection();
+                p[i].addShutdownListener(this);
+            } catch (Exception e) {
+                LOGGER.warn("Failed to open pooled connection. Pool size is {}.", i, e);
+                p = Arrays.copyOf(p, i);
+                break;
+            }
+        }
+        if (p.length == old.length) {
+            return;
+        }
+        LOGGER.info("Resize connection pool from {} to {}.", old.length, p.length);
+        ConsistentHashRing oldRing = ring;
+        ConsistentHashRing newRing = new ConsistentHashRing(p.length);
+        Collection<ConsumeRMQChannel> unclosedChannels = new HashSet<ConsumeRMQChannel>();
+        for (ConsumeRMQChannel ch : getConsumeRMQChannels()) {
+            if (oldRing.get(ch.getQueueName()) != newRing.get(ch.getQueueName())) {
+                try {
+                    ch.close();
+                } catch (IOException ex) {
+                    unclosedChannels.add(ch);
+                }
+            }
+        }
+        for (ConsumeRMQChannel ch : unclosedChannels) {
+            ch.removeRMQChannelListener(this);
+            rmqChannels.remove(ch);
+        }
+        pool = p;
+        ring = newRing;
+        for (int i = p.length; i < old.length; i++) {
+            closeQuietly(old[i]);
+        }
+    }
+
+    /**
+     * Closes pooled connections except the main connection.
+     */
+    private void closePool() {
+        Connection[] p = pool;
+        pool = new Connection[0];
+        for (int i = 1; i < p.length; i++) {
+            closeQuietly(p[i]);
+        }
+    }
+
+    /**
+     * Closes connection and ignores error.
+     *
+     * @param conn
+     *            the connection.
+     */
+    private void closeQuietly(Connection conn) {
+        if (conn != null && conn.isOpen()) {
+            try {
+                conn.close();
+            } catch (Exception e) {
+                LOGGER.debug("Failed to close pooled connection.", e);
+            }
+        }
+    }
+
+    /**
+     * Gets connection which consume channel for queue is opened on.
+     *
+     * @param queueName
+     *            the queue name.
+     * @return the connection.
+     */
+    private Connection getConsumeConnection(String queueName) {
+        Connection[] p = pool;
+        int index = ring.get(queueName);
+        if (index < p.length && p[index] != null) {
+            return p[index];
+        }
+        return connection;
+    }
+
     /**
      * Close connection.
      *
@@ -249,6 +590,8 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
                         state = RMQState.DISCONNECTED;
                         notifyOnCloseCompleted();
                         connection = null;
+                        closePool();
+                        shutdownConsumerExecutor();
                     }
                     throw e;
                 }
@@ -274,73 +617,118 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
      *            the list of consume items.
      */
     public void updateChannels(Collection<RabbitmqConsumeItem> consumeItems) {
-        Collection<String> uniqueQueueNames = new HashSet<String>();
+        Map<String, Integer> concurrencies = new HashMap<String, Integer>();
 
         updatePublishChannel();
 
         if (consumeItems == null) {
             closeAllConsumeChannels();
         } else {
-            // generate unique queue name set
+            // move channels whose connection is changed by pool resize
+            resizePool();
+
+            // generate unique queue name set with the number of consumers
             for (RabbitmqConsumeItem i : consumeItems) {
-                uniqueQueueNames.add(i.getQueueName());
+                if (i.getQueueName() != null) {
+                    concurrencies.put(i.getQueueName(),
+                            RabbitmqConsumeItem.getEffectiveConsumerConcurrency(consumeItems, i.getQueueName()));
+                }
             }
-            uniqueQueueNames.remove(null);
 
             // close unused channels
-            closeUnusedConsumeChannels(uniqueQueueNames);
+            closeUnusedConsumeChannels(concurrencies);
+
+            // apply settings to existing channels
+            for (ConsumeRMQChannel ch : getConsumeRMQChannels()) {
+                applySettings(ch, consumeItems);
+            }
 
             // create channels
-            createNewConsumeChannels(uniqueQueueNames, consumeItems);
+            createNewConsumeChannels(concurrencies, consumeItems);
         }
     }
 
+    /**
+     * Applies settings to consume channel.
+     *
+     * @param ch
+     *            the consume channel.
+     * @param consumeItems
+     *            the list of consume items.
+     */
+    private void applySettings(ConsumeRMQChannel ch, Collection<RabbitmqConsumeItem> consumeItems) {
+        ch.setPrefetchCount(RabbitmqConsumeItem.getEffectivePrefetchCount(consumeItems,
+                ch.getQueueName(), prefetchCount));
+        ch.setAckBatch(ackBatchSize, ackTimeout);
+        ch.setDispatcher(dispatcher);
+        ch.setFailurePolicy(failurePolicy, maxRedeliveries);
+        ch.setBatchWindow(RabbitmqConsumeItem.getEffectiveBatchSize(consumeItems, ch.getQueueName()),
+                RabbitmqConsumeItem.getEffectiveBatchWait(consumeItems, ch.getQueueName()));
+        ch.setFilters(RabbitmqConsumeItem.getEffectiveFilters(consumeItems, ch.getQueueName()));
+        ch.setStreamOffset(RabbitmqConsumeItem.getEffectiveStreamOffset(consumeItems, ch.getQueueName()));
+        ch.setPaused(consumePaused);
+    }
+
     /**
      * Creates new channels with specified consume items.
      *
-     * @param uniqueQueueNames
-     *            the collection of unique queue names.
+     * @param concurrencies
+     *            the map from unique queue name to the number of consumers.
      * @param consumeItems
      *            the list of consume items.
      */
-    private void createNewConsumeChannels(Collection<String> uniqueQueueNames, Collection<RabbitmqConsumeItem> consumeItems) {
+    private void createNewConsumeChannels(Map<String, Integer> concurrencies,
+            Collection<RabbitmqConsumeItem> consumeItems) {
         if (state != RMQState.CONNECTED) {
             LOGGER.warn("Cannot create channel because connection is not established.");
             return;
         }
 
-        if (uniqueQueueNames == null || consumeItems == null || uniqueQueueNames.isEmpty() || consumeItems.isEmpty()) {
+        if (concurrencies == null || consumeItems == null || concurrencies.isEmpty() || consumeItems.isEmpty()) {
             LOGGER.info("No create new channel due to empty.");
         } else {
-            Collection<String> existingQueueNames = new HashSet<String>();
+            Map<String, Collection<Integer>> existingIndexes = new HashMap<String, Collection<Integer>>();
 
-            // get existing channel name set
+            // get existing consumer indexes for each queue
             for (ConsumeRMQChannel h : getConsumeRMQChannels()) {
-                existingQueueNames.add(h.getQueueName());
+                Collection<Integer> indexes = existingIndexes.get(h.getQueueName());
+                if (indexes == null) {
+                    indexes = new HashSet<Integer>();
+                    existingIndexes.put(h.getQueueName(), indexes);
+                }
+                indexes.add(h.getConsumerIndex());
             }
 
             // create non-existing channels
-            for (String queueName : uniqueQueueNames) {
-                if (!existingQueueNames.contains(queueName)) {
-                    Collection<String> appIds = new HashSet<String>();
-                    for (RabbitmqConsumeItem i : consumeItems) {
-                        if (queueName.equals(i.getQueueName())) {
-                            appIds.add(i.getAppId());
-                        }
+            for (Map.Entry<String, Integer> entry : concurrencies.entrySet()) {
+                String queueName = entry.getKey();
+                Collection<String> appIds = new HashSet<String>();
+                for (RabbitmqConsumeItem i : consumeItems) {
+                    if (queueName.equals(i.getQueueName())) {
+                        appIds.add(i.getAppId());
+                    }
+                }
+                appIds.remove(GlobalRabbitmqConfiguration.CONTENT_NONE);
+                appIds.remove(null);
+                if (appIds.isEmpty()) {
+                    continue;
+                }
+
+                Collection<Integer> indexes = existingIndexes.get(queueName);
+                for (int index = 0; index < entry.getValue(); index++) {
+                    if (indexes != null && indexes.contains(index)) {
+                        continue;
                     }
-                    appIds.remove(GlobalRabbitmqConfiguration.CONTENT_NONE);
-                    if (!appIds.isEmpty()) {
-                        ConsumeRMQChannel ch = new ConsumeRMQChannel(queueName, appIds);
-                        ch.addRMQChannelListener(this);
-                        try {
-                            ch.open(connection);
-                            rmqChannels.add(ch);
-                        } catch (IOException e) {
-                            LOGGER.warn("Failed to open consume channel for {}.", queueName);
-                            LOGGER.warn("Exception: {}", e);
-                            ch.removeRMQChannelListener(this);
-                            continue;
-                        }
+                    ConsumeRMQChannel ch = new ConsumeRMQChannel(brokerName, queueName, appIds, index);
+                    applySettings(ch, consumeItems);
+                    ch.addRMQChannelListener(this);
+                    try {
+                        ch.open(getConsumeConnection(queueName));
+                        rmqChannels.add(ch);
+                    } catch (IOException e) {
+                        LOGGER.warn("Failed to open consume channel for {}.", queueName);
+                        LOGGER.warn("Exception: {}", e);
+                        ch.removeRMQChannelListener(this);
                     }
                 }
             }
@@ -350,15 +738,16 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
     /**
      * Close unused channels.
      *
-     * @param usedQueueNames
-     *            the collection of used queue names.
+     * @param concurrencies
+     *            the map from used queue name to the number of consumers.
      */
-    private void closeUnusedConsumeChannels(Collection<String> usedQueueNames) {
+    private void closeUnusedConsumeChannels(Map<String, Integer> concurrencies) {
         Collection<ConsumeRMQChannel> channels = getConsumeRMQChannels();
         Collection<ConsumeRMQChannel> unclosedChannels = new HashSet<ConsumeRMQChannel>();
         if (!channels.isEmpty()) {
             for (ConsumeRMQChannel ch : channels) {
-                if (!usedQueueNames.contains(ch.getQueueName())) {
+                Integer concurrency = concurrencies.get(ch.getQueueName());
+                if (concurrency == null || ch.getConsumerIndex() >= concurrency) {
                     try {
                         ch.close();
                     } catch (IOException ex) {
@@ -547,14 +936,51 @@ public class RMQConnection implements ShutdownListener, RMQChannelListener, RMQC
      *            the exception.
      */
     public void shutdownCompleted(ShutdownSignalException shutdownSignalException) {
+        Object ref = shutdownSignalException != null ? shutdownSignalException.getReference() : null;
+        if (ref instanceof Connection && ref != connection) {
+            onPooledConnectionShutdown(shutdownSignalException);
+            return;
+        }
         if (shutdownSignalException != null && !shutdownSignalException.isInitiatedByApplication()) {
             LOGGER.warn("RabbitMQ connection was suddenly disconnected.");
             ConnectionMonitor.get().setActivate(true);
         }
         state = RMQState.DISCONNECTED;
         closeAllChannels();
+        closePool();
         notifyOnCloseCompleted();
         connection = null;
+        shutdownConsumerExecutor();
+    }
+
+    /**
+     * Handles shutdown of pooled connection. If it is lost, whole connection is closed
+     * and reconnected by watchdog, so that every queue keeps its assignment.
+     *
+     * @param shutdownSignalException
+     *            the exception.
+     */
+    private void onPooledConnectionShutdown(ShutdownSignalException shutdownSignalException) {
+        if (shutdownSignalException.isInitiatedByApplication() || state != RMQState.CONNECTED) {
+            return;
+        }
+        LOGGER.warn("Pooled RabbitMQ connection was suddenly disconnected.");
+        ConnectionMonitor.get().setActivate(true);
+        try {
+            close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close connection after pooled connection is lost.");
+        }
+    }
+
+    /**
+     * Shutdown executor for consumer threads.
+     */
+    private void shutdownConsumerExecutor() {
+        if (consumerExecutor != null) {
+            consumerExecutor.shutdown();
+            consumerExecutor = null;
+        }
     }
 
     //CS IGNORE LineLength FOR NEXT 12 LINES. REASON: Auto generated code.
@@ -1,28 +1,39 @@
 package org.jenkinsci.plugins.rabbitmqconsumer;
 
-import hudson.util.Secret;
-
-import java.io.IOException;
-import java.net.ConnectException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.ConsumeRMQChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.DedupCaches;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.FailurePolicy;
 import org.jenkinsci.plugins.rabbitmqconsumer.channels.PublishRMQChannel;
-import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ServerOperator;
-import org.jenkinsci.plugins.rabbitmqconsumer.listeners.RMQConnectionListener;
-import org.jenkinsci.plugins.rabbitmqconsumer.watchdog.ConnectionMonitor;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.RateLimiters;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.MessageDispatcher;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.PartitionKey;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ListenerBulkheads;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ListenerCircuitBreakers;
+import org.jenkinsci.plugins.rabbitmqconsumer.logger.MessageLogger;
+import org.jenkinsci.plugins.rabbitmqconsumer.spool.MessageSpools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rabbitmq.client.Channel;
 
 /**
- * Manager class for RabbitMQ connection.
+ * Manager class for RabbitMQ connections.
+ *
+ * Each broker including the one configured by top-level settings is updated on its
+ * own thread, so each of them connects and reconnects independently, and slow broker
+ * does not block caller. Replaced dispatcher is shut down when no broker uses it.
  *
  * @author rinrinne a.k.a. rin_ne
  */
-public final class RMQManager implements RMQConnectionListener {
+public final class RMQManager {
 
 
     /**
@@ -34,12 +45,13 @@ public final class RMQManager implements RMQConnectionListener {
         private static final RMQManager INSTANCE = new RMQManager();
     }
 
-    private static final long TIMEOUT_CLOSE = 300000;
     private static final Logger LOGGER = LoggerFactory.getLogger(RMQManager.class);
 
-    private RMQConnection rmqConnection;
-    private volatile boolean statusOpen = false;
-    private volatile CountDownLatch closeLatch;
+    private final RMQBroker defaultBroker = new RMQBroker(RabbitmqBroker.DEFAULT_BROKER_NAME);
+    private volatile Map<String, RMQBroker> brokers = Collections.emptyMap();
+    private volatile MessageDispatcher dispatcher;
+    private final List<MessageDispatcher> retiredDispatchers = new ArrayList<MessageDispatcher>();
+    private volatile boolean consumePaused = false;
 
     /**
      * Gets instance.
@@ -51,195 +63,366 @@ public final class RMQManager implements RMQConnectionListener {
     }
 
     /**
-     * Updates RabbitMQ connection.
+     * Updates RabbitMQ connections. Connections are updated asynchronously.
      */
     public void update() {
         LOGGER.info("Start to update connections...");
         GlobalRabbitmqConfiguration conf = GlobalRabbitmqConfiguration.get();
-        String uri = conf.getServiceUri();
-        String user = conf.getUserName();
-        Secret pass = conf.getUserPassword();
-        long watchdog = conf.getWatchdogPeriod();
-
-        boolean enableConsumer = conf.isEnableConsumer();
-
-        try {
-            if (!enableConsumer || uri == null) {
-                if (rmqConnection != null) {
-                    shutdownWithWait();
-                    rmqConnection = null;
-                }
+        if (conf.isEnableConsumer()) {
+            applySettings(conf);
+        }
+        updateBrokers(conf);
+        submitUpdate(defaultBroker, conf.getDefaultBroker(), conf);
+    }
+
+    /**
+     * Requests reconnect to additional brokers which are not connected.
+     * Each broker is reconnected on its own thread.
+     */
+    public void reconnectBrokers() {
+        GlobalRabbitmqConfiguration conf = GlobalRabbitmqConfiguration.get();
+        if (!conf.isEnableConsumer()) {
+            return;
+        }
+        Map<String, RMQBroker> current = brokers;
+        for (RabbitmqBroker settings : conf.getBrokers()) {
+            RMQBroker broker = current.get(settings.getName());
+            if (broker != null && !broker.isOpen()) {
+                LOGGER.info("Reconnect requesting to broker {}..", settings.getName());
+                submitUpdate(broker, settings, conf);
+            }
+        }
+    }
+
+    /**
+     * Updates additional brokers with configuration.
+     * Brokers which are removed from configuration are closed.
+     *
+     * @param conf
+     *            the global configuration.
+     */
+    private synchronized void updateBrokers(GlobalRabbitmqConfiguration conf) {
+        Map<String, RMQBroker> old = new LinkedHashMap<String, RMQBroker>(brokers);
+        Map<String, RMQBroker> current = new LinkedHashMap<String, RMQBroker>();
+        for (RabbitmqBroker settings : conf.getBrokers()) {
+            String name = settings.getName();
+            if (name == null || RabbitmqBroker.DEFAULT_BROKER_NAME.equals(name) || current.containsKey(name)) {
+                LOGGER.warn("Skip broker which has invalid or duplicate name: {}", name);
+                continue;
             }
-            if (rmqConnection != null &&
-                    !uri.equals(rmqConnection.getServiceUri()) &&
-                    !user.equals(rmqConnection.getUserName()) &&
-                    !pass.equals(rmqConnection.getUserPassword())) {
-                shutdownWithWait();
-                rmqConnection = null;
+            RMQBroker broker = old.remove(name);
+            if (broker == null) {
+                broker = new RMQBroker(name);
             }
+            current.put(name, broker);
+            submitUpdate(broker, settings, conf);
+        }
+        brokers = Collections.unmodifiableMap(current);
+        for (RMQBroker broker : old.values()) {
+            LOGGER.info("Remove broker {}.", broker.getName());
+            broker.dispose();
+        }
+    }
 
-            if (enableConsumer) {
-                if (rmqConnection == null) {
-                    rmqConnection = new RMQConnection(uri, user, pass, watchdog);
-                    rmqConnection.addRMQConnectionListener(this);
-                    try {
-                        rmqConnection.open();
-                    } catch (IOException e) {
-                        if (e.getCause() instanceof ConnectException) {
-                            LOGGER.warn("Cannot open connection: {}", e.getCause().getMessage());
-                        } else {
-                            LOGGER.warn("Cannot open connection!", e);
-                        }
-                        rmqConnection.removeRMQConnectionListener(this);
-                        rmqConnection = null;
-                    }
-                } else {
-                    rmqConnection.updateChannels(GlobalRabbitmqConfiguration.get().getConsumeItems());
+    /**
+     * Submits update task to broker.
+     *
+     * @param broker
+     *            the broker.
+     * @param settings
+     *            the broker settings.
+     * @param conf
+     *            the global configuration.
+     */
+    private void submitUpdate(final RMQBroker broker, final RabbitmqBroker settings,
+            final GlobalRabbitmqConfiguration conf) {
+        broker.submit(new Runnable() {
+            public void run() {
+                try {
+                    broker.update(settings, conf, attachDispatcher(broker), consumePaused);
+                } finally {
+                    releaseDispatchers();
                 }
             }
-        } catch (InterruptedException e) {
-            LOGGER.warn("Interrupted when waiting to close connection.");
+        });
+    }
+
+    /**
+     * Applies settings shared by all brokers.
+     *
+     * @param conf
+     *            the global configuration.
+     * @return the dispatcher. null if dispatch pool is disabled.
+     */
+    private MessageDispatcher applySettings(GlobalRabbitmqConfiguration conf) {
+        MessageDispatcher d = updateDispatcher(conf);
+        RateLimiters.configure(conf.getConsumeItemsByBroker());
+        DedupCaches.configure(conf.isEnableDedup(), conf.getDedupHeader(), conf.getDedupCacheSize(),
+                conf.getDedupTtl());
+        MessageSpools.configure(conf.isEnableSpool(), conf.getSpoolSegmentSize(), conf.getSpoolMaxSize(),
+                FailurePolicy.parse(conf.getFailurePolicy()), conf.getMaxRedeliveries(), d);
+        MessageLogger.configure(conf.getDebugBufferSize(), conf.getDebugSampleInterval(), conf.getDebugBodyLimit());
+        ListenerBulkheads.configure(conf.isEnableListenerBulkhead(), conf.getListenerQueueDepth(),
+                conf.getListenerTimeout());
+        ListenerCircuitBreakers.configure(conf.isEnableCircuitBreaker(), conf.getCircuitWindowSize(),
+                conf.getCircuitFailureRate(), conf.getCircuitOpenDuration());
+        return d;
+    }
+
+    /**
+     * Updates dispatcher with configuration.
+     * Old dispatcher is not shut down here because channels still use it until
+     * they are switched to new one. It is shut down by {@link #releaseDispatchers()}
+     * after all brokers are switched.
+     *
+     * @param conf
+     *            the global configuration.
+     * @return the dispatcher. null if dispatch pool is disabled.
+     */
+    private synchronized MessageDispatcher updateDispatcher(GlobalRabbitmqConfiguration conf) {
+        MessageDispatcher old = dispatcher;
+        if (!conf.isEnableDispatchPool()) {
+            dispatcher = null;
+        } else {
+            PartitionKey key = PartitionKey.parse(conf.getDispatchPartitionKey());
+            if (old == null || !old.isSameSettings(conf.getDispatchPoolSize(), conf.getDispatchQueueDepth(),
+                    key, conf.getDispatchPartitionHeader(), conf.isUseVirtualThreads(), conf.getAppIdConcurrency())) {
+                dispatcher = new MessageDispatcher(conf.getDispatchPoolSize(), conf.getDispatchQueueDepth(),
+                        key, conf.getDispatchPartitionHeader(), conf.isUseVirtualThreads(), conf.getAppIdConcurrency());
+            }
+        }
+        if (old != null && old != dispatcher) {
+            retiredDispatchers.add(old);
         }
+        return dispatcher;
     }
 
     /**
-     * Shutdown connection.
+     * Marks that broker is going to use current dispatcher.
+     *
+     * @param broker
+     *            the broker.
+     * @return the dispatcher. null if dispatch pool is disabled.
      */
-    public void shutdown() {
-        if (rmqConnection != null && rmqConnection.isOpen()) {
-            try {
-                statusOpen = false;
-                rmqConnection.close();
-            } catch(Exception ex) {
-                onCloseCompleted(rmqConnection);
+    private synchronized MessageDispatcher attachDispatcher(RMQBroker broker) {
+        broker.setDispatcher(dispatcher);
+        return dispatcher;
+    }
+
+    /**
+     * Shuts down replaced dispatchers which no broker uses any more.
+     */
+    private synchronized void releaseDispatchers() {
+        Iterator<MessageDispatcher> it = retiredDispatchers.iterator();
+        while (it.hasNext()) {
+            MessageDispatcher d = it.next();
+            if (!isAttached(d)) {
+                it.remove();
+                d.shutdown();
             }
         }
     }
 
     /**
-     * Shutdown connection then wait to close connection.
+     * Gets whether any broker may use dispatcher. Caller must hold lock.
+     *
+     * @param d
+     *            the dispatcher.
+     * @return true if dispatcher is used.
+     */
+    private boolean isAttached(MessageDispatcher d) {
+        if (defaultBroker.getDispatcher() == d) {
+            return true;
+        }
+        for (RMQBroker broker : brokers.values()) {
+            if (broker.getDispatcher() == d) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets dispatcher for consume channels.
+     *
+     * @return the dispatcher. null if dispatch pool is disabled.
+     */
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Pauses or resumes consumers on current connections of all brokers.
+     * New connection is also opened with this state.
+     *
+     * @param paused
+     *            true if consumers are paused.
+     */
+    public void setConsumePaused(boolean paused) {
+        consumePaused = paused;
+        defaultBroker.setConsumePaused(paused);
+        for (RMQBroker broker : brokers.values()) {
+            broker.setConsumePaused(paused);
+        }
+    }
+
+    /**
+     * Gets whether consumers are paused.
+     *
+     * @return true if paused.
+     */
+    public boolean isConsumePaused() {
+        return consumePaused;
+    }
+
+    /**
+     * Shutdown connections of all brokers.
+     */
+    public void shutdown() {
+        defaultBroker.shutdown();
+        for (RMQBroker broker : brokers.values()) {
+            broker.shutdown();
+        }
+    }
+
+    /**
+     * Shutdown connections of all brokers then wait to close them.
+     * Additional brokers are disposed, and created again at next update.
      *
      * @throws InterruptedException
      *             throw if wait process is interrupted.
      */
-    public synchronized void shutdownWithWait() throws InterruptedException {
-        if (rmqConnection != null && rmqConnection.isOpen()) {
-            try {
-                synchronized(this) {
-                    closeLatch = new CountDownLatch(1);
-                }
-                shutdown();
-                if (!closeLatch.await(TIMEOUT_CLOSE, TimeUnit.MILLISECONDS)) {
-                    synchronized(this) {
-                        onCloseCompleted(rmqConnection);
-                    }
-                    throw new InterruptedException("Wait timeout");
-                }
-            } finally {
-                synchronized(this) {
-                    closeLatch = null;
-                }
-            }
+    public void shutdownWithWait() throws InterruptedException {
+        Collection<RMQBroker> removed;
+        synchronized (this) {
+            removed = brokers.values();
+            brokers = Collections.emptyMap();
+        }
+        for (RMQBroker broker : removed) {
+            broker.dispose();
+        }
+        defaultBroker.shutdownOnOwnThread();
+        for (RMQBroker broker : removed) {
+            broker.awaitDisposed();
         }
     }
 
     /**
-     * Gets whether connection is established or not.
+     * Gets whether connection to default broker is established or not.
      *
      * @return true if connection is already established.
      */
     public boolean isOpen() {
-        return statusOpen;
+        return defaultBroker.isOpen();
     }
 
     /**
-     * Gets status of channel for specified queue.
+     * Gets broker with specified name.
+     *
+     * @param name
+     *            the name of broker.
+     * @return the broker. null if not found.
+     */
+    public RMQBroker getBroker(String name) {
+        if (RabbitmqBroker.DEFAULT_BROKER_NAME.equals(name)) {
+            return defaultBroker;
+        }
+        return brokers.get(name);
+    }
+
+    /**
+     * Gets all brokers. Default broker is the first.
+     *
+     * @return the list of brokers.
+     */
+    public List<RMQBroker> getBrokers() {
+        List<RMQBroker> list = new ArrayList<RMQBroker>();
+        list.add(defaultBroker);
+        list.addAll(brokers.values());
+        return list;
+    }
+
+    /**
+     * Gets status of channel for specified queue on default broker.
      *
      * @param queueName
      *            the queue name.
      * @return true if channel for specified queue is already established.
      */
     public boolean getChannelStatus(String queueName) {
-        if (statusOpen) {
-            if (rmqConnection != null && rmqConnection.isOpen()) {
-                return rmqConnection.getConsumeChannelStatus(queueName);
-            }
-        }
-        return false;
+        return defaultBroker.getChannelStatus(queueName);
     }
 
     /**
-     * Gets channel.
-     * Note that returned channel is not managed in any own classes.
+     * Gets the number of started consumers for specified queue on default broker.
      *
-     * @return the channel.
+     * @param queueName
+     *            the queue name.
+     * @return the number of consumers.
      */
-    public Channel getChannel() {
-        Channel ch = null;
-        if (statusOpen) {
-            if (rmqConnection != null) {
-                ch = rmqConnection.createPureChannel();
-            }
-        }
-        return ch;
+    public int getChannelCount(String queueName) {
+        return defaultBroker.getChannelCount(queueName);
     }
 
     /**
-     * Gets instance of {@link PublishRMQChannel}.
+     * Gets consume channels for specified queue on default broker.
      *
-     * @return instance.
+     * @param queueName
+     *            the queue name.
+     * @return the collection of channels.
      */
-    public PublishRMQChannel getPublishChannel() {
-        if (statusOpen) {
-            if (rmqConnection != null) {
-                Collection<PublishRMQChannel> channels = rmqConnection.getPublishRMQChannels();
-                if (!channels.isEmpty()) {
-                    return (PublishRMQChannel)(channels.toArray()[0]);
-                }
-            }
-        }
-        return null;
+    public Collection<ConsumeRMQChannel> getConsumeChannels(String queueName) {
+        return defaultBroker.getConsumeChannels(queueName);
     }
 
     /**
-     * {@inheritDoc}
+     * Gets the number of connections in pool of default broker.
      *
-     * @param rmqConnection
-     *            the connection.
+     * @return the number of connections. 0 if not connected.
      */
-    public void onOpen(RMQConnection rmqConnection) {
-        if (this.rmqConnection.equals(rmqConnection)) {
-            LOGGER.info("Open RabbitMQ connection: {}", rmqConnection.getServiceUri());
-            ConnectionMonitor.get().setActivate(false);
-            ConnectionMonitor.get().setLastMeanTime(System.currentTimeMillis());
-            ServerOperator.fireOnOpen(rmqConnection);
-            rmqConnection.updateChannels(GlobalRabbitmqConfiguration.get().getConsumeItems());
-            statusOpen = true;
-            synchronized(this) {
-                closeLatch = new CountDownLatch(1);
-            }
-        }
+    public int getConnectionPoolSize() {
+        return defaultBroker.getConnectionPoolSize();
     }
 
     /**
-     * {@inheritDoc}
+     * Gets whether pooled connection of default broker is open.
      *
-     * @param rmqConnection
-     *            the connection.
+     * @param index
+     *            the index in pool.
+     * @return true if open.
      */
-    public void onCloseCompleted(RMQConnection rmqConnection) {
-        if (this.rmqConnection != null && this.rmqConnection.equals(rmqConnection)) {
-            this.rmqConnection = null;
-            LOGGER.info("Closed RabbitMQ connection: {}",rmqConnection.getServiceUri());
-            rmqConnection.removeRMQConnectionListener(this);
-            ServerOperator.fireOnCloseCompleted(rmqConnection);
-            statusOpen = false;
-            synchronized(this) {
-                if (closeLatch != null) {
-                    closeLatch.countDown();
-                }
-            }
-        }
+    public boolean isPooledConnectionOpen(int index) {
+        return defaultBroker.isPooledConnectionOpen(index);
+    }
+
+    /**
+     * Gets consume channels on pooled connection of default broker.
+     *
+     * @param index
+     *            the index in pool.
+     * @return the collection of channels.
+     */
+    public Collection<ConsumeRMQChannel> getPooledConsumeChannels(int index) {
+        return defaultBroker.getPooledConsumeChannels(index);
+    }
+
+    /**
+     * Gets channel on default broker.
+     * Note that returned channel is not managed in any own classes.
+     *
+     * @return the channel.
+     */
+    public Channel getChannel() {
+        return defaultBroker.getChannel();
+    }
+
+    /**
+     * Gets instance of {@link PublishRMQChannel} on default broker.
+     *
+     * @return instance.
+     */
+    public PublishRMQChannel getPublishChannel() {
+        return defaultBroker.getPublishChannel();
     }
 
     /**
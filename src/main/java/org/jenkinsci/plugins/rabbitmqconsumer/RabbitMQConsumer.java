@@ -1,13 +1,39 @@
 package org.jenkinsci.plugins.rabbitmqconsumer;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.AckCoalescer;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.ConsumeRMQChannel;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.DedupCache;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.DedupCaches;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.RateLimiter;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.RateLimiters;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.StreamOffset;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.StreamOffsets;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.MessageDispatcher;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ListenerBulkhead;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ListenerBulkheads;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ListenerCircuitBreaker;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ListenerCircuitBreakers;
+import org.jenkinsci.plugins.rabbitmqconsumer.logger.MessageLogger;
+import org.jenkinsci.plugins.rabbitmqconsumer.logger.MessageRecord;
+import org.jenkinsci.plugins.rabbitmqconsumer.spool.MessageSpool;
+import org.jenkinsci.plugins.rabbitmqconsumer.spool.MessageSpools;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import hudson.Plugin;
 import hudson.model.Api;
+import jenkins.model.Jenkins;
 
 /**
  * A plugin class
@@ -25,6 +51,18 @@ public class RabbitMQConsumer extends Plugin {
         return new Api(this);
     }
 
+    /**
+     * Closes spools so that records which are not dispatched are kept for next start.
+     * Processed offsets of streams are also stored.
+     *
+     * @throws Exception throws if something error.
+     */
+    @Override
+    public void stop() throws Exception {
+        MessageSpools.shutdown();
+        StreamOffsets.flush();
+    }
+
     /**
      * Gets configuration is enabled or not.
      *
@@ -65,6 +103,163 @@ public class RabbitMQConsumer extends Plugin {
         return GlobalRabbitmqConfiguration.get().getUserName();
     }
 
+    /**
+     * Gets load of pooled connections for consume channels.
+     *
+     * @return the list of connections. empty if not connected.
+     */
+    @Exported
+    public List<ConnectionState> getConnections() {
+        RMQManager manager = RMQManager.getInstance();
+        List<ConnectionState> states = new LinkedList<ConnectionState>();
+        int size = manager.getConnectionPoolSize();
+        for (int i = 0; i < size; i++) {
+            states.add(new ConnectionState(i, manager.isPooledConnectionOpen(i),
+                    manager.getPooledConsumeChannels(i)));
+        }
+        return states;
+    }
+
+    /**
+     * Gets status of all brokers. Default broker is the first.
+     *
+     * @return the list of brokers.
+     */
+    @Exported
+    public List<RMQBroker> getBrokers() {
+        return RMQManager.getInstance().getBrokers();
+    }
+
+    /**
+     * Gets dispatcher status.
+     *
+     * @return the dispatcher. null if dispatch pool is disabled.
+     */
+    @Exported
+    public MessageDispatcher getDispatcher() {
+        return RMQManager.getInstance().getDispatcher();
+    }
+
+    /**
+     * Gets whether consumers are paused by flow control.
+     *
+     * @return true if paused.
+     */
+    @Exported
+    public boolean isConsumePaused() {
+        return RMQManager.getInstance().isConsumePaused();
+    }
+
+    /**
+     * Gets status of listener bulkheads.
+     *
+     * @return the list of bulkheads. empty if bulkheads are disabled.
+     */
+    @Exported
+    public List<ListenerBulkhead> getListenerBulkheads() {
+        return ListenerBulkheads.getAll();
+    }
+
+    /**
+     * Gets status of listener circuit breakers.
+     *
+     * @return the list of circuit breakers. empty if circuit breakers are disabled.
+     */
+    @Exported
+    public List<ListenerCircuitBreaker> getListenerCircuitBreakers() {
+        return ListenerCircuitBreakers.getAll();
+    }
+
+    /**
+     * Gets status of rate limiters.
+     *
+     * @return the list of rate limiters. empty if no limit is configured.
+     */
+    @Exported
+    public List<RateLimiter> getRateLimiters() {
+        return RateLimiters.getAll();
+    }
+
+    /**
+     * Gets status of dedup caches.
+     *
+     * @return the list of caches. empty if dedup is disabled.
+     */
+    @Exported
+    public List<DedupCache> getDedupCaches() {
+        return DedupCaches.getAll();
+    }
+
+    /**
+     * Gets status of spools.
+     *
+     * @return the list of spools. empty if spool is disabled and no record is left.
+     */
+    @Exported
+    public List<MessageSpool> getSpools() {
+        return MessageSpools.getAll();
+    }
+
+    /**
+     * Gets processed offsets of stream queues.
+     *
+     * @return the list of offsets. empty if no queue is consumed as stream.
+     */
+    @Exported
+    public List<StreamOffset> getStreams() {
+        return StreamOffsets.getAll();
+    }
+
+    /**
+     * Replays stream queue on broker from specified time. Only administrators can do it.
+     * Consumers of the queue on the broker are attached to stream again immediately.
+     *
+     * @param brokerName the name of broker. empty means default broker.
+     * @param queueName the queue name.
+     * @param timestamp the time in epoch milliseconds or ISO-8601 format.
+     * @return the response.
+     */
+    @RequirePOST
+    public HttpResponse doReplayStream(@QueryParameter String brokerName, @QueryParameter String queueName,
+            @QueryParameter String timestamp) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Date time;
+        try {
+            time = StreamOffsets.parseTimestamp(timestamp);
+        } catch (IllegalArgumentException e) {
+            return HttpResponses.errorWithoutStack(400, e.getMessage());
+        }
+        String name = brokerName != null && !brokerName.isEmpty() ? brokerName : RabbitmqBroker.DEFAULT_BROKER_NAME;
+        RMQBroker broker = RMQManager.getInstance().getBroker(name);
+        Collection<ConsumeRMQChannel> channels = broker != null
+                ? broker.getConsumeChannels(queueName) : Collections.<ConsumeRMQChannel>emptySet();
+        boolean stream = false;
+        for (ConsumeRMQChannel ch : channels) {
+            stream |= ch.isStream();
+        }
+        if (!stream) {
+            return HttpResponses.errorWithoutStack(404, Messages.NotStreamQueue(queueName));
+        }
+        StreamOffsets.get(name, queueName).replay(time);
+        for (ConsumeRMQChannel ch : channels) {
+            ch.restartConsumer();
+        }
+        return HttpResponses.redirectTo("streams");
+    }
+
+    /**
+     * Gets messages recorded by debug listener. Only administrators can see them.
+     *
+     * @return the list of messages from oldest to newest.
+     */
+    @Exported
+    public List<MessageRecord> getRecentMessages() {
+        if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+            return Collections.emptyList();
+        }
+        return MessageLogger.getRecords();
+    }
+
     /**
      * Gets the list of configured queues.
      *
@@ -73,15 +268,61 @@ public class RabbitMQConsumer extends Plugin {
     @Exported
     public List<QueueState> getQueues() {
         List<QueueState> stats = new LinkedList<QueueState>();
-        List<RabbitmqConsumeItem> queues = GlobalRabbitmqConfiguration.get().getConsumeItems();
+        GlobalRabbitmqConfiguration conf = GlobalRabbitmqConfiguration.get();
+        List<RabbitmqConsumeItem> queues = conf.getConsumeItems();
         for (RabbitmqConsumeItem queue : queues) {
             QueueState state = new QueueState(queue.getQueueName(), queue.getAppId(),
-                    RMQManager.getInstance().getChannelStatus(queue.getQueueName()));
+                    conf.getEffectivePrefetchCount(queue.getQueueName()),
+                    conf.getEffectiveConsumerConcurrency(queue.getQueueName()),
+                    RMQManager.getInstance().getConsumeChannels(queue.getQueueName()));
             stats.add(state);
         }
         return stats;
     }
 
+    /**
+     * An inner class to represent the load of pooled connection.
+     *
+     * @author rinrinne a.k.a. rin_ne
+     */
+    @ExportedBean(defaultVisibility=2)
+    public static final class ConnectionState {
+
+        @Exported
+        public final int index;
+        @Exported
+        public final boolean open;
+        @Exported
+        public final int queues;
+        @Exported
+        public final int channels;
+        @Exported
+        public final int consumers;
+
+        /**
+         * Constructor.
+         *
+         * @param index the index in pool.
+         * @param open true if connection is open.
+         * @param channels the consume channels on the connection.
+         */
+        ConnectionState(int index, boolean open, Collection<ConsumeRMQChannel> channels) {
+            this.index = index;
+            this.open = open;
+            this.channels = channels.size();
+            Collection<String> names = new HashSet<String>();
+            int started = 0;
+            for (ConsumeRMQChannel ch : channels) {
+                names.add(ch.getQueueName());
+                if (ch.isConsumeStarted()) {
+                    started++;
+                }
+            }
+            this.queues = names.size();
+            this.consumers = started;
+        }
+    }
+
     /**
      * An inner class to represent the status of queue.
      *
@@ -96,18 +337,73 @@ public class RabbitMQConsumer extends Plugin {
         public final String appId;
         @Exported
         public final boolean consumed;
+        @Exported
+        public final int prefetchCount;
+        @Exported
+        public final int concurrency;
+        @Exported
+        public final int consumers;
+        @Exported
+        public final long ackedMessages;
+        @Exported
+        public final long ackBatches;
+        @Exported
+        public final double averageAckBatchSize;
+        @Exported
+        public final int maxAckBatchSize;
+        @Exported
+        public final long requeuedMessages;
+        @Exported
+        public final long deadLetteredMessages;
+        @Exported
+        public final long filteredMessages;
 
         /**
          * Constructor.
          *
          * @param name the name.
          * @param appId the application id.
-         * @param consumed true if consumed.
+         * @param prefetchCount the prefetch count applied to each channel.
+         * @param concurrency the number of configured consumers.
+         * @param channels the consume channels for the queue.
          */
-        QueueState(String name, String appId, boolean consumed) {
+        QueueState(String name, String appId, int prefetchCount, int concurrency,
+                Collection<ConsumeRMQChannel> channels) {
             this.name = name;
             this.appId = appId;
-            this.consumed = consumed;
+            this.prefetchCount = prefetchCount;
+            this.concurrency = concurrency;
+
+            int started = 0;
+            long acked = 0;
+            long batches = 0;
+            int maxBatch = 0;
+            long requeued = 0;
+            long deadLettered = 0;
+            long filtered = 0;
+            for (ConsumeRMQChannel ch : channels) {
+                filtered += ch.getFilteredCount();
+                if (ch.isConsumeStarted()) {
+                    started++;
+                }
+                AckCoalescer coalescer = ch.getAckCoalescer();
+                if (coalescer != null) {
+                    acked += coalescer.getAckedMessages();
+                    batches += coalescer.getBatches();
+                    maxBatch = Math.max(maxBatch, coalescer.getMaxBatchSize());
+                    requeued += coalescer.getRequeuedMessages();
+                    deadLettered += coalescer.getDeadLetteredMessages();
+                }
+            }
+            this.consumed = started > 0;
+            this.consumers = started;
+            this.ackedMessages = acked;
+            this.ackBatches = batches;
+            this.averageAckBatchSize = batches == 0 ? 0 : (double) acked / batches;
+            this.maxAckBatchSize = maxBatch;
+            this.requeuedMessages = requeued;
+            this.deadLetteredMessages = deadLettered;
+            this.filteredMessages = filtered;
         }
     }
 }
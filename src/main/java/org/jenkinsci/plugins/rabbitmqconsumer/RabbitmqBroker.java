@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.rabbitmqconsumer;
+
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang3.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Item class that indicates broker setting in global configuration.
+ *
+ * Each broker has its own connection and queues. Other settings in global
+ * configuration are shared by all brokers.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class RabbitmqBroker implements Describable<RabbitmqBroker> {
+
+    /**
+     * The name of broker which is configured by top-level settings.
+     */
+    public static final String DEFAULT_BROKER_NAME = "default";
+
+    private final String name;
+    private final String serviceUri;
+    private final String userName;
+    private final Secret userPassword;
+    private final List<RabbitmqConsumeItem> consumeItems;
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param name
+     *            the name of broker.
+     * @param serviceUri
+     *            the service URI.
+     * @param userName
+     *            the username.
+     * @param userPassword
+     *            the password.
+     * @param consumeItems
+     *            the list of consumer items.
+     */
+    @DataBoundConstructor
+    public RabbitmqBroker(String name, String serviceUri, String userName, Secret userPassword,
+            List<RabbitmqConsumeItem> consumeItems) {
+        this.name = StringUtils.stripToNull(name);
+        this.serviceUri = StringUtils.strip(StringUtils.stripToNull(serviceUri), "/");
+        this.userName = userName;
+        this.userPassword = userPassword;
+        this.consumeItems = consumeItems;
+    }
+
+    /**
+     * Gets name of broker.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets URI for RabbitMQ service.
+     *
+     * @return the URI.
+     */
+    public String getServiceUri() {
+        return serviceUri;
+    }
+
+    /**
+     * Gets username.
+     *
+     * @return the username.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Gets password.
+     *
+     * @return the password.
+     */
+    public Secret getUserPassword() {
+        return userPassword;
+    }
+
+    /**
+     * Gets the list of {@link RabbitmqConsumeItem}.
+     *
+     * @return the list of {@link RabbitmqConsumeItem}. never null.
+     */
+    public List<RabbitmqConsumeItem> getConsumeItems() {
+        if (consumeItems == null) {
+            return Collections.emptyList();
+        }
+        return consumeItems;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Descriptor<RabbitmqBroker> getDescriptor() {
+        return Jenkins.getInstance().getDescriptorOrDie(getClass());
+    }
+
+    /**
+     * Implements descriptor for parent class.
+     *
+     * @author rinrinne a.k.a. rin_ne
+     */
+    @Extension
+    public static class DescriptorImpl extends Descriptor<RabbitmqBroker> {
+        @Override
+        public String getDisplayName() {
+            return "";
+        }
+
+        /**
+         * Checks given broker name.
+         *
+         * @param value
+         *            the name.
+         * @return FormValidation object that indicates ok or error.
+         */
+        public FormValidation doCheckName(@QueryParameter String value) {
+            String val = StringUtils.stripToNull(value);
+            if (val == null) {
+                return FormValidation.error(Messages.BrokerNameRequired());
+            }
+            if (DEFAULT_BROKER_NAME.equals(val)) {
+                return FormValidation.error(Messages.ReservedBrokerName(val));
+            }
+            return FormValidation.ok();
+        }
+
+        /**
+         * Checks given URI is valid.
+         *
+         * @param value
+         *            the URI.
+         * @return FormValidation object that indicates ok or error.
+         */
+        public FormValidation doCheckServiceUri(@QueryParameter String value) {
+            return GlobalRabbitmqConfiguration.get().doCheckServiceUri(value);
+        }
+
+        /**
+         * Tests connection to given URI.
+         *
+         * @param serviceUri
+         *            the URI.
+         * @param userName
+         *            the username.
+         * @param userPassword
+         *            the password.
+         * @return FormValidation object that indicates ok or error.
+         * @throws ServletException
+         *             exception for servlet.
+         */
+        public FormValidation doTestConnection(@QueryParameter("serviceUri") String serviceUri,
+                @QueryParameter("userName") String userName,
+                @QueryParameter("userPassword") Secret userPassword) throws ServletException {
+            return GlobalRabbitmqConfiguration.get().doTestConnection(serviceUri, userName, userPassword);
+        }
+    }
+}
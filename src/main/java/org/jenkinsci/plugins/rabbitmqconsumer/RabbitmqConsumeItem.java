@@ -1,19 +1,26 @@
 package org.jenkinsci.plugins.rabbitmqconsumer;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 import jenkins.model.Jenkins;
 import hudson.Extension;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
+import hudson.util.ComboBoxModel;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import org.apache.commons.lang3.StringUtils;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.MessageFilter;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.rabbitmq.client.Channel;
 
@@ -29,9 +36,34 @@ public class RabbitmqConsumeItem implements Describable<RabbitmqConsumeItem> {
      * App ID for debug.
      */
     public static final String DEBUG_APPID = "*";
+    /**
+     * The default maximum time in milliseconds to wait for batch to be filled.
+     */
+    public static final long DEFAULT_BATCH_WAIT = 100;
+    /**
+     * The prefetch count for stream queue if no prefetch count is configured.
+     * Broker requires prefetch count to consume stream.
+     */
+    public static final int DEFAULT_STREAM_PREFETCH = 100;
+    /**
+     * Offset specifications accepted for stream queue.
+     */
+    private static final String[] STREAM_OFFSETS = {"first", "last", "next"};
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RabbitmqConsumeItem.class);
 
     private String appId = null;
     private String queueName = null;
+    private int prefetchCount = 0;
+    private int consumerConcurrency = 1;
+    private int batchSize = 0;
+    private long batchWait = 0;
+    private int rateLimit = 0;
+    private int queueRateLimit = 0;
+    private String filter = null;
+    private String streamOffset = null;
+    private transient volatile MessageFilter compiledFilter;
+    private transient volatile boolean filterCompiled;
 
     /**
      * Creates instance with specific parameters.
@@ -89,6 +121,353 @@ public class RabbitmqConsumeItem implements Describable<RabbitmqConsumeItem> {
         this.queueName = queueName;
     }
 
+    /**
+     * Gets prefetch count.
+     *
+     * @return the prefetch count. 0 means that global default is used.
+     */
+    public final int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Sets prefetch count.
+     *
+     * @param prefetchCount the prefetch count. 0 means that global default is used.
+     */
+    @DataBoundSetter
+    public final void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = Math.max(0, prefetchCount);
+    }
+
+    /**
+     * Gets the number of consumers for queue.
+     *
+     * @return the number of consumers.
+     */
+    public final int getConsumerConcurrency() {
+        return Math.max(1, consumerConcurrency);
+    }
+
+    /**
+     * Sets the number of consumers for queue.
+     *
+     * @param consumerConcurrency the number of consumers.
+     */
+    @DataBoundSetter
+    public final void setConsumerConcurrency(int consumerConcurrency) {
+        this.consumerConcurrency = Math.max(1, consumerConcurrency);
+    }
+
+    /**
+     * Gets the maximum number of messages in batch.
+     *
+     * @return the number of messages. 1 or less means that batching is disabled.
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of messages in batch.
+     *
+     * @param batchSize the number of messages. 1 or less means that batching is disabled.
+     */
+    @DataBoundSetter
+    public final void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(0, batchSize);
+    }
+
+    /**
+     * Gets the maximum time to wait for batch to be filled.
+     *
+     * @return the time in milliseconds.
+     */
+    public final long getBatchWait() {
+        return batchWait > 0 ? batchWait : DEFAULT_BATCH_WAIT;
+    }
+
+    /**
+     * Sets the maximum time to wait for batch to be filled.
+     *
+     * @param batchWait the time in milliseconds. 0 means default.
+     */
+    @DataBoundSetter
+    public final void setBatchWait(long batchWait) {
+        this.batchWait = Math.max(0, batchWait);
+    }
+
+    /**
+     * Gets the maximum rate of messages for application id on queue.
+     *
+     * @return the number of messages per second. 0 means unlimited.
+     */
+    public final int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the maximum rate of messages for application id on queue.
+     *
+     * @param rateLimit the number of messages per second. 0 means unlimited.
+     */
+    @DataBoundSetter
+    public final void setRateLimit(int rateLimit) {
+        this.rateLimit = Math.max(0, rateLimit);
+    }
+
+    /**
+     * Gets the maximum rate of messages for whole queue.
+     *
+     * @return the number of messages per second. 0 means unlimited.
+     */
+    public final int getQueueRateLimit() {
+        return queueRateLimit;
+    }
+
+    /**
+     * Sets the maximum rate of messages for whole queue.
+     *
+     * @param queueRateLimit the number of messages per second. 0 means unlimited.
+     */
+    @DataBoundSetter
+    public final void setQueueRateLimit(int queueRateLimit) {
+        this.queueRateLimit = Math.max(0, queueRateLimit);
+    }
+
+    /**
+     * Gets filter conditions.
+     *
+     * @return the conditions separated by new line. null if all messages are delivered.
+     */
+    public final String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets filter conditions.
+     *
+     * @param filter the conditions separated by new line.
+     */
+    @DataBoundSetter
+    public final void setFilter(String filter) {
+        this.filter = StringUtils.stripToNull(filter);
+        this.filterCompiled = false;
+    }
+
+    /**
+     * Gets the offset to start consuming stream queue from if no offset is stored.
+     *
+     * @return the offset specification. null if queue is consumed as classic queue.
+     */
+    public final String getStreamOffset() {
+        return streamOffset;
+    }
+
+    /**
+     * Sets the offset to start consuming stream queue from if no offset is stored.
+     *
+     * @param streamOffset the offset specification. "first", "last" or "next".
+     *            null or "-" means that queue is consumed as classic queue.
+     */
+    @DataBoundSetter
+    public final void setStreamOffset(String streamOffset) {
+        String val = StringUtils.stripToNull(streamOffset);
+        this.streamOffset = GlobalRabbitmqConfiguration.CONTENT_NONE.equals(val) ? null : val;
+    }
+
+    /**
+     * Gets compiled filter. Filter is compiled at first call.
+     * Invalid filter is ignored with warning, so all messages are delivered.
+     *
+     * @return the filter. null if all messages are delivered.
+     */
+    public final MessageFilter getCompiledFilter() {
+        if (!filterCompiled) {
+            try {
+                compiledFilter = MessageFilter.compile(filter);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Ignore invalid filter for {} on {}: {}", appId, queueName, e.getMessage());
+                compiledFilter = null;
+            }
+            filterCompiled = true;
+        }
+        return compiledFilter;
+    }
+
+    /**
+     * Gets filters of messages for specified queue.
+     *
+     * @param consumeItems
+     *            the collection of consume items.
+     * @param queueName
+     *            the queue name.
+     * @return the map from application id to filter.
+     */
+    public static Map<String, MessageFilter> getEffectiveFilters(Collection<RabbitmqConsumeItem> consumeItems,
+            String queueName) {
+        Map<String, MessageFilter> filters = new HashMap<String, MessageFilter>();
+        if (consumeItems != null) {
+            for (RabbitmqConsumeItem i : consumeItems) {
+                if (queueName != null && queueName.equals(i.getQueueName()) && i.getAppId() != null) {
+                    MessageFilter f = i.getCompiledFilter();
+                    if (f != null) {
+                        filters.put(i.getAppId(), f);
+                    }
+                }
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Gets the offset to start consuming specified queue from as stream.
+     * If several items share the queue, the first stream setting wins.
+     *
+     * @param consumeItems
+     *            the collection of consume items.
+     * @param queueName
+     *            the queue name.
+     * @return the offset specification. null if queue is consumed as classic queue.
+     */
+    public static String getEffectiveStreamOffset(Collection<RabbitmqConsumeItem> consumeItems, String queueName) {
+        if (consumeItems != null) {
+            for (RabbitmqConsumeItem i : consumeItems) {
+                if (queueName != null && queueName.equals(i.getQueueName()) && i.getStreamOffset() != null) {
+                    return i.getStreamOffset();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the maximum rate of messages for specified queue.
+     * If several items share the queue, the smallest limit wins.
+     *
+     * @param consumeItems
+     *            the collection of consume items.
+     * @param queueName
+     *            the queue name.
+     * @return the number of messages per second. 0 means unlimited.
+     */
+    public static int getEffectiveQueueRateLimit(Collection<RabbitmqConsumeItem> consumeItems, String queueName) {
+        int limit = 0;
+        if (consumeItems != null) {
+            for (RabbitmqConsumeItem i : consumeItems) {
+                if (queueName != null && queueName.equals(i.getQueueName()) && i.getQueueRateLimit() > 0) {
+                    limit = limit == 0 ? i.getQueueRateLimit() : Math.min(limit, i.getQueueRateLimit());
+                }
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Gets the maximum number of messages in batch for specified queue.
+     * If several items share the queue, the largest value wins.
+     *
+     * @param consumeItems
+     *            the collection of consume items.
+     * @param queueName
+     *            the queue name.
+     * @return the number of messages. 1 or less means that batching is disabled.
+     */
+    public static int getEffectiveBatchSize(Collection<RabbitmqConsumeItem> consumeItems, String queueName) {
+        int size = 0;
+        if (consumeItems != null) {
+            for (RabbitmqConsumeItem i : consumeItems) {
+                if (queueName != null && queueName.equals(i.getQueueName())) {
+                    size = Math.max(size, i.getBatchSize());
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets the maximum time to wait for batch to be filled for specified queue.
+     * If several batching items share the queue, the smallest value wins.
+     *
+     * @param consumeItems
+     *            the collection of consume items.
+     * @param queueName
+     *            the queue name.
+     * @return the time in milliseconds.
+     */
+    public static long getEffectiveBatchWait(Collection<RabbitmqConsumeItem> consumeItems, String queueName) {
+        long wait = 0;
+        if (consumeItems != null) {
+            for (RabbitmqConsumeItem i : consumeItems) {
+                if (queueName != null && queueName.equals(i.getQueueName()) && i.getBatchSize() > 1) {
+                    wait = wait == 0 ? i.getBatchWait() : Math.min(wait, i.getBatchWait());
+                }
+            }
+        }
+        return wait > 0 ? wait : DEFAULT_BATCH_WAIT;
+    }
+
+    /**
+     * Gets the number of consumers for specified queue.
+     * If several items share the queue, the largest value wins.
+     * Stream queue has only one consumer because every consumer receives all messages in stream.
+     *
+     * @param consumeItems
+     *            the collection of consume items.
+     * @param queueName
+     *            the queue name.
+     * @return the number of consumers.
+     */
+    public static int getEffectiveConsumerConcurrency(Collection<RabbitmqConsumeItem> consumeItems,
+            String queueName) {
+        int concurrency = 1;
+        if (getEffectiveStreamOffset(consumeItems, queueName) != null) {
+            return concurrency;
+        }
+        if (consumeItems != null) {
+            for (RabbitmqConsumeItem i : consumeItems) {
+                if (queueName != null && queueName.equals(i.getQueueName())) {
+                    concurrency = Math.max(concurrency, i.getConsumerConcurrency());
+                }
+            }
+        }
+        return concurrency;
+    }
+
+    /**
+     * Gets prefetch count applied to channel for specified queue.
+     * If several items share the queue, the smallest override wins.
+     * Stream queue never gets unlimited prefetch count.
+     *
+     * @param consumeItems
+     *            the collection of consume items.
+     * @param queueName
+     *            the queue name.
+     * @param defaultCount
+     *            the default prefetch count.
+     * @return the prefetch count. 0 means unlimited.
+     */
+    public static int getEffectivePrefetchCount(Collection<RabbitmqConsumeItem> consumeItems,
+            String queueName, int defaultCount) {
+        int count = 0;
+        if (consumeItems != null) {
+            for (RabbitmqConsumeItem i : consumeItems) {
+                if (queueName != null && queueName.equals(i.getQueueName()) && i.getPrefetchCount() > 0) {
+                    if (count == 0 || i.getPrefetchCount() < count) {
+                        count = i.getPrefetchCount();
+                    }
+                }
+            }
+        }
+        if (count == 0) {
+            count = Math.max(0, defaultCount);
+        }
+        if (count == 0 && getEffectiveStreamOffset(consumeItems, queueName) != null) {
+            count = DEFAULT_STREAM_PREFETCH;
+        }
+        return count;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public Descriptor<RabbitmqConsumeItem> getDescriptor() {
@@ -141,12 +520,13 @@ public class RabbitmqConsumeItem implements Describable<RabbitmqConsumeItem> {
         }
 
         /**
-         * Fills dropdown list in global configuration using app ids.
+         * Fills combobox in global configuration using app ids.
+         * Glob pattern can also be typed.
          *
-         * @return ListBoxModel instance that is filled by app ids.
+         * @return ComboBoxModel instance that is filled by app ids.
          */
-        public ListBoxModel doFillAppIdItems() {
-            ListBoxModel items = new ListBoxModel();
+        public ComboBoxModel doFillAppIdItems() {
+            ComboBoxModel items = new ComboBoxModel();
             Collection<String> appIds = new HashSet<String>();
 
             for (MessageQueueListener l : MessageQueueListener.all()) {
@@ -155,13 +535,27 @@ public class RabbitmqConsumeItem implements Describable<RabbitmqConsumeItem> {
             appIds.remove(null);
             appIds.remove(DEBUG_APPID);
 
-            items.add(GlobalRabbitmqConfiguration.CONTENT_NONE, GlobalRabbitmqConfiguration.CONTENT_NONE);
+            items.add(GlobalRabbitmqConfiguration.CONTENT_NONE);
             if (GlobalRabbitmqConfiguration.get().isEnableDebug()) {
-                items.add(DEBUG_APPID, DEBUG_APPID);
+                items.add(DEBUG_APPID);
             }
 
             for (String appId : appIds) {
-                items.add(appId, appId);
+                items.add(appId);
+            }
+            return items;
+        }
+
+        /**
+         * Fills dropdown list of stream offsets.
+         *
+         * @return ListBoxModel instance that is filled by offset specifications.
+         */
+        public ListBoxModel doFillStreamOffsetItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add(GlobalRabbitmqConfiguration.CONTENT_NONE, GlobalRabbitmqConfiguration.CONTENT_NONE);
+            for (String offset : STREAM_OFFSETS) {
+                items.add(offset, offset);
             }
             return items;
         }
@@ -188,5 +582,98 @@ public class RabbitmqConsumeItem implements Describable<RabbitmqConsumeItem> {
             }
             return FormValidation.ok();
         }
+
+        /**
+         * Check given batch size.
+         *
+         * @param value the field value named batchSize.
+         * @return ok if no problem.
+         */
+        public FormValidation doCheckBatchSize(@QueryParameter String value) {
+            if (StringUtils.stripToNull(value) == null) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        /**
+         * Check given batch wait.
+         *
+         * @param value the field value named batchWait.
+         * @return ok if no problem.
+         */
+        public FormValidation doCheckBatchWait(@QueryParameter String value) {
+            if (StringUtils.stripToNull(value) == null) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        /**
+         * Check given consumer concurrency.
+         *
+         * @param value the field value named consumerConcurrency.
+         * @return ok if no problem.
+         */
+        public FormValidation doCheckConsumerConcurrency(@QueryParameter String value) {
+            if (StringUtils.stripToNull(value) == null) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        /**
+         * Check given rate limit.
+         *
+         * @param value the field value named rateLimit.
+         * @return ok if no problem.
+         */
+        public FormValidation doCheckRateLimit(@QueryParameter String value) {
+            if (StringUtils.stripToNull(value) == null) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        /**
+         * Check given queue rate limit.
+         *
+         * @param value the field value named queueRateLimit.
+         * @return ok if no problem.
+         */
+        public FormValidation doCheckQueueRateLimit(@QueryParameter String value) {
+            if (StringUtils.stripToNull(value) == null) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        /**
+         * Check given filter.
+         *
+         * @param value the field value named filter.
+         * @return ok if no problem.
+         */
+        public FormValidation doCheckFilter(@QueryParameter String value) {
+            try {
+                MessageFilter.compile(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        /**
+         * Check given prefetch count.
+         *
+         * @param value the field value named prefetchCount.
+         * @return ok if no problem.
+         */
+        public FormValidation doCheckPrefetchCount(@QueryParameter String value) {
+            if (StringUtils.stripToNull(value) == null) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validateNonNegativeInteger(value);
+        }
     }
 }
@@ -0,0 +1,363 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.util.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Coalesces acknowledgements for a channel into multiple acks.
+ *
+ * Delivered tags are acknowledged with <i>multiple=true</i> once the number of
+ * pending acks reaches batch size or the oldest pending ack gets older than
+ * timeout.
+ *
+ * Tags may be completed out of order. Only the highest tag below which all tags
+ * are completed is acknowledged, so a multiple ack never covers a message which
+ * is still being processed.
+ *
+ * Rejected tags are nacked immediately and never used as the tag of multiple ack,
+ * because broker no longer knows them.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class AckCoalescer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AckCoalescer.class);
+    private static final int INITIAL_WINDOW = 64;
+    private static final byte INCOMPLETE = 0;
+    private static final byte ACKED = 1;
+    private static final byte REJECTED = 2;
+
+    private final Channel channel;
+    private int batchSize;
+    private long timeoutMillis;
+
+    private long settledTag = 0;
+    private long ackableTag = 0;
+    private byte[] completed = new byte[INITIAL_WINDOW];
+    private int pendingCount = 0;
+    private ScheduledFuture<?> flushFuture;
+
+    private long batches = 0;
+    private long ackedMessages = 0;
+    private int lastBatchSize = 0;
+    private int maxBatchSize = 0;
+    private long requeuedMessages = 0;
+    private long deadLetteredMessages = 0;
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param channel
+     *            the channel to acknowledge.
+     * @param batchSize
+     *            the number of acks to be coalesced. 1 or less means no coalescing.
+     * @param timeoutMillis
+     *            the maximum time in milliseconds to hold pending acks.
+     */
+    public AckCoalescer(Channel channel, int batchSize, long timeoutMillis) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Acknowledges delivery tag. Actual ack may be deferred.
+     *
+     * @param deliveryTag
+     *            the delivery tag.
+     * @throws IOException
+     *             throws if ack cannot be sent.
+     */
+    public synchronized void ack(long deliveryTag) throws IOException {
+        if (!complete(deliveryTag, ACKED)) {
+            return;
+        }
+        settle();
+    }
+
+    /**
+     * Acknowledges delivery tags at once. Settled tags are sent as single ack immediately.
+     *
+     * @param deliveryTags
+     *            the delivery tags.
+     * @throws IOException
+     *             throws if ack cannot be sent.
+     */
+    public synchronized void ackAll(Collection<Long> deliveryTags) throws IOException {
+        boolean advanced = false;
+        for (long tag : deliveryTags) {
+            advanced |= complete(tag, ACKED);
+        }
+        if (advanced) {
+            flush();
+        }
+    }
+
+    /**
+     * Rejects delivery tag. Nack is sent immediately.
+     *
+     * @param deliveryTag
+     *            the delivery tag.
+     * @param requeue
+     *            true if message is requeued. false if message is dead-lettered or dropped by broker.
+     * @throws IOException
+     *             throws if nack cannot be sent.
+     */
+    public synchronized void reject(long deliveryTag, boolean requeue) throws IOException {
+        if (deliveryTag <= settledTag) {
+            return;
+        }
+        channel.basicNack(deliveryTag, false, requeue);
+        if (requeue) {
+            requeuedMessages++;
+        } else {
+            deadLetteredMessages++;
+        }
+        if (complete(deliveryTag, REJECTED)) {
+            settle();
+        }
+    }
+
+    /**
+     * Sends or schedules pending acks after settled tag is advanced.
+     *
+     * @throws IOException
+     *             throws if ack cannot be sent.
+     */
+    private void settle() throws IOException {
+        if (pendingCount >= batchSize) {
+            flush();
+        } else if (pendingCount > 0 && flushFuture == null) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Sends pending acks immediately.
+     *
+     * @throws IOException
+     *             throws if ack cannot be sent.
+     */
+    public synchronized void flush() throws IOException {
+        cancelFlush();
+        if (pendingCount > 0) {
+            int count = pendingCount;
+            pendingCount = 0;
+            channel.basicAck(ackableTag, count > 1);
+            record(count);
+        }
+    }
+
+    /**
+     * Drops pending acks without sending them.
+     * Dropped messages will be redelivered by broker.
+     *
+     * @return the number of dropped acks.
+     */
+    public synchronized int discard() {
+        cancelFlush();
+        int count = pendingCount;
+        pendingCount = 0;
+        return count;
+    }
+
+    /**
+     * Sets batch parameters.
+     *
+     * @param batchSize
+     *            the number of acks to be coalesced. 1 or less means no coalescing.
+     * @param timeoutMillis
+     *            the maximum time in milliseconds to hold pending acks.
+     */
+    public synchronized void setBatch(int batchSize, long timeoutMillis) {
+        this.batchSize = batchSize;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Gets the highest delivery tag below which all tags are completed.
+     *
+     * @return the delivery tag. 0 if no tag is completed.
+     */
+    public synchronized long getSettledTag() {
+        return settledTag;
+    }
+
+    /**
+     * Gets the number of pending acks.
+     *
+     * @return the number of pending acks.
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Gets the number of sent acks.
+     *
+     * @return the number of acks.
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Gets the number of acknowledged messages.
+     *
+     * @return the number of messages.
+     */
+    public synchronized long getAckedMessages() {
+        return ackedMessages;
+    }
+
+    /**
+     * Gets the size of last ack batch.
+     *
+     * @return the batch size.
+     */
+    public synchronized int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    /**
+     * Gets the maximum size of ack batch.
+     *
+     * @return the batch size.
+     */
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Gets the number of requeued messages.
+     *
+     * @return the number of messages.
+     */
+    public synchronized long getRequeuedMessages() {
+        return requeuedMessages;
+    }
+
+    /**
+     * Gets the number of messages rejected without requeue.
+     *
+     * @return the number of messages.
+     */
+    public synchronized long getDeadLetteredMessages() {
+        return deadLetteredMessages;
+    }
+
+    /**
+     * Gets the average size of ack batch.
+     *
+     * @return the batch size.
+     */
+    public synchronized double getAverageBatchSize() {
+        return batches == 0 ? 0 : (double) ackedMessages / batches;
+    }
+
+    /**
+     * Marks delivery tag as completed then advances settled tag.
+     *
+     * @param deliveryTag
+     *            the delivery tag.
+     * @param result
+     *            the result of delivery.
+     * @return true if settled tag is advanced.
+     */
+    private boolean complete(long deliveryTag, byte result) {
+        if (deliveryTag <= settledTag) {
+            return false;
+        }
+        ensureWindow(deliveryTag - settledTag);
+        int mask = completed.length - 1;
+        completed[(int) (deliveryTag & mask)] = result;
+
+        boolean advanced = false;
+        int index = (int) ((settledTag + 1) & mask);
+        while (completed[index] != INCOMPLETE) {
+            settledTag++;
+            if (completed[index] == ACKED) {
+                ackableTag = settledTag;
+                pendingCount++;
+            }
+            completed[index] = INCOMPLETE;
+            index = (int) ((settledTag + 1) & mask);
+            advanced = true;
+        }
+        return advanced;
+    }
+
+    /**
+     * Grows window for completed tags if needed.
+     *
+     * @param distance
+     *            the distance from settled tag.
+     */
+    private void ensureWindow(long distance) {
+        if (distance < completed.length) {
+            return;
+        }
+        int size = completed.length;
+        while (size <= distance) {
+            size <<= 1;
+        }
+        byte[] window = new byte[size];
+        int oldMask = completed.length - 1;
+        int newMask = size - 1;
+        for (long tag = settledTag + 1; tag <= settledTag + completed.length; tag++) {
+            window[(int) (tag & newMask)] = completed[(int) (tag & oldMask)];
+        }
+        completed = window;
+    }
+
+    /**
+     * Records sent ack.
+     *
+     * @param count
+     *            the number of acknowledged messages.
+     */
+    private void record(int count) {
+        batches++;
+        ackedMessages += count;
+        lastBatchSize = count;
+        if (count > maxBatchSize) {
+            maxBatchSize = count;
+        }
+    }
+
+    /**
+     * Schedules flush of pending acks.
+     */
+    private void scheduleFlush() {
+        if (timeoutMillis > 0) {
+            flushFuture = Timer.get().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Exception e) {
+                        LOGGER.warn("Failed to flush pending acks.", e);
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels scheduled flush.
+     */
+    private void cancelFlush() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+    }
+}
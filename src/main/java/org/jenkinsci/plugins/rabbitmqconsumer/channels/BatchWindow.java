@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.util.Timer;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
+
+/**
+ * Window that collects messages into batch.
+ *
+ * Batch is closed when the number of messages reaches max size or the oldest
+ * message gets older than max wait. In the latter case, given task is run on
+ * timer thread and it is expected to drain this window.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class BatchWindow {
+
+    private final int maxMessages;
+    private final long maxWaitMillis;
+    private final Runnable onTimeout;
+
+    private List<RMQMessage> messages = new ArrayList<RMQMessage>();
+    private ScheduledFuture<?> timeoutFuture;
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param maxMessages
+     *            the maximum number of messages in batch.
+     * @param maxWaitMillis
+     *            the maximum time in milliseconds to wait for batch to be filled.
+     * @param onTimeout
+     *            the task which is run when max wait is elapsed.
+     */
+    public BatchWindow(int maxMessages, long maxWaitMillis, Runnable onTimeout) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxWaitMillis = maxWaitMillis;
+        this.onTimeout = onTimeout;
+    }
+
+    /**
+     * Adds message to batch.
+     *
+     * @param message
+     *            the message.
+     * @return the closed batch if it is filled. otherwise null.
+     */
+    public synchronized List<RMQMessage> add(RMQMessage message) {
+        messages.add(message);
+        if (messages.size() >= maxMessages) {
+            return drain();
+        }
+        if (timeoutFuture == null && maxWaitMillis > 0) {
+            timeoutFuture = Timer.get().schedule(onTimeout, maxWaitMillis, TimeUnit.MILLISECONDS);
+        }
+        return null;
+    }
+
+    /**
+     * Closes current batch.
+     *
+     * @return the batch. empty if no message is collected.
+     */
+    public synchronized List<RMQMessage> drain() {
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+            timeoutFuture = null;
+        }
+        if (messages.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<RMQMessage> batch = messages;
+        messages = new ArrayList<RMQMessage>();
+        return batch;
+    }
+
+    /**
+     * Gets the number of collected messages.
+     *
+     * @return the number of messages.
+     */
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Gets whether this window has specified parameters.
+     *
+     * @param maxMessages
+     *            the maximum number of messages in batch.
+     * @param maxWaitMillis
+     *            the maximum time in milliseconds to wait for batch to be filled.
+     * @return true if parameters are the same.
+     */
+    public boolean isSameWindow(int maxMessages, long maxWaitMillis) {
+        return this.maxMessages == Math.max(1, maxMessages) && this.maxWaitMillis == maxWaitMillis;
+    }
+}
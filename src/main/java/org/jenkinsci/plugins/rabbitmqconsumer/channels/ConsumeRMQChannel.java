@@ -1,13 +1,27 @@
 package org.jenkinsci.plugins.rabbitmqconsumer.channels;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jenkinsci.plugins.rabbitmqconsumer.GlobalRabbitmqConfiguration;
 import org.jenkinsci.plugins.rabbitmqconsumer.RMQState;
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqBroker;
 import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqConsumeItem;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.MessageDispatcher;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ContentCodec;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
+import org.jenkinsci.plugins.rabbitmqconsumer.spool.MessageSpool;
+import org.jenkinsci.plugins.rabbitmqconsumer.spool.MessageSpools;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.AppIdIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,10 +39,35 @@ import com.rabbitmq.client.AMQP.BasicProperties;
 public class ConsumeRMQChannel extends AbstractRMQChannel {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConsumeRMQChannel.class);
+    private static final long TIMEOUT_DRAIN_MILLIS = 30000;
+    private static final String HEADER_DELIVERY_COUNT = "x-delivery-count";
+    private static final String STREAM_OFFSET = "x-stream-offset";
 
     protected final Collection<String> appIds;
+    private final AppIdIndex<String> appIdIndex;
+    private final String brokerName;
     private final String queueName;
+    private final int consumerIndex;
     private volatile boolean consumeStarted = false;
+    private volatile int prefetchCount = 0;
+    private volatile int ackBatchSize = 1;
+    private volatile long ackTimeout = 0;
+    private volatile AckCoalescer ackCoalescer;
+    private volatile MessageDispatcher dispatcher;
+    private volatile FailurePolicy failurePolicy = FailurePolicy.ACK;
+    private volatile int maxRedeliveries = 0;
+    private volatile int batchSize = 1;
+    private volatile long batchWait = 0;
+    private volatile BatchWindow batchWindow;
+    private volatile String consumerTag;
+    private volatile boolean paused = false;
+    private volatile String streamOffset;
+    private volatile StreamCursor streamCursor;
+    private volatile AppIdIndex<MessageFilter> filters = new AppIdIndex<MessageFilter>();
+    private final AtomicLong filteredCount = new AtomicLong();
+    private final Object consumerLock = new Object();
+    private final Object inFlightLock = new Object();
+    private int inFlight = 0;
 
     private final boolean debug;
 
@@ -41,11 +80,64 @@ public class ConsumeRMQChannel extends AbstractRMQChannel {
      *            the hashset of application id.
      */
     public ConsumeRMQChannel(String queueName, Collection<String> appIds) {
+        this(queueName, appIds, 0);
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param appIds
+     *            the hashset of application id. it may have glob patterns.
+     * @param consumerIndex
+     *            the index of consumer in the group which consumes the same queue.
+     */
+    public ConsumeRMQChannel(String queueName, Collection<String> appIds, int consumerIndex) {
+        this(RabbitmqBroker.DEFAULT_BROKER_NAME, queueName, appIds, consumerIndex);
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param brokerName
+     *            the name of broker. stream offset, dedup cache, spool and rate limiters
+     *            are not shared with the queue of the same name on other brokers.
+     * @param queueName
+     *            the queue name.
+     * @param appIds
+     *            the hashset of application id. it may have glob patterns.
+     * @param consumerIndex
+     *            the index of consumer in the group which consumes the same queue.
+     */
+    public ConsumeRMQChannel(String brokerName, String queueName, Collection<String> appIds, int consumerIndex) {
         this.appIds = appIds;
+        this.appIdIndex = new AppIdIndex<String>();
+        if (appIds != null) {
+            for (String appId : appIds) {
+                if (appId != null && !appId.equals(RabbitmqConsumeItem.DEBUG_APPID)) {
+                    appIdIndex.add(appId, appId);
+                }
+            }
+        }
+        this.brokerName = brokerName;
         this.queueName = queueName;
+        this.consumerIndex = consumerIndex;
         this.debug = isEnableDebug();
     }
 
+    /**
+     * Gets whether listeners on this channel wait for application id.
+     * Debug application id is never matched.
+     *
+     * @param appId
+     *            the application id of message.
+     * @return true if application id matches any configured id or pattern.
+     */
+    public boolean isListened(String appId) {
+        return appId != null && !appId.equals(RabbitmqConsumeItem.DEBUG_APPID) && appIdIndex.matches(appId);
+    }
+
     /**
      * Get hashset of app ids.
      *
@@ -55,6 +147,15 @@ public class ConsumeRMQChannel extends AbstractRMQChannel {
         return appIds;
     }
 
+    /**
+     * Gets name of broker.
+     *
+     * @return the name.
+     */
+    public String getBrokerName() {
+        return brokerName;
+    }
+
     /**
      * Gets queue name.
      *
@@ -65,20 +166,345 @@ public class ConsumeRMQChannel extends AbstractRMQChannel {
     }
 
     /**
-     * Starts consume.
+     * Gets the index of consumer in the group which consumes the same queue.
+     * Only the primary consumer whose index is 0 fires bind/unbind events.
+     *
+     * @return the index.
+     */
+    public int getConsumerIndex() {
+        return consumerIndex;
+    }
+
+    /**
+     * Gets prefetch count.
+     *
+     * @return the prefetch count. 0 means unlimited.
+     */
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Sets prefetch count.
+     * If consumer is already started, new value is applied to channel immediately.
+     *
+     * @param prefetchCount
+     *            the prefetch count. 0 means unlimited.
+     */
+    public void setPrefetchCount(int prefetchCount) {
+        int count = Math.max(0, prefetchCount);
+        if (this.prefetchCount != count) {
+            this.prefetchCount = count;
+            if (consumeStarted && channel != null) {
+                try {
+                    channel.basicQos(count);
+                    setAckBatch(ackBatchSize, ackTimeout);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to update prefetch count for {}.", queueName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets parameters to coalesce acks.
+     * If consumer is already started, new values are applied immediately.
+     *
+     * @param ackBatchSize
+     *            the number of acks to be coalesced. 1 or less means no coalescing.
+     * @param ackTimeout
+     *            the maximum time in milliseconds to hold pending acks.
+     */
+    public void setAckBatch(int ackBatchSize, long ackTimeout) {
+        this.ackBatchSize = ackBatchSize;
+        this.ackTimeout = ackTimeout;
+        AckCoalescer coalescer = ackCoalescer;
+        if (coalescer != null) {
+            coalescer.setBatch(getEffectiveAckBatchSize(), ackTimeout);
+        }
+    }
+
+    /**
+     * Sets dispatcher that runs deliveries.
+     *
+     * @param dispatcher
+     *            the dispatcher. null means deliveries are run on consumer thread.
+     */
+    public void setDispatcher(MessageDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Sets policy for message which listener failed to handle.
+     *
+     * @param failurePolicy
+     *            the failure policy.
+     * @param maxRedeliveries
+     *            the number of redeliveries after which requeued message is dead-lettered.
+     *            0 means unlimited.
+     */
+    public void setFailurePolicy(FailurePolicy failurePolicy, int maxRedeliveries) {
+        this.failurePolicy = failurePolicy != null ? failurePolicy : FailurePolicy.ACK;
+        this.maxRedeliveries = Math.max(0, maxRedeliveries);
+    }
+
+    /**
+     * Gets policy for message which listener failed to handle.
+     *
+     * @return the failure policy.
+     */
+    public FailurePolicy getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    /**
+     * Sets batching window. Listeners receive messages by onReceiveBatch if batch size is more than 1.
+     * If consumer is already started, current batch is closed and new window is applied immediately.
+     *
+     * @param batchSize
+     *            the maximum number of messages in batch. 1 or less means that batching is disabled.
+     * @param batchWait
+     *            the maximum time in milliseconds to wait for batch to be filled.
+     */
+    public void setBatchWindow(int batchSize, long batchWait) {
+        this.batchSize = batchSize;
+        this.batchWait = batchWait;
+        if (consumeStarted) {
+            BatchWindow old = batchWindow;
+            if (old == null || !old.isSameWindow(getEffectiveBatchSize(), batchWait)) {
+                batchWindow = createBatchWindow();
+                if (old != null) {
+                    runBatch(old.drain());
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the maximum number of messages in batch.
+     * It never exceeds prefetch count because broker stops delivery at that point.
+     *
+     * @return the number of messages.
+     */
+    private int getEffectiveBatchSize() {
+        if (prefetchCount > 0 && batchSize > prefetchCount) {
+            return prefetchCount;
+        }
+        return batchSize;
+    }
+
+    /**
+     * Creates batching window with current parameters.
+     *
+     * @return the window. null if batching is disabled.
+     */
+    private BatchWindow createBatchWindow() {
+        if (getEffectiveBatchSize() <= 1) {
+            return null;
+        }
+        final BatchWindow[] holder = new BatchWindow[1];
+        holder[0] = new BatchWindow(getEffectiveBatchSize(), batchWait, new Runnable() {
+            public void run() {
+                runBatch(holder[0].drain());
+            }
+        });
+        return holder[0];
+    }
+
+    /**
+     * Sets filters of messages. Message which does not match filter for its application id
+     * is acked without delivery. If several patterns match, the most specific one is used.
+     *
+     * @param filters
+     *            the map from application id or pattern to filter.
+     */
+    public void setFilters(Map<String, MessageFilter> filters) {
+        AppIdIndex<MessageFilter> index = new AppIdIndex<MessageFilter>();
+        if (filters != null) {
+            for (Map.Entry<String, MessageFilter> e : filters.entrySet()) {
+                index.add(e.getKey(), e.getValue());
+            }
+        }
+        this.filters = index;
+    }
+
+    /**
+     * Sets stream mode. Stream queue is consumed from stored offset, or from specified
+     * offset if no offset is stored. Change is applied when consumer is started next time.
+     *
+     * @param streamOffset
+     *            the offset specification such as "first", "last" or "next".
+     *            null means that queue is consumed as classic queue.
+     */
+    public void setStreamOffset(String streamOffset) {
+        this.streamOffset = streamOffset;
+    }
+
+    /**
+     * Gets whether queue is consumed as stream.
+     *
+     * @return true if so.
+     */
+    public boolean isStream() {
+        return streamOffset != null;
+    }
+
+    /**
+     * Gets the number of messages which are acked without delivery by filters.
+     *
+     * @return the number of messages.
+     */
+    public long getFilteredCount() {
+        return filteredCount.get();
+    }
+
+    /**
+     * Gets ack coalescer for this channel.
+     *
+     * @return the ack coalescer. null if consumer is not started.
+     */
+    public AckCoalescer getAckCoalescer() {
+        return ackCoalescer;
+    }
+
+    /**
+     * Gets the number of acks to be coalesced.
+     * It never exceeds prefetch count because broker stops delivery at that point.
+     *
+     * @return the batch size.
+     */
+    private int getEffectiveAckBatchSize() {
+        if (prefetchCount > 0 && ackBatchSize > prefetchCount) {
+            return prefetchCount;
+        }
+        return ackBatchSize;
+    }
+
+    /**
+     * Starts consume. If consumer is paused, channel is prepared but no message is delivered
+     * until it is resumed.
      */
     public void consume() {
         if (state == RMQState.CONNECTED && channel != null) {
             try {
-                channel.basicConsume(queueName, false, new MessageConsumer(channel));
-                consumeStarted = true;
-                MessageQueueListener.fireOnBind(appIds, queueName);
+                if (prefetchCount > 0) {
+                    channel.basicQos(prefetchCount);
+                }
+                ackCoalescer = new AckCoalescer(channel, getEffectiveAckBatchSize(), ackTimeout);
+                if (isStream()) {
+                    streamCursor = new StreamCursor(ackCoalescer);
+                    StreamOffsets.get(brokerName, queueName).register(streamCursor);
+                }
+                batchWindow = createBatchWindow();
+                synchronized (consumerLock) {
+                    if (!paused) {
+                        startConsumer();
+                    }
+                    consumeStarted = true;
+                }
+                if (consumerIndex == 0) {
+                    MessageQueueListener.fireOnBind(appIds, queueName);
+                }
             } catch (IOException e) {
                 LOGGER.warn("Failed to start consumer: ", e);
             }
         }
     }
 
+    /**
+     * Pauses or resumes consumer.
+     * Paused consumer is cancelled on broker, so backlog stays in queue. Messages which
+     * are already delivered are still handled and acked. Resumed consumer continues to use
+     * the same ack coalescer because delivery tags are not reset on channel.
+     *
+     * @param paused
+     *            true if consumer is paused.
+     */
+    public void setPaused(boolean paused) {
+        synchronized (consumerLock) {
+            if (this.paused == paused) {
+                return;
+            }
+            this.paused = paused;
+            if (!consumeStarted || channel == null) {
+                return;
+            }
+            if (paused) {
+                cancelConsumer();
+            } else {
+                try {
+                    startConsumer();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to resume consumer for {}.", queueName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restarts consumer so that stream is attached again from current start offset.
+     * It does nothing if consumer is not running.
+     */
+    public void restartConsumer() {
+        synchronized (consumerLock) {
+            if (!consumeStarted || paused || channel == null) {
+                return;
+            }
+            cancelConsumer();
+            try {
+                startConsumer();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to restart consumer for {}.", queueName, e);
+            }
+        }
+    }
+
+    /**
+     * Gets whether consumer is paused.
+     *
+     * @return true if paused.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Registers consumer to broker. Caller must hold consumer lock.
+     * Stream consumer is attached from processed offset, so messages after it are delivered again.
+     *
+     * @throws IOException
+     *             throws if consumer cannot be registered.
+     */
+    private void startConsumer() throws IOException {
+        StreamCursor cursor = streamCursor;
+        if (cursor == null) {
+            consumerTag = channel.basicConsume(queueName, false, new MessageConsumer(channel));
+            return;
+        }
+        StreamOffset stored = StreamOffsets.get(brokerName, queueName);
+        stored.poll();
+        cursor.reset();
+        Object offset = stored.getStartOffset(streamOffset);
+        LOGGER.info("Attach to stream {} from {}.", queueName, offset);
+        consumerTag = channel.basicConsume(queueName, false,
+                Collections.<String, Object>singletonMap(STREAM_OFFSET, offset), new MessageConsumer(channel));
+    }
+
+    /**
+     * Cancels consumer on broker if it is registered. Caller must hold consumer lock.
+     */
+    private void cancelConsumer() {
+        String tag = consumerTag;
+        consumerTag = null;
+        if (tag != null && channel != null) {
+            try {
+                channel.basicCancel(tag);
+            } catch (Exception e) {
+                LOGGER.warn("Failed to cancel consumer for {}.", queueName);
+            }
+        }
+    }
+
     /**
      * Gets whether consumer is already started or not.
      *
@@ -116,36 +542,464 @@ public class ConsumeRMQChannel extends AbstractRMQChannel {
         }
 
         @Override
-        public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body)
-                throws IOException {
+        public void handleDelivery(String consumerTag, final Envelope envelope, final BasicProperties properties,
+                final byte[] body) throws IOException {
+
+            StreamCursor cursor = streamCursor;
+            if (cursor != null && consumerTag.equals(ConsumeRMQChannel.this.consumerTag)) {
+                Map<String, Object> headers = properties.getHeaders();
+                Object offset = headers != null ? headers.get(STREAM_OFFSET) : null;
+                if (offset instanceof Number) {
+                    cursor.track(envelope.getDeliveryTag(), ((Number) offset).longValue());
+                }
+            }
 
+            AppIdIndex<MessageFilter> f = filters;
+            if (!f.isEmpty() && properties.getAppId() != null) {
+                MessageFilter filter = f.get(properties.getAppId());
+                if (filter != null && !filter.matches(properties)) {
+                    filteredCount.incrementAndGet();
+                    ackCoalescer.ack(envelope.getDeliveryTag());
+                    return;
+                }
+            }
+
+            String messageKey = DedupCaches.getKey(properties);
+            if (messageKey != null) {
+                DedupCache cache = DedupCaches.get(brokerName, queueName);
+                if (cache != null && cache.isDuplicate(messageKey)) {
+                    LOGGER.debug("Duplicate message {} in {} is acked without delivery.", messageKey, queueName);
+                    ackCoalescer.ack(envelope.getDeliveryTag());
+                    return;
+                }
+            }
+
+            if (spool(envelope, properties, body)) {
+                return;
+            }
+
+            BatchWindow w = batchWindow;
+            if (w != null) {
+                runBatch(w.add(new RMQMessage(queueName, envelope, properties, body)));
+                return;
+            }
+
+            MessageDispatcher d = dispatcher;
+
+            if (d == null) {
+                deliverAndSettle(envelope, properties, body);
+                return;
+            }
+
+            beginDelivery();
             try {
+                d.dispatch(d.getKey(envelope, properties), properties.getAppId(), new Runnable() {
+                    public void run() {
+                        try {
+                            deliverAndSettle(envelope, properties, body);
+                        } catch (Exception e) {
+                            LOGGER.warn("Failed to ack delivery for {}.", queueName, e);
+                        } finally {
+                            endDelivery();
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                endDelivery();
+                DedupCaches.forget(brokerName, queueName, properties);
+                Thread.currentThread().interrupt();
+                LOGGER.warn("Interrupted while waiting for dispatcher. Delivery will be redelivered.");
+                ackCoalescer.reject(envelope.getDeliveryTag(), true);
+            } catch (RuntimeException e) {
+                endDelivery();
+                LOGGER.warn("Failed to dispatch delivery. Delivery is run on consumer thread.", e);
+                deliverAndSettle(envelope, properties, body);
+            }
+        }
+    }
 
-                long deliveryTag = envelope.getDeliveryTag();
-                String contentType = properties.getContentType();
-                Map<String, Object> headers = properties.getHeaders();
+    /**
+     * Writes message to spool and forces it to disk, then acks it. Spooled message is
+     * delivered by reader of spool. Message which no listener waits for is not spooled,
+     * and message which spool refuses because it is full is delivered without spool.
+     *
+     * @param envelope
+     *            the envelope of message.
+     * @param properties
+     *            the properties of message.
+     * @param body
+     *            the content body.
+     * @return true if message is spooled.
+     * @throws IOException
+     *             throws if ack cannot be sent.
+     */
+    private boolean spool(Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+        String appId = properties.getAppId();
+        if (!isListened(appId)) {
+            return false;
+        }
+        MessageSpool spool = MessageSpools.get(brokerName, queueName);
+        if (spool == null) {
+            return false;
+        }
+        RMQMessage message = new RMQMessage(queueName, envelope, properties, body);
+        if (!spool.append(message)) {
+            return false;
+        }
+        if (debug && appIds.contains(RabbitmqConsumeItem.DEBUG_APPID)) {
+            MessageQueueListener.fireOnReceiveWithResult(RabbitmqConsumeItem.DEBUG_APPID, message);
+        }
+        ackCoalescer.ack(envelope.getDeliveryTag());
+        return true;
+    }
+
+    /**
+     * Delivers message to listeners.
+     *
+     * @param envelope
+     *            the envelope of message.
+     * @param properties
+     *            the properties of message.
+     * @param body
+     *            the content body.
+     * @return true if listeners handled message.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting for rate limit.
+     */
+    private boolean deliver(Envelope envelope, BasicProperties properties, byte[] body)
+            throws InterruptedException {
+        RMQMessage message;
+        try {
+            message = ContentCodec.decode(new RMQMessage(queueName, envelope, properties, body));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to decode content of message in {}.", queueName, e);
+            return false;
+        }
+
+        if (debug) {
+            if (appIds.contains(RabbitmqConsumeItem.DEBUG_APPID)) {
+                MessageQueueListener.fireOnReceiveWithResult(RabbitmqConsumeItem.DEBUG_APPID, message);
+            }
+        }
+
+        if (isListened(properties.getAppId())) {
+            RateLimiters.acquire(brokerName, queueName, properties.getAppId(), 1);
+            return MessageQueueListener.fireOnReceiveWithResult(properties.getAppId(), message);
+        }
+        return true;
+    }
+
+    /**
+     * Delivers message to listeners without throwing exception, then acks or rejects it.
+     * Message is requeued if interrupted while waiting for rate limit.
+     *
+     * @param envelope
+     *            the envelope of message.
+     * @param properties
+     *            the properties of message.
+     * @param body
+     *            the content body.
+     * @throws IOException
+     *             throws if ack or nack cannot be sent.
+     */
+    private void deliverAndSettle(Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+        boolean handled;
+        try {
+            handled = deliver(envelope, properties, body);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for rate limit of {}. Delivery will be redelivered.", queueName);
+            DedupCaches.forget(brokerName, queueName, properties);
+            ackCoalescer.reject(envelope.getDeliveryTag(), true);
+            return;
+        } catch (RuntimeException e) {
+            LOGGER.warn("caught exception in delivery handler", e);
+            handled = false;
+        }
+        settle(envelope, properties, handled);
+    }
+
+    /**
+     * Runs closed batch on dispatcher or current thread.
+     *
+     * @param batch
+     *            the batch. nothing is done if null or empty.
+     */
+    private void runBatch(final List<RMQMessage> batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        MessageDispatcher d = dispatcher;
+        if (d == null) {
+            deliverBatch(batch);
+            return;
+        }
 
-                if (debug) {
-                    if (appIds.contains(RabbitmqConsumeItem.DEBUG_APPID)) {
-                        MessageQueueListener.fireOnReceive(RabbitmqConsumeItem.DEBUG_APPID,
-                                queueName, contentType, headers, body);
+        beginDelivery();
+        try {
+            d.dispatch(new Runnable() {
+                public void run() {
+                    try {
+                        deliverBatch(batch);
+                    } finally {
+                        endDelivery();
                     }
                 }
+            });
+        } catch (InterruptedException e) {
+            endDelivery();
+            forgetAll(batch);
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for dispatcher. Batch will be redelivered.");
+            try {
+                for (RMQMessage m : batch) {
+                    ackCoalescer.reject(m.getEnvelope().getDeliveryTag(), true);
+                }
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to requeue batch for {}.", queueName, ex);
+            }
+        } catch (RuntimeException e) {
+            endDelivery();
+            LOGGER.warn("Failed to dispatch batch. Batch is run on current thread.", e);
+            deliverBatch(batch);
+        }
+    }
+
+    /**
+     * Forgets messages in dedup cache so that their redeliveries are passed to listeners.
+     *
+     * @param messages
+     *            the messages.
+     */
+    private void forgetAll(List<RMQMessage> messages) {
+        for (RMQMessage m : messages) {
+            DedupCaches.forget(brokerName, queueName, m.getProperties());
+        }
+    }
 
-                if (properties.getAppId() != null &&
-                        !properties.getAppId().equals(RabbitmqConsumeItem.DEBUG_APPID)) {
-                    if (appIds.contains(properties.getAppId())) {
-                        MessageQueueListener.fireOnReceive(properties.getAppId(),
-                                queueName, contentType, headers, body);
+    /**
+     * Delivers batch to listeners, then acks handled messages at once.
+     * Message whose content cannot be decoded is settled as failed.
+     *
+     * @param messages
+     *            the batch.
+     */
+    private void deliverBatch(List<RMQMessage> messages) {
+        List<RMQMessage> batch = new ArrayList<RMQMessage>(messages.size());
+        List<RMQMessage> undecodable = new ArrayList<RMQMessage>();
+        for (RMQMessage m : messages) {
+            try {
+                batch.add(ContentCodec.decode(m));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to decode content of message in {}.", queueName, e);
+                undecodable.add(m);
+            }
+        }
+
+        Map<String, List<RMQMessage>> groups = new HashMap<String, List<RMQMessage>>();
+        for (RMQMessage m : batch) {
+            String appId = m.getAppId();
+            if (isListened(appId)) {
+                List<RMQMessage> group = groups.get(appId);
+                if (group == null) {
+                    group = new ArrayList<RMQMessage>();
+                    groups.put(appId, group);
+                }
+                group.add(m);
+            }
+        }
+
+        Set<String> failedAppIds = new HashSet<String>();
+        Set<String> requeuedAppIds = new HashSet<String>();
+        boolean interrupted = false;
+        try {
+            if (debug && appIds.contains(RabbitmqConsumeItem.DEBUG_APPID)) {
+                MessageQueueListener.fireOnReceiveBatchWithResult(RabbitmqConsumeItem.DEBUG_APPID, batch);
+            }
+            for (Map.Entry<String, List<RMQMessage>> e : groups.entrySet()) {
+                if (!interrupted) {
+                    try {
+                        RateLimiters.acquire(brokerName, queueName, e.getKey(), e.getValue().size());
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
                     }
                 }
+                if (interrupted) {
+                    requeuedAppIds.add(e.getKey());
+                } else if (!MessageQueueListener.fireOnReceiveBatchWithResult(e.getKey(), e.getValue())) {
+                    failedAppIds.add(e.getKey());
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("caught exception in batch delivery handler", e);
+            failedAppIds.addAll(groups.keySet());
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for rate limit of {}. Batch will be redelivered.", queueName);
+        }
+
+        try {
+            List<Long> handledTags = new ArrayList<Long>(batch.size());
+            for (RMQMessage m : batch) {
+                if (requeuedAppIds.contains(m.getAppId())) {
+                    DedupCaches.forget(brokerName, queueName, m.getProperties());
+                    ackCoalescer.reject(m.getEnvelope().getDeliveryTag(), true);
+                } else if (failedAppIds.contains(m.getAppId()) && failurePolicy != FailurePolicy.ACK) {
+                    settle(m.getEnvelope(), m.getProperties(), false);
+                } else {
+                    handledTags.add(m.getEnvelope().getDeliveryTag());
+                }
+            }
+            ackCoalescer.ackAll(handledTags);
+            for (RMQMessage m : undecodable) {
+                settle(m.getEnvelope(), m.getProperties(), false);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to ack batch for {}.", queueName, e);
+        }
+    }
 
-                channel.basicAck(deliveryTag, false);
+    /**
+     * Acks or rejects delivered message according to result and failure policy.
+     *
+     * @param envelope
+     *            the envelope of message.
+     * @param properties
+     *            the properties of message.
+     * @param handled
+     *            true if listeners handled message.
+     * @throws IOException
+     *             throws if ack or nack cannot be sent.
+     */
+    private void settle(Envelope envelope, BasicProperties properties, boolean handled) throws IOException {
+        FailurePolicy policy = failurePolicy;
+        if (handled || policy == FailurePolicy.ACK) {
+            ackCoalescer.ack(envelope.getDeliveryTag());
+            return;
+        }
+        boolean requeue = policy == FailurePolicy.REQUEUE;
+        if (requeue && isRedeliveryExceeded(envelope, properties)) {
+            LOGGER.warn("Message in {} exceeded redelivery limit. It is rejected without requeue.", queueName);
+            requeue = false;
+        }
+        if (requeue) {
+            DedupCaches.forget(brokerName, queueName, properties);
+        }
+        ackCoalescer.reject(envelope.getDeliveryTag(), requeue);
+    }
 
-            } catch (IOException e) {
-                throw e;
-            } catch (RuntimeException e) {
-                LOGGER.warn("caught exception in delivery handler", e);
+    /**
+     * Gets whether message was already redelivered as many times as limit.
+     * If queue does not provide delivery count header, redelivered message is
+     * regarded as reaching the limit.
+     *
+     * @param envelope
+     *            the envelope of message.
+     * @param properties
+     *            the properties of message.
+     * @return true if limit is reached.
+     */
+    private boolean isRedeliveryExceeded(Envelope envelope, BasicProperties properties) {
+        int limit = maxRedeliveries;
+        if (limit <= 0) {
+            return false;
+        }
+        Map<String, Object> headers = properties.getHeaders();
+        Object count = headers != null ? headers.get(HEADER_DELIVERY_COUNT) : null;
+        if (count instanceof Number) {
+            return ((Number) count).longValue() >= limit;
+        }
+        return envelope.isRedeliver();
+    }
+
+    /**
+     * Marks that delivery is dispatched.
+     */
+    private void beginDelivery() {
+        synchronized (inFlightLock) {
+            inFlight++;
+        }
+    }
+
+    /**
+     * Marks that dispatched delivery is completed.
+     */
+    private void endDelivery() {
+        synchronized (inFlightLock) {
+            inFlight--;
+            if (inFlight <= 0) {
+                inFlightLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for dispatched deliveries to be completed.
+     *
+     * @param timeoutMillis
+     *            the timeout in milliseconds.
+     * @return true if all deliveries are completed.
+     */
+    private boolean awaitDeliveries(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (inFlightLock) {
+            while (inFlight > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    inFlightLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close channel after pending acks are sent.
+     *
+     * @throws IOException throws if something error.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean dispatched;
+        synchronized (inFlightLock) {
+            dispatched = inFlight > 0;
+        }
+        BatchWindow w = batchWindow;
+        boolean batched = w != null && w.size() > 0;
+        if (dispatched || batched) {
+            synchronized (consumerLock) {
+                cancelConsumer();
+            }
+            if (w != null) {
+                runBatch(w.drain());
+            }
+            if (!awaitDeliveries(TIMEOUT_DRAIN_MILLIS)) {
+                LOGGER.warn("Dispatched deliveries for {} are not completed before close.", queueName);
+            }
+        }
+        flushAcks();
+        super.close();
+    }
+
+    /**
+     * Sends pending acks if channel is still available.
+     */
+    private void flushAcks() {
+        AckCoalescer coalescer = ackCoalescer;
+        if (coalescer != null) {
+            try {
+                coalescer.flush();
+            } catch (Exception e) {
+                int dropped = coalescer.discard();
+                LOGGER.warn("Failed to send pending acks for {}. {} message(s) will be redelivered.",
+                        queueName, dropped);
             }
         }
     }
@@ -157,8 +1011,26 @@ public class ConsumeRMQChannel extends AbstractRMQChannel {
      *            the exception.
      */
     public void shutdownCompleted(ShutdownSignalException shutdownSignalException) {
+        BatchWindow w = batchWindow;
+        if (w != null) {
+            List<RMQMessage> open = w.drain();
+            forgetAll(open);
+            int dropped = open.size();
+            if (dropped > 0) {
+                LOGGER.warn("Channel for {} is closed with open batch. {} message(s) will be redelivered.",
+                        queueName, dropped);
+            }
+        }
+        flushAcks();
+        StreamCursor cursor = streamCursor;
+        if (cursor != null) {
+            streamCursor = null;
+            StreamOffsets.get(brokerName, queueName).unregister(cursor);
+        }
         consumeStarted = false;
-        MessageQueueListener.fireOnUnbind(appIds, queueName);
+        if (consumerIndex == 0) {
+            MessageQueueListener.fireOnUnbind(appIds, queueName);
+        }
         super.shutdownCompleted(shutdownSignalException);
     }
 }
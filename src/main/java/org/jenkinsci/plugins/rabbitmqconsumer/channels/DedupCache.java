@@ -0,0 +1,255 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqBroker;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Bounded cache of message ids which are already received from queue.
+ *
+ * Ids are kept until TTL is elapsed or cache gets full. Cache is split into
+ * stripes which have own lock, so concurrent consumers rarely wait for each other.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public class DedupCache {
+
+    private static final int STRIPES = 16;
+
+    private final String brokerName;
+    private final String queueName;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Stripe[] stripes;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Stripe of cache. Entries are kept in insertion order, so the eldest
+     * entry expires first.
+     */
+    private static final class Stripe extends LinkedHashMap<String, Long> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private final AtomicLong evictionCount;
+
+        /**
+         * Creates instance with specified parameters.
+         *
+         * @param capacity
+         *            the maximum number of entries.
+         * @param evictionCount
+         *            the counter of evicted entries.
+         */
+        Stripe(int capacity, AtomicLong evictionCount) {
+            this.capacity = capacity;
+            this.evictionCount = evictionCount;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() > capacity) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes expired entries.
+         *
+         * @param now
+         *            the current time in milliseconds.
+         */
+        void expire(long now) {
+            Iterator<Long> it = values().iterator();
+            while (it.hasNext() && it.next() <= now) {
+                it.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param maxSize
+     *            the maximum number of ids.
+     * @param ttlMillis
+     *            the time in milliseconds to keep id.
+     */
+    public DedupCache(String queueName, int maxSize, long ttlMillis) {
+        this(RabbitmqBroker.DEFAULT_BROKER_NAME, queueName, maxSize, ttlMillis);
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param maxSize
+     *            the maximum number of ids.
+     * @param ttlMillis
+     *            the time in milliseconds to keep id.
+     */
+    public DedupCache(String brokerName, String queueName, int maxSize, long ttlMillis) {
+        this.brokerName = brokerName;
+        this.queueName = queueName;
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlMillis = Math.max(1, ttlMillis);
+        int capacity = (this.maxSize + STRIPES - 1) / STRIPES;
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity, evictionCount);
+        }
+    }
+
+    /**
+     * Checks whether id is already received. If not, id is recorded.
+     *
+     * @param id
+     *            the message id.
+     * @return true if id is already received.
+     */
+    public boolean isDuplicate(String id) {
+        Stripe stripe = getStripe(id);
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            stripe.expire(now);
+            if (stripe.containsKey(id)) {
+                hitCount.incrementAndGet();
+                return true;
+            }
+            stripe.put(id, now + ttlMillis);
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Forgets id so that redelivered message is passed to listeners again.
+     *
+     * @param id
+     *            the message id.
+     */
+    public void forget(String id) {
+        Stripe stripe = getStripe(id);
+        synchronized (stripe) {
+            stripe.remove(id);
+        }
+    }
+
+    /**
+     * Gets stripe for id.
+     *
+     * @param id
+     *            the message id.
+     * @return the stripe.
+     */
+    private Stripe getStripe(String id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        return stripes[(h & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Gets whether this cache has specified parameters.
+     *
+     * @param size
+     *            the maximum number of ids.
+     * @param ttl
+     *            the time in milliseconds to keep id.
+     * @return true if parameters are the same.
+     */
+    public boolean isSameSettings(int size, long ttl) {
+        return maxSize == Math.max(1, size) && ttlMillis == Math.max(1, ttl);
+    }
+
+    /**
+     * Gets name of broker.
+     *
+     * @return the name.
+     */
+    @Exported
+    public String getBrokerName() {
+        return brokerName;
+    }
+
+    /**
+     * Gets queue name.
+     *
+     * @return the queue name.
+     */
+    @Exported
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Gets the maximum number of ids.
+     *
+     * @return the number of ids.
+     */
+    @Exported
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of ids in cache.
+     *
+     * @return the number of ids.
+     */
+    @Exported
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of duplicate messages.
+     *
+     * @return the number of messages.
+     */
+    @Exported
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of messages which were not found in cache.
+     *
+     * @return the number of messages.
+     */
+    @Exported
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of ids which were evicted by size or TTL.
+     *
+     * @return the number of ids.
+     */
+    @Exported
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
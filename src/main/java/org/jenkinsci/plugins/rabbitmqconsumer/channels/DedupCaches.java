@@ -0,0 +1,143 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Registry of dedup caches. Cache is shared by all consumers of the same queue on
+ * the same broker, because redelivered message may arrive at any of them.
+ * Queues of the same name on different brokers have own caches.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class DedupCaches {
+
+    private static volatile boolean enabled = false;
+    private static volatile String headerName;
+    private static volatile int maxSize = 0;
+    private static volatile long ttlMillis = 0;
+    private static volatile ConcurrentMap<String, DedupCache> caches = new ConcurrentHashMap<String, DedupCache>();
+
+    /**
+     * Utility class.
+     */
+    private DedupCaches() {
+    }
+
+    /**
+     * Configures dedup caches. Existing caches are discarded if size or TTL is changed.
+     *
+     * @param enable
+     *            true if dedup is enabled.
+     * @param header
+     *            the header name which has message id. null means message id property.
+     * @param size
+     *            the maximum number of ids for each queue.
+     * @param ttl
+     *            the time in milliseconds to keep id.
+     */
+    public static synchronized void configure(boolean enable, String header, int size, long ttl) {
+        if (!enable || size != maxSize || ttl != ttlMillis) {
+            caches = new ConcurrentHashMap<String, DedupCache>();
+        }
+        headerName = StringUtils.stripToNull(header);
+        maxSize = size;
+        ttlMillis = ttl;
+        enabled = enable;
+    }
+
+    /**
+     * Gets key of message for dedup.
+     *
+     * @param properties
+     *            the properties of message.
+     * @return the key. null if dedup is disabled or message has no id.
+     */
+    static String getKey(BasicProperties properties) {
+        if (!enabled || properties == null) {
+            return null;
+        }
+        String header = headerName;
+        if (header == null) {
+            return properties.getMessageId();
+        }
+        Map<String, Object> headers = properties.getHeaders();
+        Object value = headers != null ? headers.get(header) : null;
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Gets dedup cache for queue. It is created if not exist.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @return the cache. null if dedup is disabled.
+     */
+    static DedupCache get(String brokerName, String queueName) {
+        if (!enabled) {
+            return null;
+        }
+        ConcurrentMap<String, DedupCache> map = caches;
+        String key = getKey(brokerName, queueName);
+        DedupCache cache = map.get(key);
+        if (cache == null) {
+            DedupCache created = new DedupCache(brokerName, queueName, maxSize, ttlMillis);
+            cache = map.putIfAbsent(key, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Forgets message so that its redelivery is passed to listeners again.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param properties
+     *            the properties of message.
+     */
+    static void forget(String brokerName, String queueName, BasicProperties properties) {
+        String key = getKey(properties);
+        if (key != null) {
+            DedupCache cache = caches.get(getKey(brokerName, queueName));
+            if (cache != null) {
+                cache.forget(key);
+            }
+        }
+    }
+
+    /**
+     * Gets all dedup caches.
+     *
+     * @return the list of caches.
+     */
+    public static List<DedupCache> getAll() {
+        return new ArrayList<DedupCache>(caches.values());
+    }
+
+    /**
+     * Gets key of cache.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @return the key.
+     */
+    private static String getKey(String brokerName, String queueName) {
+        return brokerName + "\n" + queueName;
+    }
+}
@@ -0,0 +1,39 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+/**
+ * Policy for message which listener failed to handle.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public enum FailurePolicy {
+    /**
+     * Acknowledges message anyway. Message is lost.
+     */
+    ACK,
+    /**
+     * Rejects message with requeue. Message is redelivered.
+     */
+    REQUEUE,
+    /**
+     * Rejects message without requeue. Message goes to dead-letter exchange if queue has it.
+     */
+    DEAD_LETTER;
+
+    /**
+     * Gets failure policy from string.
+     *
+     * @param name
+     *            the name of policy.
+     * @return the failure policy. {@link #ACK} if name is unknown.
+     */
+    public static FailurePolicy parse(String name) {
+        if (name != null) {
+            for (FailurePolicy policy : values()) {
+                if (policy.name().equals(name)) {
+                    return policy;
+                }
+            }
+        }
+        return ACK;
+    }
+}
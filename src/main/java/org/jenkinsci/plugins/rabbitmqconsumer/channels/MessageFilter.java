@@ -0,0 +1,362 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.Messages;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.LongString;
+
+/**
+ * Filter of messages compiled from declarative conditions.
+ *
+ * Each line of text is a condition on header or property, and message
+ * matches when all conditions are satisfied.
+ *
+ * <pre>
+ * header.event = build-started
+ * header.job ^= release/
+ * header.trigger exists
+ * priority in 5..9
+ * </pre>
+ *
+ * Empty lines and lines which start with '#' are ignored.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class MessageFilter {
+
+    private static final String HEADER_PREFIX = "header.";
+    private static final String COMMENT = "#";
+    private static final String RANGE_SEPARATOR = "..";
+    private static final Pattern CONDITION = Pattern.compile(
+            "^(\\S+?)\\s*(\\^=|=|\\s+in\\s+|\\s+exists\\s*$)(.*)$");
+
+    private final Condition[] conditions;
+
+    /**
+     * Creates instance.
+     *
+     * @param conditions
+     *            the conditions.
+     */
+    private MessageFilter(Condition[] conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * Compiles filter.
+     *
+     * @param text
+     *            the conditions separated by new line.
+     * @return the filter. null if no condition is given.
+     * @throws IllegalArgumentException
+     *             throws if condition is invalid.
+     */
+    public static MessageFilter compile(String text) {
+        if (text == null) {
+            return null;
+        }
+        List<Condition> conditions = new ArrayList<Condition>();
+        for (String line : text.split("\r?\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(COMMENT)) {
+                continue;
+            }
+            conditions.add(parse(line));
+        }
+        return conditions.isEmpty() ? null : new MessageFilter(conditions.toArray(new Condition[0]));
+    }
+
+    /**
+     * Gets whether message matches all conditions.
+     *
+     * @param properties
+     *            the properties of message.
+     * @return true if so.
+     */
+    public boolean matches(BasicProperties properties) {
+        for (Condition c : conditions) {
+            if (!c.test(c.field.get(properties))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses condition.
+     *
+     * @param line
+     *            the line.
+     * @return the condition.
+     */
+    private static Condition parse(String line) {
+        Matcher m = CONDITION.matcher(line);
+        if (!m.matches()) {
+            throw new IllegalArgumentException(Messages.InvalidFilterCondition(line));
+        }
+        Field field = parseField(m.group(1));
+        String op = m.group(2).trim();
+        String value = unquote(m.group(3).trim());
+        if (op.equals("=")) {
+            return new EqualsCondition(field, value);
+        } else if (op.equals("^=")) {
+            return new PrefixCondition(field, value);
+        } else if (op.equals("exists")) {
+            return new ExistsCondition(field);
+        }
+        int sep = value.indexOf(RANGE_SEPARATOR);
+        if (sep < 0) {
+            throw new IllegalArgumentException(Messages.InvalidFilterCondition(line));
+        }
+        try {
+            String min = value.substring(0, sep).trim();
+            String max = value.substring(sep + RANGE_SEPARATOR.length()).trim();
+            return new RangeCondition(field,
+                    min.isEmpty() ? Double.NEGATIVE_INFINITY : Double.parseDouble(min),
+                    max.isEmpty() ? Double.POSITIVE_INFINITY : Double.parseDouble(max));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(Messages.InvalidFilterCondition(line));
+        }
+    }
+
+    /**
+     * Parses field name.
+     *
+     * @param name
+     *            the field name.
+     * @return the field.
+     */
+    private static Field parseField(String name) {
+        if (name.startsWith(HEADER_PREFIX) && name.length() > HEADER_PREFIX.length()) {
+            return new HeaderField(name.substring(HEADER_PREFIX.length()));
+        }
+        for (PropertyField f : PropertyField.values()) {
+            if (f.propertyName.equals(name)) {
+                return f;
+            }
+        }
+        throw new IllegalArgumentException(Messages.UnknownFilterField(name));
+    }
+
+    /**
+     * Removes surrounding double quotes.
+     *
+     * @param value
+     *            the value.
+     * @return the unquoted value.
+     */
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * Converts value to string.
+     *
+     * @param value
+     *            the value.
+     * @return the string. null if value is null.
+     */
+    private static String asString(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof LongString ? value.toString() : String.valueOf(value);
+    }
+
+    /**
+     * Field of message which condition is applied to.
+     */
+    private interface Field {
+        /**
+         * Gets value from properties.
+         *
+         * @param properties
+         *            the properties.
+         * @return the value. null if not set.
+         */
+        Object get(BasicProperties properties);
+    }
+
+    /**
+     * Header field.
+     */
+    private static final class HeaderField implements Field {
+        private final String name;
+
+        HeaderField(String name) {
+            this.name = name;
+        }
+
+        public Object get(BasicProperties properties) {
+            Map<String, Object> headers = properties.getHeaders();
+            return headers != null ? headers.get(name) : null;
+        }
+    }
+
+    /**
+     * Property field.
+     */
+    private enum PropertyField implements Field {
+        CONTENT_TYPE("contentType") {
+            public Object get(BasicProperties p) {
+                return p.getContentType();
+            }
+        },
+        CONTENT_ENCODING("contentEncoding") {
+            public Object get(BasicProperties p) {
+                return p.getContentEncoding();
+            }
+        },
+        DELIVERY_MODE("deliveryMode") {
+            public Object get(BasicProperties p) {
+                return p.getDeliveryMode();
+            }
+        },
+        PRIORITY("priority") {
+            public Object get(BasicProperties p) {
+                return p.getPriority();
+            }
+        },
+        CORRELATION_ID("correlationId") {
+            public Object get(BasicProperties p) {
+                return p.getCorrelationId();
+            }
+        },
+        REPLY_TO("replyTo") {
+            public Object get(BasicProperties p) {
+                return p.getReplyTo();
+            }
+        },
+        MESSAGE_ID("messageId") {
+            public Object get(BasicProperties p) {
+                return p.getMessageId();
+            }
+        },
+        TYPE("type") {
+            public Object get(BasicProperties p) {
+                return p.getType();
+            }
+        },
+        USER_ID("userId") {
+            public Object get(BasicProperties p) {
+                return p.getUserId();
+            }
+        },
+        APP_ID("appId") {
+            public Object get(BasicProperties p) {
+                return p.getAppId();
+            }
+        };
+
+        private final String propertyName;
+
+        PropertyField(String propertyName) {
+            this.propertyName = propertyName;
+        }
+    }
+
+    /**
+     * Condition on field.
+     */
+    private abstract static class Condition {
+        final Field field;
+
+        Condition(Field field) {
+            this.field = field;
+        }
+
+        /**
+         * Tests value of field.
+         *
+         * @param value
+         *            the value. null if not set.
+         * @return true if satisfied.
+         */
+        abstract boolean test(Object value);
+    }
+
+    /**
+     * Condition that value equals to string.
+     */
+    private static final class EqualsCondition extends Condition {
+        private final String expected;
+
+        EqualsCondition(Field field, String expected) {
+            super(field);
+            this.expected = expected;
+        }
+
+        boolean test(Object value) {
+            return expected.equals(asString(value));
+        }
+    }
+
+    /**
+     * Condition that value starts with string.
+     */
+    private static final class PrefixCondition extends Condition {
+        private final String prefix;
+
+        PrefixCondition(Field field, String prefix) {
+            super(field);
+            this.prefix = prefix;
+        }
+
+        boolean test(Object value) {
+            String s = asString(value);
+            return s != null && s.startsWith(prefix);
+        }
+    }
+
+    /**
+     * Condition that value is set.
+     */
+    private static final class ExistsCondition extends Condition {
+        ExistsCondition(Field field) {
+            super(field);
+        }
+
+        boolean test(Object value) {
+            return value != null;
+        }
+    }
+
+    /**
+     * Condition that numeric value is in range. Both ends are inclusive.
+     */
+    private static final class RangeCondition extends Condition {
+        private final double min;
+        private final double max;
+
+        RangeCondition(Field field, double min, double max) {
+            super(field);
+            this.min = min;
+            this.max = max;
+        }
+
+        boolean test(Object value) {
+            double d;
+            if (value instanceof Number) {
+                d = ((Number) value).doubleValue();
+            } else if (value != null) {
+                try {
+                    d = Double.parseDouble(asString(value).trim());
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            return d >= min && d <= max;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqBroker;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Token bucket which limits rate of messages.
+ *
+ * Bucket holds tokens for one second at most. Caller which finds bucket empty
+ * reserves tokens in advance and sleeps until they are refilled, so callers
+ * are served in order and no message is dropped.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String brokerName;
+    private final String queueName;
+    private final String appId;
+    private final int rateLimit;
+    private final double capacity;
+
+    private double tokens;
+    private long refilledAt;
+    private long throttledCount = 0;
+    private long throttledNanos = 0;
+    private long windowStart;
+    private long windowCount = 0;
+    private double currentRate = 0;
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param appId
+     *            the application id. null if limiter is for whole queue.
+     * @param rateLimit
+     *            the number of messages per second.
+     */
+    public RateLimiter(String queueName, String appId, int rateLimit) {
+        this(RabbitmqBroker.DEFAULT_BROKER_NAME, queueName, appId, rateLimit);
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param appId
+     *            the application id. null if limiter is for whole queue.
+     * @param rateLimit
+     *            the number of messages per second.
+     */
+    public RateLimiter(String brokerName, String queueName, String appId, int rateLimit) {
+        this.brokerName = brokerName;
+        this.queueName = queueName;
+        this.appId = appId;
+        this.rateLimit = Math.max(1, rateLimit);
+        this.capacity = this.rateLimit;
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+        this.windowStart = refilledAt;
+    }
+
+    /**
+     * Takes tokens. Waits until they are available if bucket is empty.
+     *
+     * @param permits
+     *            the number of tokens.
+     * @return the time in nanoseconds which caller waited.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting.
+     */
+    public long acquire(int permits) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (double) (now - refilledAt) * rateLimit / NANOS_PER_SECOND);
+            refilledAt = now;
+            tokens -= permits;
+            waitNanos = tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / rateLimit) : 0;
+            if (waitNanos > 0) {
+                throttledCount++;
+                throttledNanos += waitNanos;
+            }
+            if (now - windowStart >= NANOS_PER_SECOND) {
+                currentRate = (double) windowCount * NANOS_PER_SECOND / (now - windowStart);
+                windowStart = now;
+                windowCount = 0;
+            }
+            windowCount += permits;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Gets whether this limiter has specified parameters.
+     *
+     * @param rate
+     *            the number of messages per second.
+     * @return true if parameters are the same.
+     */
+    public boolean isSameLimit(int rate) {
+        return rateLimit == Math.max(1, rate);
+    }
+
+    /**
+     * Gets name of broker.
+     *
+     * @return the name.
+     */
+    @Exported
+    public String getBrokerName() {
+        return brokerName;
+    }
+
+    /**
+     * Gets queue name.
+     *
+     * @return the queue name.
+     */
+    @Exported
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Gets application id.
+     *
+     * @return the application id. null if limiter is for whole queue.
+     */
+    @Exported
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Gets the maximum rate.
+     *
+     * @return the number of messages per second.
+     */
+    @Exported
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Gets the rate measured in last second.
+     *
+     * @return the number of messages per second.
+     */
+    @Exported
+    public synchronized double getCurrentRate() {
+        long elapsed = System.nanoTime() - windowStart;
+        if (elapsed >= 2 * NANOS_PER_SECOND) {
+            return (double) windowCount * NANOS_PER_SECOND / elapsed;
+        }
+        return currentRate;
+    }
+
+    /**
+     * Gets the number of throttled acquisitions.
+     *
+     * @return the number of acquisitions.
+     */
+    @Exported
+    public synchronized long getThrottledCount() {
+        return throttledCount;
+    }
+
+    /**
+     * Gets total time which callers waited.
+     *
+     * @return the time in milliseconds.
+     */
+    @Exported
+    public synchronized long getThrottledTime() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+    }
+}
@@ -0,0 +1,187 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqConsumeItem;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.AppIdIndex;
+
+/**
+ * Registry of rate limiters for queues and application ids.
+ * Limiters are shared by all consumers of the same queue on the same broker.
+ * Queues of the same name on different brokers have own limiters.
+ * Limiter for application id pattern is shared by all application ids which match it.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class RateLimiters {
+
+    private static volatile Map<String, RateLimiter> limiters = Collections.emptyMap();
+    private static volatile Map<String, AppIdIndex<RateLimiter>> patterns = Collections.emptyMap();
+
+    /**
+     * Utility class.
+     */
+    private RateLimiters() {
+    }
+
+    /**
+     * Configures rate limiters with consume items of each broker.
+     * Limiter whose limit is not changed keeps its state.
+     *
+     * @param consumeItems
+     *            the map from name of broker to its consume items.
+     */
+    public static synchronized void configure(Map<String, ? extends Collection<RabbitmqConsumeItem>> consumeItems) {
+        Map<String, RateLimiter> old = limiters;
+        Map<String, RateLimiter> map = new HashMap<String, RateLimiter>();
+        Map<String, AppIdIndex<RateLimiter>> patternMap = new HashMap<String, AppIdIndex<RateLimiter>>();
+        if (consumeItems != null) {
+            for (Map.Entry<String, ? extends Collection<RabbitmqConsumeItem>> e : consumeItems.entrySet()) {
+                configure(e.getKey(), e.getValue(), map, old, patternMap);
+            }
+        }
+        limiters = map;
+        patterns = patternMap;
+    }
+
+    /**
+     * Puts limiters for consume items of broker to maps.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param items
+     *            the consume items of broker.
+     * @param map
+     *            the new map.
+     * @param old
+     *            the old map.
+     * @param patternMap
+     *            the new map of application id patterns.
+     */
+    private static void configure(String brokerName, Collection<RabbitmqConsumeItem> items,
+            Map<String, RateLimiter> map, Map<String, RateLimiter> old,
+            Map<String, AppIdIndex<RateLimiter>> patternMap) {
+        if (items == null) {
+            return;
+        }
+        for (RabbitmqConsumeItem i : items) {
+            if (i.getQueueName() == null) {
+                continue;
+            }
+            put(map, old, brokerName, i.getQueueName(), null,
+                    RabbitmqConsumeItem.getEffectiveQueueRateLimit(items, i.getQueueName()));
+            if (i.getAppId() != null) {
+                put(map, old, brokerName, i.getQueueName(), i.getAppId(), i.getRateLimit());
+                RateLimiter limiter = map.get(getKey(brokerName, i.getQueueName(), i.getAppId()));
+                if (limiter != null && !i.getAppId().equals(RabbitmqConsumeItem.DEBUG_APPID)
+                        && AppIdIndex.isPattern(i.getAppId())) {
+                    String queueKey = getKey(brokerName, i.getQueueName(), null);
+                    AppIdIndex<RateLimiter> index = patternMap.get(queueKey);
+                    if (index == null) {
+                        index = new AppIdIndex<RateLimiter>();
+                        patternMap.put(queueKey, index);
+                    }
+                    index.add(i.getAppId(), limiter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts limiter to map. Old limiter is reused if it has the same limit.
+     *
+     * @param map
+     *            the new map.
+     * @param old
+     *            the old map.
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param appId
+     *            the application id. null for whole queue.
+     * @param rate
+     *            the number of messages per second. 0 means unlimited.
+     */
+    private static void put(Map<String, RateLimiter> map, Map<String, RateLimiter> old,
+            String brokerName, String queueName, String appId, int rate) {
+        if (rate <= 0) {
+            return;
+        }
+        String key = getKey(brokerName, queueName, appId);
+        RateLimiter limiter = old.get(key);
+        if (limiter == null || !limiter.isSameLimit(rate)) {
+            limiter = new RateLimiter(brokerName, queueName, appId, rate);
+        }
+        map.put(key, limiter);
+    }
+
+    /**
+     * Waits until messages are allowed by limiters of queue and application id.
+     * If no limiter is configured for application id, the most specific pattern is used.
+     * If interrupted, caller must not deliver messages because they are not allowed yet.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param appId
+     *            the application id.
+     * @param permits
+     *            the number of messages.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting.
+     */
+    public static void acquire(String brokerName, String queueName, String appId, int permits)
+            throws InterruptedException {
+        Map<String, RateLimiter> map = limiters;
+        if (map.isEmpty()) {
+            return;
+        }
+        String queueKey = getKey(brokerName, queueName, null);
+        RateLimiter queueLimiter = map.get(queueKey);
+        if (queueLimiter != null) {
+            queueLimiter.acquire(permits);
+        }
+        RateLimiter appIdLimiter = map.get(getKey(brokerName, queueName, appId));
+        if (appIdLimiter == null) {
+            AppIdIndex<RateLimiter> index = patterns.get(queueKey);
+            if (index != null) {
+                appIdLimiter = index.get(appId);
+            }
+        }
+        if (appIdLimiter != null) {
+            appIdLimiter.acquire(permits);
+        }
+    }
+
+    /**
+     * Gets all rate limiters.
+     *
+     * @return the list of rate limiters.
+     */
+    public static List<RateLimiter> getAll() {
+        return new ArrayList<RateLimiter>(limiters.values());
+    }
+
+    /**
+     * Gets key of limiter.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param appId
+     *            the application id. null for whole queue.
+     * @return the key.
+     */
+    private static String getKey(String brokerName, String queueName, String appId) {
+        String key = brokerName + "\n" + queueName;
+        return appId != null ? key + "\n" + appId : key;
+    }
+}
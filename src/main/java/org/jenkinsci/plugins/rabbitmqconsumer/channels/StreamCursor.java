@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Cursor of stream offsets for a consume channel.
+ *
+ * Offset of each delivery is kept with its delivery tag until ack coalescer settles
+ * the tag. Because settled tag is the highest tag below which all tags are completed,
+ * offset taken from it never skips a message which is still being processed.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+final class StreamCursor {
+
+    private final AckCoalescer coalescer;
+    private final NavigableMap<Long, Long> offsets = new ConcurrentSkipListMap<Long, Long>();
+
+    /**
+     * Creates instance with specified parameter.
+     *
+     * @param coalescer
+     *            the ack coalescer of channel.
+     */
+    StreamCursor(AckCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Tracks offset of delivery.
+     *
+     * @param deliveryTag
+     *            the delivery tag.
+     * @param offset
+     *            the stream offset.
+     */
+    void track(long deliveryTag, long offset) {
+        offsets.put(deliveryTag, offset);
+    }
+
+    /**
+     * Forgets tracked offsets. It is called when consumer is attached to stream again.
+     */
+    void reset() {
+        offsets.clear();
+    }
+
+    /**
+     * Takes offset of the last processed delivery.
+     *
+     * @return the offset. -1 if no delivery is processed since last call.
+     */
+    long poll() {
+        Map.Entry<Long, Long> e = offsets.floorEntry(coalescer.getSettledTag());
+        if (e == null) {
+            return -1;
+        }
+        offsets.headMap(e.getKey(), true).clear();
+        return e.getValue();
+    }
+}
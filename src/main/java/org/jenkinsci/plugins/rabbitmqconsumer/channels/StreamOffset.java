@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Offset of stream queue which is processed by consumers.
+ *
+ * Offset is taken from cursors of channels and written to file only when
+ * {@link #store()} is called, so it is not written for each message.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public class StreamOffset {
+
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_REPLAY_FROM = "replayFrom";
+
+    private final String brokerName;
+    private final String queueName;
+    private final File file;
+    private final List<StreamCursor> cursors = new CopyOnWriteArrayList<StreamCursor>();
+    private long offset = -1;
+    private Date replayFrom;
+    private boolean dirty = false;
+
+    /**
+     * Creates instance with specified parameters. Stored offset is loaded from file.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param file
+     *            the file to store offset. null if offset is not stored.
+     * @throws IOException
+     *             throws if file cannot be read.
+     */
+    StreamOffset(String brokerName, String queueName, File file) throws IOException {
+        this.brokerName = brokerName;
+        this.queueName = queueName;
+        this.file = file;
+        if (file != null && file.isFile()) {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            try {
+                offset = Long.parseLong(props.getProperty(KEY_OFFSET, "-1"));
+                String replay = props.getProperty(KEY_REPLAY_FROM);
+                replayFrom = replay != null ? new Date(Long.parseLong(replay)) : null;
+            } catch (NumberFormatException e) {
+                throw new IOException("Broken offset file: " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Gets name of broker.
+     *
+     * @return the name.
+     */
+    @Exported
+    public String getBrokerName() {
+        return brokerName;
+    }
+
+    /**
+     * Gets queue name.
+     *
+     * @return the queue name.
+     */
+    @Exported
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Gets offset of the last processed message.
+     *
+     * @return the offset. -1 if unknown.
+     */
+    @Exported
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets time from which stream is replayed.
+     *
+     * @return the time in milliseconds. 0 if replay is not requested.
+     */
+    @Exported
+    public synchronized long getReplayFrom() {
+        return replayFrom != null ? replayFrom.getTime() : 0;
+    }
+
+    /**
+     * Gets value of <i>x-stream-offset</i> argument for new consumer.
+     *
+     * @param defaultOffset
+     *            the offset specification used if no offset is stored. e.g. "first", "last" or "next".
+     * @return the argument value. time if replay is requested, next offset if offset is stored.
+     */
+    public synchronized Object getStartOffset(String defaultOffset) {
+        if (replayFrom != null) {
+            return replayFrom;
+        }
+        if (offset >= 0) {
+            return offset + 1;
+        }
+        return defaultOffset;
+    }
+
+    /**
+     * Requests replay from specified time. Tracked offsets are dropped,
+     * so offset goes back when replayed message is processed.
+     *
+     * @param time
+     *            the time.
+     */
+    public synchronized void replay(Date time) {
+        replayFrom = time;
+        offset = -1;
+        dirty = true;
+        for (StreamCursor c : cursors) {
+            c.reset();
+        }
+    }
+
+    /**
+     * Registers cursor of channel.
+     *
+     * @param cursor
+     *            the cursor.
+     */
+    void register(StreamCursor cursor) {
+        cursors.add(cursor);
+    }
+
+    /**
+     * Unregisters cursor of channel. Offset processed by it is taken before it is removed.
+     *
+     * @param cursor
+     *            the cursor.
+     */
+    synchronized void unregister(StreamCursor cursor) {
+        commit(cursor.poll());
+        cursors.remove(cursor);
+    }
+
+    /**
+     * Takes processed offsets from cursors.
+     */
+    synchronized void poll() {
+        for (StreamCursor c : cursors) {
+            commit(c.poll());
+        }
+    }
+
+    /**
+     * Updates offset.
+     *
+     * @param processed
+     *            the processed offset. -1 means nothing is processed.
+     */
+    private void commit(long processed) {
+        if (processed < 0) {
+            return;
+        }
+        if (processed > offset) {
+            offset = processed;
+            replayFrom = null;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes offset to file if it is changed. File is replaced atomically.
+     *
+     * @throws IOException
+     *             throws if file cannot be written.
+     */
+    synchronized void store() throws IOException {
+        if (!dirty || file == null) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty(KEY_OFFSET, Long.toString(offset));
+        if (replayFrom != null) {
+            props.setProperty(KEY_REPLAY_FROM, Long.toString(replayFrom.getTime()));
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory: " + parent);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, queueName);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+}
@@ -0,0 +1,25 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Periodic work which writes processed offsets of stream queues to files.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class StreamOffsetFlusher extends PeriodicWork {
+
+    private static final long RECURRENCE_PERIOD = 5000;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void doRun() {
+        StreamOffsets.flush();
+    }
+}
@@ -0,0 +1,203 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jenkinsci.plugins.rabbitmqconsumer.Messages;
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqBroker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of stream offsets under JENKINS_HOME.
+ *
+ * Offset is stored in file per broker and queue, so queues of the same name on
+ * different brokers do not share it. File of default broker which was stored
+ * without broker directory by older version is moved at first load.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class StreamOffsets {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamOffsets.class);
+    private static final String OFFSET_DIR = "rabbitmq-consumer-streams";
+    private static final String ENCODING = "UTF-8";
+    private static final String[] TIMESTAMP_FORMATS = {
+        "yyyy-MM-dd'T'HH:mm:ssXXX",
+        "yyyy-MM-dd'T'HH:mm:ss",
+        "yyyy-MM-dd HH:mm:ss",
+        "yyyy-MM-dd HH:mm",
+        "yyyy-MM-dd",
+    };
+
+    private static final Map<String, StreamOffset> OFFSETS = new ConcurrentHashMap<String, StreamOffset>();
+
+    /**
+     * Utility class.
+     */
+    private StreamOffsets() {
+    }
+
+    /**
+     * Gets offset for stream queue. Stored offset is loaded at first call.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @return the offset.
+     */
+    public static StreamOffset get(String brokerName, String queueName) {
+        String key = brokerName + "\n" + queueName;
+        StreamOffset offset = OFFSETS.get(key);
+        if (offset != null) {
+            return offset;
+        }
+        synchronized (StreamOffsets.class) {
+            offset = OFFSETS.get(key);
+            if (offset == null) {
+                offset = load(brokerName, queueName);
+                OFFSETS.put(key, offset);
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Loads offset from file. Broken file is ignored, so consumer starts with default offset.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @return the offset.
+     */
+    private static StreamOffset load(String brokerName, String queueName) {
+        File file = getFile(brokerName, queueName);
+        migrate(brokerName, queueName, file);
+        try {
+            return new StreamOffset(brokerName, queueName, file);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to load offset of stream {} on {}.", queueName, brokerName, e);
+            try {
+                return new StreamOffset(brokerName, queueName, null);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /**
+     * Moves file which older version stored for default broker.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param file
+     *            the file to store offset.
+     */
+    private static void migrate(String brokerName, String queueName, File file) {
+        if (file == null || file.exists() || !RabbitmqBroker.DEFAULT_BROKER_NAME.equals(brokerName)) {
+            return;
+        }
+        File legacy = getFile(null, queueName);
+        if (legacy != null && legacy.isFile()) {
+            File parent = file.getParentFile();
+            if ((parent.isDirectory() || parent.mkdirs()) && legacy.renameTo(file)) {
+                LOGGER.info("Moved offset of stream {} to {}.", queueName, file);
+            } else {
+                LOGGER.warn("Failed to move offset of stream {} to {}.", queueName, file);
+            }
+        }
+    }
+
+    /**
+     * Takes processed offsets from consumers and writes changed ones to files.
+     */
+    public static void flush() {
+        for (StreamOffset offset : OFFSETS.values()) {
+            offset.poll();
+            try {
+                offset.store();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to store offset of stream {} on {}.", offset.getQueueName(),
+                        offset.getBrokerName(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets all stream offsets.
+     *
+     * @return the list of offsets.
+     */
+    public static List<StreamOffset> getAll() {
+        return new ArrayList<StreamOffset>(OFFSETS.values());
+    }
+
+    /**
+     * Parses time to replay stream from. Epoch milliseconds and ISO-8601 like formats are accepted.
+     *
+     * @param value
+     *            the time.
+     * @return the time.
+     * @throws IllegalArgumentException
+     *             throws if value is not a time.
+     */
+    public static Date parseTimestamp(String value) {
+        String val = StringUtils.strip(value);
+        if (StringUtils.isNumeric(val)) {
+            return new Date(Long.parseLong(val));
+        }
+        if (val != null) {
+            for (String format : TIMESTAMP_FORMATS) {
+                SimpleDateFormat f = new SimpleDateFormat(format);
+                f.setLenient(false);
+                try {
+                    return f.parse(val);
+                } catch (ParseException e) {
+                    continue;
+                }
+            }
+        }
+        throw new IllegalArgumentException(Messages.InvalidReplayTimestamp(value));
+    }
+
+    /**
+     * Gets file to store offset.
+     *
+     * @param brokerName
+     *            the name of broker. null for file stored by older version.
+     * @param queueName
+     *            the queue name.
+     * @return the file. null if Jenkins is not available.
+     */
+    private static File getFile(String brokerName, String queueName) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        try {
+            File dir = new File(jenkins.getRootDir(), OFFSET_DIR);
+            if (brokerName != null) {
+                dir = new File(dir, URLEncoder.encode(brokerName, ENCODING));
+            }
+            return new File(dir, URLEncoder.encode(queueName, ENCODING) + ".properties");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.decoders;
+
+import hudson.Extension;
+
+import java.io.IOException;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ContentCodec;
+
+/**
+ * Codec for deflate encoding. Both zlib wrapped and raw deflate data are accepted.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class DeflateContentCodec extends ContentCodec {
+
+    private static final String ENCODING = "deflate";
+    private static final int ZLIB_CHECK = 31;
+    private static final int CM_DEFLATE = 8;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param encoding
+     *            the encoding name.
+     * @return true if deflate.
+     */
+    @Override
+    public boolean isApplicable(String encoding) {
+        return ENCODING.equals(encoding);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param body
+     *            the encoded body.
+     * @return the decoded body.
+     * @throws IOException
+     *             throws if body is broken.
+     */
+    @Override
+    public byte[] decode(byte[] body) throws IOException {
+        return Inflation.inflate(body, 0, body.length, !hasZlibHeader(body), 0).data;
+    }
+
+    /**
+     * Gets whether data starts with zlib header.
+     *
+     * @param body
+     *            the data.
+     * @return true if so.
+     */
+    private static boolean hasZlibHeader(byte[] body) {
+        if (body.length < 2) {
+            return false;
+        }
+        int cmf = body[0] & 0xff;
+        int flg = body[1] & 0xff;
+        return (cmf & 0x0f) == CM_DEFLATE && ((cmf << 8) | flg) % ZLIB_CHECK == 0;
+    }
+}
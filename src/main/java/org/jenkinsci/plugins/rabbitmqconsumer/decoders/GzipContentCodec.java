@@ -0,0 +1,182 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.decoders;
+
+import hudson.Extension;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ContentCodec;
+
+/**
+ * Codec for gzip encoding. Concatenated members are decoded as one content,
+ * and their total size is limited as well as single member.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class GzipContentCodec extends ContentCodec {
+
+    private static final String ENCODING = "gzip";
+    private static final String ENCODING_ALIAS = "x-gzip";
+    private static final int MAGIC_1 = 0x1f;
+    private static final int MAGIC_2 = 0x8b;
+    private static final int CM_DEFLATE = 8;
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param encoding
+     *            the encoding name.
+     * @return true if gzip.
+     */
+    @Override
+    public boolean isApplicable(String encoding) {
+        return ENCODING.equals(encoding) || ENCODING_ALIAS.equals(encoding);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param body
+     *            the encoded body.
+     * @return the decoded body.
+     * @throws IOException
+     *             throws if body is broken.
+     */
+    @Override
+    public byte[] decode(byte[] body) throws IOException {
+        byte[] first = null;
+        ByteArrayOutputStream rest = null;
+        int total = 0;
+        int pos = 0;
+        do {
+            int start = skipHeader(body, pos);
+            if (body.length - start < TRAILER_SIZE) {
+                throw new EOFException("Unexpected end of gzip content");
+            }
+            int isize = readInt(body, body.length - 4);
+            Inflation.Result r = Inflation.inflate(body, start, body.length - start, true,
+                    pos == 0 && isize > 0 ? isize : 0, Inflation.MAX_INFLATED_SIZE - total);
+            total += r.data.length;
+            pos = start + r.consumed;
+            if (body.length - pos < TRAILER_SIZE) {
+                throw new EOFException("Unexpected end of gzip content");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(r.data, 0, r.data.length);
+            if (readInt(body, pos) != (int) crc.getValue() || readInt(body, pos + 4) != r.data.length) {
+                throw new ZipException("Corrupt gzip trailer");
+            }
+            pos += TRAILER_SIZE;
+            if (first == null) {
+                first = r.data;
+            } else {
+                if (rest == null) {
+                    rest = new ByteArrayOutputStream();
+                    rest.write(first);
+                }
+                rest.write(r.data);
+            }
+        } while (pos < body.length);
+        return rest != null ? rest.toByteArray() : first;
+    }
+
+    /**
+     * Skips gzip member header.
+     *
+     * @param body
+     *            the data.
+     * @param pos
+     *            the start of member.
+     * @return the start of compressed data.
+     * @throws IOException
+     *             throws if header is broken.
+     */
+    private static int skipHeader(byte[] body, int pos) throws IOException {
+        if (body.length - pos < HEADER_SIZE) {
+            throw new EOFException("Unexpected end of gzip header");
+        }
+        if ((body[pos] & 0xff) != MAGIC_1 || (body[pos + 1] & 0xff) != MAGIC_2) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (body[pos + 2] != CM_DEFLATE) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = body[pos + 3] & 0xff;
+        int p = pos + HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            p = checkBounds(body, p + 2);
+            p = checkBounds(body, p + ((body[p - 2] & 0xff) | ((body[p - 1] & 0xff) << 8)));
+        }
+        if ((flags & FNAME) != 0) {
+            p = skipZeroTerminated(body, p);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            p = skipZeroTerminated(body, p);
+        }
+        if ((flags & FHCRC) != 0) {
+            p = checkBounds(body, p + 2);
+        }
+        return p;
+    }
+
+    /**
+     * Skips zero terminated string.
+     *
+     * @param body
+     *            the data.
+     * @param pos
+     *            the start of string.
+     * @return the position after terminator.
+     * @throws IOException
+     *             throws if terminator is not found.
+     */
+    private static int skipZeroTerminated(byte[] body, int pos) throws IOException {
+        int p = pos;
+        while (p < body.length && body[p] != 0) {
+            p++;
+        }
+        return checkBounds(body, p + 1);
+    }
+
+    /**
+     * Checks position is in data.
+     *
+     * @param body
+     *            the data.
+     * @param pos
+     *            the position.
+     * @return the position.
+     * @throws IOException
+     *             throws if out of data.
+     */
+    private static int checkBounds(byte[] body, int pos) throws IOException {
+        if (pos > body.length) {
+            throw new EOFException("Unexpected end of gzip header");
+        }
+        return pos;
+    }
+
+    /**
+     * Reads little endian int.
+     *
+     * @param body
+     *            the data.
+     * @param pos
+     *            the position.
+     * @return the value.
+     */
+    private static int readInt(byte[] body, int pos) {
+        return (body[pos] & 0xff) | ((body[pos + 1] & 0xff) << 8)
+                | ((body[pos + 2] & 0xff) << 16) | ((body[pos + 3] & 0xff) << 24);
+    }
+}
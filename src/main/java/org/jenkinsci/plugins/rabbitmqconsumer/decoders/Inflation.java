@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.decoders;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates compressed content with pooled inflaters and per-thread output buffer.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+final class Inflation {
+
+    /**
+     * The maximum size in bytes of inflated content. This protects Jenkins from decompression bomb.
+     */
+    static final int MAX_INFLATED_SIZE = 128 * 1024 * 1024;
+
+    private static final int POOL_SIZE = 16;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final BlockingQueue<Inflater> RAW_POOL = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> ZLIB_POOL = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Result of inflation.
+     */
+    static final class Result {
+        final byte[] data;
+        final int consumed;
+
+        /**
+         * Creates instance.
+         *
+         * @param data
+         *            the inflated data.
+         * @param consumed
+         *            the number of input bytes consumed by inflater.
+         */
+        Result(byte[] data, int consumed) {
+            this.data = data;
+            this.consumed = consumed;
+        }
+    }
+
+    /**
+     * Utility class.
+     */
+    private Inflation() {
+    }
+
+    /**
+     * Inflates compressed data.
+     *
+     * @param input
+     *            the input.
+     * @param offset
+     *            the start of compressed data.
+     * @param length
+     *            the length of compressed data and following bytes.
+     * @param nowrap
+     *            true if data is raw deflate. false if it has zlib header.
+     * @param sizeHint
+     *            the expected size of inflated data. 0 if unknown.
+     * @return the result.
+     * @throws IOException
+     *             throws if data is broken.
+     */
+    static Result inflate(byte[] input, int offset, int length, boolean nowrap, int sizeHint) throws IOException {
+        return inflate(input, offset, length, nowrap, sizeHint, MAX_INFLATED_SIZE);
+    }
+
+    /**
+     * Inflates compressed data up to given size.
+     *
+     * @param input
+     *            the input.
+     * @param offset
+     *            the start of compressed data.
+     * @param length
+     *            the length of compressed data and following bytes.
+     * @param nowrap
+     *            true if data is raw deflate. false if it has zlib header.
+     * @param sizeHint
+     *            the expected size of inflated data. 0 if unknown.
+     * @param limit
+     *            the maximum size of inflated data. It must not exceed {@link #MAX_INFLATED_SIZE}.
+     * @return the result.
+     * @throws IOException
+     *             throws if data is broken or exceeds limit.
+     */
+    static Result inflate(byte[] input, int offset, int length, boolean nowrap, int sizeHint, int limit)
+            throws IOException {
+        BlockingQueue<Inflater> pool = nowrap ? RAW_POOL : ZLIB_POOL;
+        Inflater inflater = pool.poll();
+        if (inflater == null) {
+            inflater = new Inflater(nowrap);
+        }
+        try {
+            inflater.setInput(input, offset, length);
+            byte[] buf = BUFFER.get();
+            if (sizeHint > buf.length && sizeHint <= MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[sizeHint];
+            }
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size >= Math.min(buf.length, limit)) {
+                    if (size >= limit) {
+                        throw new ZipException("Inflated content exceeds " + MAX_INFLATED_SIZE + " bytes");
+                    }
+                    buf = Arrays.copyOf(buf, (int) Math.min((long) buf.length * 2, limit));
+                }
+                int n = inflater.inflate(buf, size, Math.min(buf.length, limit) - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Unexpected end of compressed content");
+                }
+                size += n;
+            }
+            if (buf.length <= MAX_RETAINED_BUFFER_SIZE) {
+                BUFFER.set(buf);
+            }
+            return new Result(Arrays.copyOf(buf, size), length - inflater.getRemaining());
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!pool.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.decoders;
+
+import hudson.Extension;
+
+import java.io.IOException;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONException;
+import net.sf.json.JSONSerializer;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.PayloadDecoder;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
+
+/**
+ * Decoder for JSON content. Payload is {@link JSON} object.
+ *
+ * {@link JSON} is mutable, but payload is shared by listeners which may run
+ * concurrently. Listeners must treat it as read-only.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class JsonPayloadDecoder extends PayloadDecoder {
+
+    private static final String JSON_TYPE = "application/json";
+    private static final String JSON_SUFFIX = "+json";
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param mimeType
+     *            the MIME type.
+     * @return true if JSON.
+     */
+    @Override
+    public boolean isApplicable(String mimeType) {
+        return JSON_TYPE.equals(mimeType) || mimeType.endsWith(JSON_SUFFIX);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param message
+     *            the message.
+     * @return the JSON object or array.
+     * @throws IOException
+     *             throws if body is not JSON.
+     */
+    @Override
+    public Object decode(RMQMessage message) throws IOException {
+        String text = getCharset(message.getContentType()).decode(message.getBody()).toString();
+        try {
+            return JSONSerializer.toJSON(text);
+        } catch (JSONException e) {
+            throw new IOException("Invalid JSON in message from " + message.getQueueName(), e);
+        }
+    }
+}
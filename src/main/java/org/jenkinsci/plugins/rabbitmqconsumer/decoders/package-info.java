@@ -0,0 +1,5 @@
+/**
+  * Payload and content decoder package.
+  *
+  */
+package org.jenkinsci.plugins.rabbitmqconsumer.decoders;
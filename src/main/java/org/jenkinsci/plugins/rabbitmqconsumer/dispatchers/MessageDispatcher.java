@@ -0,0 +1,653 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.dispatchers;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.SystemContextThreadFactory;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.VirtualThreads;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Dispatcher that runs deliveries on bounded thread pool
+ * instead of consumer thread of RabbitMQ client.
+ *
+ * If the number of deliveries in pool reaches pool size plus queue depth,
+ * caller is blocked until any delivery is completed. So consumption from
+ * broker is throttled.
+ *
+ * If partition key is given, pool consists of single-threaded lanes and
+ * deliveries are hashed onto lanes by key. So deliveries which have the same key
+ * are run in order, and different keys are run in parallel. Acks are still
+ * coalesced per channel up to the highest delivery which all lanes have completed.
+ *
+ * If virtual threads are enabled and runtime supports them, each delivery runs on
+ * new virtual thread, so up to pool size plus queue depth deliveries run at once.
+ * Otherwise bounded pool of platform threads is used. Concurrency per application id
+ * can be capped so that blocking listeners for one application do not occupy all threads.
+ * Delivery over the cap is parked in queue for its application id without holding
+ * pool, and caller returns at once. So deliveries for other applications dispatched
+ * by the same caller are not held back. Parked delivery is run in order when running
+ * delivery for the same application id is completed. Caller is blocked only if parked
+ * deliveries for the application id reach pool size plus queue depth.
+ *
+ * Threads in pool run as SYSTEM from start, so deliveries are not impersonated one by one.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public class MessageDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageDispatcher.class);
+    private static final long TIMEOUT_SHUTDOWN_MILLIS = 30000;
+
+    private final int poolSize;
+    private final int queueDepth;
+    private final PartitionKey partitionKey;
+    private final String partitionHeader;
+    private final boolean virtualThreadsRequested;
+    private final boolean virtualThreads;
+    private final int appIdConcurrency;
+    private final ExecutorService[] executors;
+    private final Semaphore slots;
+    private final ConcurrentMap<String, AppIdGate> appIdGates = new ConcurrentHashMap<String, AppIdGate>();
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong appIdThrottledCount = new AtomicLong();
+    private final AtomicLongArray laneCompletedCounts;
+
+    /**
+     * Delivery which waits for cap of application id.
+     */
+    private static final class Parked {
+        private final int lane;
+        private final Runnable delivery;
+
+        /**
+         * Creates instance with specified parameters.
+         *
+         * @param lane
+         *            the index of lane.
+         * @param delivery
+         *            the delivery.
+         */
+        Parked(int lane, Runnable delivery) {
+            this.lane = lane;
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * Gate which caps concurrency for application id.
+     */
+    private final class AppIdGate {
+        private final Queue<Parked> parked = new ArrayDeque<Parked>();
+        private int running;
+
+        /**
+         * Enters gate, or parks delivery if the cap is reached.
+         *
+         * @param lane
+         *            the index of lane.
+         * @param delivery
+         *            the delivery.
+         * @return 1 if delivery can run now, 0 if it is parked and -1 if queue is full.
+         */
+        synchronized int enter(int lane, Runnable delivery) {
+            if (running < appIdConcurrency) {
+                running++;
+                return 1;
+            }
+            if (parked.size() < poolSize + queueDepth) {
+                parked.add(new Parked(lane, delivery));
+                return 0;
+            }
+            return -1;
+        }
+
+        /**
+         * Waits until queue has room.
+         *
+         * @throws InterruptedException
+         *             throws if interrupted.
+         */
+        synchronized void awaitRoom() throws InterruptedException {
+            while (running >= appIdConcurrency && parked.size() >= poolSize + queueDepth) {
+                wait();
+            }
+        }
+
+        /**
+         * Leaves gate. Next parked delivery takes over place of completed one.
+         *
+         * @return the parked delivery. null if no delivery is parked.
+         */
+        synchronized Parked leave() {
+            Parked next = parked.poll();
+            if (next == null) {
+                running--;
+            }
+            notifyAll();
+            return next;
+        }
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param poolSize
+     *            the number of threads.
+     * @param queueDepth
+     *            the number of deliveries which wait for thread.
+     */
+    public MessageDispatcher(int poolSize, int queueDepth) {
+        this(poolSize, queueDepth, PartitionKey.NONE, null);
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param poolSize
+     *            the number of threads. this is also the number of lanes if partitioned.
+     * @param queueDepth
+     *            the number of deliveries which wait for thread.
+     * @param partitionKey
+     *            the key to decide lane. {@link PartitionKey#NONE} means no lanes.
+     * @param partitionHeader
+     *            the header name used if partition key is {@link PartitionKey#HEADER}.
+     */
+    public MessageDispatcher(int poolSize, int queueDepth, PartitionKey partitionKey, String partitionHeader) {
+        this(poolSize, queueDepth, partitionKey, partitionHeader, false, 0);
+    }
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param poolSize
+     *            the number of threads. this is also the number of lanes if partitioned.
+     * @param queueDepth
+     *            the number of deliveries which wait for thread.
+     * @param partitionKey
+     *            the key to decide lane. {@link PartitionKey#NONE} means no lanes.
+     * @param partitionHeader
+     *            the header name used if partition key is {@link PartitionKey#HEADER}.
+     * @param useVirtualThreads
+     *            true if deliveries run on virtual threads when runtime supports them.
+     * @param appIdConcurrency
+     *            the number of deliveries which run at once for each application id. 0 means unlimited.
+     */
+    public MessageDispatcher(int poolSize, int queueDepth, PartitionKey partitionKey, String partitionHeader,
+            boolean useVirtualThreads, int appIdConcurrency) {
+        this.poolSize = Math.max(1, poolSize);
+        this.queueDepth = Math.max(0, queueDepth);
+        this.partitionKey = partitionKey != null ? partitionKey : PartitionKey.NONE;
+        this.partitionHeader = partitionHeader;
+        this.virtualThreadsRequested = useVirtualThreads;
+        this.virtualThreads = useVirtualThreads && VirtualThreads.isSupported();
+        this.appIdConcurrency = Math.max(0, appIdConcurrency);
+        this.slots = new Semaphore(this.poolSize + this.queueDepth);
+        if (useVirtualThreads && !virtualThreads) {
+            LOGGER.info("Virtual threads are not supported by runtime. Platform threads are used.");
+        }
+        if (isPartitioned()) {
+            executors = new ExecutorService[this.poolSize];
+            for (int i = 0; i < executors.length; i++) {
+                executors[i] = createExecutor(1, "RabbitMQ message dispatcher lane " + i);
+            }
+        } else {
+            executors = new ExecutorService[] {
+                    createExecutor(this.poolSize, "RabbitMQ message dispatcher") };
+        }
+        this.laneCompletedCounts = new AtomicLongArray(executors.length);
+    }
+
+    /**
+     * Creates executor which runs deliveries.
+     * Multiple virtual threads are not pooled because they are cheap.
+     * The number of running deliveries is still bounded by slots.
+     *
+     * @param threads
+     *            the number of threads.
+     * @param name
+     *            the name of thread.
+     * @return the executor.
+     */
+    private ExecutorService createExecutor(int threads, String name) {
+        ThreadFactory base = virtualThreads ? VirtualThreads.newFactory(name) : null;
+        if (base != null) {
+            ThreadFactory factory = new SystemContextThreadFactory(base);
+            if (threads > 1) {
+                ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor(factory);
+                if (executor != null) {
+                    return executor;
+                }
+            } else {
+                return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), factory);
+            }
+        }
+        return new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new SystemContextThreadFactory(
+                        new NamingThreadFactory(new DaemonThreadFactory(), name)));
+    }
+
+    /**
+     * Gets whether deliveries are dispatched to lanes by key.
+     *
+     * @return true if partitioned.
+     */
+    public boolean isPartitioned() {
+        return partitionKey != PartitionKey.NONE;
+    }
+
+    /**
+     * Gets key of message to decide lane.
+     *
+     * @param envelope
+     *            the envelope of message.
+     * @param properties
+     *            the properties of message.
+     * @return the key. null if not partitioned or message does not have key.
+     */
+    public String getKey(Envelope envelope, BasicProperties properties) {
+        return partitionKey.resolve(envelope, properties, partitionHeader);
+    }
+
+    /**
+     * Dispatches delivery. This blocks while pool is full.
+     *
+     * @param delivery
+     *            the delivery to be run.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting for pool.
+     */
+    public void dispatch(Runnable delivery) throws InterruptedException {
+        dispatch(null, delivery);
+    }
+
+    /**
+     * Dispatches delivery to lane for specified key. This blocks while pool is full.
+     * Deliveries without key are spread over lanes in turn.
+     *
+     * @param key
+     *            the key of message. null if message does not need order.
+     * @param delivery
+     *            the delivery to be run.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting for pool.
+     */
+    public void dispatch(String key, Runnable delivery) throws InterruptedException {
+        dispatch(key, null, delivery);
+    }
+
+    /**
+     * Dispatches delivery to lane for specified key. This blocks while pool is full.
+     * Delivery over the cap of application id is parked, and caller returns at once.
+     * Deliveries without key are spread over lanes in turn.
+     *
+     * @param key
+     *            the key of message. null if message does not need order.
+     * @param appId
+     *            the application id whose concurrency is capped. null if not capped.
+     * @param delivery
+     *            the delivery to be run.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting for pool.
+     */
+    public void dispatch(String key, String appId, Runnable delivery) throws InterruptedException {
+        int lane = getLane(key);
+        AppIdGate gate = getAppIdGate(appId);
+        while (true) {
+            if (!slots.tryAcquire()) {
+                throttledCount.incrementAndGet();
+                slots.acquire();
+            }
+            int entered = gate != null ? gate.enter(lane, delivery) : 1;
+            if (entered > 0) {
+                break;
+            }
+            // parked delivery does not hold pool.
+            slots.release();
+            if (entered == 0) {
+                appIdThrottledCount.incrementAndGet();
+                dispatchedCount.incrementAndGet();
+                return;
+            }
+            gate.awaitRoom();
+        }
+        try {
+            execute(lane, gate, delivery);
+            dispatchedCount.incrementAndGet();
+        } catch (RuntimeException e) {
+            Parked next = handOver(gate);
+            if (next != null) {
+                run(next.lane, gate, next.delivery);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs delivery on lane. Caller must hold slot of pool and gate.
+     *
+     * @param lane
+     *            the index of lane.
+     * @param gate
+     *            the gate of application id. null if not capped.
+     * @param delivery
+     *            the delivery.
+     */
+    private void execute(final int lane, final AppIdGate gate, final Runnable delivery) {
+        queuedCount.incrementAndGet();
+        try {
+            executors[lane].execute(new Runnable() {
+                public void run() {
+                    queuedCount.decrementAndGet();
+                    MessageDispatcher.this.run(lane, gate, delivery);
+                }
+            });
+        } catch (RuntimeException e) {
+            queuedCount.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs delivery on current thread, then hands over its slot to next parked delivery.
+     *
+     * @param lane
+     *            the index of lane.
+     * @param gate
+     *            the gate of application id. null if not capped.
+     * @param delivery
+     *            the delivery.
+     */
+    private void run(int lane, AppIdGate gate, Runnable delivery) {
+        Parked next = null;
+        activeCount.incrementAndGet();
+        try {
+            delivery.run();
+        } catch (RuntimeException e) {
+            LOGGER.warn("caught exception in dispatched delivery", e);
+        } finally {
+            activeCount.decrementAndGet();
+            laneCompletedCounts.incrementAndGet(lane);
+            next = handOver(gate);
+        }
+        if (next != null) {
+            run(next.lane, gate, next.delivery);
+        }
+    }
+
+    /**
+     * Leaves gate and hands over slot of pool to next parked delivery.
+     * Slot is released if no delivery is parked.
+     *
+     * @param gate
+     *            the gate of application id. null if not capped.
+     * @return the parked delivery which could not be dispatched. caller must run it.
+     */
+    private Parked handOver(AppIdGate gate) {
+        Parked next = gate != null ? gate.leave() : null;
+        if (next == null) {
+            slots.release();
+            return null;
+        }
+        try {
+            execute(next.lane, gate, next.delivery);
+            return null;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to dispatch parked delivery. It is run on current thread.", e);
+            return next;
+        }
+    }
+
+    /**
+     * Gets gate which caps concurrency for specified application id.
+     *
+     * @param appId
+     *            the application id.
+     * @return the gate. null if not capped.
+     */
+    private AppIdGate getAppIdGate(String appId) {
+        if (appId == null || appIdConcurrency <= 0) {
+            return null;
+        }
+        AppIdGate gate = appIdGates.get(appId);
+        if (gate == null) {
+            AppIdGate created = new AppIdGate();
+            gate = appIdGates.putIfAbsent(appId, created);
+            if (gate == null) {
+                gate = created;
+            }
+        }
+        return gate;
+    }
+
+    /**
+     * Gets lane for specified key.
+     *
+     * @param key
+     *            the key of message.
+     * @return the index of lane.
+     */
+    private int getLane(String key) {
+        if (executors.length == 1) {
+            return 0;
+        }
+        int hash = key != null ? key.hashCode() : nextLane.getAndIncrement();
+        return (hash & Integer.MAX_VALUE) % executors.length;
+    }
+
+    /**
+     * Shutdown this dispatcher. Deliveries in pool are still run.
+     * Parked deliveries are run by threads which complete previous ones.
+     */
+    public void shutdown() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Shutdown this dispatcher then wait for deliveries in pool.
+     *
+     * @return true if all deliveries are completed.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting.
+     */
+    public boolean shutdownWithWait() throws InterruptedException {
+        shutdown();
+        long deadline = System.currentTimeMillis() + TIMEOUT_SHUTDOWN_MILLIS;
+        for (ExecutorService executor : executors) {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (!executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether this dispatcher has specified parameters.
+     *
+     * @param poolSize
+     *            the number of threads.
+     * @param queueDepth
+     *            the number of deliveries which wait for thread.
+     * @param partitionKey
+     *            the key to decide lane.
+     * @param partitionHeader
+     *            the header name used if partition key is {@link PartitionKey#HEADER}.
+     * @param useVirtualThreads
+     *            true if deliveries run on virtual threads when runtime supports them.
+     * @param appIdConcurrency
+     *            the number of deliveries which run at once for each application id.
+     * @return true if parameters are the same.
+     */
+    public boolean isSameSettings(int poolSize, int queueDepth, PartitionKey partitionKey, String partitionHeader,
+            boolean useVirtualThreads, int appIdConcurrency) {
+        if (this.poolSize != Math.max(1, poolSize) || this.queueDepth != Math.max(0, queueDepth)
+                || this.partitionKey != partitionKey || this.virtualThreadsRequested != useVirtualThreads
+                || this.appIdConcurrency != Math.max(0, appIdConcurrency)) {
+            return false;
+        }
+        if (partitionKey == PartitionKey.HEADER) {
+            return partitionHeader != null && partitionHeader.equals(this.partitionHeader);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of threads.
+     *
+     * @return the number of threads.
+     */
+    @Exported
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Gets the number of deliveries which can wait for thread.
+     *
+     * @return the queue depth.
+     */
+    @Exported
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Gets the number of threads which are running delivery.
+     *
+     * @return the number of threads.
+     */
+    @Exported
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Gets the number of deliveries which wait for thread.
+     *
+     * @return the number of deliveries.
+     */
+    @Exported
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * Gets type of threads which run deliveries.
+     *
+     * @return "virtual" or "platform".
+     */
+    @Exported
+    public String getThreadType() {
+        return virtualThreads ? "virtual" : "platform";
+    }
+
+    /**
+     * Gets the number of deliveries which run at once for each application id.
+     *
+     * @return the number of deliveries. 0 means unlimited.
+     */
+    @Exported
+    public int getAppIdConcurrency() {
+        return appIdConcurrency;
+    }
+
+    /**
+     * Gets the number of deliveries which were parked by cap of application id.
+     *
+     * @return the number of times.
+     */
+    @Exported
+    public long getAppIdThrottledCount() {
+        return appIdThrottledCount.get();
+    }
+
+    /**
+     * Gets the key to decide lane.
+     *
+     * @return the name of key.
+     */
+    @Exported
+    public String getPartitionKey() {
+        return partitionKey.name();
+    }
+
+    /**
+     * Gets the number of deliveries which wait on each lane.
+     *
+     * @return the array of the number of deliveries.
+     */
+    @Exported
+    public int[] getLaneQueuedCounts() {
+        int[] counts = new int[executors.length];
+        for (int i = 0; i < executors.length; i++) {
+            if (executors[i] instanceof ThreadPoolExecutor) {
+                counts[i] = ((ThreadPoolExecutor) executors[i]).getQueue().size();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the number of deliveries which are completed on each lane.
+     *
+     * @return the array of the number of deliveries.
+     */
+    @Exported
+    public long[] getLaneCompletedCounts() {
+        long[] counts = new long[laneCompletedCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = laneCompletedCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the number of dispatched deliveries.
+     *
+     * @return the number of deliveries.
+     */
+    @Exported
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Gets the number of times that consumer waited for pool.
+     *
+     * @return the number of times.
+     */
+    @Exported
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+}
@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.dispatchers;
+
+import java.util.Map;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Key of message which decides dispatch lane.
+ * Messages which have the same key are run in order on the same lane.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public enum PartitionKey {
+    /**
+     * No partitioning. Messages are run on any thread without order.
+     */
+    NONE,
+    /**
+     * Routing key of envelope.
+     */
+    ROUTING_KEY,
+    /**
+     * Application id in properties.
+     */
+    APP_ID,
+    /**
+     * Value of header which has configured name.
+     */
+    HEADER;
+
+    /**
+     * Gets key of message.
+     *
+     * @param envelope
+     *            the envelope of message.
+     * @param properties
+     *            the properties of message.
+     * @param headerName
+     *            the header name. used if this is {@link #HEADER}.
+     * @return the key. null if message does not have it.
+     */
+    public String resolve(Envelope envelope, BasicProperties properties, String headerName) {
+        switch (this) {
+        case ROUTING_KEY:
+            return envelope != null ? envelope.getRoutingKey() : null;
+        case APP_ID:
+            return properties != null ? properties.getAppId() : null;
+        case HEADER:
+            if (properties != null && headerName != null) {
+                Map<String, Object> headers = properties.getHeaders();
+                if (headers != null) {
+                    Object value = headers.get(headerName);
+                    return value != null ? value.toString() : null;
+                }
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Gets partition key from string.
+     *
+     * @param name
+     *            the name of key.
+     * @return the partition key. {@link #NONE} if name is unknown.
+     */
+    public static PartitionKey parse(String name) {
+        if (name != null) {
+            for (PartitionKey key : values()) {
+                if (key.name().equals(name)) {
+                    return key;
+                }
+            }
+        }
+        return NONE;
+    }
+}
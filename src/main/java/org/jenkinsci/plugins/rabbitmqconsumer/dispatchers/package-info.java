@@ -0,0 +1,5 @@
+/**
+  * Message dispatcher package.
+  *
+  */
+package org.jenkinsci.plugins.rabbitmqconsumer.dispatchers;
@@ -0,0 +1,127 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import jenkins.model.Jenkins;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Extension point which decodes body by content encoding, e.g. gzip.
+ *
+ * Body is decoded once before message is passed to listeners, and content
+ * encoding is removed from properties of decoded message. If any encoding
+ * has no codec, message is passed to listeners as is.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public abstract class ContentCodec implements ExtensionPoint {
+
+    private static final String IDENTITY = "identity";
+
+    /**
+     * Gets whether this codec can decode specified encoding.
+     *
+     * @param encoding
+     *            the lower case encoding name.
+     * @return true if so.
+     */
+    public abstract boolean isApplicable(String encoding);
+
+    /**
+     * Decodes body. Given array must not be modified.
+     *
+     * @param body
+     *            the encoded body.
+     * @return the decoded body.
+     * @throws IOException
+     *             throws if body cannot be decoded.
+     */
+    public abstract byte[] decode(byte[] body) throws IOException;
+
+    /**
+     * Decodes message by all codecs.
+     *
+     * @param message
+     *            the message.
+     * @return the decoded message. the same message if it is not encoded.
+     * @throws IOException
+     *             throws if body cannot be decoded.
+     */
+    public static RMQMessage decode(RMQMessage message) throws IOException {
+        if (message.getProperties().getContentEncoding() == null) {
+            return message;
+        }
+        return decode(all(), message);
+    }
+
+    /**
+     * Decodes message by given codecs.
+     * Encodings are applied in listed order, so they are decoded in reverse order.
+     *
+     * @param codecs
+     *            the codecs.
+     * @param message
+     *            the message.
+     * @return the decoded message. the same message if it is not encoded or codec is not found.
+     * @throws IOException
+     *             throws if body cannot be decoded.
+     */
+    static RMQMessage decode(Iterable<? extends ContentCodec> codecs, RMQMessage message) throws IOException {
+        String contentEncoding = message.getProperties().getContentEncoding();
+        if (contentEncoding == null) {
+            return message;
+        }
+        String[] encodings = contentEncoding.toLowerCase(Locale.ENGLISH).split(",");
+        ContentCodec[] found = new ContentCodec[encodings.length];
+        for (int i = 0; i < encodings.length; i++) {
+            String encoding = encodings[i].trim();
+            if (encoding.isEmpty() || encoding.equals(IDENTITY)) {
+                continue;
+            }
+            found[i] = find(codecs, encoding);
+            if (found[i] == null) {
+                return message;
+            }
+        }
+        byte[] body = message.getBodyArray();
+        for (int i = found.length - 1; i >= 0; i--) {
+            if (found[i] != null) {
+                body = found[i].decode(body);
+            }
+        }
+        BasicProperties properties = message.getProperties().builder().contentEncoding(null).build();
+        return new RMQMessage(message.getQueueName(), message.getEnvelope(), properties, body);
+    }
+
+    /**
+     * Finds codec for encoding.
+     *
+     * @param codecs
+     *            the codecs.
+     * @param encoding
+     *            the lower case encoding name.
+     * @return the codec. null if not found.
+     */
+    private static ContentCodec find(Iterable<? extends ContentCodec> codecs, String encoding) {
+        for (ContentCodec codec : codecs) {
+            if (codec.isApplicable(encoding)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets all codecs.
+     *
+     * @return the extension list.
+     */
+    public static ExtensionList<ContentCodec> all() {
+        return Jenkins.getInstance().getExtensionList(ContentCodec.class);
+    }
+}
@@ -0,0 +1,181 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.SystemContextThreadFactory;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Bulkhead for a listener.
+ *
+ * Each listener has own worker thread and bounded queue, so hung listener
+ * never blocks other listeners. If queue is full, invocation is rejected.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public class ListenerBulkhead {
+
+    private final String name;
+    private final String appId;
+    private final int queueDepth;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param listener
+     *            the listener.
+     * @param queueDepth
+     *            the number of invocations which wait for worker.
+     */
+    ListenerBulkhead(MessageQueueListener listener, int queueDepth) {
+        this.name = listener.getName();
+        this.appId = listener.getAppId();
+        this.queueDepth = Math.max(1, queueDepth);
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(this.queueDepth),
+                new SystemContextThreadFactory(
+                        new NamingThreadFactory(new DaemonThreadFactory(), "RabbitMQ listener " + name)));
+    }
+
+    /**
+     * Submits invocation to worker.
+     *
+     * @param invocation
+     *            the invocation.
+     * @return the future of invocation.
+     * @throws RejectedExecutionException
+     *             throws if queue is full.
+     */
+    Future<Void> submit(Callable<Void> invocation) {
+        try {
+            Future<Void> future = executor.submit(invocation);
+            invocations.incrementAndGet();
+            return future;
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Records failed invocation.
+     */
+    void recordFailure() {
+        failedCount.incrementAndGet();
+    }
+
+    /**
+     * Records timed-out invocation.
+     */
+    void recordTimeout() {
+        timedOutCount.incrementAndGet();
+    }
+
+    /**
+     * Shutdown worker. Running invocation is interrupted, and waiting invocations
+     * are cancelled so that callers waiting for them are released.
+     */
+    void shutdown() {
+        for (Runnable r : executor.shutdownNow()) {
+            if (r instanceof Future) {
+                ((Future<?>) r).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Gets name of listener.
+     *
+     * @return the name.
+     */
+    @Exported
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets application id of listener.
+     *
+     * @return the application id.
+     */
+    @Exported
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Gets the number of invocations which can wait for worker.
+     *
+     * @return the queue depth.
+     */
+    @Exported
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Gets the number of invocations which wait for worker.
+     *
+     * @return the number of invocations.
+     */
+    @Exported
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of accepted invocations.
+     *
+     * @return the number of invocations.
+     */
+    @Exported
+    public long getInvocations() {
+        return invocations.get();
+    }
+
+    /**
+     * Gets the number of invocations which threw exception.
+     *
+     * @return the number of invocations.
+     */
+    @Exported
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Gets the number of invocations which exceeded timeout.
+     *
+     * @return the number of invocations.
+     */
+    @Exported
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /**
+     * Gets the number of invocations which were rejected because queue was full.
+     *
+     * @return the number of invocations.
+     */
+    @Exported
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
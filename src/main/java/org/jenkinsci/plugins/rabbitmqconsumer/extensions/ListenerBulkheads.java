@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of listener bulkheads.
+ *
+ * If bulkheads are enabled, listeners for the same application id are called
+ * in parallel on their own workers, and caller waits for them up to timeout.
+ * Workers of listeners which are removed from extension list are shut down.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class ListenerBulkheads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListenerBulkheads.class);
+
+    private static final Map<MessageQueueListener, ListenerBulkhead> BULKHEADS =
+            new ConcurrentHashMap<MessageQueueListener, ListenerBulkhead>();
+    private static volatile boolean enabled = false;
+    private static int queueDepth = 0;
+    private static volatile long timeoutMillis = 0;
+
+    /**
+     * Utility class.
+     */
+    private ListenerBulkheads() {
+    }
+
+    /**
+     * Call to listener.
+     */
+    interface ListenerCall {
+        /**
+         * Calls listener.
+         *
+         * @param listener
+         *            the listener.
+         * @throws Exception
+         *             throws if listener fails.
+         */
+        void call(MessageQueueListener listener) throws Exception;
+    }
+
+    /**
+     * Configures bulkheads. Existing workers are discarded if queue depth is changed.
+     * Invocations waiting on discarded workers are cancelled.
+     *
+     * @param enable
+     *            true if bulkheads are enabled.
+     * @param depth
+     *            the number of invocations which wait for worker of each listener.
+     * @param timeout
+     *            the timeout in milliseconds for each invocation. 0 means unlimited.
+     */
+    public static synchronized void configure(boolean enable, int depth, long timeout) {
+        if (!enable || depth != queueDepth) {
+            for (ListenerBulkhead b : BULKHEADS.values()) {
+                b.shutdown();
+            }
+            BULKHEADS.clear();
+        }
+        queueDepth = depth;
+        timeoutMillis = Math.max(0, timeout);
+        enabled = enable;
+    }
+
+    /**
+     * Gets whether bulkheads are enabled.
+     *
+     * @return true if enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets bulkheads which are already created.
+     *
+     * @return the list of bulkheads.
+     */
+    public static List<ListenerBulkhead> getAll() {
+        return new ArrayList<ListenerBulkhead>(BULKHEADS.values());
+    }
+
+    /**
+     * Shuts down bulkheads of listeners which are not in given listeners.
+     *
+     * @param listeners
+     *            the current listeners.
+     */
+    static synchronized void retain(Collection<MessageQueueListener> listeners) {
+        Set<MessageQueueListener> current = new HashSet<MessageQueueListener>(listeners);
+        Iterator<Map.Entry<MessageQueueListener, ListenerBulkhead>> it = BULKHEADS.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<MessageQueueListener, ListenerBulkhead> e = it.next();
+            if (!current.contains(e.getKey())) {
+                it.remove();
+                e.getValue().shutdown();
+            }
+        }
+    }
+
+    /**
+     * Gets bulkhead for listener. It is created if not exist.
+     *
+     * @param listener
+     *            the listener.
+     * @return the bulkhead.
+     */
+    private static ListenerBulkhead get(MessageQueueListener listener) {
+        ListenerBulkhead bulkhead = BULKHEADS.get(listener);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        synchronized (ListenerBulkheads.class) {
+            bulkhead = BULKHEADS.get(listener);
+            if (bulkhead == null) {
+                bulkhead = new ListenerBulkhead(listener, queueDepth);
+                BULKHEADS.put(listener, bulkhead);
+            }
+            return bulkhead;
+        }
+    }
+
+    /**
+     * Calls listeners on their bulkheads then waits for them.
+     * Timed-out invocation is interrupted. Listener whose circuit is open is
+     * skipped, and it is not regarded as failure.
+     *
+     * @param listeners
+     *            the listeners.
+     * @param call
+     *            the call to each listener.
+     * @return true if all called listeners completed without exception in time.
+     */
+    static boolean invoke(MessageQueueListener[] listeners, final ListenerCall call) {
+        boolean handled = true;
+        ListenerBulkhead[] bulkheads = new ListenerBulkhead[listeners.length];
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(listeners.length);
+
+        for (int i = 0; i < listeners.length; i++) {
+            final MessageQueueListener l = listeners[i];
+            bulkheads[i] = get(l);
+            if (!ListenerCircuitBreakers.allow(l)) {
+                futures.add(null);
+                continue;
+            }
+            try {
+                futures.add(bulkheads[i].submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        call.call(l);
+                        return null;
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                if (!ListenerCircuitBreakers.recordFailure(l, e)) {
+                    LOGGER.warn("Listener {} is busy. Invocation is rejected.", l.getName());
+                }
+                futures.add(null);
+                handled = false;
+            } catch (Throwable e) {
+                if (!ListenerCircuitBreakers.recordFailure(l, e)) {
+                    LOGGER.warn("Cannot submit invocation to listener " + l.getName(), e);
+                }
+                futures.add(null);
+                handled = false;
+            }
+        }
+
+        long timeout = timeoutMillis;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (int i = 0; i < listeners.length; i++) {
+            Future<Void> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            try {
+                if (timeout > 0) {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    future.get();
+                }
+                ListenerCircuitBreakers.recordSuccess(listeners[i]);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                bulkheads[i].recordTimeout();
+                if (!ListenerCircuitBreakers.recordFailure(listeners[i], e)) {
+                    LOGGER.warn("Listener {} did not complete in {} ms.", listeners[i].getName(), timeout);
+                }
+                handled = false;
+            } catch (ExecutionException e) {
+                bulkheads[i].recordFailure();
+                if (!ListenerCircuitBreakers.recordFailure(listeners[i], e.getCause())) {
+                    LOGGER.warn("Caught exception during calling listener " + listeners[i].getName(), e.getCause());
+                }
+                handled = false;
+            } catch (CancellationException e) {
+                if (!ListenerCircuitBreakers.recordFailure(listeners[i], e)) {
+                    LOGGER.warn("Invocation of listener {} is cancelled by reconfiguration.", listeners[i].getName());
+                }
+                handled = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                ListenerCircuitBreakers.recordFailure(listeners[i], e);
+                handled = false;
+            } catch (Throwable e) {
+                bulkheads[i].recordFailure();
+                if (!ListenerCircuitBreakers.recordFailure(listeners[i], e)) {
+                    LOGGER.warn("Caught exception during waiting for listener " + listeners[i].getName(), e);
+                }
+                handled = false;
+            }
+        }
+        return handled;
+    }
+}
@@ -0,0 +1,267 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for a listener.
+ *
+ * Results of recent calls are kept in window. If failure rate in full window
+ * reaches threshold, circuit is opened and listener is skipped. After open
+ * duration, one trial call is allowed. Circuit is closed if it succeeds,
+ * otherwise opened again.
+ *
+ * Failures are not logged one by one. Summary is logged at most once per interval.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public class ListenerCircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListenerCircuitBreaker.class);
+    private static final long SUMMARY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * State of circuit.
+     */
+    public enum State {
+        /**
+         * Listener is called.
+         */
+        CLOSED,
+        /**
+         * Listener is skipped.
+         */
+        OPEN,
+        /**
+         * Only one trial call is allowed.
+         */
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final int windowSize;
+    private final int failureRate;
+    private final long openMillis;
+
+    private final boolean[] window;
+    private int windowIndex = 0;
+    private int windowCount = 0;
+    private int windowFailures = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    private long failedCount = 0;
+    private long skippedCount = 0;
+    private long openedCount = 0;
+    private long failuresSinceSummary = 0;
+    private long skippedSinceSummary = 0;
+    private long lastSummaryAt = 0;
+    private String lastError;
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param listener
+     *            the listener.
+     * @param windowSize
+     *            the number of recent calls to calculate failure rate.
+     * @param failureRate
+     *            the failure rate in percent to open circuit.
+     * @param openMillis
+     *            the time in milliseconds to keep circuit open.
+     */
+    ListenerCircuitBreaker(MessageQueueListener listener, int windowSize, int failureRate, long openMillis) {
+        this.name = listener.getName();
+        this.windowSize = Math.max(1, windowSize);
+        this.failureRate = Math.min(100, Math.max(1, failureRate));
+        this.openMillis = Math.max(0, openMillis);
+        this.window = new boolean[this.windowSize];
+    }
+
+    /**
+     * Gets whether listener can be called now.
+     *
+     * @return true if listener can be called.
+     */
+    synchronized boolean allow() {
+        long now = System.currentTimeMillis();
+        boolean allowed;
+        if (state == State.CLOSED) {
+            allowed = true;
+        } else if (state == State.OPEN && now - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            trialInFlight = true;
+            allowed = true;
+        } else if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            allowed = true;
+        } else {
+            skippedCount++;
+            skippedSinceSummary++;
+            allowed = false;
+        }
+        logSummary(now);
+        return allowed;
+    }
+
+    /**
+     * Records successful call.
+     */
+    synchronized void recordSuccess() {
+        if (state == State.HALF_OPEN) {
+            LOGGER.info("Circuit for listener {} is closed.", name);
+            state = State.CLOSED;
+            trialInFlight = false;
+            resetWindow();
+        } else if (state == State.CLOSED) {
+            push(false);
+            openIfFailing();
+        }
+    }
+
+    /**
+     * Records failed call.
+     *
+     * @param cause
+     *            the cause of failure. null if unknown.
+     */
+    synchronized void recordFailure(Throwable cause) {
+        failedCount++;
+        failuresSinceSummary++;
+        lastError = cause != null ? cause.toString() : "unknown";
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            push(true);
+            openIfFailing();
+        }
+        logSummary(System.currentTimeMillis());
+    }
+
+    /**
+     * Opens circuit if window is full and failure rate reaches threshold.
+     */
+    private void openIfFailing() {
+        if (windowCount >= windowSize && windowFailures * 100 >= failureRate * windowCount) {
+            open();
+        }
+    }
+
+    /**
+     * Opens circuit.
+     */
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        trialInFlight = false;
+        openedCount++;
+        resetWindow();
+        LOGGER.warn("Circuit for listener {} is opened for {} ms. Last error: {}", name, openMillis, lastError);
+    }
+
+    /**
+     * Pushes result to window.
+     *
+     * @param failed
+     *            true if call failed.
+     */
+    private void push(boolean failed) {
+        if (windowCount == windowSize) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % windowSize;
+    }
+
+    /**
+     * Clears window.
+     */
+    private void resetWindow() {
+        windowIndex = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+
+    /**
+     * Logs summary if interval is elapsed.
+     *
+     * @param now
+     *            the current time in milliseconds.
+     */
+    private void logSummary(long now) {
+        if (now - lastSummaryAt < SUMMARY_INTERVAL_MILLIS) {
+            return;
+        }
+        if (failuresSinceSummary > 0 || skippedSinceSummary > 0) {
+            LOGGER.warn("Listener {} failed {} time(s) and was skipped {} time(s). Circuit is {}. Last error: {}",
+                    name, failuresSinceSummary, skippedSinceSummary, state, lastError);
+            failuresSinceSummary = 0;
+            skippedSinceSummary = 0;
+        }
+        lastSummaryAt = now;
+    }
+
+    /**
+     * Gets name of listener.
+     *
+     * @return the name.
+     */
+    @Exported
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets state of circuit.
+     *
+     * @return the state.
+     */
+    @Exported
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Gets the number of failed calls.
+     *
+     * @return the number of calls.
+     */
+    @Exported
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Gets the number of skipped calls.
+     *
+     * @return the number of calls.
+     */
+    @Exported
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Gets the number of times circuit was opened.
+     *
+     * @return the number of times.
+     */
+    @Exported
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Registry of listener circuit breakers.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class ListenerCircuitBreakers {
+
+    private static final Map<MessageQueueListener, ListenerCircuitBreaker> BREAKERS =
+            new WeakHashMap<MessageQueueListener, ListenerCircuitBreaker>();
+    private static volatile boolean enabled = false;
+    private static int windowSize = 0;
+    private static int failureRate = 0;
+    private static long openMillis = 0;
+
+    /**
+     * Utility class.
+     */
+    private ListenerCircuitBreakers() {
+    }
+
+    /**
+     * Configures circuit breakers. Existing breakers are discarded if parameters are changed.
+     *
+     * @param enable
+     *            true if circuit breakers are enabled.
+     * @param size
+     *            the number of recent calls to calculate failure rate.
+     * @param rate
+     *            the failure rate in percent to open circuit.
+     * @param duration
+     *            the time in milliseconds to keep circuit open.
+     */
+    public static synchronized void configure(boolean enable, int size, int rate, long duration) {
+        if (!enable || size != windowSize || rate != failureRate || duration != openMillis) {
+            BREAKERS.clear();
+        }
+        windowSize = size;
+        failureRate = rate;
+        openMillis = duration;
+        enabled = enable;
+    }
+
+    /**
+     * Gets whether circuit breakers are enabled.
+     *
+     * @return true if enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets circuit breakers which are already created.
+     *
+     * @return the list of circuit breakers.
+     */
+    public static synchronized List<ListenerCircuitBreaker> getAll() {
+        return new ArrayList<ListenerCircuitBreaker>(BREAKERS.values());
+    }
+
+    /**
+     * Gets whether listener can be called now.
+     *
+     * @param listener
+     *            the listener.
+     * @return true if listener can be called.
+     */
+    static boolean allow(MessageQueueListener listener) {
+        if (!enabled) {
+            return true;
+        }
+        return get(listener).allow();
+    }
+
+    /**
+     * Records successful call.
+     *
+     * @param listener
+     *            the listener.
+     */
+    static void recordSuccess(MessageQueueListener listener) {
+        if (enabled) {
+            get(listener).recordSuccess();
+        }
+    }
+
+    /**
+     * Records failed call.
+     *
+     * @param listener
+     *            the listener.
+     * @param cause
+     *            the cause of failure.
+     * @return true if failure is recorded. In this case caller should not log it.
+     */
+    static boolean recordFailure(MessageQueueListener listener, Throwable cause) {
+        if (!enabled) {
+            return false;
+        }
+        get(listener).recordFailure(cause);
+        return true;
+    }
+
+    /**
+     * Gets circuit breaker for listener. It is created if not exist.
+     *
+     * @param listener
+     *            the listener.
+     * @return the circuit breaker.
+     */
+    private static synchronized ListenerCircuitBreaker get(MessageQueueListener listener) {
+        ListenerCircuitBreaker breaker = BREAKERS.get(listener);
+        if (breaker == null) {
+            breaker = new ListenerCircuitBreaker(listener, windowSize, failureRate, openMillis);
+            BREAKERS.put(listener, breaker);
+        }
+        return breaker;
+    }
+}
@@ -2,15 +2,27 @@ package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
 
 import hudson.security.ACL;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.slf4j.Logger;
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqConsumeItem;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.AppIdIndex;
 import org.slf4j.LoggerFactory;
 
+import com.rabbitmq.client.AMQP.BasicProperties;
+
 import hudson.ExtensionList;
+import hudson.ExtensionListListener;
 import hudson.ExtensionPoint;
 import jenkins.model.Jenkins;
 
@@ -21,6 +33,12 @@ import jenkins.model.Jenkins;
  */
 public abstract class MessageQueueListener implements ExtensionPoint {
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageQueueListener.class);
+    private static final MessageQueueListener[] NO_LISTENERS = new MessageQueueListener[0];
+    private static final int MAX_CACHED_APPIDS = 4096;
+
+    private static volatile RoutingIndex routingIndex;
+    private static final AtomicInteger INDEX_GENERATION = new AtomicInteger();
+    private static ExtensionList<MessageQueueListener> indexedExtensions;
 
     /**
      * Gets name.
@@ -55,6 +73,8 @@ public abstract class MessageQueueListener implements ExtensionPoint {
     /**
      * Calls when message arrives.
      *
+     * Body array is shared by all listeners. Never modify it.
+     *
      * @param queueName
      *            the queue name.
      * @param contentType
@@ -66,6 +86,40 @@ public abstract class MessageQueueListener implements ExtensionPoint {
      */
     public abstract void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body);
 
+    /**
+     * Calls when message arrives.
+     *
+     * By default, this calls {@link #onReceive(String, String, Map, byte[])}.
+     * Override this to parse read-only body and decoded headers without copying.
+     * Use {@link RMQMessage#getPayload()} to share decoded body with other listeners.
+     * The payload is read-only because other listeners may read it at the same time.
+     * Listener which overrides this can implement the byte array variant as empty.
+     *
+     * @param message
+     *            the received message.
+     */
+    public void onReceive(RMQMessage message) {
+        onReceive(message.getQueueName(), message.getContentType(), message.getRawHeaders(),
+                message.getBodyArray());
+    }
+
+    /**
+     * Calls when batch of messages arrives.
+     * This is called only for queue which batching is configured.
+     *
+     * By default, this calls {@link #onReceive(RMQMessage)} for each message.
+     * Override this to handle messages at once. If this throws exception, all
+     * messages in batch are regarded as failed.
+     *
+     * @param messages
+     *            the unmodifiable list of received messages.
+     */
+    public void onReceiveBatch(List<RMQMessage> messages) {
+        for (RMQMessage message : messages) {
+            onReceive(message);
+        }
+    }
+
     /**
      * Fires OnReceive event.
      *
@@ -85,24 +139,142 @@ public abstract class MessageQueueListener implements ExtensionPoint {
             String contentType,
             Map<String, Object> headers,
             byte[] body) {
+        BasicProperties properties = new BasicProperties.Builder()
+                .appId(appId).contentType(contentType).headers(headers).build();
+        fireOnReceiveWithResult(appId, new RMQMessage(queueName, null, properties, body));
+    }
+
+    /**
+     * Fires OnReceive event then reports whether all listeners handled message.
+     *
+     * @param appId
+     *            the application id.
+     * @param message
+     *            the received message.
+     * @return true if no listener threw exception.
+     */
+    public static boolean fireOnReceiveWithResult(String appId, RMQMessage message) {
         LOGGER.trace("MessageQueueListener", "fireOnReceive");
+        MessageQueueListener[] listeners = getListeners(appId);
+        if (listeners.length == 0) {
+            return true;
+        }
+        if (Jenkins.getAuthentication2() == ACL.SYSTEM2) {
+            // consumer and dispatcher threads already run as SYSTEM.
+            return invokeOnReceive(listeners, message);
+        }
         SecurityContext old = ACL.impersonate(ACL.SYSTEM);
         try {
-            for (MessageQueueListener l : all()) {
-                if (appId.equals(l.getAppId())) {
-                    try {
-                        l.onReceive(queueName, contentType, headers, body);
-                    } catch (Exception ex) {
-                        LOGGER.warn("Caught exception during calling onReceive()", ex);
-                    }
-                }
+            return invokeOnReceive(listeners, message);
+        }
+        finally {
+            SecurityContextHolder.setContext(old);
+        }
+    }
+
+    /**
+     * Calls onReceive of each listener.
+     *
+     * @param listeners
+     *            the listeners.
+     * @param message
+     *            the received message.
+     * @return true if no listener threw exception.
+     */
+    private static boolean invokeOnReceive(MessageQueueListener[] listeners, final RMQMessage message) {
+        return invoke(listeners, "onReceive()", new ListenerBulkheads.ListenerCall() {
+            public void call(MessageQueueListener listener) {
+                listener.onReceive(message);
             }
+        });
+    }
+
+    /**
+     * Fires OnReceiveBatch event then reports whether all listeners handled messages.
+     *
+     * @param appId
+     *            the application id.
+     * @param messages
+     *            the list of received messages.
+     * @return true if no listener threw exception.
+     */
+    public static boolean fireOnReceiveBatchWithResult(String appId, List<RMQMessage> messages) {
+        LOGGER.trace("MessageQueueListener", "fireOnReceiveBatch");
+        MessageQueueListener[] listeners = getListeners(appId);
+        if (listeners.length == 0) {
+            return true;
+        }
+        List<RMQMessage> batch = Collections.unmodifiableList(messages);
+        if (Jenkins.getAuthentication2() == ACL.SYSTEM2) {
+            // consumer and dispatcher threads already run as SYSTEM.
+            return invokeOnReceiveBatch(listeners, batch);
+        }
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            return invokeOnReceiveBatch(listeners, batch);
         }
         finally {
             SecurityContextHolder.setContext(old);
         }
     }
 
+    /**
+     * Calls onReceiveBatch of each listener.
+     *
+     * @param listeners
+     *            the listeners.
+     * @param messages
+     *            the list of received messages.
+     * @return true if no listener threw exception.
+     */
+    private static boolean invokeOnReceiveBatch(MessageQueueListener[] listeners,
+            final List<RMQMessage> messages) {
+        return invoke(listeners, "onReceiveBatch()", new ListenerBulkheads.ListenerCall() {
+            public void call(MessageQueueListener listener) {
+                listener.onReceiveBatch(messages);
+            }
+        });
+    }
+
+    /**
+     * Calls each listener on bulkhead or in order.
+     * Listener whose circuit is open is skipped. It is not regarded as failure,
+     * otherwise message would be requeued in tight loop while circuit is open,
+     * and redelivered to other listeners which already handled it.
+     *
+     * @param listeners
+     *            the listeners.
+     * @param method
+     *            the name of called method. used in log.
+     * @param call
+     *            the call to listener.
+     * @return true if no called listener threw exception.
+     */
+    private static boolean invoke(MessageQueueListener[] listeners, String method,
+            ListenerBulkheads.ListenerCall call) {
+        if (ListenerBulkheads.isEnabled()) {
+            return ListenerBulkheads.invoke(listeners, call);
+        }
+        boolean handled = true;
+        for (MessageQueueListener l : listeners) {
+            if (!ListenerCircuitBreakers.allow(l)) {
+                continue;
+            }
+            try {
+                call.call(l);
+                ListenerCircuitBreakers.recordSuccess(l);
+            } catch (Throwable ex) {
+                // Errors such as LinkageError from broken listener are also failures,
+                // otherwise trial call of half-open circuit is never finished.
+                if (!ListenerCircuitBreakers.recordFailure(l, ex)) {
+                    LOGGER.warn("Caught exception during calling " + method, ex);
+                }
+                handled = false;
+            }
+        }
+        return handled;
+    }
+
     /**
      * Fires OnBind event.
      *
@@ -116,7 +288,7 @@ public abstract class MessageQueueListener implements ExtensionPoint {
         SecurityContext old = ACL.impersonate(ACL.SYSTEM);
         try {
             for (MessageQueueListener l : all()) {
-                if (appIds.contains(l.getAppId())) {
+                if (isBound(appIds, l.getAppId())) {
                     try {
                         l.onBind(queueName);
                     } catch (Exception ex) {
@@ -143,7 +315,7 @@ public abstract class MessageQueueListener implements ExtensionPoint {
         SecurityContext old = ACL.impersonate(ACL.SYSTEM);
         try {
             for (MessageQueueListener l : all()) {
-                if (appIds.contains(l.getAppId())) {
+                if (isBound(appIds, l.getAppId())) {
                     try {
                         l.onUnbind(queueName);
                     } catch (Exception ex) {
@@ -157,6 +329,179 @@ public abstract class MessageQueueListener implements ExtensionPoint {
         }
     }
 
+    /**
+     * Gets whether listener for application id is bound to queue for application ids.
+     * Either side may be glob pattern. Debug application id is matched only by itself.
+     *
+     * @param appIds
+     *            the application ids or patterns of queue.
+     * @param appId
+     *            the application id or pattern of listener.
+     * @return true if bound.
+     */
+    private static boolean isBound(Collection<String> appIds, String appId) {
+        if (appId == null) {
+            return false;
+        }
+        if (appIds.contains(appId)) {
+            return true;
+        }
+        if (appId.equals(RabbitmqConsumeItem.DEBUG_APPID)) {
+            return false;
+        }
+        for (String id : appIds) {
+            if (id != null && !id.equals(RabbitmqConsumeItem.DEBUG_APPID)
+                    && (AppIdIndex.matches(id, appId) || AppIdIndex.matches(appId, id))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets listeners for specified application id.
+     * Listeners which wait for glob pattern matching application id are included
+     * in the order of extension list.
+     *
+     * @param appId
+     *            the application id.
+     * @return the array of listeners. Never modify it.
+     */
+    public static MessageQueueListener[] getListeners(String appId) {
+        RoutingIndex index = routingIndex;
+        if (index == null || index.jenkins != Jenkins.getInstanceOrNull()) {
+            index = buildRoutingIndex();
+        }
+        MessageQueueListener[] listeners = index.listeners.get(appId);
+        if (index.patterns.isEmpty() || appId == null || appId.equals(RabbitmqConsumeItem.DEBUG_APPID)) {
+            return listeners != null ? listeners : NO_LISTENERS;
+        }
+        MessageQueueListener[] matched = index.matched.get(appId);
+        if (matched == null) {
+            matched = index.match(appId, listeners);
+            if (index.matched.size() < MAX_CACHED_APPIDS) {
+                index.matched.putIfAbsent(appId, matched);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Builds index from application id to listeners.
+     * The index is dropped whenever extension list is changed, and bulkheads
+     * of removed listeners are shut down at the same time.
+     *
+     * @return the index.
+     */
+    private static synchronized RoutingIndex buildRoutingIndex() {
+        Jenkins jenkins = Jenkins.getInstance();
+        final ExtensionList<MessageQueueListener> extensions = all();
+        if (extensions != indexedExtensions) {
+            extensions.addListener(new ExtensionListListener() {
+                @Override
+                public void onChange() {
+                    INDEX_GENERATION.incrementAndGet();
+                    routingIndex = null;
+                    ListenerBulkheads.retain(extensions);
+                }
+            });
+            indexedExtensions = extensions;
+        }
+
+        int generation = INDEX_GENERATION.get();
+        Map<String, List<MessageQueueListener>> lists = new HashMap<String, List<MessageQueueListener>>();
+        AppIdIndex<MessageQueueListener> patterns = new AppIdIndex<MessageQueueListener>();
+        List<MessageQueueListener> ordered = new ArrayList<MessageQueueListener>();
+        for (MessageQueueListener l : extensions) {
+            String appId = l.getAppId();
+            if (appId != null && !appId.equals(RabbitmqConsumeItem.DEBUG_APPID) && AppIdIndex.isPattern(appId)) {
+                patterns.add(appId, l);
+                ordered.add(l);
+            } else if (appId != null) {
+                ordered.add(l);
+                List<MessageQueueListener> list = lists.get(appId);
+                if (list == null) {
+                    list = new ArrayList<MessageQueueListener>();
+                    lists.put(appId, list);
+                }
+                list.add(l);
+            }
+        }
+
+        Map<String, MessageQueueListener[]> index = new HashMap<String, MessageQueueListener[]>();
+        for (Map.Entry<String, List<MessageQueueListener>> e : lists.entrySet()) {
+            index.put(e.getKey(), e.getValue().toArray(new MessageQueueListener[e.getValue().size()]));
+        }
+        RoutingIndex routing = new RoutingIndex(jenkins, Collections.unmodifiableMap(index), patterns,
+                ordered.toArray(new MessageQueueListener[ordered.size()]));
+        if (generation == INDEX_GENERATION.get()) {
+            routingIndex = routing;
+        }
+        return routing;
+    }
+
+    /**
+     * Immutable index from application id to listeners.
+     * Results of pattern lookup are cached per application id.
+     */
+    private static final class RoutingIndex {
+        private final Jenkins jenkins;
+        private final Map<String, MessageQueueListener[]> listeners;
+        private final AppIdIndex<MessageQueueListener> patterns;
+        private final MessageQueueListener[] ordered;
+        private final ConcurrentMap<String, MessageQueueListener[]> matched =
+                new ConcurrentHashMap<String, MessageQueueListener[]>();
+
+        /**
+         * Creates instance with specified parameters.
+         *
+         * @param jenkins
+         *            the Jenkins instance that owns listeners.
+         * @param listeners
+         *            the map from application id to listeners.
+         * @param patterns
+         *            the index of listeners which wait for pattern.
+         * @param ordered
+         *            the listeners in the order of extension list.
+         */
+        private RoutingIndex(Jenkins jenkins, Map<String, MessageQueueListener[]> listeners,
+                AppIdIndex<MessageQueueListener> patterns, MessageQueueListener[] ordered) {
+            this.jenkins = jenkins;
+            this.listeners = listeners;
+            this.patterns = patterns;
+            this.ordered = ordered;
+        }
+
+        /**
+         * Merges exact listeners and pattern listeners for application id.
+         *
+         * @param appId
+         *            the application id.
+         * @param exact
+         *            the listeners for exact application id. null if none.
+         * @return the array of listeners.
+         */
+        private MessageQueueListener[] match(String appId, MessageQueueListener[] exact) {
+            List<MessageQueueListener> found = patterns.getAll(appId);
+            if (found.isEmpty()) {
+                return exact != null ? exact : NO_LISTENERS;
+            }
+            if (exact != null) {
+                Collections.addAll(found, exact);
+            }
+            List<MessageQueueListener> result = new ArrayList<MessageQueueListener>(found.size());
+            for (MessageQueueListener l : ordered) {
+                for (MessageQueueListener f : found) {
+                    if (f == l) {
+                        result.add(l);
+                        break;
+                    }
+                }
+            }
+            return result.toArray(new MessageQueueListener[result.size()]);
+        }
+    }
+
     /**
      * Gets all listeners.
      *
@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Extension point which decodes message body by content type.
+ *
+ * Decoded payload is cached in {@link RMQMessage}, so body is decoded at most
+ * once per delivery even if several listeners receive it.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public abstract class PayloadDecoder implements ExtensionPoint {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CHARSET_PARAM = "charset=";
+
+    /**
+     * Gets whether this decoder can decode specified type of content.
+     *
+     * @param mimeType
+     *            the lower case MIME type without parameters.
+     * @return true if so.
+     */
+    public abstract boolean isApplicable(String mimeType);
+
+    /**
+     * Decodes message body. Returned object is shared by all listeners, which may
+     * read it concurrently, so it must not be modified by them. Decoder should
+     * return immutable object if possible.
+     *
+     * @param message
+     *            the message.
+     * @return the decoded payload.
+     * @throws IOException
+     *             throws if body cannot be decoded.
+     */
+    public abstract Object decode(RMQMessage message) throws IOException;
+
+    /**
+     * Finds decoder for content type.
+     *
+     * @param decoders
+     *            the decoders.
+     * @param contentType
+     *            the content type.
+     * @return the decoder. null if no decoder is applicable.
+     */
+    static PayloadDecoder find(Iterable<? extends PayloadDecoder> decoders, String contentType) {
+        String mimeType = getMimeType(contentType);
+        if (mimeType == null) {
+            return null;
+        }
+        for (PayloadDecoder decoder : decoders) {
+            if (decoder.isApplicable(mimeType)) {
+                return decoder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets MIME type from content type.
+     *
+     * @param contentType
+     *            the content type. e.g. "application/json; charset=utf-8".
+     * @return the lower case MIME type without parameters. null if content type is not given.
+     */
+    public static String getMimeType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int sep = contentType.indexOf(';');
+        String mimeType = (sep < 0 ? contentType : contentType.substring(0, sep)).trim();
+        return mimeType.isEmpty() ? null : mimeType.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Gets charset from content type.
+     *
+     * @param contentType
+     *            the content type.
+     * @return the charset. UTF-8 if not given or not supported.
+     */
+    public static Charset getCharset(String contentType) {
+        if (contentType != null) {
+            int idx = contentType.toLowerCase(Locale.ENGLISH).indexOf(CHARSET_PARAM);
+            if (idx >= 0) {
+                String name = contentType.substring(idx + CHARSET_PARAM.length()).split(";")[0]
+                        .trim().replace("\"", "");
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalArgumentException e) {
+                    return UTF_8;
+                }
+            }
+        }
+        return UTF_8;
+    }
+
+    /**
+     * Gets all decoders.
+     *
+     * @return the extension list.
+     */
+    public static ExtensionList<PayloadDecoder> all() {
+        return Jenkins.getInstance().getExtensionList(PayloadDecoder.class);
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import jenkins.model.Jenkins;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.GlobalRabbitmqConfiguration;
+
+/**
+ * Extension point which reports pressure on Jenkins.
+ *
+ * Consumers are paused if any signal is {@link Level#HIGH} and resumed when
+ * all signals become {@link Level#LOW}. Signal keeps current state by reporting
+ * {@link Level#NORMAL} between its thresholds.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public abstract class PressureSignal implements ExtensionPoint {
+
+    /**
+     * Level of pressure.
+     */
+    public enum Level {
+        /**
+         * Below resume threshold.
+         */
+        LOW,
+        /**
+         * Between resume and pause thresholds.
+         */
+        NORMAL,
+        /**
+         * At or above pause threshold.
+         */
+        HIGH
+    }
+
+    /**
+     * Gets name of signal.
+     *
+     * @return the name.
+     */
+    public abstract String getName();
+
+    /**
+     * Gets current level of pressure.
+     *
+     * @param conf
+     *            the global configuration which has thresholds.
+     * @return the level.
+     */
+    public abstract Level getLevel(GlobalRabbitmqConfiguration conf);
+
+    /**
+     * Gets all signals.
+     *
+     * @return the extension list.
+     */
+    public static ExtensionList<PressureSignal> all() {
+        return Jenkins.getInstance().getExtensionList(PressureSignal.class);
+    }
+}
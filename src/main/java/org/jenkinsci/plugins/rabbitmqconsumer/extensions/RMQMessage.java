@@ -0,0 +1,246 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.LongString;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Immutable view of received message.
+ *
+ * Body is exposed as read-only buffer which shares content with delivery,
+ * so listeners can parse it without copying. Headers are decoded lazily
+ * only when listener asks for them. Payload is decoded by {@link PayloadDecoder}
+ * at first call and shared by all listeners of the delivery.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class RMQMessage {
+
+    private final String queueName;
+    private final Envelope envelope;
+    private final BasicProperties properties;
+    private final byte[] body;
+    private volatile Map<String, Object> decodedHeaders;
+    private boolean payloadDecoded;
+    private Object payload;
+    private IOException payloadError;
+
+    /**
+     * Creates instance with specified parameters.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param envelope
+     *            the envelope of message. null if unknown.
+     * @param properties
+     *            the properties of message.
+     * @param body
+     *            the content body. it is never copied, so caller must not modify it.
+     */
+    public RMQMessage(String queueName, Envelope envelope, BasicProperties properties, byte[] body) {
+        this.queueName = queueName;
+        this.envelope = envelope;
+        this.properties = properties != null ? properties : new BasicProperties();
+        this.body = body != null ? body : new byte[0];
+    }
+
+    /**
+     * Gets queue name.
+     *
+     * @return the queue name.
+     */
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Gets envelope.
+     *
+     * @return the envelope. null if message is not delivered by broker directly.
+     */
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Gets properties.
+     *
+     * @return the properties.
+     */
+    public BasicProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Gets type of content.
+     *
+     * @return the type of content.
+     */
+    public String getContentType() {
+        return properties.getContentType();
+    }
+
+    /**
+     * Gets application id.
+     *
+     * @return the application id.
+     */
+    public String getAppId() {
+        return properties.getAppId();
+    }
+
+    /**
+     * Gets content body as read-only buffer.
+     * Each call returns new buffer whose position is 0.
+     *
+     * @return the content body.
+     */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets length of content body.
+     *
+     * @return the length in bytes.
+     */
+    public int getBodyLength() {
+        return body.length;
+    }
+
+    /**
+     * Gets headers as is. Values may be {@link LongString}.
+     *
+     * @return the map of headers. null if message has no header.
+     */
+    public Map<String, Object> getRawHeaders() {
+        return properties.getHeaders();
+    }
+
+    /**
+     * Gets headers whose {@link LongString} values are decoded to String.
+     * Headers are decoded at first call and cached.
+     *
+     * @return the unmodifiable map of headers. empty if message has no header.
+     */
+    public Map<String, Object> getHeaders() {
+        Map<String, Object> headers = decodedHeaders;
+        if (headers == null) {
+            headers = decodeMap(properties.getHeaders());
+            decodedHeaders = headers;
+        }
+        return headers;
+    }
+
+    /**
+     * Gets decoded header value.
+     *
+     * @param name
+     *            the header name.
+     * @return the value. null if not found.
+     */
+    public Object getHeader(String name) {
+        return getHeaders().get(name);
+    }
+
+    /**
+     * Gets payload decoded by {@link PayloadDecoder} for content type of message.
+     * Body is decoded at first call. Later calls, including ones from other listeners,
+     * get the same object or the same failure.
+     *
+     * Payload is read-only and shared. Listeners may receive it at the same time on
+     * different threads when bulkheads are enabled, so listener must not modify it.
+     * Listener which needs to change it must work on its own copy.
+     *
+     * @return the decoded payload. null if no decoder is applicable.
+     * @throws IOException
+     *             throws if body cannot be decoded.
+     */
+    public Object getPayload() throws IOException {
+        return getPayload(PayloadDecoder.all());
+    }
+
+    /**
+     * Gets payload decoded by one of given decoders.
+     *
+     * @param decoders
+     *            the decoders.
+     * @return the decoded payload. null if no decoder is applicable.
+     * @throws IOException
+     *             throws if body cannot be decoded.
+     */
+    synchronized Object getPayload(Iterable<? extends PayloadDecoder> decoders) throws IOException {
+        if (!payloadDecoded) {
+            PayloadDecoder decoder = PayloadDecoder.find(decoders, getContentType());
+            try {
+                payload = decoder != null ? decoder.decode(this) : null;
+            } catch (IOException e) {
+                payloadError = e;
+            } finally {
+                payloadDecoded = true;
+            }
+        }
+        if (payloadError != null) {
+            throw payloadError;
+        }
+        return payload;
+    }
+
+    /**
+     * Gets raw body array for listeners which still use byte array.
+     *
+     * @return the content body.
+     */
+    byte[] getBodyArray() {
+        return body;
+    }
+
+    /**
+     * Decodes map of header values.
+     *
+     * @param map
+     *            the map.
+     * @return the unmodifiable decoded map.
+     */
+    private static Map<String, Object> decodeMap(Map<String, Object> map) {
+        if (map == null || map.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> decoded = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            decoded.put(e.getKey(), decodeValue(e.getValue()));
+        }
+        return Collections.unmodifiableMap(decoded);
+    }
+
+    /**
+     * Decodes header value.
+     *
+     * @param value
+     *            the value.
+     * @return the decoded value.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object decodeValue(Object value) {
+        if (value instanceof LongString) {
+            return value.toString();
+        } else if (value instanceof Map) {
+            return decodeMap((Map<String, Object>) value);
+        } else if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>();
+            for (Object v : (List<Object>) value) {
+                list.add(decodeValue(v));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,25 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.logger;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Periodic work which writes messages recorded by {@link MessageLogger} to log.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class MessageLogFlusher extends PeriodicWork {
+
+    private static final long RECURRENCE_PERIOD = 1000;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void doRun() {
+        MessageLogger.flush();
+    }
+}
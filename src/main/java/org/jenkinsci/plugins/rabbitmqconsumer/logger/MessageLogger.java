@@ -2,17 +2,25 @@ package org.jenkinsci.plugins.rabbitmqconsumer.logger;
 
 import hudson.Extension;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+import org.jenkinsci.plugins.rabbitmqconsumer.GlobalRabbitmqConfiguration;
 import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqConsumeItem;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Extension for logging messages. This is debug purpose.
  *
+ * Sampled messages are recorded into ring buffer on consumer thread, then
+ * {@link MessageLogFlusher} writes them to log on another thread.
+ *
  * @author rinrinne a.k.a. rin_ne
  */
 @Extension
@@ -20,6 +28,81 @@ public class MessageLogger extends MessageQueueListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageLogger.class);
     private static final String PLUGIN_NAME = "Message Logger for debug";
 
+    private static volatile MessageRingBuffer buffer =
+            new MessageRingBuffer(GlobalRabbitmqConfiguration.DEFAULT_DEBUG_BUFFER_SIZE);
+    private static volatile int sampleInterval = 1;
+    private static volatile int bodyLimit = GlobalRabbitmqConfiguration.DEFAULT_DEBUG_BODY_LIMIT;
+
+    /**
+     * Configures recording of messages.
+     *
+     * @param bufferSize
+     *            the number of records kept in buffer.
+     * @param interval
+     *            the number of messages per recorded message.
+     * @param limit
+     *            the maximum length in bytes of recorded body.
+     */
+    public static void configure(int bufferSize, int interval, int limit) {
+        if (buffer.capacity() != MessageRingBuffer.sizeFor(bufferSize)) {
+            // records which are not flushed yet are lost.
+            buffer = new MessageRingBuffer(bufferSize);
+        }
+        sampleInterval = Math.max(1, interval);
+        bodyLimit = Math.max(0, limit);
+    }
+
+    /**
+     * Gets records which are currently kept in buffer.
+     *
+     * @return the list of records from oldest to newest.
+     */
+    public static List<MessageRecord> getRecords() {
+        return buffer.getRecords();
+    }
+
+    /**
+     * Writes records which are added since last flush to log.
+     */
+    static void flush() {
+        List<MessageRecord> records = new ArrayList<MessageRecord>();
+        long dropped = buffer.drain(records);
+        if (dropped > 0) {
+            LOGGER.warn("{} messages were not logged because debug buffer overflowed.", dropped);
+        }
+        for (MessageRecord r : records) {
+            LOGGER.info("Receive from {}: ({}) {}{}", r.getQueueName(), r.getContentType(), r.getBody(),
+                    r.isTruncated() ? "..." : "");
+        }
+    }
+
+    /**
+     * Records message if it is sampled.
+     *
+     * @param queueName
+     *            the queue name.
+     * @param appId
+     *            the application id.
+     * @param contentType
+     *            the type of content.
+     * @param headers
+     *            the raw headers.
+     * @param body
+     *            the content body.
+     */
+    private static void record(String queueName, String appId, String contentType,
+            Map<String, Object> headers, ByteBuffer body) {
+        int interval = sampleInterval;
+        if (interval > 1 && ThreadLocalRandom.current().nextInt(interval) != 0) {
+            return;
+        }
+        int length = body.remaining();
+        byte[] truncated = new byte[Math.min(length, bodyLimit)];
+        body.get(truncated);
+        buffer.add(new MessageRecord(System.currentTimeMillis(), queueName, appId, contentType,
+                headers, truncated, length));
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -58,6 +141,18 @@ public class MessageLogger extends MessageQueueListener {
         LOGGER.info("Unbind from " + queueName);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @param message
+     *            the received message.
+     */
+    @Override
+    public void onReceive(RMQMessage message) {
+        record(message.getQueueName(), message.getAppId(), message.getContentType(),
+                message.getRawHeaders(), message.getBody());
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -71,12 +166,6 @@ public class MessageLogger extends MessageQueueListener {
      *            the content body.
      */
     public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
-        String msg;
-        try {
-            msg = new String(body, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            msg = "<Unsupported Encoding>";
-        }
-        LOGGER.info("Receive: ({}) {}", contentType, msg);
+        record(queueName, null, contentType, headers, ByteBuffer.wrap(body));
     }
 }
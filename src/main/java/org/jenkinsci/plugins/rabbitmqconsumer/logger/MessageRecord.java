@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.logger;
+
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Record of received message kept by {@link MessageLogger}.
+ *
+ * Body is kept as truncated bytes and decoded only when record is logged or viewed.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class MessageRecord {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long timestamp;
+    private final String queueName;
+    private final String appId;
+    private final String contentType;
+    private final Map<String, Object> headers;
+    private final byte[] body;
+    private final int bodyLength;
+    volatile long sequence;
+
+    /**
+     * Creates instance.
+     *
+     * @param timestamp
+     *            the time when message is received.
+     * @param queueName
+     *            the queue name.
+     * @param appId
+     *            the application id.
+     * @param contentType
+     *            the type of content.
+     * @param headers
+     *            the raw headers.
+     * @param body
+     *            the truncated body.
+     * @param bodyLength
+     *            the length of original body.
+     */
+    MessageRecord(long timestamp, String queueName, String appId, String contentType,
+            Map<String, Object> headers, byte[] body, int bodyLength) {
+        this.timestamp = timestamp;
+        this.queueName = queueName;
+        this.appId = appId;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.body = body;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * Gets the time when message is received.
+     *
+     * @return the time.
+     */
+    @Exported
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    /**
+     * Gets queue name.
+     *
+     * @return the queue name.
+     */
+    @Exported
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Gets application id.
+     *
+     * @return the application id.
+     */
+    @Exported
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Gets content type.
+     *
+     * @return the content type.
+     */
+    @Exported
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Gets headers as string.
+     *
+     * @return the headers. null if message has no header.
+     */
+    @Exported
+    public String getHeaders() {
+        return headers != null ? headers.toString() : null;
+    }
+
+    /**
+     * Gets body decoded as UTF-8.
+     *
+     * @return the body. it may be truncated.
+     */
+    @Exported
+    public String getBody() {
+        return new String(body, UTF_8);
+    }
+
+    /**
+     * Gets length of original body.
+     *
+     * @return the length in bytes.
+     */
+    @Exported
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Gets whether body is truncated.
+     *
+     * @return true if truncated.
+     */
+    @Exported
+    public boolean isTruncated() {
+        return body.length < bodyLength;
+    }
+}
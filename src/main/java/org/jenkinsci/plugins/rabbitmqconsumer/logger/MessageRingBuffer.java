@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size ring buffer of message records.
+ *
+ * Writers never block. Each writer reserves sequence number and overwrites the oldest slot,
+ * so readers detect overwritten slots by sequence number of record.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+final class MessageRingBuffer {
+
+    private final AtomicReferenceArray<MessageRecord> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private long drained;
+
+    /**
+     * Creates instance.
+     *
+     * @param capacity
+     *            the number of records. it is rounded up to power of two.
+     */
+    MessageRingBuffer(int capacity) {
+        int size = sizeFor(capacity);
+        this.slots = new AtomicReferenceArray<MessageRecord>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Gets actual capacity for requested capacity.
+     *
+     * @param capacity
+     *            the requested number of records.
+     * @return the power of two which is not less than requested.
+     */
+    static int sizeFor(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity));
+        return size < capacity ? size << 1 : size;
+    }
+
+    /**
+     * Gets capacity.
+     *
+     * @return the number of records.
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Adds record. The oldest record is overwritten if buffer is full.
+     *
+     * @param record
+     *            the record.
+     */
+    void add(MessageRecord record) {
+        long seq = next.getAndIncrement();
+        record.sequence = seq;
+        slots.set((int) (seq & mask), record);
+    }
+
+    /**
+     * Gets sequence number of next record.
+     *
+     * @return the sequence number.
+     */
+    long getNextSequence() {
+        return next.get();
+    }
+
+    /**
+     * Reads records from specified sequence number.
+     * Reading stops at the first slot which is reserved but not written yet.
+     *
+     * @param from
+     *            the sequence number to start.
+     * @param records
+     *            the list to which records are added.
+     * @return the sequence number to start at next read.
+     */
+    long read(long from, List<MessageRecord> records) {
+        long end = next.get();
+        long seq = Math.max(from, end - slots.length());
+        for (; seq < end; seq++) {
+            MessageRecord r = slots.get((int) (seq & mask));
+            if (r == null || r.sequence < seq) {
+                break;
+            }
+            if (r.sequence == seq) {
+                records.add(r);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Reads records which are added since last drain.
+     *
+     * @param records
+     *            the list to which records are added.
+     * @return the number of records which were overwritten before drain.
+     */
+    synchronized long drain(List<MessageRecord> records) {
+        int before = records.size();
+        long from = drained;
+        drained = read(from, records);
+        return drained - from - (records.size() - before);
+    }
+
+    /**
+     * Gets records which are currently kept, from oldest to newest.
+     *
+     * @return the list of records.
+     */
+    List<MessageRecord> getRecords() {
+        List<MessageRecord> records = new ArrayList<MessageRecord>(slots.length());
+        read(0, records);
+        return records;
+    }
+}
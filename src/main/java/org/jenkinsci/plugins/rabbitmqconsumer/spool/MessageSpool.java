@@ -0,0 +1,740 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.spool;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.FailurePolicy;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only spool of deliveries for a queue.
+ *
+ * Consumers append deliveries to memory-mapped segment files, force them to
+ * disk, then ack them. Consumers which append at the same time share one force.
+ * Reader thread reads forced records sequentially and hands them to handler.
+ * Record which cannot be forced is marked as dispatched before consumer
+ * handles it without spool, so that it is not delivered twice.
+ * Segment is rolled over when it is full, and deleted when all its records are
+ * dispatched. Records which are not dispatched yet are recovered from files
+ * when spool is opened again, so they may be delivered twice after crash.
+ *
+ * Record which listeners failed to handle is appended again with its retry
+ * count, or written to segment under dead-letter directory according to
+ * failure policy. Retries are always limited so that poison record does not
+ * loop forever. Spool refuses new deliveries when its segment files except
+ * dead-letter ones reach maximum size, so that consumers handle them without
+ * spool.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@ExportedBean(defaultVisibility = 2)
+public class MessageSpool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageSpool.class);
+    /**
+     * Name of directory for dead-letter segments.
+     */
+    static final String DEAD_LETTER_DIR = "dead";
+
+    /**
+     * The maximum number of retries when no limit is configured.
+     */
+    static final int DEFAULT_MAX_RETRIES = 10;
+
+    /**
+     * Handler of spooled message.
+     */
+    interface Handler {
+        /**
+         * Handles message. Given callback must be called when message is dispatched.
+         *
+         * @param message
+         *            the message.
+         * @param onComplete
+         *            the callback.
+         * @throws InterruptedException
+         *             throws if interrupted.
+         */
+        void handle(RMQMessage message, Completion onComplete) throws InterruptedException;
+    }
+
+    /**
+     * Callback for dispatched message.
+     */
+    interface Completion {
+        /**
+         * Called when message is dispatched.
+         *
+         * @param handled
+         *            true if listeners handled message.
+         */
+        void complete(boolean handled);
+    }
+
+    /**
+     * Record read from segment.
+     */
+    private static final class Record {
+        private final SpoolSegment segment;
+        private final int start;
+        private final int end;
+        private final byte[] payload;
+
+        /**
+         * Creates instance with specified parameters.
+         *
+         * @param segment
+         *            the segment.
+         * @param start
+         *            the start position.
+         * @param end
+         *            the end position.
+         * @param payload
+         *            the payload.
+         */
+        Record(SpoolSegment segment, int start, int end, byte[] payload) {
+            this.segment = segment;
+            this.start = start;
+            this.end = end;
+            this.payload = payload;
+        }
+    }
+
+    private final String brokerName;
+    private final String queueName;
+    private final File dir;
+    private final File deadDir;
+    private final int segmentSize;
+    private final Handler handler;
+
+    private final List<SpoolSegment> segments = new ArrayList<SpoolSegment>();
+    private SpoolSegment writeSegment;
+    private SpoolSegment readSegment;
+    private SpoolSegment deadSegment;
+    private long nextSequence = 0;
+    private long nextDeadSequence = 0;
+    private long deadBytes = 0;
+    private long writtenCount = 0;
+    private boolean closed = false;
+    private boolean full = false;
+    private Thread reader;
+
+    private final Object syncLock = new Object();
+    private long syncedCount = 0;
+
+    private volatile FailurePolicy failurePolicy = FailurePolicy.ACK;
+    private volatile int maxRedeliveries = DEFAULT_MAX_RETRIES;
+    private volatile long maxBytes = 0;
+
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong brokenCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong deadLetteredCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private long recoveredBytes = 0;
+
+    /**
+     * Creates instance and recovers records in existing segment files.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @param dir
+     *            the directory of segment files.
+     * @param segmentSize
+     *            the size of segment file in bytes.
+     * @param handler
+     *            the handler of spooled message.
+     * @throws IOException
+     *             throws if directory is not available.
+     */
+    MessageSpool(String brokerName, String queueName, File dir, int segmentSize, Handler handler)
+            throws IOException {
+        this.brokerName = brokerName;
+        this.queueName = queueName;
+        this.dir = dir;
+        this.deadDir = new File(dir, DEAD_LETTER_DIR);
+        this.segmentSize = segmentSize;
+        this.handler = handler;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spool directory: " + dir);
+        }
+        recover();
+    }
+
+    /**
+     * Opens existing segment files.
+     */
+    private void recover() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(SpoolSegment.SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            try {
+                SpoolSegment segment = SpoolSegment.open(f);
+                nextSequence = Math.max(nextSequence, segment.getSequence() + 1);
+                if (segment.isDone()) {
+                    segment.delete();
+                } else {
+                    segments.add(segment);
+                    recoveredBytes += segment.getPendingBytes();
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Failed to recover spool segment {}. It is skipped.", f, e);
+            }
+        }
+        if (!segments.isEmpty()) {
+            readSegment = segments.get(0);
+            LOGGER.info("Recovered {} spool segment(s) for {}.", segments.size(), queueName);
+        }
+        File[] deadFiles = deadDir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(SpoolSegment.SUFFIX);
+            }
+        });
+        if (deadFiles != null) {
+            for (File f : deadFiles) {
+                try {
+                    String name = f.getName();
+                    long sequence = Long.parseLong(name.substring(0, name.length() - SpoolSegment.SUFFIX.length()));
+                    nextDeadSequence = Math.max(nextDeadSequence, sequence + 1);
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Unknown dead-letter segment {}.", f);
+                }
+                deadBytes += f.length();
+            }
+        }
+    }
+
+    /**
+     * Configures handling of failed records and maximum size of files.
+     *
+     * @param policy
+     *            the policy for record which listeners failed to handle.
+     * @param redeliveries
+     *            the maximum number of retries. 0 means {@link #DEFAULT_MAX_RETRIES}.
+     * @param bytes
+     *            the maximum size of files in bytes. 0 means unlimited.
+     */
+    void configure(FailurePolicy policy, int redeliveries, long bytes) {
+        failurePolicy = policy != null ? policy : FailurePolicy.ACK;
+        maxRedeliveries = redeliveries > 0 ? redeliveries : DEFAULT_MAX_RETRIES;
+        maxBytes = Math.max(0, bytes);
+    }
+
+    /**
+     * Starts reader thread.
+     *
+     * @param factory
+     *            the thread factory.
+     */
+    synchronized void start(ThreadFactory factory) {
+        if (reader == null) {
+            reader = factory.newThread(new Runnable() {
+                public void run() {
+                    readLoop();
+                }
+            });
+            reader.start();
+        }
+    }
+
+    /**
+     * Appends message and forces it to disk.
+     *
+     * @param message
+     *            the message.
+     * @return true if message is written to spool. false if caller must handle it by itself.
+     */
+    public boolean append(RMQMessage message) {
+        byte[] payload;
+        try {
+            payload = SpoolCodec.encode(message);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to encode message for spool of {}.", queueName, e);
+            return false;
+        }
+        Record record;
+        long ticket;
+        synchronized (this) {
+            record = write(payload, true);
+            ticket = writtenCount;
+        }
+        if (record == null) {
+            return false;
+        }
+        appendedCount.incrementAndGet();
+        return sync(ticket, record);
+    }
+
+    /**
+     * Writes record to current segment. Caller must hold lock.
+     *
+     * @param payload
+     *            the record.
+     * @param bounded
+     *            true if maximum size of files is applied.
+     * @return the written record. null if record is not written.
+     */
+    private Record write(byte[] payload, boolean bounded) {
+        if (closed) {
+            return null;
+        }
+        try {
+            if (writeSegment == null || !writeSegment.append(payload)) {
+                if (bounded && isFull(payload.length)) {
+                    overflowCount.incrementAndGet();
+                    if (!full) {
+                        full = true;
+                        LOGGER.warn("Spool for {} is full. Deliveries are handled without spool.", queueName);
+                    }
+                    return null;
+                }
+                full = false;
+                rollover(payload.length);
+                if (!writeSegment.append(payload)) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write spool for {}.", queueName, e);
+            return null;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to write spool for {}.", queueName, e);
+            return null;
+        }
+        writtenCount++;
+        int end = writeSegment.getWritePosition();
+        return new Record(writeSegment, end - SpoolSegment.LENGTH_SIZE - payload.length, end, payload);
+    }
+
+    /**
+     * Gets whether new segment exceeds maximum size of files. Caller must hold lock.
+     *
+     * @param length
+     *            the length of record which must fit into new segment.
+     * @return true if spool is full.
+     */
+    private boolean isFull(int length) {
+        long max = maxBytes;
+        if (max <= 0 || segments.isEmpty()) {
+            return false;
+        }
+        // dead-letter segments are not drained by reader, so they must not block spool.
+        long bytes = getSegmentSize(length);
+        for (SpoolSegment s : segments) {
+            bytes += s.getCapacity();
+        }
+        return bytes > max;
+    }
+
+    /**
+     * Gets the size of new segment.
+     *
+     * @param length
+     *            the length of record which must fit into new segment.
+     * @return the size in bytes.
+     */
+    private int getSegmentSize(int length) {
+        return Math.max(segmentSize, SpoolSegment.HEADER_SIZE + length + SpoolSegment.LENGTH_SIZE * 2);
+    }
+
+    /**
+     * Forces records to disk. Callers waiting for the same force share it.
+     * If force fails, given record is marked as dispatched so that reader
+     * never hands it to handler.
+     *
+     * @param ticket
+     *            the number of records which must be forced.
+     * @param record
+     *            the record of caller.
+     * @return true if records are forced. false if caller must handle record by itself.
+     */
+    private boolean sync(long ticket, Record record) {
+        synchronized (syncLock) {
+            if (syncedCount >= ticket) {
+                return true;
+            }
+            SpoolSegment segment;
+            long count;
+            synchronized (this) {
+                // previous segments are forced when they are sealed.
+                segment = writeSegment;
+                count = writtenCount;
+            }
+            try {
+                segment.force();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to force spool for {}.", queueName, e);
+                synchronized (this) {
+                    if (record.segment.getSyncedPosition() >= record.end) {
+                        // already readable because its segment was sealed.
+                        return true;
+                    }
+                    complete(record);
+                }
+                return false;
+            }
+            syncedCount = count;
+        }
+        synchronized (this) {
+            // forced records are readable now.
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Seals current segment and creates new one. Caller must hold lock.
+     *
+     * @param length
+     *            the length of record which must fit into new segment.
+     * @throws IOException
+     *             throws if segment cannot be created.
+     */
+    private void rollover(int length) throws IOException {
+        if (writeSegment != null) {
+            writeSegment.seal();
+        }
+        writeSegment = SpoolSegment.create(dir, nextSequence++, getSegmentSize(length));
+        segments.add(writeSegment);
+        if (readSegment == null) {
+            readSegment = writeSegment;
+        }
+    }
+
+    /**
+     * Reads records and hands them to handler until spool is closed.
+     */
+    private void readLoop() {
+        try {
+            Record record;
+            while ((record = next()) != null) {
+                RMQMessage message;
+                try {
+                    message = SpoolCodec.decode(record.payload);
+                } catch (IOException e) {
+                    LOGGER.warn("Broken record in spool of {} is skipped.", queueName, e);
+                    brokenCount.incrementAndGet();
+                    complete(record);
+                    continue;
+                }
+                final Record r = record;
+                handler.handle(message, new Completion() {
+                    public void complete(boolean handled) {
+                        dispatchedCount.incrementAndGet();
+                        if (handled || handleFailure(r)) {
+                            MessageSpool.this.complete(r);
+                        }
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            LOGGER.info("Spool reader for {} is interrupted.", queueName);
+        }
+    }
+
+    /**
+     * Waits for next record.
+     *
+     * @return the record. null if spool is closed.
+     * @throws InterruptedException
+     *             throws if interrupted.
+     */
+    private synchronized Record next() throws InterruptedException {
+        while (true) {
+            if (closed) {
+                return null;
+            }
+            if (readSegment != null) {
+                byte[] payload = readSegment.read();
+                if (payload != null) {
+                    int end = readSegment.getReadPosition();
+                    return new Record(readSegment, end - SpoolSegment.LENGTH_SIZE - payload.length, end, payload);
+                }
+                if (readSegment.isFullyRead()) {
+                    SpoolSegment done = readSegment;
+                    int index = segments.indexOf(done);
+                    readSegment = index + 1 < segments.size() ? segments.get(index + 1) : null;
+                    if (done.isDone()) {
+                        remove(done);
+                    }
+                    continue;
+                }
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Handles record which listeners failed to handle according to failure policy.
+     *
+     * @param record
+     *            the record.
+     * @return true if record can be marked as dispatched. false if it must be kept in file.
+     */
+    private boolean handleFailure(Record record) {
+        FailurePolicy policy = failurePolicy;
+        if (policy == FailurePolicy.ACK) {
+            LOGGER.warn("Listeners failed to handle spooled message in {}. It is dropped.", queueName);
+            return true;
+        }
+        int retries = SpoolCodec.getRetries(record.payload);
+        int limit = maxRedeliveries;
+        Record retry = null;
+        long ticket;
+        synchronized (this) {
+            if (closed) {
+                // kept for next start.
+                return false;
+            }
+            if (policy == FailurePolicy.REQUEUE && retries < limit) {
+                retry = write(SpoolCodec.withRetries(record.payload, retries + 1), false);
+            } else if (policy == FailurePolicy.REQUEUE) {
+                LOGGER.warn("Spooled message in {} exceeded redelivery limit.", queueName);
+            }
+            ticket = writtenCount;
+            if (retry == null) {
+                if (writeDeadLetter(record.payload)) {
+                    deadLetteredCount.incrementAndGet();
+                    LOGGER.warn("Spooled message in {} is moved to dead-letter segment.", queueName);
+                    return true;
+                }
+                LOGGER.warn("Listeners failed to handle spooled message in {}. It is dropped.", queueName);
+                return true;
+            }
+        }
+        retriedCount.incrementAndGet();
+        return sync(ticket, retry);
+    }
+
+    /**
+     * Writes record to dead-letter segment and forces it. Caller must hold lock.
+     *
+     * @param payload
+     *            the record.
+     * @return true if record is written.
+     */
+    private boolean writeDeadLetter(byte[] payload) {
+        try {
+            if (deadSegment == null || !deadSegment.append(payload)) {
+                if (deadSegment != null) {
+                    deadSegment.seal();
+                }
+                if (!deadDir.isDirectory() && !deadDir.mkdirs()) {
+                    throw new IOException("Cannot create dead-letter directory: " + deadDir);
+                }
+                int size = getSegmentSize(payload.length);
+                deadSegment = SpoolSegment.create(deadDir, nextDeadSequence++, size);
+                deadBytes += size;
+                if (!deadSegment.append(payload)) {
+                    return false;
+                }
+            }
+            deadSegment.force();
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write dead-letter segment for {}.", queueName, e);
+            return false;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to write dead-letter segment for {}.", queueName, e);
+            return false;
+        }
+    }
+
+    /**
+     * Marks record as dispatched. Segment is deleted when all its records are dispatched.
+     *
+     * @param record
+     *            the record.
+     */
+    private void complete(Record record) {
+        if (record.segment.complete(record.start, record.end)) {
+            synchronized (this) {
+                if (record.segment != readSegment) {
+                    remove(record.segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and deletes segment. Caller must hold lock.
+     *
+     * @param segment
+     *            the segment.
+     */
+    private void remove(SpoolSegment segment) {
+        if (segments.remove(segment)) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Closes spool. Records which are not dispatched are left in files and
+     * recovered when spool is opened next time.
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (writeSegment != null) {
+                writeSegment.force();
+            }
+            if (deadSegment != null) {
+                deadSegment.seal();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Gets whether no record is waiting for dispatch.
+     *
+     * @return true if empty.
+     */
+    synchronized boolean isEmpty() {
+        return getPendingBytes() == 0;
+    }
+
+    /**
+     * Gets name of broker.
+     *
+     * @return the name.
+     */
+    @Exported
+    public String getBrokerName() {
+        return brokerName;
+    }
+
+    /**
+     * Gets queue name.
+     *
+     * @return the queue name.
+     */
+    @Exported
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Gets the number of segment files.
+     *
+     * @return the number of files.
+     */
+    @Exported
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the size of records which are not dispatched yet.
+     *
+     * @return the size in bytes.
+     */
+    @Exported
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (SpoolSegment s : segments) {
+            bytes += s.getPendingBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the number of appended messages.
+     *
+     * @return the number of messages.
+     */
+    @Exported
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    /**
+     * Gets the number of dispatched messages.
+     *
+     * @return the number of messages.
+     */
+    @Exported
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Gets the number of records which could not be decoded.
+     *
+     * @return the number of records.
+     */
+    @Exported
+    public long getBrokenCount() {
+        return brokenCount.get();
+    }
+
+    /**
+     * Gets the number of records which are appended again after listeners failed.
+     *
+     * @return the number of records.
+     */
+    @Exported
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    /**
+     * Gets the number of records which are moved to dead-letter segment.
+     *
+     * @return the number of records.
+     */
+    @Exported
+    public long getDeadLetteredCount() {
+        return deadLetteredCount.get();
+    }
+
+    /**
+     * Gets the size of dead-letter segment files. They are not counted in maximum size of spool.
+     *
+     * @return the size in bytes.
+     */
+    @Exported
+    public synchronized long getDeadLetterBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * Gets the number of deliveries which were refused because spool was full.
+     *
+     * @return the number of deliveries.
+     */
+    @Exported
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Gets the size of records recovered from files when spool was opened.
+     *
+     * @return the size in bytes.
+     */
+    @Exported
+    public long getRecoveredBytes() {
+        return recoveredBytes;
+    }
+}
@@ -0,0 +1,339 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.spool;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqBroker;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.FailurePolicy;
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.RateLimiters;
+import org.jenkinsci.plugins.rabbitmqconsumer.dispatchers.MessageDispatcher;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ContentCodec;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.SystemContextThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of spools under JENKINS_HOME.
+ *
+ * Spool is kept in directory per broker and queue, so queues of the same name on
+ * different brokers do not share it. Spools which have records left by previous run
+ * are opened at configuration and their records are dispatched even if spool is
+ * disabled now. Spool of older version which has no broker directory is moved to
+ * directory of default broker.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class MessageSpools {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageSpools.class);
+    private static final String SPOOL_DIR = "rabbitmq-consumer-spool";
+    private static final String ENCODING = "UTF-8";
+    private static final int BYTES_PER_MB = 1024 * 1024;
+
+    private static final Map<String, MessageSpool> SPOOLS = new ConcurrentHashMap<String, MessageSpool>();
+    private static volatile boolean enabled = false;
+    private static volatile int segmentSize = 0;
+    private static volatile long maxSize = 0;
+    private static volatile FailurePolicy failurePolicy = FailurePolicy.ACK;
+    private static volatile int maxRedeliveries = 0;
+    private static volatile MessageDispatcher dispatcher;
+    private static boolean recovered = false;
+
+    /**
+     * Utility class.
+     */
+    private MessageSpools() {
+    }
+
+    /**
+     * Creates handler which delivers spooled messages of broker to listeners.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @return the handler.
+     */
+    private static MessageSpool.Handler createHandler(final String brokerName) {
+        return new MessageSpool.Handler() {
+            public void handle(final RMQMessage message, final MessageSpool.Completion onComplete)
+                    throws InterruptedException {
+                Runnable task = new Runnable() {
+                    public void run() {
+                        boolean handled = false;
+                        boolean kept = false;
+                        try {
+                            handled = deliver(brokerName, message);
+                        } catch (InterruptedException e) {
+                            // not completed, so record is delivered at next start.
+                            kept = true;
+                            Thread.currentThread().interrupt();
+                            LOGGER.info("Interrupted while waiting for rate limit of {}.", message.getQueueName());
+                        } finally {
+                            if (!kept) {
+                                onComplete.complete(handled);
+                            }
+                        }
+                    }
+                };
+                MessageDispatcher d = dispatcher;
+                if (d == null) {
+                    task.run();
+                    return;
+                }
+                try {
+                    d.dispatch(d.getKey(message.getEnvelope(), message.getProperties()), message.getAppId(), task);
+                } catch (RuntimeException e) {
+                    // dispatcher is being replaced.
+                    task.run();
+                }
+            }
+        };
+    }
+
+    /**
+     * Configures spools. Spools left by previous run are recovered at first call.
+     *
+     * @param enable
+     *            true if deliveries are spooled.
+     * @param segmentSizeMb
+     *            the size of segment file in megabytes.
+     * @param maxSizeMb
+     *            the maximum size of files per spool in megabytes. 0 means unlimited.
+     * @param policy
+     *            the policy for message which listeners failed to handle.
+     * @param redeliveries
+     *            the maximum number of retries. 0 means default limit of spool.
+     * @param messageDispatcher
+     *            the dispatcher for spooled messages. null means reader thread calls listeners.
+     */
+    public static synchronized void configure(boolean enable, int segmentSizeMb, int maxSizeMb,
+            FailurePolicy policy, int redeliveries, MessageDispatcher messageDispatcher) {
+        segmentSize = Math.max(1, segmentSizeMb) * BYTES_PER_MB;
+        maxSize = (long) Math.max(0, maxSizeMb) * BYTES_PER_MB;
+        failurePolicy = policy;
+        maxRedeliveries = redeliveries;
+        dispatcher = messageDispatcher;
+        enabled = enable;
+        for (MessageSpool spool : SPOOLS.values()) {
+            spool.configure(failurePolicy, maxRedeliveries, maxSize);
+        }
+        if (!recovered) {
+            recovered = true;
+            recover();
+        }
+    }
+
+    /**
+     * Opens spools which have segment files.
+     */
+    private static void recover() {
+        File root = getRootDir();
+        if (root == null) {
+            return;
+        }
+        migrate(root);
+        for (File b : listDirs(root)) {
+            for (File d : listDirs(b)) {
+                try {
+                    open(URLDecoder.decode(b.getName(), ENCODING), URLDecoder.decode(d.getName(), ENCODING));
+                } catch (UnsupportedEncodingException e) {
+                    LOGGER.warn("Unknown spool directory {}.", d);
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Unknown spool directory {}.", d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves spools of older version to directory of default broker.
+     * Spool directory has segment files or dead-letter directory,
+     * while broker directory has only spool directories.
+     *
+     * @param root
+     *            the root directory of spools.
+     */
+    private static void migrate(File root) {
+        File defaultDir;
+        try {
+            defaultDir = new File(root, URLEncoder.encode(RabbitmqBroker.DEFAULT_BROKER_NAME, ENCODING));
+        } catch (UnsupportedEncodingException e) {
+            return;
+        }
+        for (File d : listDirs(root)) {
+            String[] segments = d.list(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(SpoolSegment.SUFFIX);
+                }
+            });
+            boolean legacy = segments != null && segments.length > 0;
+            if (!legacy && new File(d, MessageSpool.DEAD_LETTER_DIR).isDirectory()) {
+                legacy = listDirs(d).length == 1;
+            }
+            if (!legacy) {
+                continue;
+            }
+            File dest = new File(defaultDir, d.getName());
+            if (!dest.exists() && (defaultDir.isDirectory() || defaultDir.mkdirs()) && d.renameTo(dest)) {
+                LOGGER.info("Moved spool {} to {}.", d, dest);
+            } else {
+                LOGGER.warn("Failed to move spool {} to {}.", d, dest);
+            }
+        }
+    }
+
+    /**
+     * Lists child directories.
+     *
+     * @param dir
+     *            the directory.
+     * @return the array of directories. empty if none.
+     */
+    private static File[] listDirs(File dir) {
+        File[] dirs = dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isDirectory();
+            }
+        });
+        return dirs != null ? dirs : new File[0];
+    }
+
+    /**
+     * Gets spool for queue. It is created if not exist.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @return the spool. null if spool is disabled or not available.
+     */
+    public static MessageSpool get(String brokerName, String queueName) {
+        if (!enabled) {
+            return null;
+        }
+        String key = getKey(brokerName, queueName);
+        MessageSpool spool = SPOOLS.get(key);
+        if (spool != null) {
+            return spool;
+        }
+        synchronized (MessageSpools.class) {
+            spool = SPOOLS.get(key);
+            return spool != null ? spool : open(brokerName, queueName);
+        }
+    }
+
+    /**
+     * Opens spool for queue and starts its reader.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @return the spool. null if failed to open.
+     */
+    private static MessageSpool open(String brokerName, String queueName) {
+        File root = getRootDir();
+        if (root == null) {
+            return null;
+        }
+        try {
+            File dir = new File(new File(root, URLEncoder.encode(brokerName, ENCODING)),
+                    URLEncoder.encode(queueName, ENCODING));
+            MessageSpool spool = new MessageSpool(brokerName, queueName, dir, segmentSize,
+                    createHandler(brokerName));
+            spool.configure(failurePolicy, maxRedeliveries, maxSize);
+            spool.start(new SystemContextThreadFactory(new NamingThreadFactory(new DaemonThreadFactory(),
+                    "RabbitMQ spool reader for " + queueName + " on " + brokerName)));
+            SPOOLS.put(getKey(brokerName, queueName), spool);
+            return spool;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to open spool for {} on {}.", queueName, brokerName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets key of spool.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param queueName
+     *            the queue name.
+     * @return the key.
+     */
+    private static String getKey(String brokerName, String queueName) {
+        return brokerName + "\n" + queueName;
+    }
+
+    /**
+     * Closes all spools. Records which are not dispatched are kept in files.
+     */
+    public static synchronized void shutdown() {
+        for (MessageSpool spool : SPOOLS.values()) {
+            spool.close();
+        }
+        SPOOLS.clear();
+        recovered = false;
+    }
+
+    /**
+     * Gets all spools.
+     *
+     * @return the list of spools.
+     */
+    public static List<MessageSpool> getAll() {
+        return new ArrayList<MessageSpool>(SPOOLS.values());
+    }
+
+    /**
+     * Delivers spooled message to listeners. Message is already acked to broker,
+     * so failure is handled by spool according to failure policy.
+     *
+     * @param brokerName
+     *            the name of broker.
+     * @param message
+     *            the message.
+     * @return true if listeners handled message.
+     * @throws InterruptedException
+     *             throws if interrupted while waiting for rate limit.
+     */
+    private static boolean deliver(String brokerName, RMQMessage message) throws InterruptedException {
+        try {
+            RateLimiters.acquire(brokerName, message.getQueueName(), message.getAppId(), 1);
+            if (MessageQueueListener.fireOnReceiveWithResult(message.getAppId(), ContentCodec.decode(message))) {
+                return true;
+            }
+            LOGGER.warn("Listeners failed to handle spooled message in {}.", message.getQueueName());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to decode content of spooled message in {}.", message.getQueueName(), e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("caught exception in spool delivery handler", e);
+        }
+        return false;
+    }
+
+    /**
+     * Gets root directory of spools.
+     *
+     * @return the directory. null if Jenkins is not available.
+     */
+    private static File getRootDir() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins != null ? new File(jenkins.getRootDir(), SPOOL_DIR) : null;
+    }
+}
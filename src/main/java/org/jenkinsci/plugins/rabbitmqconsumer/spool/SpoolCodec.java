@@ -0,0 +1,344 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.spool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.LongString;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Encoder and decoder of spooled message.
+ *
+ * Header values are stored with type tag. {@link LongString} is stored as String,
+ * and unknown types are stored as their string representation. Record also has
+ * the number of retries by spool, which is placed just after version.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+final class SpoolCodec {
+
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_RETRIES = 1;
+    private static final int RETRIES_OFFSET = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_DATE = 6;
+    private static final byte TYPE_BYTES = 7;
+    private static final byte TYPE_MAP = 8;
+    private static final byte TYPE_LIST = 9;
+
+    /**
+     * Utility class.
+     */
+    private SpoolCodec() {
+    }
+
+    /**
+     * Encodes message.
+     *
+     * @param message
+     *            the message.
+     * @return the encoded bytes.
+     * @throws IOException
+     *             throws if message cannot be encoded.
+     */
+    static byte[] encode(RMQMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.getBodyLength() + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Envelope envelope = message.getEnvelope();
+        BasicProperties props = message.getProperties();
+
+        out.writeByte(VERSION);
+        out.writeInt(0);
+        writeString(out, message.getQueueName());
+        writeString(out, envelope != null ? envelope.getExchange() : null);
+        writeString(out, envelope != null ? envelope.getRoutingKey() : null);
+        out.writeBoolean(envelope != null && envelope.isRedeliver());
+
+        writeString(out, props.getContentType());
+        writeString(out, props.getContentEncoding());
+        writeValue(out, props.getHeaders());
+        writeValue(out, props.getDeliveryMode());
+        writeValue(out, props.getPriority());
+        writeString(out, props.getCorrelationId());
+        writeString(out, props.getReplyTo());
+        writeString(out, props.getExpiration());
+        writeString(out, props.getMessageId());
+        writeValue(out, props.getTimestamp());
+        writeString(out, props.getType());
+        writeString(out, props.getUserId());
+        writeString(out, props.getAppId());
+        writeString(out, props.getClusterId());
+
+        ByteBuffer body = message.getBody();
+        out.writeInt(body.remaining());
+        byte[] array = new byte[body.remaining()];
+        body.get(array);
+        out.write(array);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes message. Delivery tag of decoded envelope is always 0 because
+     * message is already acked to broker.
+     *
+     * @param data
+     *            the encoded bytes.
+     * @return the message.
+     * @throws IOException
+     *             throws if data is broken.
+     */
+    @SuppressWarnings("unchecked")
+    static RMQMessage decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readByte();
+        if (version == VERSION) {
+            in.readInt();
+        } else if (version != VERSION_WITHOUT_RETRIES) {
+            throw new IOException("Unknown spool record version: " + version);
+        }
+        String queueName = readString(in);
+        String exchange = readString(in);
+        String routingKey = readString(in);
+        boolean redeliver = in.readBoolean();
+
+        String contentType = readString(in);
+        String contentEncoding = readString(in);
+        Map<String, Object> headers = (Map<String, Object>) readValue(in);
+        Integer deliveryMode = (Integer) readValue(in);
+        Integer priority = (Integer) readValue(in);
+        String correlationId = readString(in);
+        String replyTo = readString(in);
+        String expiration = readString(in);
+        String messageId = readString(in);
+        Date timestamp = (Date) readValue(in);
+        String type = readString(in);
+        String userId = readString(in);
+        String appId = readString(in);
+        String clusterId = readString(in);
+
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        BasicProperties props = new BasicProperties(contentType, contentEncoding, headers, deliveryMode,
+                priority, correlationId, replyTo, expiration, messageId, timestamp, type, userId, appId, clusterId);
+        return new RMQMessage(queueName, new Envelope(0L, redeliver, exchange, routingKey), props, body);
+    }
+
+    /**
+     * Gets the number of retries of encoded message.
+     *
+     * @param data
+     *            the encoded bytes.
+     * @return the number of retries.
+     */
+    static int getRetries(byte[] data) {
+        if (data.length < RETRIES_OFFSET + 4 || data[0] != VERSION) {
+            return 0;
+        }
+        return ByteBuffer.wrap(data).getInt(RETRIES_OFFSET);
+    }
+
+    /**
+     * Creates copy of encoded message with the number of retries.
+     *
+     * @param data
+     *            the encoded bytes.
+     * @param retries
+     *            the number of retries.
+     * @return the encoded bytes.
+     */
+    static byte[] withRetries(byte[] data, int retries) {
+        ByteBuffer buffer;
+        if (data.length > 0 && data[0] == VERSION_WITHOUT_RETRIES) {
+            buffer = ByteBuffer.allocate(data.length + 4);
+            buffer.put((byte) VERSION).putInt(retries).put(data, RETRIES_OFFSET, data.length - RETRIES_OFFSET);
+        } else {
+            buffer = ByteBuffer.wrap(data.clone());
+            buffer.putInt(RETRIES_OFFSET, retries);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Writes nullable string.
+     *
+     * @param out
+     *            the output.
+     * @param value
+     *            the string.
+     * @throws IOException
+     *             throws if failed to write.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeValue(out, value);
+    }
+
+    /**
+     * Reads nullable string.
+     *
+     * @param in
+     *            the input.
+     * @return the string.
+     * @throws IOException
+     *             throws if failed to read.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        Object value = readValue(in);
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Writes value with type tag.
+     *
+     * @param out
+     *            the output.
+     * @param value
+     *            the value.
+     * @throws IOException
+     *             throws if failed to write.
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            byte[] array = (byte[]) value;
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(array.length);
+            out.write(array);
+        } else if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            out.writeByte(TYPE_MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<String, Object> e : map.entrySet()) {
+                writeBytes(out, e.getKey());
+                writeValue(out, e.getValue());
+            }
+        } else if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(list.size());
+            for (Object v : list) {
+                writeValue(out, v);
+            }
+        } else {
+            out.writeByte(TYPE_STRING);
+            writeBytes(out, value.toString());
+        }
+    }
+
+    /**
+     * Reads value with type tag.
+     *
+     * @param in
+     *            the input.
+     * @return the value.
+     * @throws IOException
+     *             throws if failed to read.
+     */
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_NULL:
+            return null;
+        case TYPE_STRING:
+            return readBytes(in);
+        case TYPE_INTEGER:
+            return in.readInt();
+        case TYPE_LONG:
+            return in.readLong();
+        case TYPE_BOOLEAN:
+            return in.readBoolean();
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_DATE:
+            return new Date(in.readLong());
+        case TYPE_BYTES:
+            byte[] array = new byte[in.readInt()];
+            in.readFully(array);
+            return array;
+        case TYPE_MAP:
+            int size = in.readInt();
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < size; i++) {
+                String key = readBytes(in);
+                map.put(key, readValue(in));
+            }
+            return map;
+        case TYPE_LIST:
+            int length = in.readInt();
+            List<Object> list = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++) {
+                list.add(readValue(in));
+            }
+            return list;
+        default:
+            throw new IOException("Unknown spool value type: " + type);
+        }
+    }
+
+    /**
+     * Writes string as UTF-8 bytes. It is not limited to 64KB unlike writeUTF.
+     *
+     * @param out
+     *            the output.
+     * @param value
+     *            the string.
+     * @throws IOException
+     *             throws if failed to write.
+     */
+    private static void writeBytes(DataOutputStream out, String value) throws IOException {
+        byte[] array = value.getBytes("UTF-8");
+        out.writeInt(array.length);
+        out.write(array);
+    }
+
+    /**
+     * Reads string from UTF-8 bytes.
+     *
+     * @param in
+     *            the input.
+     * @return the string.
+     * @throws IOException
+     *             throws if failed to read.
+     */
+    private static String readBytes(DataInputStream in) throws IOException {
+        byte[] array = new byte[in.readInt()];
+        in.readFully(array);
+        return new String(array, "UTF-8");
+    }
+}
@@ -0,0 +1,335 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Memory-mapped segment file of spool.
+ *
+ * File starts with committed offset, and all records before it are already
+ * dispatched. Each record is length followed by payload. Length 0 means that
+ * no record is written yet, and -1 means end of segment. Writer puts payload
+ * before length, so reader never sees partial record. Reader reads records
+ * only after they are forced to disk, and skips records which are already
+ * marked as dispatched, that is, records which writer failed to force.
+ *
+ * Instances are guarded by lock of owner spool except completion.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+final class SpoolSegment {
+
+    /**
+     * Extension of segment file.
+     */
+    static final String SUFFIX = ".seg";
+    /**
+     * Size of header which has committed offset.
+     */
+    static final int HEADER_SIZE = 8;
+    /**
+     * Size of record length.
+     */
+    static final int LENGTH_SIZE = 4;
+
+    private static final int END_OF_SEGMENT = -1;
+
+    private final long sequence;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private volatile int writePosition;
+    private volatile int syncedPosition;
+    private int readPosition;
+    private volatile boolean sealed;
+
+    private final NavigableMap<Integer, Integer> completed = new TreeMap<Integer, Integer>();
+    private int committed;
+
+    /**
+     * Creates instance with mapped file.
+     *
+     * @param sequence
+     *            the sequence number of segment.
+     * @param file
+     *            the file.
+     * @param buffer
+     *            the mapped buffer.
+     */
+    private SpoolSegment(long sequence, File file, MappedByteBuffer buffer) {
+        this.sequence = sequence;
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    /**
+     * Creates new segment file.
+     *
+     * @param dir
+     *            the directory of spool.
+     * @param sequence
+     *            the sequence number of segment.
+     * @param size
+     *            the size of file in bytes.
+     * @return the segment.
+     * @throws IOException
+     *             throws if file cannot be created.
+     */
+    static SpoolSegment create(File dir, long sequence, int size) throws IOException {
+        File file = new File(dir, String.format("%020d", sequence) + SUFFIX);
+        SpoolSegment segment = new SpoolSegment(sequence, file, map(file, size));
+        segment.committed = HEADER_SIZE;
+        segment.buffer.putLong(0, HEADER_SIZE);
+        segment.writePosition = HEADER_SIZE;
+        segment.syncedPosition = HEADER_SIZE;
+        segment.readPosition = HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * Opens existing segment file to recover records which are not dispatched.
+     *
+     * @param file
+     *            the file.
+     * @return the segment.
+     * @throws IOException
+     *             throws if file cannot be opened.
+     */
+    static SpoolSegment open(File file) throws IOException {
+        String name = file.getName();
+        long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        SpoolSegment segment = new SpoolSegment(sequence, file, map(file, (int) file.length()));
+        long offset = segment.buffer.getLong(0);
+        if (offset < HEADER_SIZE || offset > segment.capacity) {
+            offset = HEADER_SIZE;
+        }
+        segment.committed = (int) offset;
+        segment.readPosition = segment.committed;
+        segment.writePosition = segment.committed;
+        while (segment.writePosition + LENGTH_SIZE <= segment.capacity) {
+            int length = segment.buffer.getInt(segment.writePosition);
+            if (length <= 0 || segment.writePosition + LENGTH_SIZE + length > segment.capacity) {
+                break;
+            }
+            segment.writePosition += LENGTH_SIZE + length;
+        }
+        // recovered segment is never appended again.
+        segment.sealed = true;
+        segment.syncedPosition = segment.writePosition;
+        return segment;
+    }
+
+    /**
+     * Maps file to memory.
+     *
+     * @param file
+     *            the file.
+     * @param size
+     *            the size in bytes.
+     * @return the mapped buffer.
+     * @throws IOException
+     *             throws if file cannot be mapped.
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // mapping remains valid after channel is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends record.
+     *
+     * @param payload
+     *            the payload.
+     * @return true if appended. false if segment has no room or is sealed.
+     */
+    boolean append(byte[] payload) {
+        // keep room for end marker.
+        if (sealed || writePosition + LENGTH_SIZE + payload.length + LENGTH_SIZE > capacity) {
+            return false;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(writePosition + LENGTH_SIZE);
+        view.put(payload);
+        buffer.putInt(writePosition, payload.length);
+        writePosition += LENGTH_SIZE + payload.length;
+        return true;
+    }
+
+    /**
+     * Seals segment so that reader moves to next segment.
+     */
+    void seal() {
+        if (!sealed) {
+            if (writePosition + LENGTH_SIZE <= capacity) {
+                buffer.putInt(writePosition, END_OF_SEGMENT);
+            }
+            sealed = true;
+            try {
+                buffer.force();
+            } finally {
+                // reader must not stop at sealed segment even if force failed.
+                syncedPosition = writePosition;
+            }
+        }
+    }
+
+    /**
+     * Reads next record which is forced to disk.
+     *
+     * @return the payload. null if no record is available now.
+     */
+    byte[] read() {
+        while (readPosition < syncedPosition) {
+            int length = buffer.getInt(readPosition);
+            int start = readPosition;
+            readPosition += LENGTH_SIZE + length;
+            if (isCompleted(start)) {
+                continue;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(start + LENGTH_SIZE);
+            view.get(payload);
+            return payload;
+        }
+        return null;
+    }
+
+    /**
+     * Gets whether record which is not read yet is already marked as dispatched.
+     *
+     * @param start
+     *            the start position of record.
+     * @return true if completed.
+     */
+    private synchronized boolean isCompleted(int start) {
+        return start < committed || completed.containsKey(start);
+    }
+
+    /**
+     * Gets position of next record to be read.
+     *
+     * @return the position.
+     */
+    int getReadPosition() {
+        return readPosition;
+    }
+
+    /**
+     * Gets position of next record to be written.
+     *
+     * @return the position.
+     */
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Gets position until which records are forced to disk.
+     *
+     * @return the position.
+     */
+    int getSyncedPosition() {
+        return syncedPosition;
+    }
+
+    /**
+     * Gets whether all records are read and no record will be appended.
+     *
+     * @return true if fully read.
+     */
+    boolean isFullyRead() {
+        return sealed && readPosition >= writePosition;
+    }
+
+    /**
+     * Marks record as dispatched. Committed offset is moved forward while
+     * records are dispatched continuously.
+     *
+     * @param start
+     *            the start position of record.
+     * @param end
+     *            the end position of record.
+     * @return true if all records in sealed segment are dispatched.
+     */
+    synchronized boolean complete(int start, int end) {
+        completed.put(start, end);
+        Integer next;
+        while ((next = completed.remove(committed)) != null) {
+            committed = next;
+        }
+        buffer.putLong(0, committed);
+        return isDone();
+    }
+
+    /**
+     * Gets whether all records in sealed segment are dispatched.
+     *
+     * @return true if done.
+     */
+    synchronized boolean isDone() {
+        return sealed && committed >= writePosition;
+    }
+
+    /**
+     * Gets the size of records which are not dispatched.
+     *
+     * @return the size in bytes.
+     */
+    synchronized long getPendingBytes() {
+        return writePosition - committed;
+    }
+
+    /**
+     * Gets the size of file.
+     *
+     * @return the size in bytes.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets sequence number.
+     *
+     * @return the sequence number.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Deletes file. Mapped memory is released by GC.
+     */
+    void delete() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Writes mapped content to disk. Records written before it become readable.
+     */
+    void force() {
+        int position = writePosition;
+        buffer.force();
+        if (position > syncedPosition) {
+            syncedPosition = position;
+        }
+    }
+}
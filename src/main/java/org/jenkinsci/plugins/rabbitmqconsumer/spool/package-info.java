@@ -0,0 +1,5 @@
+/**
+  * Disk-backed spool package.
+  *
+  */
+package org.jenkinsci.plugins.rabbitmqconsumer.spool;
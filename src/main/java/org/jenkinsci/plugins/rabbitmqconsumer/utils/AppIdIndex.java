@@ -0,0 +1,282 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of application id patterns backed by trie.
+ *
+ * Pattern is exact application id or glob which has '*' (any characters) or
+ * '?' (one character). Literal part before the first wildcard is stored in trie,
+ * so lookup walks application id once and tests only globs which share its prefix.
+ * Pattern which ends with single '*' after literal part, e.g. "ci.build.*", is
+ * matched by prefix without glob test.
+ *
+ * Instance is not thread-safe while it is built. Build it once, then share it.
+ *
+ * @param <T> the type of value.
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class AppIdIndex<T> {
+
+    private static final char ANY = '*';
+    private static final char ONE = '?';
+
+    private final Node<T> root = new Node<T>();
+    private int size = 0;
+    private boolean hasGlob = false;
+
+    /**
+     * Gets whether application id is pattern.
+     *
+     * @param appId
+     *            the application id.
+     * @return true if it has wildcard.
+     */
+    public static boolean isPattern(String appId) {
+        return appId != null && (appId.indexOf(ANY) >= 0 || appId.indexOf(ONE) >= 0);
+    }
+
+    /**
+     * Tests whether application id matches pattern.
+     *
+     * @param pattern
+     *            the pattern.
+     * @param appId
+     *            the application id.
+     * @return true if matched.
+     */
+    public static boolean matches(String pattern, String appId) {
+        return glob(pattern, 0, appId, 0);
+    }
+
+    /**
+     * Adds pattern.
+     *
+     * @param pattern
+     *            the exact application id or glob.
+     * @param value
+     *            the value.
+     * @return this index.
+     */
+    public AppIdIndex<T> add(String pattern, T value) {
+        int wildcard = firstWildcard(pattern);
+        Node<T> n = root;
+        int end = wildcard < 0 ? pattern.length() : wildcard;
+        for (int i = 0; i < end; i++) {
+            Character c = pattern.charAt(i);
+            Node<T> child = n.children.get(c);
+            if (child == null) {
+                child = new Node<T>();
+                n.children.put(c, child);
+            }
+            n = child;
+        }
+        Entry<T> e = new Entry<T>(size++, value, wildcard < 0 ? null : pattern.substring(wildcard));
+        if (wildcard < 0) {
+            n.exact.add(e);
+        } else {
+            n.globs.add(e);
+            hasGlob = true;
+        }
+        return this;
+    }
+
+    /**
+     * Gets whether no pattern is added.
+     *
+     * @return true if empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets whether any glob pattern is added.
+     *
+     * @return true if so.
+     */
+    public boolean hasGlob() {
+        return hasGlob;
+    }
+
+    /**
+     * Gets whether application id matches any pattern.
+     *
+     * @param appId
+     *            the application id.
+     * @return true if matched.
+     */
+    public boolean matches(String appId) {
+        return get(appId) != null;
+    }
+
+    /**
+     * Gets value of the most specific pattern which matches application id.
+     * Exact pattern wins, then pattern which has longer literal prefix.
+     *
+     * @param appId
+     *            the application id.
+     * @return the value. null if not matched.
+     */
+    public T get(String appId) {
+        if (appId == null) {
+            return null;
+        }
+        T found = null;
+        Node<T> n = root;
+        for (int i = 0;; i++) {
+            for (Entry<T> e : n.globs) {
+                if (e.matches(appId, i)) {
+                    found = e.value;
+                    break;
+                }
+            }
+            if (i == appId.length()) {
+                return n.exact.isEmpty() ? found : n.exact.get(0).value;
+            }
+            n = n.children.get(appId.charAt(i));
+            if (n == null) {
+                return found;
+            }
+        }
+    }
+
+    /**
+     * Gets values of all patterns which match application id, in the order they were added.
+     *
+     * @param appId
+     *            the application id.
+     * @return the list of values.
+     */
+    public List<T> getAll(String appId) {
+        if (appId == null) {
+            return Collections.emptyList();
+        }
+        List<Entry<T>> found = new ArrayList<Entry<T>>();
+        Node<T> n = root;
+        for (int i = 0;; i++) {
+            for (Entry<T> e : n.globs) {
+                if (e.matches(appId, i)) {
+                    found.add(e);
+                }
+            }
+            if (i == appId.length()) {
+                found.addAll(n.exact);
+                break;
+            }
+            n = n.children.get(appId.charAt(i));
+            if (n == null) {
+                break;
+            }
+        }
+        Collections.sort(found, ORDER);
+        List<T> values = new ArrayList<T>(found.size());
+        for (Entry<T> e : found) {
+            values.add(e.value);
+        }
+        return values;
+    }
+
+    /**
+     * Gets position of the first wildcard.
+     *
+     * @param pattern
+     *            the pattern.
+     * @return the position. -1 if not found.
+     */
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == ANY || c == ONE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Matches glob from specified positions. '*' backtracks to the last star only.
+     *
+     * @param pattern
+     *            the pattern.
+     * @param p
+     *            the start position in pattern.
+     * @param s
+     *            the string.
+     * @param i
+     *            the start position in string.
+     * @return true if whole rest of string matches whole rest of pattern.
+     */
+    private static boolean glob(String pattern, int p, String s, int i) {
+        int star = -1;
+        int mark = 0;
+        while (i < s.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == ONE || pattern.charAt(p) == s.charAt(i))) {
+                p++;
+                i++;
+            } else if (p < pattern.length() && pattern.charAt(p) == ANY) {
+                star = p++;
+                mark = i;
+            } else if (star >= 0) {
+                p = star + 1;
+                i = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == ANY) {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private static final Comparator<Entry<?>> ORDER = new Comparator<Entry<?>>() {
+        public int compare(Entry<?> a, Entry<?> b) {
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    /**
+     * Node of trie.
+     */
+    private static final class Node<T> {
+        final Map<Character, Node<T>> children = new HashMap<Character, Node<T>>();
+        final List<Entry<T>> exact = new ArrayList<Entry<T>>(1);
+        final List<Entry<T>> globs = new ArrayList<Entry<T>>(1);
+    }
+
+    /**
+     * Pattern entry.
+     */
+    private static final class Entry<T> {
+        final int order;
+        final T value;
+        final String tail;
+        final boolean prefixOnly;
+
+        Entry(int order, T value, String tail) {
+            this.order = order;
+            this.value = value;
+            this.tail = tail;
+            this.prefixOnly = tail != null && tail.length() == 1 && tail.charAt(0) == ANY;
+        }
+
+        /**
+         * Tests rest of application id with glob tail.
+         *
+         * @param appId
+         *            the application id.
+         * @param from
+         *            the position where literal prefix ends.
+         * @return true if matched.
+         */
+        boolean matches(String appId, int from) {
+            return prefixOnly || glob(tail, 0, appId, from);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.utils;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring which assigns keys to nodes.
+ *
+ * Each node is placed on ring at many virtual points, and key belongs to the node
+ * of the first point at or after hash of the key. Assignment depends only on the
+ * number of nodes, so keys move only when nodes are added or removed, and then only
+ * keys which belong to added or removed nodes move.
+ *
+ * Instance is immutable.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class ConsistentHashRing {
+
+    /**
+     * The default number of virtual points for each node.
+     */
+    public static final int DEFAULT_REPLICAS = 160;
+
+    private final int nodes;
+    private final int[] points;
+    private final int[] owners;
+
+    /**
+     * Creates ring with default virtual points.
+     *
+     * @param nodes
+     *            the number of nodes. at least 1.
+     */
+    public ConsistentHashRing(int nodes) {
+        this(nodes, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * Creates ring with specified parameters.
+     *
+     * @param nodes
+     *            the number of nodes. at least 1.
+     * @param replicas
+     *            the number of virtual points for each node.
+     */
+    public ConsistentHashRing(int nodes, int replicas) {
+        this.nodes = Math.max(1, nodes);
+        int r = Math.max(1, replicas);
+        long[] ring = new long[this.nodes * r];
+        int i = 0;
+        for (int node = 0; node < this.nodes; node++) {
+            for (int replica = 0; replica < r; replica++) {
+                int point = hash(node + "#" + replica);
+                // sort by point, then by node so that collisions are resolved stably.
+                ring[i++] = ((long) point << 32) | node;
+            }
+        }
+        Arrays.sort(ring);
+        points = new int[ring.length];
+        owners = new int[ring.length];
+        for (i = 0; i < ring.length; i++) {
+            points[i] = (int) (ring[i] >> 32);
+            owners[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * Gets the number of nodes.
+     *
+     * @return the number of nodes.
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * Gets node for key.
+     *
+     * @param key
+     *            the key.
+     * @return the node index from 0 to size - 1.
+     */
+    public int get(String key) {
+        if (nodes == 1) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(points, hash(key != null ? key : ""));
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            while (i > 0 && points[i - 1] == points[i]) {
+                i--;
+            }
+        }
+        return owners[i < points.length ? i : 0];
+    }
+
+    /**
+     * Hashes string by FNV-1a, then mixes bits by MurmurHash3 finalizer.
+     *
+     * @param s
+     *            the string.
+     * @return the hash.
+     */
+    static int hash(String s) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.utils;
+
+import hudson.security.ACL;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factory whose threads run as {@link ACL#SYSTEM2} for their whole life.
+ *
+ * Listeners called on these threads do not need impersonation per message.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class SystemContextThreadFactory implements ThreadFactory {
+
+    private final ThreadFactory delegate;
+
+    /**
+     * Creates instance with specified parameter.
+     *
+     * @param delegate
+     *            the thread factory which creates actual threads.
+     */
+    public SystemContextThreadFactory(ThreadFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param r
+     *            the runnable.
+     * @return the thread.
+     */
+    public Thread newThread(final Runnable r) {
+        return delegate.newThread(new Runnable() {
+            public void run() {
+                ACL.impersonate2(ACL.SYSTEM2);
+                r.run();
+            }
+        });
+    }
+}
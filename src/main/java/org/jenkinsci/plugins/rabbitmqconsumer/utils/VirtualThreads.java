@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utility for virtual threads.
+ *
+ * Plugin is built for older Java, so virtual threads are looked up by reflection.
+ * If runtime does not support them, every method returns null.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class, long.class);
+            builderFactory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ClassNotFoundException e) {
+            ofVirtual = null;
+        } catch (NoSuchMethodException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    /**
+     * Utility class.
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Gets whether runtime supports virtual threads.
+     *
+     * @return true if supported.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates factory of virtual threads.
+     *
+     * @param name
+     *            the prefix of thread name.
+     * @return the factory. null if virtual threads are not supported.
+     */
+    public static ThreadFactory newFactory(String name) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, name + " ", 0L);
+            return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to create virtual thread factory.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates executor which starts new thread for each task.
+     *
+     * @param factory
+     *            the thread factory.
+     * @return the executor. null if virtual threads are not supported.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to create thread-per-task executor.", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.watchdog;
+
+import jenkins.model.Jenkins;
+import hudson.Extension;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.GlobalRabbitmqConfiguration;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.PressureSignal;
+
+/**
+ * Pressure signal by the number of items in build queue.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class BuildQueuePressureSignal extends PressureSignal {
+
+    @Override
+    public String getName() {
+        return "build queue";
+    }
+
+    @Override
+    public Level getLevel(GlobalRabbitmqConfiguration conf) {
+        int pause = conf.getPauseQueueLength();
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (pause <= 0 || jenkins == null) {
+            return Level.LOW;
+        }
+        int length = jenkins.getQueue().getItems().length;
+        if (length >= pause) {
+            return Level.HIGH;
+        }
+        return length < conf.getResumeQueueLength() ? Level.LOW : Level.NORMAL;
+    }
+}
@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.watchdog;
+
+import java.util.logging.Level;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.GlobalRabbitmqConfiguration;
+import org.jenkinsci.plugins.rabbitmqconsumer.RMQManager;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.PressureSignal;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Periodic work which pauses and resumes consumers by pressure signals.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class FlowController extends PeriodicWork {
+
+    private static final long RECURRENCE_PERIOD = 5000;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void doRun() {
+        RMQManager manager = RMQManager.getInstance();
+        GlobalRabbitmqConfiguration conf = GlobalRabbitmqConfiguration.get();
+
+        if (!conf.isEnableConsumer() || !conf.isEnableFlowControl()) {
+            if (manager.isConsumePaused()) {
+                logger.info("flow control: disabled. Resume consumers.");
+                manager.setConsumePaused(false);
+            }
+            return;
+        }
+
+        String highSignal = null;
+        boolean allLow = true;
+        for (PressureSignal signal : PressureSignal.all()) {
+            PressureSignal.Level level;
+            try {
+                level = signal.getLevel(conf);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "flow control: failed to get pressure of " + signal.getName(), e);
+                continue;
+            }
+            if (level == PressureSignal.Level.HIGH && highSignal == null) {
+                highSignal = signal.getName();
+            }
+            if (level != PressureSignal.Level.LOW) {
+                allLow = false;
+            }
+        }
+
+        if (!manager.isConsumePaused() && highSignal != null) {
+            logger.warning("flow control: pressure of " + highSignal + " is high. Pause consumers.");
+            manager.setConsumePaused(true);
+        } else if (manager.isConsumePaused() && allLow) {
+            logger.info("flow control: pressure is low. Resume consumers.");
+            manager.setConsumePaused(false);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.watchdog;
+
+import hudson.Extension;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.GlobalRabbitmqConfiguration;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.PressureSignal;
+
+/**
+ * Pressure signal by usage of heap memory.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+@Extension
+public class HeapPressureSignal extends PressureSignal {
+
+    @Override
+    public String getName() {
+        return "heap";
+    }
+
+    @Override
+    public Level getLevel(GlobalRabbitmqConfiguration conf) {
+        int pause = conf.getPauseHeapUsage();
+        if (pause <= 0) {
+            return Level.LOW;
+        }
+        int usage = getHeapUsage();
+        if (usage >= pause) {
+            return Level.HIGH;
+        }
+        return usage < conf.getResumeHeapUsage() ? Level.LOW : Level.NORMAL;
+    }
+
+    /**
+     * Gets usage of heap memory.
+     *
+     * @return the usage in percent.
+     */
+    static int getHeapUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (int) (used * 100 / runtime.maxMemory());
+    }
+}
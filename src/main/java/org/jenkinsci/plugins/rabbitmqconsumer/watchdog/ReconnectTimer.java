@@ -96,6 +96,8 @@ public class ReconnectTimer extends AperiodicWork {
                         logger.info("watchdog: channel update requesting..");
                         RMQManager.getInstance().update();
                         updateChannelRequested = false;
+                    } else {
+                        manager.reconnectBrokers();
                     }
                     monitor.setActivate(false);
                     monitor.setLastMeanTime(System.currentTimeMillis());
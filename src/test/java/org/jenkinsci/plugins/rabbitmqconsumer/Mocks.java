@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.rabbitmqconsumer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
 import java.util.HashSet;
 import java.util.List;
@@ -18,6 +19,7 @@ import mockit.MockUp;
 import org.jenkinsci.plugins.rabbitmqconsumer.channels.AbstractRMQChannel;
 import org.jenkinsci.plugins.rabbitmqconsumer.channels.ConsumeRMQChannel;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ServerOperator;
 import org.jenkinsci.plugins.rabbitmqconsumer.listeners.RMQChannelListener;
 import org.jenkinsci.plugins.rabbitmqconsumer.listeners.RMQConnectionListener;
@@ -37,6 +39,7 @@ public class Mocks {
 
     public static final Stack<Consumer> consumerPool = new Stack<Consumer>();
     public static final List<String> responseArray = new CopyOnWriteArrayList<String>();
+    public static final List<Integer> prefetchCountArray = new CopyOnWriteArrayList<Integer>();
     public static final Set<MessageQueueListener> mqListenerSet = new CopyOnWriteArraySet<MessageQueueListener>();
     public static final Set<ServerOperator> operatorSet = new CopyOnWriteArraySet<ServerOperator>();
 
@@ -50,6 +53,11 @@ public class Mocks {
         public void basicAck(long deliveryTag, boolean multiple) {
         }
 
+        @Mock
+        public void basicQos(int prefetchCount) {
+            prefetchCountArray.add(prefetchCount);
+        }
+
         @Mock
         public String basicConsume(Invocation invocation, String queue, boolean autoAck, Consumer callback) {
             consumerPool.push(callback);
@@ -181,6 +189,20 @@ public class Mocks {
         }
     }
 
+    public static final class OnReceiveWithResultDelegation implements Delegate<MessageQueueListener> {
+        boolean fireOnReceiveWithResult(String appId, RMQMessage message) {
+            ByteBuffer buffer = message.getBody();
+            byte[] body = new byte[buffer.remaining()];
+            buffer.get(body);
+            for (MessageQueueListener l : mqListenerSet) {
+                if (appId.equals(l.getAppId())) {
+                    l.onReceive(message.getQueueName(), message.getContentType(), message.getRawHeaders(), body);
+                }
+            }
+            return true;
+        }
+    }
+
     public static final class OnOpenDelegation implements Delegate<ServerOperator> {
         void fireOnOpen(RMQConnection rmqConnection) throws IOException {
             if (rmqConnection.getConnection() != null) {
@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.rabbitmqconsumer;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Test for RMQBroker class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class RMQBrokerTest {
+
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void testNotConnected() {
+        RMQBroker broker = new RMQBroker("second");
+        assertEquals("second", broker.getName());
+        assertFalse(broker.isDefault());
+        assertFalse(broker.isOpen());
+        assertEquals(0, broker.getConnectionPoolSize());
+        assertTrue(broker.getConsumeChannels("queue").isEmpty());
+        assertTrue(broker.getQueues().isEmpty());
+        assertNull(broker.getChannel());
+        assertTrue(new RMQBroker(RabbitmqBroker.DEFAULT_BROKER_NAME).isDefault());
+    }
+
+    @Test
+    public void testWaitingTaskIsReplaced() throws InterruptedException {
+        RMQBroker broker = new RMQBroker("second");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> runs = new CopyOnWriteArrayList<String>();
+
+        broker.submit(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                runs.add("first");
+            }
+        });
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        broker.submit(new Runnable() {
+            public void run() {
+                runs.add("second");
+            }
+        });
+        broker.submit(new Runnable() {
+            public void run() {
+                runs.add("third");
+                done.countDown();
+            }
+        });
+        release.countDown();
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(2, runs.size());
+        assertEquals("first", runs.get(0));
+        assertEquals("third", runs.get(1));
+        broker.dispose();
+    }
+
+    @Test
+    public void testFailedTaskDoesNotStopBroker() throws InterruptedException {
+        RMQBroker broker = new RMQBroker("second");
+        final CountDownLatch done = new CountDownLatch(1);
+        broker.submit(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("unreachable");
+            }
+        });
+        broker.submit(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        broker.dispose();
+    }
+
+    @Test
+    public void testAwaitDisposed() throws InterruptedException {
+        RMQBroker broker = new RMQBroker("second");
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        broker.submit(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.set(true);
+            }
+        });
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        broker.dispose();
+        broker.awaitDisposed();
+        assertTrue(done.get());
+        assertNull(broker.getDispatcher());
+    }
+}
@@ -202,4 +202,31 @@ public class RMQConnectionTest {
         }
     }
 
+
+    @Test
+    public void testConcurrentConsumers() {
+        RMQConnection conn = new RMQConnection("", "", null);
+        conn.addRMQConnectionListener(connListener);
+        RabbitmqConsumeItem item = new RabbitmqConsumeItem("app-1", "queue-1");
+        item.setConsumerConcurrency(3);
+        List<RabbitmqConsumeItem> items = new ArrayList<RabbitmqConsumeItem>();
+        items.add(item);
+        items.add(new RabbitmqConsumeItem("app-2", "queue-2"));
+
+        try {
+            conn.open();
+            conn.updateChannels(items);
+            assertEquals(4, conn.getConsumeRMQChannels().size());
+            assertEquals(3, conn.getConsumeRMQChannels("queue-1").size());
+
+            item.setConsumerConcurrency(1);
+            conn.updateChannels(items);
+            Collection<ConsumeRMQChannel> channels = conn.getConsumeRMQChannels("queue-1");
+            assertEquals(1, channels.size());
+            assertEquals(0, channels.iterator().next().getConsumerIndex());
+            conn.close();
+        } catch (Exception ex) {
+            fail(ex.toString());
+        }
+    }
 }
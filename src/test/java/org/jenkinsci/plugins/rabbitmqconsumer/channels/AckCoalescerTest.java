@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import mockit.Mocked;
+import mockit.Verifications;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Test for AckCoalescer class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class AckCoalescerTest {
+
+    @Mocked
+    Channel channel;
+
+    @Test
+    public void testNoCoalesce() throws Exception {
+        AckCoalescer coalescer = new AckCoalescer(channel, 1, 0);
+        coalescer.ack(1L);
+        coalescer.ack(2L);
+
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(2, coalescer.getBatches());
+        assertEquals(1, coalescer.getMaxBatchSize());
+        new Verifications() {{
+            channel.basicAck(1L, false); times = 1;
+            channel.basicAck(2L, false); times = 1;
+        }};
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        AckCoalescer coalescer = new AckCoalescer(channel, 3, 0);
+        coalescer.ack(1L);
+        coalescer.ack(2L);
+        assertEquals(2, coalescer.getPendingCount());
+        assertEquals(0, coalescer.getBatches());
+
+        coalescer.ack(3L);
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(1, coalescer.getBatches());
+        assertEquals(3, coalescer.getAckedMessages());
+        assertEquals(3, coalescer.getLastBatchSize());
+        new Verifications() {{
+            channel.basicAck(3L, true); times = 1;
+            channel.basicAck(anyLong, false); times = 0;
+        }};
+    }
+
+    @Test
+    public void testFlushAndDiscard() throws Exception {
+        AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+        coalescer.ack(1L);
+        coalescer.ack(2L);
+        coalescer.flush();
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(2.0, coalescer.getAverageBatchSize(), 0.0);
+
+        coalescer.ack(3L);
+        assertEquals(1, coalescer.discard());
+        coalescer.flush();
+        new Verifications() {{
+            channel.basicAck(2L, true); times = 1;
+            channel.basicAck(3L, anyBoolean); times = 0;
+        }};
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        AckCoalescer coalescer = new AckCoalescer(channel, 2, 0);
+        coalescer.ack(2L);
+        coalescer.ack(3L);
+        assertEquals(0, coalescer.getPendingCount());
+
+        coalescer.ack(1L);
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(3, coalescer.getLastBatchSize());
+
+        for (long tag = 200L; tag > 3L; tag--) {
+            coalescer.ack(tag);
+        }
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(197, coalescer.getLastBatchSize());
+        new Verifications() {{
+            channel.basicAck(3L, true); times = 1;
+            channel.basicAck(200L, true); times = 1;
+        }};
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+        coalescer.ack(1L);
+        coalescer.reject(2L, true);
+        coalescer.ack(3L);
+        coalescer.reject(4L, false);
+        assertEquals(2, coalescer.getPendingCount());
+
+        coalescer.flush();
+        assertEquals(2, coalescer.getAckedMessages());
+        assertEquals(1, coalescer.getRequeuedMessages());
+        assertEquals(1, coalescer.getDeadLetteredMessages());
+        new Verifications() {{
+            channel.basicNack(2L, false, true); times = 1;
+            channel.basicNack(4L, false, false); times = 1;
+            channel.basicAck(3L, true); times = 1;
+            channel.basicAck(4L, anyBoolean); times = 0;
+        }};
+    }
+
+    @Test
+    public void testAckAll() throws Exception {
+        AckCoalescer coalescer = new AckCoalescer(channel, 2, 0);
+        coalescer.ackAll(Arrays.asList(3L, 1L, 2L, 5L));
+
+        assertEquals(0, coalescer.getPendingCount());
+        assertEquals(1, coalescer.getBatches());
+        assertEquals(3, coalescer.getLastBatchSize());
+        new Verifications() {{
+            channel.basicAck(3L, true); times = 1;
+            channel.basicAck(anyLong, anyBoolean); times = 1;
+        }};
+    }
+}
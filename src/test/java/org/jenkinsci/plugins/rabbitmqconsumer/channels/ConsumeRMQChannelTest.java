@@ -7,13 +7,13 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Map;
 
 import mockit.Mocked;
 import mockit.Expectations;
 
 import org.jenkinsci.plugins.rabbitmqconsumer.Mocks;
 import org.jenkinsci.plugins.rabbitmqconsumer.extensions.MessageQueueListener;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
 import org.jenkinsci.plugins.rabbitmqconsumer.listeners.RMQChannelListener;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -69,12 +69,8 @@ public class ConsumeRMQChannelTest {
             MessageQueueListener.fireOnUnbind((Collection<String>) any, anyString);
             result = new Mocks.OnUnbindDelegation();
 
-            MessageQueueListener.fireOnReceive(anyString,
-                    anyString,
-                    anyString,
-                    (Map<String, Object>) any,
-                    (byte[]) any);
-            result = new Mocks.OnReceiveDelegation();
+            MessageQueueListener.fireOnReceiveWithResult(anyString, (RMQMessage) any);
+            result = new Mocks.OnReceiveWithResultDelegation();
         }};
     }
 
@@ -113,4 +109,63 @@ public class ConsumeRMQChannelTest {
         }
     }
 
+    @Test
+    public void testPrefetchCount() {
+        HashSet<String> appIds = new HashSet<String>();
+        appIds.addAll(Arrays.asList("app-1"));
+
+        ConsumeRMQChannel channel = new ConsumeRMQChannel("theQueue", appIds);
+        channel.setPrefetchCount(10);
+        channel.addRMQChannelListener(chListener);
+        try {
+            Mocks.prefetchCountArray.clear();
+            channel.open(connection);
+            channel.consume();
+            Mocks.consumerPool.pop();
+
+            assertEquals("Unmatched qos size", 1, Mocks.prefetchCountArray.size());
+            assertEquals(10, Mocks.prefetchCountArray.get(0).intValue());
+
+            channel.setPrefetchCount(20);
+            assertEquals(2, Mocks.prefetchCountArray.size());
+            assertEquals(20, Mocks.prefetchCountArray.get(1).intValue());
+            channel.close();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            fail(ex.toString());
+        }
+    }
+
+    @Test
+    public void testPauseResume() {
+        HashSet<String> appIds = new HashSet<String>();
+        appIds.addAll(Arrays.asList("app-1"));
+
+        ConsumeRMQChannel channel = new ConsumeRMQChannel("theQueue", appIds);
+        channel.setPaused(true);
+        channel.addRMQChannelListener(chListener);
+        try {
+            Mocks.consumerPool.clear();
+            channel.open(connection);
+            channel.consume();
+
+            assertTrue(channel.isConsumeStarted());
+            assertTrue("Paused consumer must not be registered.", Mocks.consumerPool.isEmpty());
+            AckCoalescer coalescer = channel.getAckCoalescer();
+
+            channel.setPaused(false);
+            assertEquals(1, Mocks.consumerPool.size());
+            Mocks.consumerPool.pop();
+
+            channel.setPaused(true);
+            channel.setPaused(false);
+            assertEquals(1, Mocks.consumerPool.size());
+            Mocks.consumerPool.pop();
+            assertSame("Ack coalescer must be kept over pause.", coalescer, channel.getAckCoalescer());
+            channel.close();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            fail(ex.toString());
+        }
+    }
 }
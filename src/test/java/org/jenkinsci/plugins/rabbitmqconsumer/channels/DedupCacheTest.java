@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test for DedupCache class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class DedupCacheTest {
+
+    @Test
+    public void testDuplicate() {
+        DedupCache cache = new DedupCache("queue-1", 100, 60000);
+
+        assertFalse(cache.isDuplicate("id-1"));
+        assertTrue(cache.isDuplicate("id-1"));
+        assertFalse(cache.isDuplicate("id-2"));
+
+        cache.forget("id-1");
+        assertFalse(cache.isDuplicate("id-1"));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testSizeEviction() {
+        DedupCache cache = new DedupCache("queue-1", 16, 60000);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.isDuplicate("id-" + i);
+        }
+        assertTrue("Cache must be bounded: " + cache.getSize(), cache.getSize() <= 16);
+        assertEquals(1000 - cache.getSize(), cache.getEvictionCount());
+    }
+
+    @Test
+    public void testTtlEviction() throws Exception {
+        DedupCache cache = new DedupCache("queue-1", 100, 50);
+
+        assertFalse(cache.isDuplicate("id-1"));
+        Thread.sleep(100);
+        assertFalse("Expired id must not be duplicate.", cache.isDuplicate("id-1"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testCachePerBroker() {
+        DedupCaches.configure(true, null, 100, 60000);
+        try {
+            DedupCache a = DedupCaches.get("broker-a", "queue-1");
+            assertSame(a, DedupCaches.get("broker-a", "queue-1"));
+            assertNotSame(a, DedupCaches.get("broker-b", "queue-1"));
+            assertEquals("broker-a", a.getBrokerName());
+
+            assertFalse(a.isDuplicate("id-1"));
+            assertFalse(DedupCaches.get("broker-b", "queue-1").isDuplicate("id-1"));
+        } finally {
+            DedupCaches.configure(false, null, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.impl.LongStringHelper;
+
+/**
+ * Test for MessageFilter class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class MessageFilterTest {
+
+    private static BasicProperties properties(Integer priority, String... headers) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            map.put(headers[i], LongStringHelper.asLongString(headers[i + 1]));
+        }
+        return new BasicProperties.Builder().appId("app-1").priority(priority).headers(map).build();
+    }
+
+    @Test
+    public void testConditions() {
+        MessageFilter filter = MessageFilter.compile(
+                "# comment\n"
+                + "header.event = build-started\n"
+                + "\n"
+                + "header.job ^= \"release/\"\n"
+                + "header.trigger exists\n"
+                + "priority in 5..9\n");
+
+        assertTrue(filter.matches(properties(5, "event", "build-started", "job", "release/1.0", "trigger", "x")));
+        assertFalse(filter.matches(properties(5, "event", "build-finished", "job", "release/1.0", "trigger", "x")));
+        assertFalse(filter.matches(properties(5, "event", "build-started", "job", "master", "trigger", "x")));
+        assertFalse(filter.matches(properties(5, "event", "build-started", "job", "release/1.0")));
+        assertFalse(filter.matches(properties(10, "event", "build-started", "job", "release/1.0", "trigger", "x")));
+        assertFalse(filter.matches(properties(null, "event", "build-started", "job", "release/1.0", "trigger", "x")));
+    }
+
+    @Test
+    public void testRange() {
+        MessageFilter filter = MessageFilter.compile("header.size in ..10.5");
+
+        assertTrue(filter.matches(properties(null, "size", "-3")));
+        assertTrue(filter.matches(properties(null, "size", "10.5")));
+        assertFalse(filter.matches(properties(null, "size", "11")));
+        assertFalse(filter.matches(properties(null, "size", "large")));
+        assertTrue(MessageFilter.compile("appId = app-1").matches(properties(null)));
+    }
+
+    @Test
+    public void testCompile() {
+        assertNull(MessageFilter.compile(null));
+        assertNull(MessageFilter.compile("# only comment\n\n"));
+
+        String[] invalids = { "header.a", "unknown = 1", "priority in 1-5", "priority in a..b" };
+        for (String invalid : invalids) {
+            try {
+                MessageFilter.compile(invalid);
+                fail("Invalid filter must not be compiled: " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
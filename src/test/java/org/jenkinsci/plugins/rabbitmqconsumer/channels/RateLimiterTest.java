@@ -0,0 +1,105 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.RabbitmqConsumeItem;
+import org.junit.Test;
+
+/**
+ * Test for RateLimiter class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void testAcquire() throws Exception {
+        RateLimiter limiter = new RateLimiter("queue-1", "app-1", 10);
+
+        // bucket is full at first.
+        assertEquals(0, limiter.acquire(10));
+        assertEquals(0, limiter.getThrottledCount());
+
+        long start = System.nanoTime();
+        long waited = limiter.acquire(5);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Unexpected wait: " + waited, TimeUnit.NANOSECONDS.toMillis(waited) >= 400);
+        assertTrue("Caller must sleep: " + elapsed, elapsed >= 400);
+        assertEquals(1, limiter.getThrottledCount());
+        assertTrue(limiter.getThrottledTime() >= 400);
+    }
+
+    @Test
+    public void testConfigure() {
+        RabbitmqConsumeItem item1 = new RabbitmqConsumeItem("app-1", "queue-1");
+        item1.setRateLimit(10);
+        item1.setQueueRateLimit(50);
+        RabbitmqConsumeItem item2 = new RabbitmqConsumeItem("app-2", "queue-1");
+        item2.setQueueRateLimit(20);
+
+        RateLimiters.configure(Collections.singletonMap("default", Arrays.asList(item1, item2)));
+        assertEquals(2, RateLimiters.getAll().size());
+        for (RateLimiter l : RateLimiters.getAll()) {
+            assertEquals("default", l.getBrokerName());
+            if (l.getAppId() == null) {
+                assertEquals(20, l.getRateLimit());
+            } else {
+                assertEquals("app-1", l.getAppId());
+                assertEquals(10, l.getRateLimit());
+            }
+        }
+
+        RateLimiters.configure(null);
+        assertTrue(RateLimiters.getAll().isEmpty());
+    }
+
+    @Test
+    public void testInterruptedAcquire() throws Exception {
+        RabbitmqConsumeItem item = new RabbitmqConsumeItem("app-1", "queue-1");
+        item.setRateLimit(1);
+        RateLimiters.configure(Collections.singletonMap("default", Arrays.asList(item)));
+        try {
+            RateLimiters.acquire("default", "queue-1", "app-1", 1);
+            Thread.currentThread().interrupt();
+            try {
+                RateLimiters.acquire("default", "queue-1", "app-1", 5);
+                fail("Interrupted caller must not get permits.");
+            } catch (InterruptedException e) {
+                // expected
+            }
+        } finally {
+            Thread.interrupted();
+            RateLimiters.configure(null);
+        }
+    }
+
+    @Test
+    public void testQueueOfSameNameOnOtherBroker() throws Exception {
+        RabbitmqConsumeItem item = new RabbitmqConsumeItem("app-1", "queue-1");
+        item.setRateLimit(1);
+        Map<String, List<RabbitmqConsumeItem>> items = new LinkedHashMap<String, List<RabbitmqConsumeItem>>();
+        items.put("broker-a", Arrays.asList(item));
+        items.put("broker-b", Collections.<RabbitmqConsumeItem>emptyList());
+        RateLimiters.configure(items);
+        try {
+            assertEquals(1, RateLimiters.getAll().size());
+            assertEquals("broker-a", RateLimiters.getAll().get(0).getBrokerName());
+
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 5; i++) {
+                RateLimiters.acquire("broker-b", "queue-1", "app-1", 1);
+            }
+            assertTrue("Limiter of other broker must not be applied.", System.currentTimeMillis() - start < 500);
+        } finally {
+            RateLimiters.configure(null);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.channels;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Date;
+
+import mockit.Mocked;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Test for StreamOffset class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class StreamOffsetTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mocked
+    Channel channel;
+
+    @Test
+    public void testStartOffset() throws Exception {
+        StreamOffset offset = new StreamOffset("default", "stream-1", null);
+        assertEquals("first", offset.getStartOffset("first"));
+
+        AckCoalescer coalescer = new AckCoalescer(channel, 1, 0);
+        StreamCursor cursor = new StreamCursor(coalescer);
+        offset.register(cursor);
+        cursor.track(1L, 100L);
+        cursor.track(2L, 101L);
+        coalescer.ack(1L);
+        offset.poll();
+        assertEquals(100L, offset.getOffset());
+        assertEquals(101L, offset.getStartOffset("first"));
+
+        Date time = new Date(1000L);
+        offset.replay(time);
+        assertEquals(time, offset.getStartOffset("first"));
+        assertEquals(1000L, offset.getReplayFrom());
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        StreamOffset offset = new StreamOffset("default", "stream-1", null);
+        AckCoalescer coalescer = new AckCoalescer(channel, 1, 0);
+        StreamCursor cursor = new StreamCursor(coalescer);
+        offset.register(cursor);
+        cursor.track(1L, 10L);
+        cursor.track(2L, 11L);
+        cursor.track(3L, 12L);
+
+        coalescer.ack(2L);
+        coalescer.ack(3L);
+        offset.poll();
+        assertEquals(-1L, offset.getOffset());
+
+        coalescer.ack(1L);
+        offset.unregister(cursor);
+        assertEquals(12L, offset.getOffset());
+    }
+
+    @Test
+    public void testStore() throws Exception {
+        File file = new File(folder.getRoot(), "streams/stream-1.properties");
+        StreamOffset offset = new StreamOffset("default", "stream-1", file);
+        AckCoalescer coalescer = new AckCoalescer(channel, 1, 0);
+        StreamCursor cursor = new StreamCursor(coalescer);
+        offset.register(cursor);
+        cursor.track(1L, 42L);
+        coalescer.ack(1L);
+        offset.poll();
+        offset.store();
+
+        assertEquals(42L, new StreamOffset("default", "stream-1", file).getOffset());
+
+        offset.replay(new Date(5000L));
+        offset.store();
+        StreamOffset loaded = new StreamOffset("default", "stream-1", file);
+        assertEquals(-1L, loaded.getOffset());
+        assertEquals(new Date(5000L), loaded.getStartOffset("next"));
+    }
+
+    @Test
+    public void testParseTimestamp() {
+        assertEquals(new Date(1500L), StreamOffsets.parseTimestamp("1500"));
+        assertEquals(new Date(0L), StreamOffsets.parseTimestamp("1970-01-01T00:00:00Z"));
+        assertNotNull(StreamOffsets.parseTimestamp("2024-05-01 12:30"));
+        try {
+            StreamOffsets.parseTimestamp("yesterday");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
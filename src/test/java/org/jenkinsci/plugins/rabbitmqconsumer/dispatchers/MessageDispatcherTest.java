@@ -0,0 +1,203 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.dispatchers;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.VirtualThreads;
+import org.junit.Test;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Test for MessageDispatcher class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class MessageDispatcherTest {
+
+    @Test
+    public void testPartitionKey() {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("job", "job-1");
+        BasicProperties props = new BasicProperties.Builder().appId("app-1").headers(headers).build();
+        Envelope envelope = new Envelope(1L, false, "exchange", "route-1");
+
+        assertNull(PartitionKey.NONE.resolve(envelope, props, null));
+        assertEquals("route-1", PartitionKey.ROUTING_KEY.resolve(envelope, props, null));
+        assertEquals("app-1", PartitionKey.APP_ID.resolve(envelope, props, null));
+        assertEquals("job-1", PartitionKey.HEADER.resolve(envelope, props, "job"));
+        assertNull(PartitionKey.HEADER.resolve(envelope, props, "unknown"));
+        assertEquals(PartitionKey.NONE, PartitionKey.parse("invalid"));
+    }
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(4, 10, PartitionKey.HEADER, "job");
+        final Map<String, List<Integer>> results = new HashMap<String, List<Integer>>();
+        String[] keys = { "job-1", "job-2", "job-3" };
+        for (String key : keys) {
+            results.put(key, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        for (int i = 0; i < 300; i++) {
+            final String key = keys[i % keys.length];
+            final int seq = i;
+            dispatcher.dispatch(key, new Runnable() {
+                public void run() {
+                    results.get(key).add(seq);
+                }
+            });
+        }
+        assertTrue(dispatcher.shutdownWithWait());
+
+        for (String key : keys) {
+            List<Integer> list = results.get(key);
+            assertEquals(100, list.size());
+            for (int i = 1; i < list.size(); i++) {
+                assertTrue(list.get(i - 1) < list.get(i));
+            }
+        }
+        long completed = 0;
+        for (long count : dispatcher.getLaneCompletedCounts()) {
+            completed += count;
+        }
+        assertEquals(300, completed);
+        assertEquals(4, dispatcher.getLaneQueuedCounts().length);
+    }
+
+    @Test
+    public void testSameSettings() {
+        MessageDispatcher dispatcher = new MessageDispatcher(4, 10, PartitionKey.HEADER, "job");
+        assertTrue(dispatcher.isSameSettings(4, 10, PartitionKey.HEADER, "job", false, 0));
+        assertFalse(dispatcher.isSameSettings(4, 10, PartitionKey.HEADER, "other", false, 0));
+        assertFalse(dispatcher.isSameSettings(4, 10, PartitionKey.NONE, null, false, 0));
+        assertFalse(dispatcher.isSameSettings(4, 10, PartitionKey.HEADER, "job", true, 0));
+        assertFalse(dispatcher.isSameSettings(4, 10, PartitionKey.HEADER, "job", false, 2));
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testAppIdConcurrency() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(4, 10, PartitionKey.NONE, null, true, 1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            dispatcher.dispatch(null, "app-1", new Runnable() {
+                public void run() {
+                    int current = running.incrementAndGet();
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                }
+            });
+        }
+        assertTrue(dispatcher.shutdownWithWait());
+        assertEquals(1, maxRunning.get());
+        assertEquals(8, dispatcher.getDispatchedCount());
+        assertEquals(VirtualThreads.isSupported() ? "virtual" : "platform", dispatcher.getThreadType());
+    }
+
+    @Test
+    public void testCappedAppIdDoesNotBlockOthers() throws Exception {
+        final MessageDispatcher dispatcher = new MessageDispatcher(2, 10, PartitionKey.NONE, null, false, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        final Runnable blocking = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        dispatcher.dispatch(null, "app-1", blocking);
+
+        Thread caller = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    dispatcher.dispatch(null, "app-1", blocking);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        caller.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getAppIdThrottledCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, dispatcher.getAppIdThrottledCount());
+
+        dispatcher.dispatch(null, "app-2", new Runnable() {
+            public void run() {
+                other.countDown();
+            }
+        });
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        caller.join(5000);
+        assertTrue(dispatcher.shutdownWithWait());
+        assertEquals(3, dispatcher.getDispatchedCount());
+    }
+
+    @Test
+    public void testCappedAppIdIsParkedOnSameThread() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(2, 10, PartitionKey.NONE, null, false, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        dispatcher.dispatch(null, "app-1", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add(0);
+            }
+        });
+        for (int i = 1; i <= 3; i++) {
+            final int index = i;
+            dispatcher.dispatch(null, "app-1", new Runnable() {
+                public void run() {
+                    order.add(index);
+                }
+            });
+        }
+        assertEquals(3, dispatcher.getAppIdThrottledCount());
+
+        // dispatched from the same thread as parked deliveries.
+        dispatcher.dispatch(null, "app-2", new Runnable() {
+            public void run() {
+                other.countDown();
+            }
+        });
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        assertTrue(order.isEmpty());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (order.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(dispatcher.shutdownWithWait());
+        assertEquals(Arrays.asList(0, 1, 2, 3), order);
+        assertEquals(5, dispatcher.getDispatchedCount());
+    }
+}
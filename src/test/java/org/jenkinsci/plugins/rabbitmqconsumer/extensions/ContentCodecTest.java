@@ -0,0 +1,125 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.decoders.DeflateContentCodec;
+import org.jenkinsci.plugins.rabbitmqconsumer.decoders.GzipContentCodec;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Test for ContentCodec class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class ContentCodecTest {
+
+    private static final List<ContentCodec> CODECS =
+            Arrays.<ContentCodec>asList(new GzipContentCodec(), new DeflateContentCodec());
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream gz = new GZIPOutputStream(out);
+        gz.write(data);
+        gz.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream df = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        df.write(data);
+        df.close();
+        return out.toByteArray();
+    }
+
+    private static RMQMessage message(String encoding, byte[] body) {
+        return new RMQMessage("queue-1", null, new BasicProperties.Builder()
+                .contentType("application/json").contentEncoding(encoding).build(), body);
+    }
+
+    private static String body(RMQMessage message) throws IOException {
+        return new String(message.getBodyArray(), "UTF-8");
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("{\"build\":").append(i).append('}');
+        }
+        byte[] data = sb.toString().getBytes("UTF-8");
+
+        RMQMessage decoded = ContentCodec.decode(CODECS, message("GZIP", gzip(data)));
+        assertEquals(sb.toString(), body(decoded));
+        assertNull(decoded.getProperties().getContentEncoding());
+        assertEquals("application/json", decoded.getContentType());
+
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        concatenated.write(gzip("abc".getBytes("UTF-8")));
+        concatenated.write(gzip("def".getBytes("UTF-8")));
+        assertEquals("abcdef", body(ContentCodec.decode(CODECS, message("gzip", concatenated.toByteArray()))));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        byte[] data = "deflated content".getBytes("UTF-8");
+
+        assertEquals("deflated content", body(ContentCodec.decode(CODECS, message("deflate", deflate(data, false)))));
+        assertEquals("deflated content", body(ContentCodec.decode(CODECS, message("deflate", deflate(data, true)))));
+        assertEquals("Encodings must be decoded in reverse order.", "deflated content",
+                body(ContentCodec.decode(CODECS, message("deflate, gzip", gzip(deflate(data, false))))));
+    }
+
+    @Test
+    public void testPassThrough() throws Exception {
+        RMQMessage plain = message(null, "plain".getBytes("UTF-8"));
+        assertSame(plain, ContentCodec.decode(CODECS, plain));
+
+        RMQMessage unknown = message("br", "compressed".getBytes("UTF-8"));
+        assertSame("Unknown encoding must be passed to listeners.", unknown, ContentCodec.decode(CODECS, unknown));
+    }
+
+    @Test
+    public void testBroken() throws Exception {
+        byte[] gz = gzip("broken content".getBytes("UTF-8"));
+        try {
+            ContentCodec.decode(CODECS, message("gzip", Arrays.copyOf(gz, gz.length - 4)));
+            fail("Truncated content must not be decoded.");
+        } catch (IOException e) {
+            // expected
+        }
+        gz[gz.length - 8] ^= 1;
+        try {
+            ContentCodec.decode(CODECS, message("gzip", gz));
+            fail("Content with wrong checksum must not be decoded.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcatenatedBomb() throws Exception {
+        byte[] member = gzip(new byte[48 * 1024 * 1024]);
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            concatenated.write(member);
+        }
+        try {
+            ContentCodec.decode(CODECS, message("gzip", concatenated.toByteArray()));
+            fail("Total size of members must be limited.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test for ListenerBulkheads class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class ListenerBulkheadsTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final MessageQueueListener listener = new MessageQueueListener() {
+        @Override
+        public String getName() {
+            return "blocking";
+        }
+
+        @Override
+        public String getAppId() {
+            return "app-1";
+        }
+
+        @Override
+        public void onBind(String queueName) {
+        }
+
+        @Override
+        public void onUnbind(String queueName) {
+        }
+
+        @Override
+        public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
+        }
+    };
+
+    private final ListenerBulkheads.ListenerCall call = new ListenerBulkheads.ListenerCall() {
+        public void call(MessageQueueListener l) throws Exception {
+            started.countDown();
+            release.await();
+        }
+    };
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        ListenerBulkheads.configure(false, 0, 0);
+    }
+
+    @Test
+    public void testWaitingInvocationIsReleasedByReconfiguration() throws Exception {
+        ListenerBulkheads.configure(true, 1, 0);
+        Thread running = invokeOnThread(new AtomicBoolean(true));
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        AtomicBoolean waitingResult = new AtomicBoolean(true);
+        Thread waiting = invokeOnThread(waitingResult);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (ListenerBulkheads.getAll().get(0).getQueuedCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, ListenerBulkheads.getAll().get(0).getQueuedCount());
+
+        ListenerBulkheads.configure(true, 2, 0);
+        waiting.join(TIMEOUT);
+        assertFalse(waiting.isAlive());
+        assertFalse(waitingResult.get());
+        running.join(TIMEOUT);
+        assertFalse(running.isAlive());
+    }
+
+    @Test
+    public void testBulkheadOfRemovedListenerIsShutDown() throws Exception {
+        ListenerBulkheads.configure(true, 1, 0);
+        release.countDown();
+        assertTrue(ListenerBulkheads.invoke(new MessageQueueListener[] { listener }, call));
+        assertEquals(1, ListenerBulkheads.getAll().size());
+
+        ListenerBulkheads.retain(Collections.singletonList(listener));
+        assertEquals(1, ListenerBulkheads.getAll().size());
+        ListenerBulkheads.retain(Collections.<MessageQueueListener>emptyList());
+        assertTrue(ListenerBulkheads.getAll().isEmpty());
+    }
+
+    @Test
+    public void testOpenCircuitIsNotFailure() throws Exception {
+        ListenerBulkheads.configure(true, 1, 0);
+        ListenerCircuitBreakers.configure(true, 1, 100, 60000);
+        try {
+            final AtomicInteger calls = new AtomicInteger();
+            ListenerBulkheads.ListenerCall failing = new ListenerBulkheads.ListenerCall() {
+                public void call(MessageQueueListener l) throws Exception {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("failure");
+                }
+            };
+            MessageQueueListener[] listeners = new MessageQueueListener[] { listener };
+            assertFalse(ListenerBulkheads.invoke(listeners, failing));
+
+            // with requeue policy, failure here would redeliver message in loop.
+            assertTrue(ListenerBulkheads.invoke(listeners, failing));
+            assertEquals(1, calls.get());
+        } finally {
+            ListenerCircuitBreakers.configure(false, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Invokes listener on new thread.
+     *
+     * @param result
+     *            the holder of result.
+     * @return the thread.
+     */
+    private Thread invokeOnThread(final AtomicBoolean result) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                result.set(ListenerBulkheads.invoke(new MessageQueueListener[] { listener }, call));
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
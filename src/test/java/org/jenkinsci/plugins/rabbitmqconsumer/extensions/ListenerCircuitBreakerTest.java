@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import static org.junit.Assert.*;
+import mockit.Mocked;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.ListenerCircuitBreaker.State;
+import org.junit.Test;
+
+/**
+ * Test for ListenerCircuitBreaker class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class ListenerCircuitBreakerTest {
+
+    @Mocked
+    MessageQueueListener listener;
+
+    @Test
+    public void testOpenAndClose() throws Exception {
+        ListenerCircuitBreaker breaker = new ListenerCircuitBreaker(listener, 4, 50, 100);
+
+        // window is not full yet.
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allow());
+            breaker.recordFailure(new RuntimeException("failure"));
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+
+        assertTrue(breaker.allow());
+        breaker.recordSuccess();
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenedCount());
+
+        assertFalse(breaker.allow());
+        assertFalse(breaker.allow());
+        assertEquals(2, breaker.getSkippedCount());
+
+        Thread.sleep(150);
+        // only one trial call is allowed.
+        assertTrue(breaker.allow());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allow());
+        breaker.recordFailure(new RuntimeException("failure"));
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenedCount());
+
+        Thread.sleep(150);
+        assertTrue(breaker.allow());
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(4, breaker.getFailedCount());
+    }
+
+    @Test
+    public void testRateBelowThreshold() {
+        ListenerCircuitBreaker breaker = new ListenerCircuitBreaker(listener, 4, 50, 100);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(breaker.allow());
+            if (i % 4 == 0) {
+                breaker.recordFailure(new RuntimeException("failure"));
+            } else {
+                breaker.recordSuccess();
+            }
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getSkippedCount());
+    }
+}
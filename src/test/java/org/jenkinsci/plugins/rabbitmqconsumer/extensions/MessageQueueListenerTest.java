@@ -0,0 +1,279 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.ExtensionList;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.utils.SystemContextThreadFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * Test for MessageQueueListener class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class MessageQueueListenerTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testRouting() {
+        MessageQueueListener.fireOnReceive("app-1", "queue-1", "text/plain", null, "msg".getBytes());
+
+        ListenerImpl listener = ExtensionList.lookup(MessageQueueListener.class).get(ListenerImpl.class);
+        assertEquals(1, listener.received.size());
+        assertEquals("queue-1", listener.received.get(0));
+        assertEquals(0, MessageQueueListener.getListeners("app-unknown").length);
+    }
+
+    @Test
+    public void testRoutingAfterExtensionAdded() {
+        assertEquals(1, MessageQueueListener.getListeners("app-1").length);
+
+        ListenerImpl added = new ListenerImpl();
+        ExtensionList.lookup(MessageQueueListener.class).add(added);
+        assertEquals(2, MessageQueueListener.getListeners("app-1").length);
+
+        MessageQueueListener.fireOnReceive("app-1", "queue-1", "text/plain", null, "msg".getBytes());
+        assertEquals(1, added.received.size());
+    }
+
+    @Test
+    public void testAuthentication() throws Exception {
+        final ListenerImpl listener = ExtensionList.lookup(MessageQueueListener.class).get(ListenerImpl.class);
+        Runnable fire = new Runnable() {
+            public void run() {
+                MessageQueueListener.fireOnReceive("app-1", "queue-1", "text/plain", null, "msg".getBytes());
+            }
+        };
+
+        Thread plain = Executors.defaultThreadFactory().newThread(fire);
+        plain.start();
+        plain.join();
+
+        Thread system = new SystemContextThreadFactory(Executors.defaultThreadFactory()).newThread(fire);
+        system.start();
+        system.join();
+
+        assertEquals(2, listener.authentications.size());
+        assertEquals(ACL.SYSTEM_USERNAME, listener.authentications.get(0));
+        assertEquals(ACL.SYSTEM_USERNAME, listener.authentications.get(1));
+    }
+
+    @Test
+    public void testBatchFallsBackToOnReceive() {
+        List<RMQMessage> batch = new ArrayList<RMQMessage>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(new RMQMessage("queue-" + i, null, null, "msg".getBytes()));
+        }
+        assertTrue(MessageQueueListener.fireOnReceiveBatchWithResult("app-1", batch));
+
+        ListenerImpl listener = ExtensionList.lookup(MessageQueueListener.class).get(ListenerImpl.class);
+        assertEquals(3, listener.received.size());
+        assertEquals("queue-2", listener.received.get(2));
+    }
+
+    @Test
+    public void testBulkheadTimeout() {
+        ListenerBulkheads.configure(true, 1, 200);
+        try {
+            RMQMessage message = new RMQMessage("queue-1", null, null, "msg".getBytes());
+            assertFalse(MessageQueueListener.fireOnReceiveWithResult("app-slow", message));
+
+            FastListener fast = ExtensionList.lookup(MessageQueueListener.class).get(FastListener.class);
+            assertEquals(1, fast.received.size());
+            long timedOut = 0;
+            for (ListenerBulkhead b : ListenerBulkheads.getAll()) {
+                if ("slow".equals(b.getName())) {
+                    timedOut = b.getTimedOutCount();
+                }
+            }
+            assertEquals(1, timedOut);
+        } finally {
+            ListenerBulkheads.configure(false, 0, 0);
+        }
+    }
+
+    @Test
+    public void testErrorFinishesTrialCall() throws Exception {
+        ListenerCircuitBreakers.configure(true, 1, 100, 50);
+        try {
+            RMQMessage message = new RMQMessage("queue-1", null, null, "msg".getBytes());
+            assertFalse(MessageQueueListener.fireOnReceiveWithResult("app-broken", message));
+            ListenerCircuitBreaker breaker = ListenerCircuitBreakers.getAll().get(0);
+            assertEquals(ListenerCircuitBreaker.State.OPEN, breaker.getState());
+
+            Thread.sleep(100);
+            // trial call fails with error, then circuit is opened again.
+            assertFalse(MessageQueueListener.fireOnReceiveWithResult("app-broken", message));
+            assertEquals(ListenerCircuitBreaker.State.OPEN, breaker.getState());
+            assertEquals(2, breaker.getOpenedCount());
+
+            Thread.sleep(100);
+            assertFalse(MessageQueueListener.fireOnReceiveWithResult("app-broken", message));
+            assertEquals(3, breaker.getOpenedCount());
+        } finally {
+            ListenerCircuitBreakers.configure(false, 0, 0, 0);
+        }
+    }
+
+    @Test
+    public void testOpenCircuitIsNotFailure() throws Exception {
+        ListenerCircuitBreakers.configure(true, 1, 100, 60000);
+        try {
+            RMQMessage message = new RMQMessage("queue-1", null, null, "msg".getBytes());
+            assertFalse(MessageQueueListener.fireOnReceiveWithResult("app-failing", message));
+
+            // skipped listener must not fail delivery, otherwise requeue policy redelivers it in loop.
+            assertTrue(MessageQueueListener.fireOnReceiveWithResult("app-failing", message));
+            assertEquals(1, j.jenkins.getExtensionList(FailingListener.class).get(0).calls.get());
+        } finally {
+            ListenerCircuitBreakers.configure(false, 0, 0, 0);
+        }
+    }
+
+    /**
+     * A listener which always fails.
+     */
+    @TestExtension("testOpenCircuitIsNotFailure")
+    public static class FailingListener extends FastListener {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String getName() {
+            return "failing";
+        }
+
+        @Override
+        public String getAppId() {
+            return "app-failing";
+        }
+
+        @Override
+        public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
+            calls.incrementAndGet();
+            throw new IllegalStateException("failure");
+        }
+    }
+
+    /**
+     * A listener which fails with error.
+     */
+    @TestExtension("testErrorFinishesTrialCall")
+    public static class BrokenListener extends FastListener {
+        @Override
+        public String getName() {
+            return "broken";
+        }
+
+        @Override
+        public String getAppId() {
+            return "app-broken";
+        }
+
+        @Override
+        public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
+            throw new NoClassDefFoundError("org/example/Missing");
+        }
+    }
+
+    /**
+     * A listener which never completes in time.
+     */
+    @TestExtension("testBulkheadTimeout")
+    public static class SlowListener extends FastListener {
+        @Override
+        public String getName() {
+            return "slow";
+        }
+
+        @Override
+        public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A listener which completes immediately.
+     */
+    @TestExtension("testBulkheadTimeout")
+    public static class FastListener extends MessageQueueListener {
+
+        final List<String> received = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public String getName() {
+            return "fast";
+        }
+
+        @Override
+        public String getAppId() {
+            return "app-slow";
+        }
+
+        @Override
+        public void onBind(String queueName) {
+        }
+
+        @Override
+        public void onUnbind(String queueName) {
+        }
+
+        @Override
+        public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
+            received.add(queueName);
+        }
+    }
+
+    /**
+     * A listener for test.
+     */
+    @TestExtension
+    public static class ListenerImpl extends MessageQueueListener {
+
+        final List<String> received = new CopyOnWriteArrayList<String>();
+        final List<String> authentications = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public String getAppId() {
+            return "app-1";
+        }
+
+        @Override
+        public void onBind(String queueName) {
+        }
+
+        @Override
+        public void onUnbind(String queueName) {
+        }
+
+        @Override
+        public void onReceive(String queueName, String contentType, Map<String, Object> headers, byte[] body) {
+            received.add(queueName);
+            authentications.add(Jenkins.getAuthentication2().getName());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.extensions;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.LongString;
+import com.rabbitmq.client.impl.LongStringHelper;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Test for RMQMessage class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class RMQMessageTest {
+
+    @Test
+    public void testBody() {
+        byte[] body = "message".getBytes();
+        RMQMessage message = new RMQMessage("queue-1", new Envelope(1L, false, "ex", "route"),
+                new BasicProperties.Builder().appId("app-1").contentType("text/plain").build(), body);
+
+        ByteBuffer buffer = message.getBody();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(body.length, buffer.remaining());
+        assertEquals(body.length, message.getBodyLength());
+        try {
+            buffer.put(0, (byte) 0);
+            fail("Buffer must be read-only.");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+        buffer.get();
+        assertEquals(0, message.getBody().position());
+        assertEquals("app-1", message.getAppId());
+        assertEquals("route", message.getEnvelope().getRoutingKey());
+    }
+
+    @Test
+    public void testHeaders() {
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("inner", LongStringHelper.asLongString("value-2"));
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("string", LongStringHelper.asLongString("value-1"));
+        headers.put("number", 10);
+        headers.put("map", nested);
+        headers.put("list", Arrays.<Object>asList(LongStringHelper.asLongString("value-3")));
+
+        RMQMessage message = new RMQMessage("queue-1", null,
+                new BasicProperties.Builder().headers(headers).build(), new byte[0]);
+
+        assertTrue(message.getRawHeaders().get("string") instanceof LongString);
+        assertEquals("value-1", message.getHeader("string"));
+        assertEquals(10, message.getHeader("number"));
+        assertEquals("value-2", ((Map<?, ?>) message.getHeader("map")).get("inner"));
+        assertEquals("value-3", ((List<?>) message.getHeader("list")).get(0));
+        assertSame(message.getHeaders(), message.getHeaders());
+    }
+
+    @Test
+    public void testPayload() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        List<PayloadDecoder> decoders = Collections.<PayloadDecoder>singletonList(new PayloadDecoder() {
+            @Override
+            public boolean isApplicable(String mimeType) {
+                return "application/json".equals(mimeType);
+            }
+
+            @Override
+            public Object decode(RMQMessage message) throws IOException {
+                calls.incrementAndGet();
+                if (message.getBodyLength() == 0) {
+                    throw new IOException("empty");
+                }
+                return getCharset(message.getContentType()).decode(message.getBody()).toString();
+            }
+        });
+
+        RMQMessage message = new RMQMessage("queue-1", null, new BasicProperties.Builder()
+                .contentType("Application/JSON; charset=UTF-8").build(), "{}".getBytes("UTF-8"));
+        Object payload = message.getPayload(decoders);
+        assertEquals("{}", payload);
+        assertSame("Payload must be shared.", payload, message.getPayload(decoders));
+        assertEquals(1, calls.get());
+
+        RMQMessage broken = new RMQMessage("queue-1", null, new BasicProperties.Builder()
+                .contentType("application/json").build(), new byte[0]);
+        for (int i = 0; i < 2; i++) {
+            try {
+                broken.getPayload(decoders);
+                fail("Decode error must be thrown.");
+            } catch (IOException e) {
+                assertEquals("empty", e.getMessage());
+            }
+        }
+        assertEquals("Failure must be cached.", 2, calls.get());
+
+        RMQMessage text = new RMQMessage("queue-1", null, new BasicProperties.Builder()
+                .contentType("text/plain").build(), "text".getBytes("UTF-8"));
+        assertNull(text.getPayload(decoders));
+    }
+}
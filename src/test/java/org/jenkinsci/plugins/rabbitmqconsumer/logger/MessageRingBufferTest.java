@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.logger;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test for MessageRingBuffer class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class MessageRingBufferTest {
+
+    private static MessageRecord record(String body) throws Exception {
+        byte[] bytes = body.getBytes("UTF-8");
+        return new MessageRecord(0, "queue-1", "app", "text/plain", null, bytes, bytes.length);
+    }
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new MessageRingBuffer(0).capacity());
+        assertEquals(8, new MessageRingBuffer(8).capacity());
+        assertEquals(16, new MessageRingBuffer(9).capacity());
+    }
+
+    @Test
+    public void testOverwrite() throws Exception {
+        MessageRingBuffer buffer = new MessageRingBuffer(4);
+        for (int i = 0; i < 6; i++) {
+            buffer.add(record("m" + i));
+        }
+
+        List<MessageRecord> records = buffer.getRecords();
+        assertEquals(4, records.size());
+        assertEquals("m2", records.get(0).getBody());
+        assertEquals("m5", records.get(3).getBody());
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        MessageRingBuffer buffer = new MessageRingBuffer(4);
+        List<MessageRecord> records = new ArrayList<MessageRecord>();
+
+        buffer.add(record("m0"));
+        buffer.add(record("m1"));
+        assertEquals(0, buffer.drain(records));
+        assertEquals(2, records.size());
+
+        records.clear();
+        for (int i = 2; i < 8; i++) {
+            buffer.add(record("m" + i));
+        }
+        assertEquals("Overwritten records must be counted.", 2, buffer.drain(records));
+        assertEquals(4, records.size());
+        assertEquals("m4", records.get(0).getBody());
+
+        records.clear();
+        assertEquals(0, buffer.drain(records));
+        assertTrue(records.isEmpty());
+    }
+}
@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.spool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.rabbitmqconsumer.channels.FailurePolicy;
+import org.jenkinsci.plugins.rabbitmqconsumer.extensions.RMQMessage;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Test for MessageSpool class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class MessageSpoolTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private static final ThreadFactory FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MessageSpool spool;
+
+    @After
+    public void tearDown() {
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void testFailedRecordIsRetriedThenDeadLettered() throws Exception {
+        final List<RMQMessage> received = new CopyOnWriteArrayList<RMQMessage>();
+        final CountDownLatch attempts = new CountDownLatch(3);
+        spool = new MessageSpool("default", "queue", tmp.getRoot(), 1024, new MessageSpool.Handler() {
+            public void handle(RMQMessage message, MessageSpool.Completion onComplete) {
+                received.add(message);
+                onComplete.complete(false);
+                attempts.countDown();
+            }
+        });
+        spool.configure(FailurePolicy.REQUEUE, 2, 0);
+        spool.start(FACTORY);
+
+        assertTrue(spool.append(createMessage("abc")));
+        assertTrue(attempts.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        waitFor(spool, 1);
+
+        assertEquals(3, received.size());
+        assertEquals(3, received.get(2).getBodyLength());
+        assertEquals(2, spool.getRetriedCount());
+        assertEquals(1, spool.getDeadLetteredCount());
+        File[] dead = new File(tmp.getRoot(), "dead").listFiles();
+        assertNotNull(dead);
+        assertEquals(1, dead.length);
+    }
+
+    @Test
+    public void testFullSpoolRefusesAppend() throws Exception {
+        spool = new MessageSpool("default", "queue", tmp.getRoot(), 64, new MessageSpool.Handler() {
+            public void handle(RMQMessage message, MessageSpool.Completion onComplete) {
+                // never completed.
+            }
+        });
+        spool.configure(FailurePolicy.ACK, 0, 256);
+
+        int appended = 0;
+        while (spool.append(createMessage("abc")) && appended < 100) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        assertTrue("Spool must be bounded.", appended < 100);
+        assertEquals(1, spool.getOverflowCount());
+        assertTrue(spool.getSegmentCount() * 64 <= 256 + 64);
+    }
+
+    @Test
+    public void testUnlimitedRetriesAreCapped() throws Exception {
+        final CountDownLatch attempts = new CountDownLatch(MessageSpool.DEFAULT_MAX_RETRIES + 1);
+        spool = new MessageSpool("default", "queue", tmp.getRoot(), 1024, new MessageSpool.Handler() {
+            public void handle(RMQMessage message, MessageSpool.Completion onComplete) {
+                onComplete.complete(false);
+                attempts.countDown();
+            }
+        });
+        spool.configure(FailurePolicy.REQUEUE, 0, 0);
+        spool.start(FACTORY);
+
+        assertTrue(spool.append(createMessage("abc")));
+        assertTrue(attempts.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        waitFor(spool, 1);
+
+        assertEquals(MessageSpool.DEFAULT_MAX_RETRIES, spool.getRetriedCount());
+        assertEquals(1, spool.getDeadLetteredCount());
+    }
+
+    @Test
+    public void testDeadLetterIsNotCountedInMaxSize() throws Exception {
+        spool = new MessageSpool("default", "queue", tmp.getRoot(), 64, new MessageSpool.Handler() {
+            public void handle(RMQMessage message, MessageSpool.Completion onComplete) {
+                onComplete.complete(false);
+            }
+        });
+        spool.configure(FailurePolicy.DEAD_LETTER, 0, 256);
+        spool.start(FACTORY);
+
+        for (int i = 1; i <= 20; i++) {
+            assertTrue(spool.append(createMessage("abc")));
+            waitFor(spool, i);
+            assertEquals(i, spool.getDeadLetteredCount());
+        }
+        assertTrue(spool.getDeadLetterBytes() > 256);
+        assertEquals(0, spool.getOverflowCount());
+    }
+
+    @Test
+    public void testRetriesInRecord() throws Exception {
+        byte[] data = SpoolCodec.encode(createMessage("abc"));
+        assertEquals(0, SpoolCodec.getRetries(data));
+        byte[] retried = SpoolCodec.withRetries(data, 3);
+        assertEquals(3, SpoolCodec.getRetries(retried));
+        assertEquals(0, SpoolCodec.getRetries(data));
+        assertEquals("app", SpoolCodec.decode(retried).getAppId());
+    }
+
+    /**
+     * Creates message.
+     *
+     * @param body
+     *            the body.
+     * @return the message.
+     * @throws Exception
+     *             throws if body cannot be encoded.
+     */
+    private static RMQMessage createMessage(String body) throws Exception {
+        return new RMQMessage("queue", new Envelope(1L, false, "exchange", "key"),
+                new BasicProperties.Builder().appId("app").build(), body.getBytes("UTF-8"));
+    }
+
+    /**
+     * Waits until given number of records are moved to dead-letter segment.
+     *
+     * @param s
+     *            the spool.
+     * @param count
+     *            the number of records.
+     * @throws InterruptedException
+     *             throws if interrupted.
+     */
+    private static void waitFor(MessageSpool s, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (s.getDeadLetteredCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.spool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test for SpoolSegment class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class SpoolSegmentTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        SpoolSegment segment = SpoolSegment.create(tmp.getRoot(), 1, 64);
+
+        assertTrue(segment.append("abc".getBytes("UTF-8")));
+        assertTrue(segment.append("defg".getBytes("UTF-8")));
+        assertFalse("Segment must not be overflowed.", segment.append(new byte[64]));
+        assertNull("Record must not be read before force.", segment.read());
+        segment.force();
+
+        int start = segment.getReadPosition();
+        assertEquals("abc", new String(segment.read(), "UTF-8"));
+        int middle = segment.getReadPosition();
+        assertEquals("defg", new String(segment.read(), "UTF-8"));
+        int end = segment.getReadPosition();
+        assertNull(segment.read());
+        assertFalse(segment.isFullyRead());
+
+        segment.seal();
+        assertTrue(segment.isFullyRead());
+        assertFalse(segment.complete(middle, end));
+        assertEquals(end - start, segment.getPendingBytes());
+        assertTrue(segment.complete(start, middle));
+        assertEquals(0, segment.getPendingBytes());
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        SpoolSegment segment = SpoolSegment.create(tmp.getRoot(), 7, 128);
+        segment.append("first".getBytes("UTF-8"));
+        segment.append("second".getBytes("UTF-8"));
+        segment.append("third".getBytes("UTF-8"));
+        segment.force();
+        int start = segment.getReadPosition();
+        segment.read();
+        segment.complete(start, segment.getReadPosition());
+        start = segment.getReadPosition();
+        segment.read();
+        segment.force();
+
+        File[] files = tmp.getRoot().listFiles();
+        assertEquals(1, files.length);
+        SpoolSegment recovered = SpoolSegment.open(files[0]);
+
+        assertEquals(7, recovered.getSequence());
+        assertEquals("Record which is not completed must be read again.",
+                "second", new String(recovered.read(), "UTF-8"));
+        assertEquals("third", new String(recovered.read(), "UTF-8"));
+        assertNull(recovered.read());
+        assertTrue(recovered.isFullyRead());
+        assertFalse("Recovered segment must not be appended.", recovered.append(new byte[1]));
+    }
+
+    @Test
+    public void testCompletedRecordIsSkipped() throws Exception {
+        SpoolSegment segment = SpoolSegment.create(tmp.getRoot(), 1, 64);
+        int start = segment.getWritePosition();
+        segment.append("abc".getBytes("UTF-8"));
+        int middle = segment.getWritePosition();
+        segment.append("defg".getBytes("UTF-8"));
+
+        // record which could not be forced.
+        segment.complete(start, middle);
+        segment.force();
+
+        assertEquals("defg", new String(segment.read(), "UTF-8"));
+        assertNull(segment.read());
+    }
+}
@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Test for AppIdIndex class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class AppIdIndexTest {
+
+    @Test
+    public void testIsPattern() {
+        assertTrue(AppIdIndex.isPattern("ci.*"));
+        assertTrue(AppIdIndex.isPattern("ci.build-?"));
+        assertFalse(AppIdIndex.isPattern("ci.build"));
+        assertFalse(AppIdIndex.isPattern(null));
+    }
+
+    @Test
+    public void testGlob() {
+        assertTrue(AppIdIndex.matches("ci.*", "ci."));
+        assertTrue(AppIdIndex.matches("ci.*", "ci.build.started"));
+        assertTrue(AppIdIndex.matches("ci.*.started", "ci.build.started"));
+        assertTrue(AppIdIndex.matches("job-?", "job-1"));
+        assertFalse(AppIdIndex.matches("job-?", "job-10"));
+        assertFalse(AppIdIndex.matches("ci.*.started", "ci.build.finished"));
+        assertFalse(AppIdIndex.matches("ci.*", "cd.build"));
+    }
+
+    @Test
+    public void testMostSpecific() {
+        AppIdIndex<String> index = new AppIdIndex<String>()
+                .add("ci.*", "prefix")
+                .add("ci.build.*", "longer")
+                .add("ci.build.started", "exact")
+                .add("*.started", "suffix");
+
+        assertEquals("exact", index.get("ci.build.started"));
+        assertEquals("longer", index.get("ci.build.finished"));
+        assertEquals("prefix", index.get("ci.test"));
+        assertEquals("suffix", index.get("cd.started"));
+        assertNull(index.get("cd.finished"));
+        assertFalse(index.matches(null));
+    }
+
+    @Test
+    public void testGetAll() {
+        AppIdIndex<String> index = new AppIdIndex<String>()
+                .add("ci.build.*", "a")
+                .add("ci.build.started", "b")
+                .add("*.started", "c")
+                .add("ci.test", "d");
+
+        assertEquals(Arrays.asList("a", "b", "c"), index.getAll("ci.build.started"));
+        assertEquals(Arrays.asList("a"), index.getAll("ci.build.finished"));
+        assertTrue(index.getAll("ci.tests").isEmpty());
+    }
+
+    @Test
+    public void testExactOnly() {
+        AppIdIndex<String> index = new AppIdIndex<String>().add("ci", "x");
+
+        assertFalse(index.isEmpty());
+        assertFalse(index.hasGlob());
+        assertTrue(index.matches("ci"));
+        assertFalse(index.matches("ci.build"));
+        assertFalse(index.matches("c"));
+    }
+}
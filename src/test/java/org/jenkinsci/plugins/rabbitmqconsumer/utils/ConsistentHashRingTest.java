@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.rabbitmqconsumer.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test for ConsistentHashRing class.
+ *
+ * @author rinrinne a.k.a. rin_ne
+ */
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 3000;
+
+    @Test
+    public void testSingleNode() {
+        ConsistentHashRing ring = new ConsistentHashRing(0);
+        assertEquals(1, ring.size());
+        assertEquals(0, ring.get("queue-1"));
+        assertEquals(0, ring.get(null));
+    }
+
+    @Test
+    public void testStable() {
+        ConsistentHashRing a = new ConsistentHashRing(4);
+        ConsistentHashRing b = new ConsistentHashRing(4);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(a.get("queue-" + i), b.get("queue-" + i));
+        }
+    }
+
+    @Test
+    public void testDistribution() {
+        ConsistentHashRing ring = new ConsistentHashRing(4);
+        int[] counts = new int[4];
+        for (int i = 0; i < KEYS; i++) {
+            counts[ring.get("queue-" + i)]++;
+        }
+        for (int c : counts) {
+            assertTrue("unbalanced: " + c, c > KEYS / 4 / 2 && c < KEYS / 4 * 2);
+        }
+    }
+
+    @Test
+    public void testResize() {
+        ConsistentHashRing small = new ConsistentHashRing(4);
+        ConsistentHashRing large = new ConsistentHashRing(5);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            int from = small.get("queue-" + i);
+            int to = large.get("queue-" + i);
+            if (from != to) {
+                assertEquals(4, to);
+                moved++;
+            }
+        }
+        assertTrue("too many moved: " + moved, moved < KEYS / 5 * 2);
+    }
+}